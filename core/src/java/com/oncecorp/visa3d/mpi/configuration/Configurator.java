@@ -30,8 +30,9 @@ import java.util.Properties;
 import org.apache.log4j.Logger;
 
 import com.oncecorp.visa3d.mpi.controller.CardRangeMonitor;
-import com.oncecorp.visa3d.mpi.controller.ErrorHandlerThread;
 import com.oncecorp.visa3d.mpi.controller.ErrorHandlerThreadManager;
+import com.oncecorp.visa3d.mpi.domain.CardRangeManager;
+import com.oncecorp.visa3d.mpi.intf.payment.EnrollmentCache;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.monitoring.ConfiguratorMBean;
 import com.oncecorp.visa3d.mpi.publishing.PublishingManager;
@@ -94,6 +95,7 @@ public class Configurator implements ConfiguratorMBean {
 
 		CardRangeMonitor.setCacheExpiryInterval(cacheExpired * 60 * 1000);
 		CardRangeMonitor.setSleepInterval(sleepInterval * 60 * 1000);
+		CardRangeMonitor.reschedule();
 
 		/* 
 		 * [Martin's Note: Jan 21, 2003 5:33:38 PM We interrupt the CR threads so it can 
@@ -126,19 +128,23 @@ public class Configurator implements ConfiguratorMBean {
 			// Reset PublishManager
 			PublishingManager.reset();
 
-			// update ErrorHandlerThreadManger & ErrorHandlerThread
+			// update ErrorHandlerThreadManger, the error dispatcher is
+			// recreated with the new configuration and takes over the queue
 			cInfo = (CoreConfigInfo) data.get(MPIConfigDefinition.ERROR_DISPATCH_MODE);
 			ErrorHandlerThreadManager.setDispatchMode(cInfo.getValue());
-			int interval;
-			try {
-				cInfo = (CoreConfigInfo) data.get(MPIConfigDefinition.ErrorThreadSleepInterval);
-				interval = Integer.parseInt(cInfo.getValue());
-				ErrorHandlerThreadManager.setErrorThreadSleepInterval(interval);
-				ErrorHandlerThread.setInterval(interval);
-				logger.debug("Error Handler Thread updated.");
-			}
-			catch (NumberFormatException nfe) {
-				logger.error("Invalid value for ErrorThreadSleepInteval. Skip update.", nfe);
+			ErrorHandlerThreadManager.reconfigure();
+			logger.debug("Error dispatcher updated.");
+
+			// update card scheme routing
+			cInfo = (CoreConfigInfo) data.get(MPIConfigDefinition.CARD_SCHEME_ROUTING);
+			if (cInfo != null) {
+				try {
+					CardRangeManager.setRouting(cInfo.getValue());
+					logger.debug("Card scheme routing updated.");
+				}
+				catch (IllegalArgumentException iae) {
+					logger.error("Invalid card scheme routing, routing unchanged: " + iae.getMessage());
+				}
 			}
 		}
 		catch (SecurityException se) {
@@ -202,4 +208,65 @@ public class Configurator implements ConfiguratorMBean {
 		return "Successfully saved Log4J config data.";
 	}
 
+	/**
+	 * Load the card scheme routing rules in use
+	 */
+	public String loadCardSchemeRouting() {
+		return CardRangeManager.getRouting().getRules();
+	}
+
+	/**
+	 * Replace the card scheme routing rules, without restarting
+	 * @param rules The new rules
+	 */
+	public String saveCardSchemeRouting(String rules) {
+		try {
+			CardRangeManager.setRouting(rules);
+		}
+		catch (IllegalArgumentException iae) {
+			logger.error("Invalid card scheme routing: " + iae.getMessage());
+			return "Invalid card scheme routing: " + iae.getMessage();
+		}
+
+		// Keep the rules in the core config data
+		try {
+			HashMap data = Config.getConfigReference().getCoreConfigData();
+			CoreConfigInfo cInfo = (CoreConfigInfo) data.get(MPIConfigDefinition.CARD_SCHEME_ROUTING);
+			if (cInfo == null) {
+				cInfo = new CoreConfigInfo();
+				cInfo.setName(MPIConfigDefinition.CARD_SCHEME_ROUTING);
+				data.put(MPIConfigDefinition.CARD_SCHEME_ROUTING, cInfo);
+			}
+			cInfo.setValue(rules);
+			Config.getConfigReference().setCoreConfigData(data);
+		}
+		catch (ConfigurationException e) {
+			logger.error("Card scheme routing applied but not saved in persistence.", e);
+			return "Card scheme routing applied but not saved: " + e.getMessage();
+		}
+
+		return "Successfully saved card scheme routing.";
+	}
+
+	/**
+	 * Refresh card ranges now
+	 * @param protocol The protocol, empty for all protocols
+	 */
+	public String refreshCardRanges(String protocol) {
+		if ((protocol != null) && (protocol.trim().length() == 0))
+			protocol = null;
+		int requested = CardRangeMonitor.requestRefresh(protocol);
+		if (requested == 0)
+			return "No card range refresh requested: monitor not running or protocol not supported.";
+		return "Card range refresh requested for " + requested + " protocol(s).";
+	}
+
+	/**
+	 * Remove all entries of the not enrolled VERes cache
+	 */
+	public String flushEnrollmentCache() {
+		int removed = EnrollmentCache.getInstance().flush();
+		return "Successfully flushed enrollment cache, " + removed + " entries removed.";
+	}
+
 }
@@ -74,6 +74,133 @@ public interface MPIConfigDefinition {
 	final String NUMBER_OF_RETRIES 		= "NumberOfRetriesForDirectory";
 	final String TIME_BETWEEN_RETRIES 		= "TimeBetweenRetriesForDirectory";
 
+	/**
+	 * Key for directory connect timeout (in millis), also the maximum wait
+	 * for a pooled connection
+	 */
+	final String DIRECTORY_CONNECT_TIMEOUT = "DirectoryConnectTimeout";
+
+	/**
+	 * Key for directory read timeout (in millis)
+	 */
+	final String DIRECTORY_READ_TIMEOUT = "DirectoryReadTimeout";
+
+	/**
+	 * Key for maximum number of connections per directory endpoint
+	 */
+	final String DIRECTORY_MAX_CONNECTIONS = "DirectoryMaxConnections";
+
+	/**
+	 * Key for maximum number of idle connections kept per directory endpoint
+	 */
+	final String DIRECTORY_MAX_IDLE_CONNECTIONS = "DirectoryMaxIdleConnections";
+
+	/**
+	 * Key for time after which an idle directory connection is discarded (in millis)
+	 */
+	final String DIRECTORY_KEEP_ALIVE_TIME = "DirectoryKeepAliveTime";
+
+	/**
+	 * Key for maximum size of a directory response (in KB)
+	 */
+	final String DIRECTORY_MAX_RESPONSE_SIZE = "DirectoryMaxResponseSize";
+
+	/**
+	 * Key for number of consecutive failures that open the circuit breaker of a directory URL
+	 */
+	final String DIRECTORY_FAILURE_THRESHOLD = "DirectoryFailureThreshold";
+
+	/**
+	 * Key for time a directory circuit breaker stays open before a probe request (in millis)
+	 */
+	final String DIRECTORY_BREAKER_OPEN_TIME = "DirectoryBreakerOpenTime";
+
+	/**
+	 * Key for weight of a new sample in the directory latency and error rate averages (0 to 1)
+	 */
+	final String DIRECTORY_LATENCY_WEIGHT = "DirectoryLatencyWeight";
+
+	/**
+	 * Key for age after which the latency of an unused directory URL is measured again (in millis)
+	 */
+	final String DIRECTORY_LATENCY_STALE_TIME = "DirectoryLatencyStaleTime";
+
+	/**
+	 * Key for VEReq hedging to a secondary directory (true or false)
+	 */
+	final String DIRECTORY_HEDGING = "DirectoryHedging";
+
+	/**
+	 * Key for percentile of recent directory latencies after which a VEReq is hedged
+	 */
+	final String DIRECTORY_HEDGE_PERCENTILE = "DirectoryHedgePercentile";
+
+	/**
+	 * Key for minimum delay before a VEReq is hedged (in millis)
+	 */
+	final String DIRECTORY_HEDGE_MIN_DELAY = "DirectoryHedgeMinDelay";
+
+	/**
+	 * Key for maximum share of VEReq hedged (in percent)
+	 */
+	final String DIRECTORY_HEDGE_MAX_RATE = "DirectoryHedgeMaxRate";
+
+	/**
+	 * Key for maximum number of connections per directory endpoint in
+	 * asynchronous processing
+	 */
+	final String DIRECTORY_MAX_ASYNC_CONNECTIONS = "DirectoryMaxAsyncConnections";
+
+	/**
+	 * Key for number of threads completing asynchronous directory requests
+	 */
+	final String DIRECTORY_CALLBACK_THREADS = "DirectoryCallbackThreads";
+
+	/**
+	 * Key for asynchronous processing of AuthenticatorServlet requests (true or false)
+	 */
+	final String ASYNC_PROCESSING = "AsyncProcessing";
+
+	/**
+	 * Key for maximum time an asynchronous AuthenticatorServlet request may take (in millis)
+	 */
+	final String ASYNC_PROCESSING_TIMEOUT = "AsyncProcessingTimeout";
+
+	/**
+	 * Key for time allowed to a merchant request (in millis), no retry
+	 * starts after it. 0 for none
+	 */
+	final String REQUEST_DEADLINE = "RequestDeadline";
+
+	/**
+	 * Keys for number of retries and delay before the first retry (in millis)
+	 * of error notifications and card range requests. Directory connections
+	 * use NUMBER_OF_RETRIES and TIME_BETWEEN_RETRIES
+	 */
+	final String ERROR_DISPATCH_RETRIES = "ErrorDispatchRetries";
+	final String ERROR_DISPATCH_RETRY_DELAY = "ErrorDispatchRetryDelay";
+	final String CARD_RANGE_RETRIES = "CardRangeRetries";
+	final String CARD_RANGE_RETRY_DELAY = "CardRangeRetryDelay";
+
+	/**
+	 * Key for maximum delay before a retry (in millis), the delay doubling
+	 * at each retry
+	 */
+	final String RETRY_MAX_DELAY = "RetryMaxDelay";
+
+	/**
+	 * Key for percent of a retry delay randomized
+	 */
+	final String RETRY_JITTER = "RetryJitter";
+
+	/**
+	 * Keys for retry budget: number of tokens taken by failed attempts, and
+	 * tokens given back by a successful request. Retries stop while half
+	 * of the tokens or less are left
+	 */
+	final String RETRY_BUDGET = "RetryBudget";
+	final String RETRY_BUDGET_RATIO = "RetryBudgetRatio";
+
 	/**
 	 * CAVV and XID Formatting option configuration parameter
 	 * This parameter could have the following values:
@@ -134,6 +261,17 @@ public interface MPIConfigDefinition {
 	 */
 	final String SSL_TRUSTSTORE_PW = "SSLTrustKeystorePassword";
 
+	/**
+	 * Key for SSL keystore and truststore file type
+	 */
+	final String SSL_KEYSTORE_TYPE = "SSLKeystoreType";
+
+	/**
+	 * Key for time between two checks of the SSL keystore files for
+	 * changes (in millis). 0 not to check
+	 */
+	final String SSL_KEYSTORE_CHECK_INTERVAL = "SSLKeystoreCheckInterval";
+
 	/**
 	 * Key for Https proxy host
 	 */
@@ -149,11 +287,62 @@ public interface MPIConfigDefinition {
 	 */
 	final String CACHE_EXPIRY_INTERVAL = "TransactionCacheExpiryInterval";
 
+	/**
+	 * Key for VEReq/PAReq cache manager implementation class
+	 */
+	final String CACHE_MANAGER = "TransactionCacheManager";
+
+	/**
+	 * Key for memory budget of the bounded VEReq/PAReq store (in KB)
+	 */
+	final String TRANSACTION_STORE_BUDGET = "TransactionStoreBudget";
+
+	/**
+	 * Key for slot size of the bounded VEReq/PAReq store (in bytes)
+	 */
+	final String TRANSACTION_STORE_SLOT_SIZE = "TransactionStoreSlotSize";
+
+	/**
+	 * Key for bounded VEReq/PAReq store policy when full (Reject or EvictOldest)
+	 */
+	final String TRANSACTION_STORE_FULL_POLICY = "TransactionStoreFullPolicy";
+
+	/**
+	 * Key for write-behind delay of the shared VEReq/PAReq store (in millis)
+	 */
+	final String TRANSACTION_STORE_WRITE_DELAY = "TransactionStoreWriteDelay";
+
+	/**
+	 * Key for time to live of the not enrolled VERes cache (in millis, 0 to disable)
+	 */
+	final String ENROLLMENT_CACHE_TTL = "EnrollmentCacheTTL";
+
+	/**
+	 * Key for maximum number of entries of the not enrolled VERes cache
+	 */
+	final String ENROLLMENT_CACHE_MAX_SIZE = "EnrollmentCacheMaxSize";
+
+	/**
+	 * Key for merchants using the not enrolled VERes cache (comma separated, * for all)
+	 */
+	final String ENROLLMENT_CACHE_MERCHANTS = "EnrollmentCacheMerchants";
+
+	/**
+	 * Key for message types converted by the streaming decoder (comma separated).
+	 * Empty by default: every message is converted through DOM.
+	 */
+	final String STREAMING_DECODER_MESSAGES = "StreamingDecoderMessages";
+
 	/**
 	 * Key for CR Cache expiry interval
 	 */
 	final String CR_MONITOR_SLEEP_INTERVAL = "CardRangeMonitorSleepInterval";
 
+	/**
+	 * Key for percentage of the CR monitor sleep interval randomized
+	 */
+	final String CR_REFRESH_JITTER = "CardRangeRefreshJitter";
+
 	/**
 	 * Key for WaitUntilFirstRequest
 	 */
@@ -165,9 +354,21 @@ public interface MPIConfigDefinition {
 	final String ERROR_DISPATCH_MODE = "ErrorDispatchMode";
 
 	/**
-	 * Key for ErrorThreadSleepInterval
+	 * Key for maximum number of error notifications queued in Delay mode,
+	 * further notifications are dropped
 	 */
-	final String ErrorThreadSleepInterval = "ErrorThreadSleepInterval";
+	final String ERROR_DISPATCH_QUEUE_CAPACITY = "ErrorDispatchQueueCapacity";
+
+	/**
+	 * Key for number of threads sending error notifications in Delay mode
+	 */
+	final String ERROR_DISPATCH_THREADS = "ErrorDispatchThreads";
+
+	/**
+	 * Key for maximum number of queued notifications to the same URL sent
+	 * in a row over the same connection
+	 */
+	final String ERROR_DISPATCH_BATCH_SIZE = "ErrorDispatchBatchSize";
 
 	/**
 	 * Key for JMS connection factory JNDI name
@@ -184,6 +385,67 @@ public interface MPIConfigDefinition {
 	 */
 	final String JMS_ENCRYPTION_MODE = "JMSEncryptionMode";
 
+	/**
+	 * Key for JMS publishing mode (Sync or Async)
+	 */
+	final String JMS_PUBLISHING_MODE = "JMSPublishingMode";
+
+	/**
+	 * Key for asynchronous JMS publishing queue capacity (in messages)
+	 */
+	final String JMS_PUBLISHING_QUEUE_SIZE = "JMSPublishingQueueSize";
+
+	/**
+	 * Key for number of asynchronous JMS publisher threads. More than one
+	 * thread may publish messages out of order.
+	 */
+	final String JMS_PUBLISHING_THREADS = "JMSPublishingThreads";
+
+	/**
+	 * Key for maximum number of messages per JMS publishing transaction
+	 */
+	final String JMS_PUBLISHING_BATCH_SIZE = "JMSPublishingBatchSize";
+
+	/**
+	 * Key for asynchronous JMS publishing policy when the queue is full (Block, Spool or Fail)
+	 */
+	final String JMS_PUBLISHING_FULL_POLICY = "JMSPublishingFullPolicy";
+
+	/**
+	 * Key for JMS publishing spool directory, an absolute path (empty to disable the spool)
+	 */
+	final String JMS_SPOOL_DIRECTORY = "JMSSpoolDirectory";
+
+	/**
+	 * Key for JMS publishing spool segment size (in KB)
+	 */
+	final String JMS_SPOOL_SEGMENT_SIZE = "JMSSpoolSegmentSize";
+
+	/**
+	 * Key for JMS publishing spool size limit (in KB)
+	 */
+	final String JMS_SPOOL_MAX_SIZE = "JMSSpoolMaxSize";
+
+	/**
+	 * Key for interval between two forces of the JMS publishing spool to disk (in millis)
+	 */
+	final String JMS_SPOOL_SYNC_INTERVAL = "JMSSpoolSyncInterval";
+
+	/**
+	 * Key for interval between two JMS publishing spool replay attempts (in millis)
+	 */
+	final String JMS_SPOOL_REPLAY_INTERVAL = "JMSSpoolReplayInterval";
+
+	/**
+	 * Key for directory of the card range snapshots (empty to disable)
+	 */
+	final String CARD_RANGE_SNAPSHOT_DIRECTORY = "CardRangeSnapshotDirectory";
+
+	/**
+	 * Key for card scheme routing rules (prefix[-prefix]=protocol, separated by ;)
+	 */
+	final String CARD_SCHEME_ROUTING = "CardSchemeRouting";
+
 	/**
 	 * Key for JMS Naming Service mode
 	 */
@@ -239,6 +501,11 @@ public interface MPIConfigDefinition {
 	 */
 	final String PERFOMANCE_MONITOR_SAMPLING_TIME = "PerformanceMetricsSamplingTime";
 
+	/**
+	 * Key for Latency monitor snapshot interval (in secs)
+	 */
+	final String LATENCY_SNAPSHOT_INTERVAL = "LatencySnapshotInterval";
+
     /**
 	 * Key for Jrmp Adaptor MBean JNDI Name
 	 */
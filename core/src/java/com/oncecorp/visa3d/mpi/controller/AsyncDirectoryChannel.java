@@ -0,0 +1,267 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * Non-blocking connection to a directory endpoint, only used by the
+ * AsyncDirectoryClient reactor thread. SSL is layered with an SSLEngine,
+ * so neither the handshake nor the records ever block the thread.
+ *
+ * @version $Revision: 1 $
+ */
+class AsyncDirectoryChannel {
+	/**
+	 * Input buffer size of plain connections
+	 */
+	private static final int BUFFER_SIZE = 16384;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private String key;
+	private SocketChannel channel;
+	private SSLEngine engine;
+	private SelectionKey selectionKey;
+
+	/**
+	 * SSL records received and not yet decrypted, and records to be sent
+	 */
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+
+	/**
+	 * Data received and not yet consumed, in write mode
+	 */
+	private ByteBuffer appIn;
+
+	private boolean endOfStream;
+	private long lastUsed;
+
+	/**
+	 * Constructor
+	 * @param key The endpoint key
+	 * @param channel Connecting socket channel, in non-blocking mode
+	 * @param engine SSL engine in client mode, null for plain http
+	 */
+	AsyncDirectoryChannel(String key, SocketChannel channel, SSLEngine engine) {
+		this.key = key;
+		this.channel = channel;
+		this.engine = engine;
+		if (engine != null) {
+			netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		} else {
+			appIn = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Returns the key of the endpoint this channel is connected to.
+	 * @return String
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the socket channel.
+	 * @return SocketChannel
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the selection key of the channel.
+	 * @return SelectionKey
+	 */
+	SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+
+	/**
+	 * Sets the selection key of the channel.
+	 * @param selectionKey The selectionKey to set
+	 */
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	/**
+	 * Complete the TCP connection and start the SSL handshake.
+	 * @return false if the connection is still pending
+	 */
+	boolean finishConnect() throws IOException {
+		if (!channel.finishConnect())
+			return false;
+		if (engine != null)
+			engine.beginHandshake();
+		return true;
+	}
+
+	/**
+	 * Send as much of the given data and receive as much data as possible
+	 * without blocking. Received data is appended to getInput().
+	 * @param out Data to send
+	 */
+	void pump(ByteBuffer out) throws IOException {
+		if (engine == null) {
+			if (out.hasRemaining())
+				channel.write(out);
+			if (!endOfStream && appIn.hasRemaining() && channel.read(appIn) < 0)
+				endOfStream = true;
+			return;
+		}
+
+		while (true) {
+			if (netOut.position() > 0) {
+				netOut.flip();
+				channel.write(netOut);
+				netOut.compact();
+			}
+
+			SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+			if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+				continue;
+			}
+
+			if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP
+				|| (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && out.hasRemaining())) {
+				// Wait for the socket to take the pending records first
+				if (netOut.position() > 0)
+					return;
+				SSLEngineResult result = engine.wrap(out, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new EOFException("SSL connection closed");
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+					throw new IOException("SSL record larger than its packet buffer");
+				continue;
+			}
+
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			SSLEngineResult.Status status = result.getStatus();
+			if (status == SSLEngineResult.Status.CLOSED) {
+				endOfStream = true;
+				return;
+			}
+			// Received data must be consumed first
+			if (status == SSLEngineResult.Status.BUFFER_OVERFLOW)
+				return;
+			if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW
+				|| (result.bytesConsumed() == 0
+					&& result.bytesProduced() == 0
+					&& engine.getHandshakeStatus() == hs)) {
+				if (endOfStream)
+					return;
+				int n = channel.read(netIn);
+				if (n < 0)
+					endOfStream = true;
+				if (n <= 0)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the data received and not yet consumed. The buffer is in
+	 * write mode: flip it to consume data and compact it afterwards.
+	 * @return ByteBuffer
+	 */
+	ByteBuffer getInput() {
+		return appIn;
+	}
+
+	/**
+	 * Returns true if data is waiting for the socket to accept it.
+	 * @param out Data to send
+	 * @return boolean
+	 */
+	boolean isOutputPending(ByteBuffer out) {
+		return (engine == null) ? out.hasRemaining() : netOut.position() > 0;
+	}
+
+	/**
+	 * Returns true once the server has closed the connection.
+	 * @return boolean
+	 */
+	boolean isEndOfStream() {
+		return endOfStream;
+	}
+
+	/**
+	 * Check an idle channel the selector reported as readable: SSL session
+	 * tickets are absorbed, anything else means the channel is unusable.
+	 * @return true if the channel can still be reused
+	 */
+	boolean checkIdle() {
+		try {
+			pump(EMPTY);
+		} catch (IOException ioe) {
+			return false;
+		}
+		return !endOfStream && appIn.position() == 0;
+	}
+
+	/**
+	 * Returns the time this channel was last handed back to its pool.
+	 * @return long
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Sets the time this channel was last handed back to its pool.
+	 * @param lastUsed The lastUsed to set
+	 */
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	/**
+	 * Close the channel, ignoring errors.
+	 */
+	void close() {
+		if (selectionKey != null)
+			selectionKey.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignore) {
+		}
+	}
+}
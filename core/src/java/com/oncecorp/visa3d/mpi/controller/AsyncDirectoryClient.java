@@ -0,0 +1,856 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.security.SSLContextRegistry;
+import com.oncecorp.visa3d.mpi.utility.TimingWheel;
+
+/**
+ * Non-blocking HTTP(S) client posting 3-D Secure messages to the directory
+ * servers. A single reactor thread multiplexes every connection with a
+ * Selector, so thousands of directory requests can be in flight while no
+ * thread waits on any of them; responses are completed on a small pool of
+ * callback threads, where the caller's listeners run.
+ *
+ * <p>Connections are kept alive and pooled per endpoint like in
+ * DirectoryClient. Requests beyond the maximum number of connections of an
+ * endpoint wait for one to be released. The connect timeout applies until
+ * the connection is established, the read timeout to any silence of the
+ * server afterwards. Directory proxies are not supported: use
+ * DirectoryClient when HttpsProxyHost is configured. SSL contexts come
+ * from the SSLContextRegistry, as in DirectoryClient.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class AsyncDirectoryClient implements Runnable, TimingWheel.TimeoutListener {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(AsyncDirectoryClient.class.getName());
+
+	/**
+	 * Default configuration values
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+	public static final int DEFAULT_CALLBACK_THREADS = 4;
+
+	/**
+	 * Resolution of the request timeouts (in millis)
+	 */
+	private static final long TIMEOUT_TICK = 50;
+
+	/**
+	 * Shared instance built from the MPI configuration
+	 */
+	private static AsyncDirectoryClient instance;
+
+	/**
+	 * SSL context, null to use the SSLContextRegistry
+	 */
+	private SSLContext sslContext;
+
+	/**
+	 * Settings
+	 */
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxConnections;
+	private int maxIdle;
+	private long keepAliveTime;
+	private long maxResponseSize = DirectoryClient.DEFAULT_MAX_RESPONSE_SIZE;
+
+	/**
+	 * Reactor: selector, thread and the operations it has to run
+	 */
+	private Selector selector;
+	private Thread reactor;
+	private LinkedList operations = new LinkedList();
+	private boolean running = true;
+	private boolean stopped;
+
+	/**
+	 * Endpoints keyed by scheme://host:port and exchanges in progress,
+	 * only used by the reactor thread
+	 */
+	private Map endpoints = new HashMap();
+	private Set exchanges = new HashSet();
+
+	private TimingWheel timeouts;
+
+	/**
+	 * Completions waiting for a callback thread
+	 */
+	private LinkedList callbacks = new LinkedList();
+	private Thread[] callbackThreads;
+
+	/**
+	 * Statistics
+	 */
+	private long requestCount;
+	private long connectionCount;
+	private long reuseCount;
+	private long failureCount;
+	private int inFlight;
+
+	/**
+	 * Constructor, starting the reactor and callback threads
+	 * @param sslContext SSL context, null to use the SSLContextRegistry
+	 * @param connectTimeout Connect timeout in millis
+	 * @param readTimeout Read timeout in millis
+	 * @param maxConnections Maximum number of connections per endpoint
+	 * @param maxIdle Maximum number of idle connections kept per endpoint
+	 * @param keepAliveTime Time in millis after which an idle connection is discarded
+	 * @param callbackThreads Number of threads completing the requests
+	 */
+	public AsyncDirectoryClient(
+		SSLContext sslContext,
+		int connectTimeout,
+		int readTimeout,
+		int maxConnections,
+		int maxIdle,
+		long keepAliveTime,
+		int callbackThreads)
+		throws IOException {
+		this.sslContext = sslContext;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.maxIdle = Math.max(0, maxIdle);
+		this.keepAliveTime = keepAliveTime;
+
+		selector = Selector.open();
+		timeouts = new TimingWheel("DirectoryTimeouts", TIMEOUT_TICK, this);
+		timeouts.start();
+
+		reactor = new Thread(this, "DirectoryReactor");
+		reactor.setDaemon(true);
+		reactor.start();
+
+		this.callbackThreads = new Thread[Math.max(1, callbackThreads)];
+		for (int i = 0; i < this.callbackThreads.length; i++) {
+			this.callbackThreads[i] = new Thread("DirectoryCallback-" + i) {
+				public void run() {
+					callback();
+				}
+			};
+			this.callbackThreads[i].setDaemon(true);
+			this.callbackThreads[i].start();
+		}
+	}
+
+	/**
+	 * Returns the shared client, creating it from the MPI configuration on first use.
+	 * @return AsyncDirectoryClient
+	 */
+	public static synchronized AsyncDirectoryClient getInstance() throws IOException {
+		if (instance == null) {
+			int connectTimeout = DirectoryClient.DEFAULT_CONNECT_TIMEOUT;
+			int readTimeout = DirectoryClient.DEFAULT_READ_TIMEOUT;
+			int maxConnections = DEFAULT_MAX_CONNECTIONS;
+			int maxIdle = DirectoryClient.DEFAULT_MAX_IDLE_CONNECTIONS;
+			long keepAliveTime = DirectoryClient.DEFAULT_KEEP_ALIVE_TIME;
+			long maxResponseSize = DirectoryClient.DEFAULT_MAX_RESPONSE_SIZE;
+			int callbackThreads = DEFAULT_CALLBACK_THREADS;
+			try {
+				Config cfg = Config.getConfigReference();
+				connectTimeout =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_CONNECT_TIMEOUT));
+				readTimeout =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_READ_TIMEOUT));
+				maxIdle =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_IDLE_CONNECTIONS));
+				keepAliveTime =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_KEEP_ALIVE_TIME));
+				maxResponseSize =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_RESPONSE_SIZE))
+						* 1024;
+				maxConnections =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_ASYNC_CONNECTIONS));
+				callbackThreads =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_CALLBACK_THREADS));
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve asynchronous directory configuration. Defaults used for missing items.",
+					e);
+			}
+			instance =
+				new AsyncDirectoryClient(
+					null,
+					connectTimeout,
+					readTimeout,
+					maxConnections,
+					maxIdle,
+					keepAliveTime,
+					callbackThreads);
+			instance.setMaxResponseSize(maxResponseSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared client, shutting the previous one down.
+	 * @param client The new client, null to rebuild it from the configuration on next use
+	 */
+	public static synchronized void setInstance(AsyncDirectoryClient client) {
+		if (instance != null && instance != client)
+			instance.shutdown();
+		instance = client;
+	}
+
+	/**
+	 * Post a serialized message. The future completes, on a callback
+	 * thread, once the whole response has been received.
+	 * @param url Target URL (http or https)
+	 * @param body Serialized message
+	 * @return Future of the exchange; it fails with an IOException on
+	 * connection failure, timeout, non 2xx HTTP status or response over
+	 * the maximum size
+	 */
+	public DirectoryFuture post(String url, byte[] body) {
+		DirectoryFuture future = new DirectoryFuture();
+		try {
+			URL target = new URL(url);
+			String scheme = target.getProtocol().toLowerCase();
+			boolean secure;
+			if (scheme.equals("https"))
+				secure = true;
+			else if (scheme.equals("http"))
+				secure = false;
+			else
+				throw new IOException("Unsupported protocol: " + scheme);
+			String host = target.getHost().toLowerCase();
+			int port = target.getPort();
+			if (port == -1)
+				port = secure ? 443 : 80;
+			String path = target.getFile();
+			if (path == null || path.length() == 0)
+				path = "/";
+			String hostHeader = target.getHost();
+			if (target.getPort() != -1)
+				hostHeader += ":" + target.getPort();
+
+			// Resolved here: name lookups block and must stay off the reactor
+			InetSocketAddress address = new InetSocketAddress(host, port);
+			if (address.isUnresolved())
+				throw new UnknownHostException(host);
+
+			// Client certificate of the request protocol or merchant,
+			// connections made with different SSL contexts are pooled apart
+			String key = scheme + "://" + host + ":" + port;
+			SSLContext context = sslContext;
+			if (secure && context == null) {
+				AuthenticatorSession session = AuthenticatorSession.instance();
+				SSLContextRegistry registry = SSLContextRegistry.getInstance();
+				String sslKey =
+					registry.resolve(session.getProtocol(), session.getMerchantID());
+				context = registry.getContext(sslKey);
+				if (!sslKey.equals(SSLContextRegistry.DEFAULT))
+					key += " [" + sslKey + "]";
+			}
+
+			byte[] head =
+				DirectoryConnection.requestHead(
+					path,
+					hostHeader,
+					DirectoryClient.CONTENT_TYPE,
+					body.length);
+			ByteBuffer request = ByteBuffer.allocate(head.length + body.length);
+			request.put(head);
+			request.put(body);
+			request.flip();
+
+			final AsyncExchange exchange =
+				new AsyncExchange(
+					url,
+					key,
+					host,
+					port,
+					secure,
+					context,
+					address,
+					request,
+					future,
+					maxResponseSize);
+			synchronized (this) {
+				requestCount++;
+				inFlight++;
+			}
+			boolean accepted = execute(new Runnable() {
+				public void run() {
+					start(exchange);
+				}
+			});
+			if (!accepted) {
+				finished(exchange);
+				throw new IOException("Directory client shut down");
+			}
+			future.setCanceller(new Runnable() {
+				public void run() {
+					execute(new Runnable() {
+						public void run() {
+							fail(exchange, new InterruptedIOException("Request to " + exchange.getUrl() + " cancelled"));
+						}
+					});
+				}
+			});
+		} catch (IOException ioe) {
+			future.fail(ioe);
+		}
+		return future;
+	}
+
+	/**
+	 * Returns the maximum response body size.
+	 * @return long bytes, 0 for no limit
+	 */
+	public long getMaxResponseSize() {
+		return maxResponseSize;
+	}
+
+	/**
+	 * Sets the maximum response body size.
+	 * @param maxResponseSize The maximum size in bytes, 0 for no limit
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = Math.max(0, maxResponseSize);
+	}
+
+	/**
+	 * Returns the number of requests posted.
+	 * @return long
+	 */
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Returns the number of requests not completed yet.
+	 * @return int
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of connections opened.
+	 * @return long
+	 */
+	public synchronized long getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Returns the number of requests sent over a pooled connection.
+	 * @return long
+	 */
+	public synchronized long getReuseCount() {
+		return reuseCount;
+	}
+
+	/**
+	 * Returns the number of failed requests.
+	 * @return long
+	 */
+	public synchronized long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Stop the reactor and callback threads. Requests in progress fail
+	 * and every connection is closed.
+	 */
+	public void shutdown() {
+		synchronized (operations) {
+			running = false;
+		}
+		selector.wakeup();
+		timeouts.stop();
+	}
+
+	/**
+	 * Reactor thread main loop.
+	 */
+	public void run() {
+		while (runOperations()) {
+			try {
+				selector.select();
+			} catch (IOException ioe) {
+				logger.error("Directory reactor selector failed.", ioe);
+				break;
+			}
+
+			Iterator it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = (SelectionKey) it.next();
+				it.remove();
+				try {
+					ready(key);
+				} catch (RuntimeException re) {
+					logger.error("Unexpected error in directory reactor.", re);
+				}
+			}
+		}
+
+		// Shut down: fail what is in progress and close everything
+		synchronized (operations) {
+			running = false;
+		}
+		runOperations();
+		Iterator it = new ArrayList(exchanges).iterator();
+		while (it.hasNext())
+			fail((AsyncExchange) it.next(), new IOException("Directory client shut down"));
+		it = endpoints.values().iterator();
+		while (it.hasNext()) {
+			Endpoint endpoint = (Endpoint) it.next();
+			while (!endpoint.idle.isEmpty())
+				 ((AsyncDirectoryChannel) endpoint.idle.removeFirst()).close();
+			while (!endpoint.waiting.isEmpty())
+				fail((AsyncExchange) endpoint.waiting.removeFirst(), new IOException("Directory client shut down"));
+		}
+		try {
+			selector.close();
+		} catch (IOException ignore) {
+		}
+		synchronized (callbacks) {
+			stopped = true;
+			callbacks.notifyAll();
+		}
+		logger.debug("Directory reactor stopped.");
+	}
+
+	/**
+	 * Run the operations queued for the reactor thread.
+	 * @return false once the client is shut down
+	 */
+	private boolean runOperations() {
+		Runnable[] pending;
+		boolean result;
+		synchronized (operations) {
+			result = running;
+			pending = (Runnable[]) operations.toArray(new Runnable[operations.size()]);
+			operations.clear();
+		}
+		for (int i = 0; i < pending.length; i++) {
+			try {
+				pending[i].run();
+			} catch (RuntimeException re) {
+				logger.error("Unexpected error in directory reactor.", re);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Called by the timing wheel thread for expired request timeouts.
+	 */
+	public void timeoutExpired(final TimingWheel.Timeout timeout) {
+		final AsyncExchange exchange = (AsyncExchange) timeout.getAttachment();
+		execute(new Runnable() {
+			public void run() {
+				timedOut(exchange, timeout);
+			}
+		});
+	}
+
+	/**
+	 * Run an operation on the reactor thread.
+	 * @return false if the client is shut down
+	 */
+	private boolean execute(Runnable operation) {
+		synchronized (operations) {
+			if (!running)
+				return false;
+			operations.add(operation);
+		}
+		selector.wakeup();
+		return true;
+	}
+
+	private void start(AsyncExchange exchange) {
+		cancelTimeout(exchange);
+		if (exchange.getFuture().isDone()) {
+			finished(exchange);
+			return;
+		}
+		Endpoint endpoint = getEndpoint(exchange);
+		AsyncDirectoryChannel channel = takeIdle(endpoint);
+		if (channel != null) {
+			synchronized (this) {
+				reuseCount++;
+			}
+			exchanges.add(exchange);
+			exchange.attach(channel, true);
+			channel.getSelectionKey().attach(exchange);
+			schedule(exchange, readTimeout);
+			process(exchange);
+		} else if (endpoint.open < maxConnections) {
+			exchanges.add(exchange);
+			connect(endpoint, exchange);
+		} else {
+			// Waits for a connection no longer than for connecting
+			endpoint.waiting.add(exchange);
+			schedule(exchange, connectTimeout);
+		}
+	}
+
+	private void connect(Endpoint endpoint, AsyncExchange exchange) {
+		endpoint.open++;
+		synchronized (this) {
+			connectionCount++;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Opening connection to " + endpoint.key);
+
+		SocketChannel socketChannel = null;
+		try {
+			SSLEngine engine = null;
+			if (exchange.isSecure()) {
+				engine =
+					exchange.getSSLContext().createSSLEngine(
+						exchange.getHost(),
+						exchange.getPort());
+				engine.setUseClientMode(true);
+			}
+			socketChannel = SocketChannel.open();
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			AsyncDirectoryChannel channel =
+				new AsyncDirectoryChannel(endpoint.key, socketChannel, engine);
+			exchange.attach(channel, false);
+			channel.setSelectionKey(
+				socketChannel.register(selector, SelectionKey.OP_CONNECT, exchange));
+			schedule(exchange, connectTimeout);
+			if (socketChannel.connect(exchange.getAddress()))
+				connected(exchange);
+		} catch (Exception e) {
+			if (exchange.getChannel() == null) {
+				if (socketChannel != null) {
+					try {
+						socketChannel.close();
+					} catch (IOException ignore) {
+					}
+				}
+				endpoint.open--;
+			}
+			fail(exchange, (e instanceof IOException) ? (IOException) e : new ConnectException(e.toString()));
+		}
+	}
+
+	private void connected(AsyncExchange exchange) throws IOException {
+		if (!exchange.getChannel().finishConnect())
+			return;
+		exchange.setConnected(true);
+		cancelTimeout(exchange);
+		schedule(exchange, readTimeout);
+		process(exchange);
+	}
+
+	/**
+	 * Handle a key the selector reported as ready.
+	 */
+	private void ready(SelectionKey key) {
+		Object attachment = key.attachment();
+		if (attachment instanceof AsyncExchange) {
+			AsyncExchange exchange = (AsyncExchange) attachment;
+			if (!key.isValid()) {
+				fail(exchange, new IOException("Connection closed"));
+				return;
+			}
+			if (exchange.isConnected()) {
+				process(exchange);
+				return;
+			}
+			try {
+				connected(exchange);
+			} catch (IOException ioe) {
+				fail(exchange, ioe);
+			}
+		} else if (attachment instanceof AsyncDirectoryChannel) {
+			AsyncDirectoryChannel channel = (AsyncDirectoryChannel) attachment;
+			if (!key.isValid() || !channel.checkIdle()) {
+				Endpoint endpoint = (Endpoint) endpoints.get(channel.getKey());
+				if (endpoint != null && endpoint.idle.remove(channel))
+					endpoint.open--;
+				channel.close();
+				if (endpoint != null)
+					startWaiting(endpoint);
+			}
+		}
+	}
+
+	/**
+	 * Move the exchange forward and complete it when its response is in.
+	 */
+	private void process(AsyncExchange exchange) {
+		AsyncDirectoryChannel channel = exchange.getChannel();
+		try {
+			if (exchange.process()) {
+				succeed(exchange);
+				return;
+			}
+			channel.getSelectionKey().interestOps(
+				channel.isOutputPending(exchange.getRequest())
+					? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ);
+		} catch (IOException ioe) {
+			fail(exchange, ioe);
+		}
+	}
+
+	private void timedOut(AsyncExchange exchange, TimingWheel.Timeout timeout) {
+		// Ignore a timeout replaced while it was being handed over
+		if (exchange.isFinished() || exchange.getTimeout() != timeout)
+			return;
+		exchange.setTimeout(null);
+		if (exchange.isConnected()) {
+			long silence = System.currentTimeMillis() - exchange.getLastActivity();
+			if (silence < readTimeout) {
+				schedule(exchange, readTimeout - silence);
+				return;
+			}
+			fail(exchange, new SocketTimeoutException("Read timed out"));
+		} else {
+			fail(exchange, new SocketTimeoutException("connect timed out"));
+		}
+	}
+
+	private void succeed(AsyncExchange exchange) {
+		int status = exchange.getStatus();
+		release(exchange, exchange.isKeepAlive());
+		if (status < 200 || status >= 300) {
+			synchronized (this) {
+				failureCount++;
+			}
+			complete(
+				exchange,
+				new IOException(
+					"Server returned HTTP response code: " + status
+						+ " for URL: " + exchange.getUrl()));
+		} else {
+			complete(exchange, null);
+		}
+	}
+
+	private void fail(AsyncExchange exchange, IOException failure) {
+		if (exchange.isFinished())
+			return;
+		Endpoint endpoint = getEndpoint(exchange);
+		if (endpoint.waiting.remove(exchange)) {
+			complete(exchange, failure);
+			return;
+		}
+		boolean stale =
+			exchange.isReused()
+				&& !exchange.isResponseStarted()
+				&& !(failure instanceof InterruptedIOException)
+				&& !exchange.getFuture().isDone();
+		release(exchange, false);
+		// The server may have dropped an idle connection we still had
+		// pooled: resend once nothing of the response has come back.
+		if (stale) {
+			logger.debug(
+				"Pooled connection to " + endpoint.key + " is no longer usable, resending.");
+			exchanges.add(exchange);
+			connect(endpoint, exchange);
+			return;
+		}
+		synchronized (this) {
+			failureCount++;
+		}
+		complete(exchange, failure);
+	}
+
+	/**
+	 * Detach the exchange from its channel, pooling the channel if it can
+	 * carry another exchange, and start waiting exchanges.
+	 */
+	private void release(AsyncExchange exchange, boolean reusable) {
+		exchanges.remove(exchange);
+		cancelTimeout(exchange);
+		AsyncDirectoryChannel channel = exchange.getChannel();
+		if (channel == null)
+			return;
+		exchange.detach();
+
+		Endpoint endpoint = getEndpoint(exchange);
+		if (reusable && endpoint.idle.size() < maxIdle) {
+			channel.setLastUsed(System.currentTimeMillis());
+			channel.getSelectionKey().attach(channel);
+			channel.getSelectionKey().interestOps(SelectionKey.OP_READ);
+			endpoint.idle.addFirst(channel);
+		} else {
+			channel.close();
+			endpoint.open--;
+		}
+		startWaiting(endpoint);
+	}
+
+	private void startWaiting(Endpoint endpoint) {
+		while (!endpoint.waiting.isEmpty()
+			&& (!endpoint.idle.isEmpty() || endpoint.open < maxConnections))
+			start((AsyncExchange) endpoint.waiting.removeFirst());
+	}
+
+	/**
+	 * Hand the completion of an exchange to a callback thread.
+	 */
+	private void complete(final AsyncExchange exchange, final IOException failure) {
+		finished(exchange);
+		Runnable completion = new Runnable() {
+			public void run() {
+				if (failure != null)
+					exchange.getFuture().fail(failure);
+				else
+					exchange.getFuture().complete(exchange);
+			}
+		};
+		synchronized (callbacks) {
+			callbacks.add(completion);
+			callbacks.notify();
+		}
+	}
+
+	private void finished(AsyncExchange exchange) {
+		if (exchange.isFinished())
+			return;
+		exchange.setFinished();
+		synchronized (this) {
+			inFlight--;
+		}
+	}
+
+	/**
+	 * Callback thread main loop.
+	 */
+	private void callback() {
+		while (true) {
+			Runnable completion;
+			synchronized (callbacks) {
+				while (callbacks.isEmpty()) {
+					if (stopped)
+						return;
+					try {
+						callbacks.wait();
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+				completion = (Runnable) callbacks.removeFirst();
+			}
+			try {
+				completion.run();
+			} catch (RuntimeException re) {
+				logger.error("Unexpected error completing a directory request.", re);
+			}
+		}
+	}
+
+	private AsyncDirectoryChannel takeIdle(Endpoint endpoint) {
+		long now = System.currentTimeMillis();
+		while (!endpoint.idle.isEmpty()) {
+			AsyncDirectoryChannel channel = (AsyncDirectoryChannel) endpoint.idle.removeFirst();
+			if (now - channel.getLastUsed() < keepAliveTime)
+				return channel;
+			channel.close();
+			endpoint.open--;
+		}
+		return null;
+	}
+
+	private void schedule(AsyncExchange exchange, long delay) {
+		exchange.setTimeout(timeouts.schedule(exchange.getKey(), exchange, delay));
+	}
+
+	private void cancelTimeout(AsyncExchange exchange) {
+		if (exchange.getTimeout() != null) {
+			timeouts.cancel(exchange.getTimeout());
+			exchange.setTimeout(null);
+		}
+	}
+
+	private Endpoint getEndpoint(AsyncExchange exchange) {
+		Endpoint endpoint = (Endpoint) endpoints.get(exchange.getKey());
+		if (endpoint == null) {
+			endpoint = new Endpoint(exchange.getKey());
+			endpoints.put(endpoint.key, endpoint);
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Connections of an endpoint
+	 */
+	private static class Endpoint {
+		private String key;
+		private int open;
+		private LinkedList idle = new LinkedList();
+		private LinkedList waiting = new LinkedList();
+
+		private Endpoint(String key) {
+			this.key = key;
+		}
+	}
+}
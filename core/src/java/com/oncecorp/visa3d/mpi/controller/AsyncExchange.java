@@ -0,0 +1,502 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLContext;
+
+import com.oncecorp.visa3d.mpi.utility.TimingWheel;
+
+/**
+ * One request of the AsyncDirectoryClient: the serialized request and the
+ * response parsed incrementally as the reactor thread receives it. Only
+ * the reactor thread touches an exchange until it completes; the
+ * completed exchange is the result of its DirectoryFuture.
+ *
+ * @version $Revision: 1 $
+ */
+class AsyncExchange {
+	/**
+	 * Parsing states
+	 */
+	private static final int STATUS = 0;
+	private static final int HEADERS = 1;
+	private static final int BODY = 2;
+	private static final int CHUNK_SIZE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILER = 6;
+	private static final int DONE = 7;
+
+	/**
+	 * Maximum length of a status, header or chunk size line
+	 */
+	private static final int MAX_LINE = 8192;
+
+	private String url;
+	private String key;
+	private String host;
+	private int port;
+	private boolean secure;
+	private SSLContext sslContext;
+	private InetSocketAddress address;
+	private ByteBuffer request;
+	private DirectoryFuture future;
+	private long maxSize;
+
+	/**
+	 * Transport state
+	 */
+	private AsyncDirectoryChannel channel;
+	private boolean reused;
+	private boolean connected;
+	private boolean finished;
+	private long lastActivity;
+	private TimingWheel.Timeout timeout;
+
+	/**
+	 * Response state
+	 */
+	private int state;
+	private StringBuffer line = new StringBuffer(64);
+	private boolean responseStarted;
+	private int status;
+	private String charset;
+	private boolean keepAlive;
+	private boolean chunked;
+	private long contentLength;
+	private long remaining;
+	private ByteArrayOutputStream body;
+
+	AsyncExchange(
+		String url,
+		String key,
+		String host,
+		int port,
+		boolean secure,
+		SSLContext sslContext,
+		InetSocketAddress address,
+		ByteBuffer request,
+		DirectoryFuture future,
+		long maxSize) {
+		this.url = url;
+		this.key = key;
+		this.host = host;
+		this.port = port;
+		this.secure = secure;
+		this.sslContext = sslContext;
+		this.address = address;
+		this.request = request;
+		this.future = future;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Attach the exchange to a channel and get ready to send the request.
+	 * @param channel The channel
+	 * @param reused True if the channel comes from the idle pool
+	 */
+	void attach(AsyncDirectoryChannel channel, boolean reused) {
+		this.channel = channel;
+		this.reused = reused;
+		this.connected = reused;
+		request.rewind();
+		state = STATUS;
+		line.setLength(0);
+		responseStarted = false;
+		status = 0;
+		charset = null;
+		keepAlive = false;
+		body = null;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Send the request and parse the response as far as possible without
+	 * blocking.
+	 * @return true once the response is complete
+	 */
+	boolean process() throws IOException {
+		while (state != DONE) {
+			channel.pump(request);
+			ByteBuffer in = channel.getInput();
+			in.flip();
+			boolean received = in.hasRemaining();
+			try {
+				parse(in);
+			} finally {
+				in.compact();
+			}
+			if (received)
+				lastActivity = System.currentTimeMillis();
+
+			if (state != DONE && channel.isEndOfStream()) {
+				if (state == BODY && contentLength < 0) {
+					state = DONE;
+					break;
+				}
+				throw new EOFException(
+					responseStarted
+						? "Connection closed while reading the response"
+						: "Connection closed by server");
+			}
+			if (!received)
+				break;
+		}
+		return state == DONE;
+	}
+
+	private void parse(ByteBuffer in) throws IOException {
+		while (in.hasRemaining() && state != DONE) {
+			responseStarted = true;
+			if (state == BODY || state == CHUNK_DATA) {
+				int n = in.remaining();
+				if (remaining >= 0 && remaining < n)
+					n = (int) remaining;
+				if (maxSize > 0 && body.size() + n > maxSize)
+					throw new IOException(
+						"Response exceeds the maximum size of " + maxSize + " bytes");
+				body.write(in.array(), in.arrayOffset() + in.position(), n);
+				in.position(in.position() + n);
+				if (remaining >= 0) {
+					remaining -= n;
+					if (remaining == 0)
+						state = (state == BODY) ? DONE : CHUNK_END;
+				}
+				continue;
+			}
+
+			char c = (char) (in.get() & 0xFF);
+			if (c != '\n') {
+				if (line.length() >= MAX_LINE)
+					throw new IOException("Response line too long");
+				line.append(c);
+				continue;
+			}
+			int len = line.length();
+			if (len > 0 && line.charAt(len - 1) == '\r')
+				line.setLength(len - 1);
+			String text = line.toString();
+			line.setLength(0);
+			parseLine(text);
+		}
+	}
+
+	private void parseLine(String text) throws IOException {
+		switch (state) {
+			case STATUS :
+				status = DirectoryConnection.parseStatus(text);
+				keepAlive = !text.startsWith("HTTP/1.0");
+				chunked = false;
+				contentLength = -1;
+				state = HEADERS;
+				break;
+
+			case HEADERS :
+				if (text.length() > 0) {
+					parseHeader(text);
+				} else if (status >= 100 && status < 200) {
+					state = STATUS;
+				} else {
+					startBody();
+				}
+				break;
+
+			case CHUNK_SIZE :
+				int end = text.indexOf(';');
+				String size = (end >= 0 ? text.substring(0, end) : text).trim();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException nfe) {
+					throw new IOException("Invalid chunk size: " + size);
+				}
+				state = (remaining == 0) ? TRAILER : CHUNK_DATA;
+				break;
+
+			case CHUNK_END :
+				if (text.length() > 0)
+					throw new IOException("Invalid chunk end");
+				state = CHUNK_SIZE;
+				break;
+
+			case TRAILER :
+				if (text.length() == 0)
+					state = DONE;
+				break;
+		}
+	}
+
+	private void parseHeader(String text) throws IOException {
+		int colon = text.indexOf(':');
+		if (colon <= 0)
+			return;
+		String name = text.substring(0, colon).trim();
+		String value = text.substring(colon + 1).trim();
+		if (name.equalsIgnoreCase("Content-Length")) {
+			try {
+				contentLength = Long.parseLong(value);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid Content-Length: " + value);
+			}
+		} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+			chunked = value.toLowerCase().indexOf("chunked") >= 0;
+		} else if (name.equalsIgnoreCase("Connection")) {
+			if (value.equalsIgnoreCase("close"))
+				keepAlive = false;
+			else if (value.equalsIgnoreCase("keep-alive"))
+				keepAlive = true;
+		} else if (name.equalsIgnoreCase("Content-Type")) {
+			charset = DirectoryConnection.parseCharset(value);
+		}
+	}
+
+	private void startBody() throws IOException {
+		if (maxSize > 0 && contentLength > maxSize)
+			throw new IOException(
+				"Response of " + contentLength
+					+ " bytes exceeds the maximum size of " + maxSize
+					+ " bytes for URL: " + url);
+		body =
+			new ByteArrayOutputStream(
+				contentLength > 0 && contentLength < 65536 ? (int) contentLength : 4096);
+		if (status == 204 || status == 304) {
+			state = DONE;
+		} else if (chunked) {
+			contentLength = -1;
+			state = CHUNK_SIZE;
+		} else if (contentLength >= 0) {
+			remaining = contentLength;
+			state = (contentLength == 0) ? DONE : BODY;
+		} else {
+			// Body delimited by connection close
+			keepAlive = false;
+			remaining = -1;
+			state = BODY;
+		}
+	}
+
+	/**
+	 * Returns the HTTP status code.
+	 * @return int
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the charset declared by the server, null if none.
+	 * @return String
+	 */
+	String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Returns the response body.
+	 * @return byte[]
+	 */
+	byte[] getResponseBody() {
+		return (body == null) ? new byte[0] : body.toByteArray();
+	}
+
+	/**
+	 * Returns the number of body bytes received.
+	 * @return long
+	 */
+	long getReceivedBytes() {
+		return (body == null) ? 0 : body.size();
+	}
+
+	/**
+	 * Returns true if the connection may carry another exchange.
+	 * @return boolean
+	 */
+	boolean isKeepAlive() {
+		return keepAlive && state == DONE;
+	}
+
+	/**
+	 * Returns true if any part of the response has been received.
+	 * @return boolean
+	 */
+	boolean isResponseStarted() {
+		return responseStarted;
+	}
+
+	/**
+	 * Returns the target URL.
+	 * @return String
+	 */
+	String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Returns the endpoint key.
+	 * @return String
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the endpoint host.
+	 * @return String
+	 */
+	String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the endpoint port.
+	 * @return int
+	 */
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns true for https.
+	 * @return boolean
+	 */
+	boolean isSecure() {
+		return secure;
+	}
+
+	/**
+	 * Returns the SSL context of new connections.
+	 * @return SSLContext, null for http
+	 */
+	SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Returns the resolved endpoint address.
+	 * @return InetSocketAddress
+	 */
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns the request, positioned at the data not sent yet.
+	 * @return ByteBuffer
+	 */
+	ByteBuffer getRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns the future completed by this exchange.
+	 * @return DirectoryFuture
+	 */
+	DirectoryFuture getFuture() {
+		return future;
+	}
+
+	/**
+	 * Returns the channel carrying the exchange, null before it gets one.
+	 * @return AsyncDirectoryChannel
+	 */
+	AsyncDirectoryChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Detach the exchange from its channel.
+	 */
+	void detach() {
+		channel = null;
+	}
+
+	/**
+	 * Returns true if the channel came from the idle pool.
+	 * @return boolean
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Returns true once the channel is connected.
+	 * @return boolean
+	 */
+	boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Sets the connected state.
+	 * @param connected The connected to set
+	 */
+	void setConnected(boolean connected) {
+		this.connected = connected;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns true once the exchange has completed.
+	 * @return boolean
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Mark the exchange as completed.
+	 */
+	void setFinished() {
+		finished = true;
+	}
+
+	/**
+	 * Returns the time data was last received.
+	 * @return long
+	 */
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Returns the pending timeout.
+	 * @return TimingWheel.Timeout
+	 */
+	TimingWheel.Timeout getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the pending timeout.
+	 * @param timeout The timeout to set
+	 */
+	void setTimeout(TimingWheel.Timeout timeout) {
+		this.timeout = timeout;
+	}
+}
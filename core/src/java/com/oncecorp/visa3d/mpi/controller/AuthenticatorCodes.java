@@ -65,6 +65,16 @@ public class AuthenticatorCodes {
 	 */
 	public final static String SERVER_STOPPED_MSG = "Authenticator Server is stopped.";
 
+	/**
+	 * Code of REQUEST_TIMEOUT
+	 */
+	public final static String REQUEST_TIMEOUT = "996";
+
+	/**
+	 * Message of REQUEST_TIMEOUT
+	 */
+	public final static String REQUEST_TIMEOUT_MSG = "Request not processed in time.";
+
 	/**
 	 * Code of UNEXPECTED_ERROR
 	 */
@@ -26,15 +26,14 @@ package com.oncecorp.visa3d.mpi.controller;
 
 import com.oncecorp.visa3d.mpi.intf.payment.MPIErrorMessage;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
-import com.oncecorp.visa3d.mpi.messaging.DomToMsgConverter;
 import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.messaging.MessageContinuation;
 import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
-import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.messaging.StreamingMsgConverter;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
 
 /**
  * Description: Authenticator implementation to authenticate incoming Visa 3-D verification / 
@@ -66,67 +65,26 @@ public class AuthenticatorImpl {
 		//				+ Runtime.getRuntime().freeMemory());
 		//		logger.debug("Total threads: " + Thread.activeCount());
 
-		Document reqDom = null;
 		Message msg = null;
 		Message resMsg = null;
 		try {
-			reqDom = XMLUtil.createDocument(req, false);
-
-			if (reqDom == null) {
-				// Create and initialize MPIError message and send it back.
-				MPIErrorMessage error =
-					(MPIErrorMessage) MessageGenerator.create(
-						MPIErrorMessage.MSG_TYPE,
-						MPIErrorMessage.MSG_VERSION);
-				logger.error(AuthenticatorCodes.INVALID_REQUEST_MESSAGE_MSG);
-
-				error.setId("UNKNOWN");
-				error.setMerchantID("UNKNOWN");
-				error.setErrorCode(AuthenticatorCodes.INVALID_REQUEST_MESSAGE);
-				error.setErrorMessage("");
-				error.setErrorDetail("[MPI_Interface]");
-				error.setVendorCode(
-					AuthenticatorCodes.INVALID_REQUEST_MESSAGE_MSG);
-
-				error = (MPIErrorMessage) MessageEngine.process(error);
-
-				// Return externalize MPIError message
-				//return XMLUtil.toXmlString(error.toXML());
-				return error.toString();
+			if ((req == null) || (req.length() == 0)) {
+				return emptyRequestError();
 			}
 
 			// Set the proper integration layer used by the merchant application
 			// This is needed to modofy functionality further down the pipe
 			AuthenticatorSession.instance().setPaymentInterface(AuthenticatorSession.XML_INTERFACE);
+			AuthenticatorSession.instance().setDeadline(RetryPolicy.newRequestDeadline());
 			
 			try {
-				// Convert DOM to message
-				msg = (new DomToMsgConverter()).convert(reqDom);
+				// Convert request to message
+				msg = (new StreamingMsgConverter()).convert(req);
 
 				// Check execution status
-				ExecutionControl ec = ExecutionControl.getInstance();
-
-				String status = ec.getExecutionStatus();
-				if (status.equals(ExecutionControl.STATUS_STOPPED_BY_CONSOLE)
-					|| status.equals(ExecutionControl.STATUS_STOPPED_BY_CORE)) {
-					MPIErrorMessage error =
-						new MPIErrorMessage(
-							msg.getId(),
-							AuthenticatorCodes.SERVER_STOPPED,
-							AuthenticatorCodes.SERVER_STOPPED_MSG,
-							"Server stopped at "
-								+ ec.getStopTime()
-								+ ", Reason: "
-								+ ec.getStopReason()
-								+ ", Server status: "
-								+ status,
-							AuthenticatorCodes.SERVER_STOPPED_MSG);
-					error.setMerchantID("UNKNOWN");
-					error = (MPIErrorMessage) MessageEngine.process(error);
-
-					// Return externalize MPIError message
-					// return XMLUtil.toXmlString(error.toXML());
-					return error.toString();
+				String stopped = checkExecutionStatus(msg);
+				if (stopped != null) {
+					return stopped;
 				}
 
 				// Process message
@@ -136,62 +94,195 @@ public class AuthenticatorImpl {
 				// return XMLUtil.toXmlString(resMsg.toXML());
 				return resMsg.toString();
 			} catch (MessagingException mexcep) {
-				// Create and initialize MPIError message and send it back.
-				MPIErrorMessage error =
-					(MPIErrorMessage) MessageGenerator.create(
-						MPIErrorMessage.MSG_TYPE,
-						MPIErrorMessage.MSG_VERSION);
-
-				// Create and initialize MPIError message from a MessagingException and send it back.
-				logger.error(
-					"A message processing error occurred!!! Message=",
-					mexcep);
-				error.setAll(mexcep);
-				String merchantID = AuthenticatorSession.instance().getMerchantID();
-				error.setMerchantID(
-					(merchantID == null) ? "UNKNOWN" : merchantID);
-				error = (MPIErrorMessage) MessageEngine.process(error);
-
-				// Return externalize MPIError message
-				// return XMLUtil.toXmlString(error.toXML());
-				return error.toString();
+				return messagingError(mexcep);
 			}
 		} catch (Exception e) {
-			//invalid XML String sent by Merchant App
-			logger.error(AuthenticatorCodes.UNEXPECTED_ERROR_MSG, e);
+			return unexpectedError(e);
+		} finally {
+			msg = null;
+			resMsg = null;
+
+			// reset ThreadLocal (merchant ID)
+			AuthenticatorSession.instance().reset();
+
+		}
+	}
+
+	/**
+	 * Authenticate requests without holding the calling thread while the
+	 * directory is answering. The response is handed to the callback,
+	 * either before this method returns or later from another thread.
+	 * @param req Request message XML string sent by Merchant Application
+	 * @param callback Receives the response message XML string
+	 */
+	public static void authenticate(String req, final AuthenticationCallback callback) {
+		//Debug info
+		logger.debug("Authenticating request asynchronously: " + req);
+
+		String response;
+		try {
+			if ((req == null) || (req.length() == 0)) {
+				response = emptyRequestError();
+			} else {
+				// Set the proper integration layer used by the merchant application
+				AuthenticatorSession.instance().setPaymentInterface(AuthenticatorSession.XML_INTERFACE);
+				AuthenticatorSession.instance().setDeadline(RetryPolicy.newRequestDeadline());
+
+				try {
+					// Convert request to message
+					Message msg = (new StreamingMsgConverter()).convert(req);
+
+					// Check execution status
+					response = checkExecutionStatus(msg);
+					if (response == null) {
+						// Process message, the processing may resume on another thread
+						// with the session of this one
+						MessageEngine.process(msg, new MessageContinuation() {
+							public void resume(Message finalMsg) {
+								callback.completed(finalMsg.toString());
+							}
+
+							public void fail(Exception cause) {
+								String error;
+								try {
+									if (cause instanceof MessagingException)
+										error = messagingError((MessagingException) cause);
+									else
+										error = unexpectedError(cause);
+								} catch (Exception e) {
+									error = unexpectedError(e);
+								}
+								callback.completed(error);
+							}
+						});
+						return;
+					}
+				} catch (MessagingException mexcep) {
+					response = messagingError(mexcep);
+				}
+			}
+		} catch (Exception e) {
+			response = unexpectedError(e);
+		} finally {
+			// reset ThreadLocal (merchant ID)
+			AuthenticatorSession.instance().reset();
+		}
+		callback.completed(response);
+	}
+
+	/**
+	 * Create the MPIError response to an empty request
+	 */
+	private static String emptyRequestError() throws MessagingException {
+		// Create and initialize MPIError message and send it back.
+		MPIErrorMessage error =
+			(MPIErrorMessage) MessageGenerator.create(
+				MPIErrorMessage.MSG_TYPE,
+				MPIErrorMessage.MSG_VERSION);
+		logger.error(AuthenticatorCodes.INVALID_REQUEST_MESSAGE_MSG);
+
+		error.setId("UNKNOWN");
+		error.setMerchantID("UNKNOWN");
+		error.setErrorCode(AuthenticatorCodes.INVALID_REQUEST_MESSAGE);
+		error.setErrorMessage("");
+		error.setErrorDetail("[MPI_Interface]");
+		error.setVendorCode(
+			AuthenticatorCodes.INVALID_REQUEST_MESSAGE_MSG);
+
+		error = (MPIErrorMessage) MessageEngine.process(error);
+
+		// Return externalize MPIError message
+		//return XMLUtil.toXmlString(error.toXML());
+		return error.toString();
+	}
+
+	/**
+	 * Create the MPIError response to a request received while the server is stopped
+	 * @return The response, null if the server is running
+	 */
+	private static String checkExecutionStatus(Message msg) throws MessagingException {
+		ExecutionControl ec = ExecutionControl.getInstance();
 
-			// Create and initialize MPIError message and send it back.
-			// Need to do it DIRECTLY here because of possible endless exception 
-			// propagation .....
+		String status = ec.getExecutionStatus();
+		if (status.equals(ExecutionControl.STATUS_STOPPED_BY_CONSOLE)
+			|| status.equals(ExecutionControl.STATUS_STOPPED_BY_CORE)) {
 			MPIErrorMessage error =
 				new MPIErrorMessage(
-					"UNKNOWN",
-					AuthenticatorCodes.UNEXPECTED_ERROR,
-					"Unexpected error",
-					"[MPI_Interface]",
-					AuthenticatorCodes.UNEXPECTED_ERROR_MSG);
-			String merchantID = AuthenticatorSession.instance().getMerchantID();
-			try {
-				error.setMerchantID(
-					(merchantID == null) ? "UNKNOWN" : merchantID);
-				error = (MPIErrorMessage) MessageEngine.process(error);
-			} catch (Exception ee) {
-				logger.error(
-					"Failed to process MPIErrorMessage before reponse to client.",
-					ee);
-			}
+					msg.getId(),
+					AuthenticatorCodes.SERVER_STOPPED,
+					AuthenticatorCodes.SERVER_STOPPED_MSG,
+					"Server stopped at "
+						+ ec.getStopTime()
+						+ ", Reason: "
+						+ ec.getStopReason()
+						+ ", Server status: "
+						+ status,
+					AuthenticatorCodes.SERVER_STOPPED_MSG);
+			error.setMerchantID("UNKNOWN");
+			error = (MPIErrorMessage) MessageEngine.process(error);
 
 			// Return externalize MPIError message
 			// return XMLUtil.toXmlString(error.toXML());
 			return error.toString();
-		} finally {
-			reqDom = null;
-			msg = null;
-			resMsg = null;
+		}
+		return null;
+	}
 
-			// reset ThreadLocal (merchant ID)
-			AuthenticatorSession.instance().reset();
+	/**
+	 * Create the MPIError response to a message processing error
+	 */
+	private static String messagingError(MessagingException mexcep) throws MessagingException {
+		// Create and initialize MPIError message and send it back.
+		MPIErrorMessage error =
+			(MPIErrorMessage) MessageGenerator.create(
+				MPIErrorMessage.MSG_TYPE,
+				MPIErrorMessage.MSG_VERSION);
+
+		// Create and initialize MPIError message from a MessagingException and send it back.
+		logger.error(
+			"A message processing error occurred!!! Message=",
+			mexcep);
+		error.setAll(mexcep);
+		String merchantID = AuthenticatorSession.instance().getMerchantID();
+		error.setMerchantID(
+			(merchantID == null) ? "UNKNOWN" : merchantID);
+		error = (MPIErrorMessage) MessageEngine.process(error);
 
+		// Return externalize MPIError message
+		// return XMLUtil.toXmlString(error.toXML());
+		return error.toString();
+	}
+
+	/**
+	 * Create the MPIError response to an unexpected error
+	 */
+	private static String unexpectedError(Exception e) {
+		//invalid XML String sent by Merchant App
+		logger.error(AuthenticatorCodes.UNEXPECTED_ERROR_MSG, e);
+
+		// Create and initialize MPIError message and send it back.
+		// Need to do it DIRECTLY here because of possible endless exception 
+		// propagation .....
+		MPIErrorMessage error =
+			new MPIErrorMessage(
+				"UNKNOWN",
+				AuthenticatorCodes.UNEXPECTED_ERROR,
+				"Unexpected error",
+				"[MPI_Interface]",
+				AuthenticatorCodes.UNEXPECTED_ERROR_MSG);
+		String merchantID = AuthenticatorSession.instance().getMerchantID();
+		try {
+			error.setMerchantID(
+				(merchantID == null) ? "UNKNOWN" : merchantID);
+			error = (MPIErrorMessage) MessageEngine.process(error);
+		} catch (Exception ee) {
+			logger.error(
+				"Failed to process MPIErrorMessage before reponse to client.",
+				ee);
 		}
+
+		// Return externalize MPIError message
+		// return XMLUtil.toXmlString(error.toXML());
+		return error.toString();
 	}
 }
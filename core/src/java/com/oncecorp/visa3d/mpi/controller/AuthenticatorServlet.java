@@ -30,10 +30,12 @@ import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.jmxagent.CoreAgentException;
 import com.oncecorp.visa3d.mpi.jmxagent.CoreAgentManager;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.meta.MessageMetaInfo;
 import com.oncecorp.visa3d.mpi.persistence.ConfigDAO;
 import com.oncecorp.visa3d.mpi.persistence.DAODefinition;
 import com.oncecorp.visa3d.mpi.persistence.Log4jDAO;
 import com.oncecorp.visa3d.mpi.persistence.MerchantDAO;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransactionDAO;
 import com.oncecorp.visa3d.mpi.security.SecurityManager;
 
 import java.io.BufferedReader;
@@ -44,6 +46,9 @@ import java.io.PrintWriter;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -75,6 +80,17 @@ public class AuthenticatorServlet extends HttpServlet {
 	private static String CORE_CONFIG_LOCATION = "CoreConfigLocation";
 	private static String JAVA_PROPERTY_PREFIX = "java:";
 
+	/**
+	 * Default time allowed to an asynchronous request
+	 */
+	public static final long DEFAULT_ASYNC_TIMEOUT = 60000;
+
+	/**
+	 * Asynchronous processing settings
+	 */
+	private boolean asyncProcessing;
+	private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
 	/**
 	 * Servlet initialization.
 	 */
@@ -90,6 +106,20 @@ public class AuthenticatorServlet extends HttpServlet {
 			// initialize local logger
 			logger = MPILogger.getLogger(AuthenticatorServlet.class.getName());
 
+			// load message definitions, failing if a processor is unresolvable
+			try {
+				MessageMetaInfo.init();
+			} catch (ConfigurationException ce) {
+				logger.fatal("Invalid message definitions. Core Server not started.", ce);
+				throw new ServletException(ce.getMessage());
+			}
+
+			// load asynchronous processing properties
+			initAsyncProcessing();
+
+			// apply the card ranges saved before the last shutdown
+			CardRangeMonitor.restoreCardRanges();
+
 			// load WaitUntilFirstReqeust property
 			String wufr =
 				(String) Config.getConfigReference().getConfigData(
@@ -202,9 +232,44 @@ public class AuthenticatorServlet extends HttpServlet {
 			config.getInitParameter(DAODefinition.MERCHANT_DAO_DB_SCHEMA));
 		MerchantDAO.setDbTable(
 			config.getInitParameter(DAODefinition.MERCHANT_DAO_DB_TABLE));
+
+		// Initialize the shared pending transaction DAO properties from the servlet init parameters
+		PendingTransactionDAO.setJdbcDriver(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_JDBC_DRIVER));
+		PendingTransactionDAO.setDbUrl(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_DB_URL));
+		PendingTransactionDAO.setDbUsername(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_DB_USERNAME));
+		PendingTransactionDAO.setDbPassword(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_DB_PASSWORD));
+		PendingTransactionDAO.setDbSchema(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_DB_SCHEMA));
+		PendingTransactionDAO.setDbTable(
+			config.getInitParameter(DAODefinition.TRANSACTION_DAO_DB_TABLE));
 	
 	}
 
+	/**
+	 * Load the asynchronous processing settings. Requests are processed
+	 * asynchronously only if the container supports it (Servlet 3.0)
+	 */
+	private void initAsyncProcessing() {
+		try {
+			Config cfg = Config.getConfigReference();
+			asyncProcessing =
+				"true".equalsIgnoreCase(
+					(String) cfg.getConfigData(MPIConfigDefinition.ASYNC_PROCESSING));
+			asyncTimeout =
+				Long.parseLong(
+					(String) cfg.getConfigData(MPIConfigDefinition.ASYNC_PROCESSING_TIMEOUT));
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve asynchronous processing configuration. Defaults used for missing items.",
+				e);
+		}
+		logger.debug("Asynchronous processing: " + asyncProcessing);
+	}
+
 	/**
 	 * HTTP POST Request Handler
 	 * @param request HTTP Request
@@ -244,7 +309,17 @@ public class AuthenticatorServlet extends HttpServlet {
 			}
 			reqXmlStr = URLDecoder.decode(reqStr);
 
-			//Authenticate request
+			//Authenticate request, releasing this thread while the directory
+			//is answering if the container allows it
+			if (asyncProcessing && request.isAsyncSupported()) {
+				AsyncContext context = request.startAsync();
+				context.setTimeout(asyncTimeout);
+				AsyncAuthentication authentication =
+					new AsyncAuthentication(context, response);
+				context.addListener(authentication);
+				AuthenticatorImpl.authenticate(reqXmlStr, authentication);
+				return;
+			}
 			resXmlStr = AuthenticatorImpl.authenticate(reqXmlStr);
 
 			this.logger.debug(
@@ -369,4 +444,80 @@ public class AuthenticatorServlet extends HttpServlet {
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Writes the response of an asynchronous request and completes it, or
+	 * times it out. Whichever comes first wins.
+	 */
+	private class AsyncAuthentication implements AuthenticationCallback, AsyncListener {
+		private AsyncContext context;
+		private HttpServletResponse response;
+		private boolean done;
+
+		AsyncAuthentication(AsyncContext context, HttpServletResponse response) {
+			this.context = context;
+			this.response = response;
+		}
+
+		public void completed(String resXmlStr) {
+			if (!finish())
+				return;
+			logger.debug(
+				"Response message received from Authenticator: " + resXmlStr);
+
+			OutputStreamWriter responseOutputStream = null;
+			try {
+				responseOutputStream =
+					new OutputStreamWriter(response.getOutputStream());
+				responseOutputStream.write(URLEncoder.encode(resXmlStr));
+				responseOutputStream.flush();
+			} catch (IOException ioe) {
+				logger.error("Fail to write object to OutputStream.", ioe);
+			} catch (Exception e) {
+				logger.error("Unexpected exception caught.", e);
+			} finally {
+				try {
+					if (responseOutputStream != null)
+						responseOutputStream.close();
+				} catch (Exception e) {
+					logger.error("Fail to close IO stream.", e);
+				}
+				context.complete();
+			}
+		}
+
+		public void onTimeout(AsyncEvent event) {
+			if (!finish())
+				return;
+			logger.error("Request not processed within " + asyncTimeout + " ms.");
+			respondError(
+				response,
+				AuthenticatorCodes.REQUEST_TIMEOUT,
+				AuthenticatorCodes.REQUEST_TIMEOUT_MSG);
+			context.complete();
+		}
+
+		public void onError(AsyncEvent event) {
+			if (finish())
+				logger.error("Asynchronous request failed.", event.getThrowable());
+		}
+
+		public void onComplete(AsyncEvent event) {
+			finish();
+		}
+
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		/**
+		 * Returns true the first time it is called.
+		 * @return boolean
+		 */
+		private synchronized boolean finish() {
+			if (done)
+				return false;
+			done = true;
+			return true;
+		}
+	}
+
+}
@@ -42,12 +42,13 @@ public class AuthenticatorSession {
 	public static final String XML_INTERFACE 	= "XML";
 
 	// Singleton accessor variable
-	private static AuthenticatorSession instance = null;
+	private static final AuthenticatorSession instance = new AuthenticatorSession();
 
 	// Thread specific values that we need for session processing
 	private ThreadLocal merchantId; 		// Merchant ID associated with this thread
 	private ThreadLocal protocol; 			// Protocol (VbV, SecureCode) associated with this thread
 	private ThreadLocal paymentInterface; 	// Interface used for authentication (HTML, XML)
+	private ThreadLocal deadline; 			// Time after which no retry is started for this request
 
 	// Can only construct from singleton access point
 	private AuthenticatorSession() {
@@ -55,17 +56,14 @@ public class AuthenticatorSession {
 		merchantId 			= new ThreadLocal();
 		protocol 			= new ThreadLocal();
 		paymentInterface 	= new ThreadLocal();
+		deadline 			= new ThreadLocal();
 	}
 
 	/**
-	 * Singleton accessor method for the AuthenticatorSession
+	 * Singleton accessor method for the AuthenticatorSession. Created
+	 * eagerly, so that the many threads calling it never contend on a lock
 	 */
-	public static synchronized AuthenticatorSession instance() {
-		// If no instance then we create a new one
-		if (instance == null) {
-			instance = new AuthenticatorSession();
-		}
-
+	public static AuthenticatorSession instance() {
 		return instance;
 	}
 
@@ -78,6 +76,27 @@ public class AuthenticatorSession {
 		merchantId.set(null);
 		protocol.set(null);
 		paymentInterface.set(null);
+		deadline.set(null);
+	}
+
+	/**
+	 * Capture the session values of the current thread, so that processing
+	 * resumed on another thread can restore them
+	 * @return Object[]
+	 */
+	public Object[] capture() {
+		return new Object[] { merchantId.get(), protocol.get(), paymentInterface.get(), deadline.get() };
+	}
+
+	/**
+	 * Restore session values captured on another thread
+	 * @param values	Values returned by capture()
+	 */
+	public void restore(Object[] values) {
+		merchantId.set(values[0]);
+		protocol.set(values[1]);
+		paymentInterface.set(values[2]);
+		deadline.set(values[3]);
 	}
 	
 	/**
@@ -147,4 +166,21 @@ public class AuthenticatorSession {
 		Object value = paymentInterface.get();
 		return (value == null)? "UNKNOWN" : (String) value;
 	}
+
+	/**
+	 * Setter for the thread-specific request deadline
+	 * @param aDeadline		Time in millis after which no retry is started, 0 for none
+	 */
+	public void setDeadline(long aDeadline) {
+		deadline.set((aDeadline > 0) ? new Long(aDeadline) : null);
+	}
+
+	/**
+	 * Getter for the thread-specific request deadline
+	 * @return long	0 if the request has none
+	 */
+	public long getDeadline() {
+		Object value = deadline.get();
+		return (value == null) ? 0 : ((Long) value).longValue();
+	}
 }
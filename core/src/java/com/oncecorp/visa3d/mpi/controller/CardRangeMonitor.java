@@ -29,6 +29,7 @@ import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.configuration.MerchantMetaInfo;
 import com.oncecorp.visa3d.mpi.domain.CardRangeManager;
+import com.oncecorp.visa3d.mpi.domain.CardRangeSnapshot;
 import com.oncecorp.visa3d.mpi.domain.payment.CRReqMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.CRResMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
@@ -39,9 +40,13 @@ import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
-import com.oncecorp.visa3d.mpi.utility.XMLUtil;
 
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
@@ -50,6 +55,12 @@ import org.apache.log4j.Logger;
 * AuthenticatorServlet and is reponsible for refreshing local card range 
 * cache by consulting Visa Directory. 
 * 
+* Each protocol is refreshed by its own thread, so that a slow directory
+* of one protocol does not hold back the other. The time between two
+* refreshes is randomized by CardRangeRefreshJitter percent so that the
+* nodes of a cluster do not refresh together. A refresh can also be
+* requested through the ConfiguratorMBean.
+* 
 * A CRReq message would be sent to Visa Directory to request a copy of 
 * enrolled card range or card range updates.
 * 
@@ -81,8 +92,36 @@ public class CardRangeMonitor extends Thread {
 	/**
 	 * Last refresh time for each card range
 	 */
-	private static long lastVBVRefreshTime;
-	private static long lastSCRefreshTime;
+	private static volatile long lastVBVRefreshTime;
+	private static volatile long lastSCRefreshTime;
+
+	/**
+	 * Default percentage of the sleep interval randomized
+	 */
+	public static final int DEFAULT_JITTER = 20;
+
+	/**
+	 * Protocols refreshed
+	 */
+	private static final String[] PROTOCOLS =
+		new String[] {
+			MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE,
+			MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE };
+
+	/**
+	 * Running refresh threads by protocol
+	 */
+	private static Map refreshers = new HashMap();
+
+	/**
+	 * Refresh statistic by protocol, as CardRangeStatisticResult
+	 */
+	private static Map statistics = new HashMap();
+
+	/**
+	 * Percentage of the sleep interval randomized
+	 */
+	private int jitter = DEFAULT_JITTER;
 
 	/**
 	 * Default constructor
@@ -94,13 +133,10 @@ public class CardRangeMonitor extends Thread {
 		setSleepInterval(5 * 60 * 1000);		// Default time is 5 mins
 		setCacheExpiryInterval(5 * 60 * 1000);	// Default is 5 mins
 		
-		// Set last refresh time for both protocol
-		setLastRefreshTime(
-			MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE,
-			Calendar.getInstance().getTime().getTime());
-		setLastRefreshTime(
-			MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE,
-			Calendar.getInstance().getTime().getTime());
+		// Set last refresh time for both protocol. Card ranges restored from
+		// the snapshot are brought up to date on the first run
+		setLastRefreshTime(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE, 0);
+		setLastRefreshTime(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE, 0);
 	}
 
 	/**
@@ -120,31 +156,52 @@ public class CardRangeMonitor extends Thread {
 		setSleepInterval(sleepInt * 60 * 1000);
 		setCacheExpiryInterval(cacheExpiryInt * 60 * 1000);
 
-		// Set last refresh time for both protocol
-		setLastRefreshTime(
-			MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE,
-			Calendar.getInstance().getTime().getTime());
-		setLastRefreshTime(
-			MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE,
-			Calendar.getInstance().getTime().getTime());
+		// Set last refresh time for both protocol. Card ranges restored from
+		// the snapshot are brought up to date on the first run
+		setLastRefreshTime(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE, 0);
+		setLastRefreshTime(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE, 0);
 	}
 
 	/**
-	 * Override run() method 
+	 * Override run() method. Starts one refresh thread per protocol and
+	 * waits for them
 	 */
 	public void run() {
-		getCardRanges();
-
 		try {
-			while (true) {
-				logger.debug("CardRangeMonitor sleeps for " + getSleepInterval() + " milliseconds...");
-				Thread.sleep(getSleepInterval());
+			jitter =
+				Integer.parseInt(
+					(String) Config.getConfigReference().getConfigData(
+						MPIConfigDefinition.CR_REFRESH_JITTER));
+		}
+		catch (Exception e) {
+			logger.debug("Card range refresh jitter not configured. Default used.");
+		}
 
-				getCardRanges();
+		ProtocolRefresher[] threads = new ProtocolRefresher[PROTOCOLS.length];
+		synchronized (refreshers) {
+			for (int i = 0; i < PROTOCOLS.length; i++) {
+				threads[i] = new ProtocolRefresher(PROTOCOLS[i]);
+				refreshers.put(PROTOCOLS[i], threads[i]);
+				threads[i].start();
 			}
 		}
+
+		try {
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+		}
 		catch (InterruptedException ie) {
 			logger.debug("CardRangeMonitor thread is interrupted by other thread.");
+			for (int i = 0; i < threads.length; i++)
+				threads[i].interrupt();
+		}
+		finally {
+			synchronized (refreshers) {
+				for (int i = 0; i < threads.length; i++) {
+					if (refreshers.get(PROTOCOLS[i]) == threads[i])
+						refreshers.remove(PROTOCOLS[i]);
+				}
+			}
 		}
 	}
 
@@ -153,41 +210,186 @@ public class CardRangeMonitor extends Thread {
 	 * configured as supporting that functionality
 	 */
 	public void getCardRanges() {
-		// Check which protocol is configured for credit card range and use it to 
-		// fetch the proper information
-		Boolean scSupport, vbvSupport;
-
 		logger.debug("Card Range Monitor is verifying if card ranges retrieval is needed");
 		
-		// Try to load configuration parameter about SecureCode Card Range support.
-		try {
-			scSupport = new Boolean((String) Config.getConfigReference().getConfigData(
-						MPIConfigDefinition.SECURECODE_RANGE_SUPPORT));
+		// Load the credit card range for each supported protocol
+		for (int i = 0; i < PROTOCOLS.length; i++) {
+			if (isSupported(PROTOCOLS[i])) {
+				logger.debug("Trying to fetch card ranges for " + PROTOCOLS[i]);
+				getCardRangeForType(PROTOCOLS[i], false);
+			}
 		}
-		catch (ConfigurationException cfgExcep) {
-			// By default, if these properties are not configured, then we do not support.
-			scSupport = Boolean.FALSE;
+	}
+
+	/**
+	 * Refresh the card ranges of a protocol now, whether they expired or not
+	 * @param aProtocolType The protocol, null for all supported protocols
+	 * @return The number of refreshes requested, 0 if the monitor is not
+	 * running or the protocol is not supported
+	 */
+	public static int requestRefresh(String aProtocolType) {
+		int requested = 0;
+		synchronized (refreshers) {
+			for (int i = 0; i < PROTOCOLS.length; i++) {
+				if (((aProtocolType == null) || PROTOCOLS[i].equalsIgnoreCase(aProtocolType))
+					&& isSupported(PROTOCOLS[i])) {
+					ProtocolRefresher refresher = (ProtocolRefresher) refreshers.get(PROTOCOLS[i]);
+					if (refresher != null) {
+						refresher.wakeUp(true);
+						requested++;
+					}
+				}
+			}
 		}
-		
+		return requested;
+	}
 
-		// Try to load configuration parameter about VbV Card Range support.
-		try {
-			vbvSupport = new Boolean((String) Config.getConfigReference().getConfigData(
-						 MPIConfigDefinition.VBV_RANGE_SUPPORT));
+	/**
+	 * Make the refresh threads take new sleep and expiry intervals into
+	 * account now instead of at their next wake up
+	 */
+	public static void reschedule() {
+		synchronized (refreshers) {
+			for (Iterator it = refreshers.values().iterator(); it.hasNext();)
+				((ProtocolRefresher) it.next()).wakeUp(false);
 		}
-		catch (ConfigurationException cfgExcep) {
-			// By default, if these properties are not configured, then we do not support.
-			vbvSupport = Boolean.FALSE;
+	}
+
+	/**
+	 * Returns the refresh statistic per protocol.
+	 * @return The map contains CardRangeStatisticResult objects, key is the protocol
+	 */
+	public static Map getStatistics() {
+		Map result = new HashMap();
+		synchronized (statistics) {
+			for (Iterator it = statistics.values().iterator(); it.hasNext();) {
+				CardRangeStatisticResult stat = (CardRangeStatisticResult) it.next();
+				CardRangeStatisticResult copy = new CardRangeStatisticResult(stat);
+				copy.setRangeCount(getRangeCount(stat.getProtocol()));
+				copy.setSerialNumber(CardRangeManager.getSerialNumber(stat.getProtocol()));
+				result.put(stat.getProtocol(), copy);
+			}
 		}
+		return result;
+	}
 
-		// Load the credit card range for each supported protocol
-		if (scSupport.booleanValue()) {
-			logger.debug("Trying to fetch card ranges for SecureCode");
-			getCardRangeForType(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE);
+	private static int getRangeCount(String aProtocolType) {
+		TreeSet begins = CardRangeManager.getBufferedBegins(aProtocolType);
+		return (begins == null) ? 0 : begins.size();
+	}
+
+	/**
+	 * Record the outcome of a card range request
+	 */
+	private static void recordRefresh(String aProtocolType, boolean success, long duration) {
+		synchronized (statistics) {
+			CardRangeStatisticResult stat = (CardRangeStatisticResult) statistics.get(aProtocolType);
+			if (stat == null) {
+				stat = new CardRangeStatisticResult();
+				stat.setProtocol(aProtocolType);
+				statistics.put(aProtocolType, stat);
+			}
+			stat.setRefreshCount(stat.getRefreshCount() + 1);
+			stat.setLastDuration(duration);
+			if (success)
+				stat.setLastSuccessTime(System.currentTimeMillis());
+			else
+				stat.setFailedCount(stat.getFailedCount() + 1);
+		}
+	}
+
+	/**
+	 * Returns the time to wait before the next check, randomized by the jitter
+	 * @param random The random generator of the calling thread
+	 * @return long millis
+	 */
+	long nextDelay(Random random) {
+		long interval = getSleepInterval();
+		long spread = interval * Math.max(0, Math.min(100, jitter)) / 100;
+		if (spread <= 0)
+			return Math.max(1, interval);
+		return Math.max(1, interval - spread + (long) (random.nextDouble() * 2 * spread));
+	}
+
+	/**
+	 * Refreshes the card ranges of one protocol, when they expire or on
+	 * request
+	 */
+	private class ProtocolRefresher extends Thread {
+		private String protocol;
+		private boolean awake;
+		private boolean forced;
+
+		ProtocolRefresher(String protocol) {
+			super(THREAD_NAME + "-" + protocol);
+			this.protocol = protocol;
+			setDaemon(true);
 		}
-		if (vbvSupport.booleanValue()) {
-			logger.debug("Trying to fetch card ranges for VbV");
-			getCardRangeForType(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE);
+
+		synchronized void wakeUp(boolean force) {
+			awake = true;
+			forced = forced || force;
+			notifyAll();
+		}
+
+		public void run() {
+			Random random = new Random();
+			try {
+				while (true) {
+					boolean force;
+					synchronized (this) {
+						force = forced;
+						forced = false;
+						awake = false;
+					}
+					if (force || isSupported(protocol)) {
+						getCardRangeForType(protocol, force);
+					}
+
+					long delay = nextDelay(random);
+					logger.debug(getName() + " sleeps for " + delay + " milliseconds...");
+					synchronized (this) {
+						if (!awake)
+							wait(delay);
+					}
+				}
+			}
+			catch (InterruptedException ie) {
+				logger.debug(getName() + " thread is interrupted by other thread.");
+			}
+		}
+	}
+
+	/**
+	 * Apply the card ranges saved before the last shutdown for each
+	 * supported protocol, so that cards are verified before the first
+	 * card range request completes. To be called before accepting requests.
+	 */
+	public static void restoreCardRanges() {
+		CardRangeSnapshot snapshot = CardRangeSnapshot.getInstance();
+		if (isSupported(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE))
+			snapshot.restore(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE);
+		if (isSupported(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE))
+			snapshot.restore(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE);
+	}
+
+	/**
+	 * Check whether card ranges are used for a protocol
+	 * @param aProtocolType The protocol
+	 * @return boolean
+	 */
+	private static boolean isSupported(String aProtocolType) {
+		String key =
+			aProtocolType.equals(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE)
+				? MPIConfigDefinition.SECURECODE_RANGE_SUPPORT
+				: MPIConfigDefinition.VBV_RANGE_SUPPORT;
+		try {
+			return new Boolean((String) Config.getConfigReference().getConfigData(key))
+				.booleanValue();
+		}
+		catch (ConfigurationException cfgExcep) {
+			// By default, if these properties are not configured, then we do not support.
+			return false;
 		}
 	}
 
@@ -204,8 +406,9 @@ public class CardRangeMonitor extends Thread {
 	 * </ul>
 	 * 
 	 * @param aProtocolType	Protocol for which we need to acquire the card range
+	 * @param force True to acquire the card range even if it did not expire
 	 */
-	private void getCardRangeForType(String aProtocolType) {
+	private void getCardRangeForType(String aProtocolType, boolean force) {
 		logger.debug("Retrieving card range for " + aProtocolType);
 		
 		// Check if we need to load the range for this protocol
@@ -214,12 +417,14 @@ public class CardRangeMonitor extends Thread {
 		boolean loaded = CardRangeManager.isCardRangeLoaded(aProtocolType);
 		logger.debug("Card range cache status --- Elapsed time: " + elapsed + ", Loaded: " + loaded);
 
-		if ((elapsed > getCacheExpiryInterval()) || !loaded) {
+		if (force || (elapsed > getCacheExpiryInterval()) || !loaded) {
 			logger.debug(
 				loaded
 					? "Card Range cache expired. Start retrieving new updates..."
 					: "Card Range cache not loaded. Start retrieving new card range...");
 
+			long start = System.currentTimeMillis();
+			boolean success = false;
 			try {
 				// list current cached card ranges
 				if (CardRangeManager.getBufferedBegins(aProtocolType) != null) {
@@ -267,12 +472,12 @@ public class CardRangeMonitor extends Thread {
 				if (needsResetCRCache(crreq, response, cfg)) {
 					resetCache(aProtocolType);
 					logger.info("CR cache reset finished.");
-					return;
 				}
 				else {
 					MessageEngine.process(response);
 					setLastRefreshTime(aProtocolType, Calendar.getInstance().getTime().getTime());
 					logger.debug("lastRefreshTime reset to : " + getLastRefreshTime(aProtocolType));
+					success = true;
 				}
 
 			}
@@ -298,6 +503,7 @@ public class CardRangeMonitor extends Thread {
 				logger.error(
 					"Unknown exception caught during card range refreshing. CR cache remains unchanged.");
 			}
+			recordRefresh(aProtocolType, success, System.currentTimeMillis() - start);
 		}
 	}
 
@@ -325,34 +531,49 @@ public class CardRangeMonitor extends Thread {
 		 * 
 		 */
 		String[] urls = cfg.getDirectoryURLs(aProtocolType);
-		
-				
-		Message response = null;
-		for (int i = 0; i < urls.length; i++) {
-			if (!XMLUtil.isNull(urls[i])) {
+
+		// Connect with the client certificate of the protocol or merchant
+		AuthenticatorSession.instance().setProtocol(aProtocolType);
+		AuthenticatorSession.instance().setMerchantID(crreq.getMerchantID());
+
+		// Send to the healthiest directory first, failing over to the others.
+		// When none answers, retry with backoff instead of waiting for the
+		// next refresh, but never past it.
+		RetryPolicy retryPolicy = RetryPolicy.getInstance(RetryPolicy.CARD_RANGE);
+		long deadline = System.currentTimeMillis() + getSleepInterval();
+		int attempts = 0;
+		while (true) {
+			attempts++;
+			try {
+				Message response = DirectoryRouter.getInstance().send(crreq, urls);
+				retryPolicy.completed(attempts, true);
+				if (response != null)
+					logger.debug("Got card range from directory.");
+				return response;
+			}
+			catch (MessagingException me) {
+				// The directory did answer
+				retryPolicy.completed(attempts, true);
+				throw me;
+			}
+			catch (CommunicatorException ce) {
+				long delay = retryPolicy.retryDelay(attempts, deadline);
+				if (delay < 0) {
+					retryPolicy.completed(attempts, false);
+					logger.error("Failed to get card range from any directory.");
+					return null;
+				}
+				logger.error(
+					"Failed to get card range from any directory. Retrying in " + delay + " ms.");
 				try {
-						
-							response = (new Communicator()).send(crreq, urls[i]);
-	
-							if (response != null) {
-									logger.debug("Got card range from " + urls[i]);
-									return response;
-							}
-													
-						
-					 }
-				
-					
-				
-				catch (CommunicatorException ce) {
-					logger.error("Failed to get card range from " + urls[i]);
+					Thread.sleep(delay);
 				}
-			}	
-			
+				catch (InterruptedException ie) {
+					retryPolicy.completed(attempts, false);
+					return null;
+				}
+			}
 		}
-			
-		
-		return response;
 	}
 
 	private CRReqMessage getCRReqMessage(String aProtocolType, Config cfg)
@@ -394,6 +615,7 @@ public class CardRangeMonitor extends Thread {
 		CardRangeManager.setBufferedEnds(aProtocolType, null);
 		CardRangeManager.setCardRangeLoaded(aProtocolType, false);
 		(new CardRangeManager()).refresh(aProtocolType);
+		CardRangeSnapshot.getInstance().delete(aProtocolType);
 		logger.debug("CR has been reset.");
 	}
 
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.Serializable;
+
+/**
+ * Card range requests of one authentication protocol
+ *
+ * @version $Revision: 1 $
+ */
+public class CardRangeStatisticResult implements Serializable, Comparable {
+	private String protocol;
+	private long refreshCount;
+	private long failedCount;
+	private long lastDuration;
+	private long lastSuccessTime;
+	private int rangeCount;
+	private String serialNumber;
+
+	public CardRangeStatisticResult() {
+	}
+
+	/**
+	 * Copy constructor
+	 * @param copyFrom The result to copy
+	 */
+	public CardRangeStatisticResult(CardRangeStatisticResult copyFrom) {
+		this.protocol = copyFrom.getProtocol();
+		this.refreshCount = copyFrom.getRefreshCount();
+		this.failedCount = copyFrom.getFailedCount();
+		this.lastDuration = copyFrom.getLastDuration();
+		this.lastSuccessTime = copyFrom.getLastSuccessTime();
+		this.rangeCount = copyFrom.getRangeCount();
+		this.serialNumber = copyFrom.getSerialNumber();
+	}
+
+	public int compareTo(Object o) {
+		return this.protocol.compareTo(((CardRangeStatisticResult) o).getProtocol());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof CardRangeStatisticResult))
+			return false;
+		CardRangeStatisticResult result = (CardRangeStatisticResult) anObject;
+
+		return this.protocol.equals(result.getProtocol())
+			&& (this.refreshCount == result.getRefreshCount())
+			&& (this.failedCount == result.getFailedCount())
+			&& (this.lastDuration == result.getLastDuration())
+			&& (this.lastSuccessTime == result.getLastSuccessTime())
+			&& (this.rangeCount == result.getRangeCount())
+			&& ((this.serialNumber == null)
+				? (result.getSerialNumber() == null)
+				: this.serialNumber.equals(result.getSerialNumber()));
+	}
+
+	public int hashCode() {
+		return protocol.hashCode();
+	}
+
+	/**
+	 * Returns the protocol.
+	 * @return String
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns the number of card range requests.
+	 * @return long
+	 */
+	public long getRefreshCount() {
+		return refreshCount;
+	}
+
+	/**
+	 * Returns the number of card range requests which failed.
+	 * @return long
+	 */
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * Returns the duration of the last card range request, retries included.
+	 * @return long millis
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	/**
+	 * Returns the time the card ranges were last applied.
+	 * @return long millis, 0 if never
+	 */
+	public long getLastSuccessTime() {
+		return lastSuccessTime;
+	}
+
+	/**
+	 * Returns the time elapsed since the card ranges were last applied.
+	 * @return long millis, -1 if never
+	 */
+	public long getLastSuccessAge() {
+		return (lastSuccessTime == 0) ? -1 : System.currentTimeMillis() - lastSuccessTime;
+	}
+
+	/**
+	 * Returns the number of card ranges in use.
+	 * @return int
+	 */
+	public int getRangeCount() {
+		return rangeCount;
+	}
+
+	/**
+	 * Returns the serialNumber of the card ranges in use.
+	 * @return String, null if none
+	 */
+	public String getSerialNumber() {
+		return serialNumber;
+	}
+
+	/**
+	 * Sets the protocol.
+	 * @param protocol The protocol to set
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Sets the refresh count.
+	 * @param refreshCount The refreshCount to set
+	 */
+	public void setRefreshCount(long refreshCount) {
+		this.refreshCount = refreshCount;
+	}
+
+	/**
+	 * Sets the failed count.
+	 * @param failedCount The failedCount to set
+	 */
+	public void setFailedCount(long failedCount) {
+		this.failedCount = failedCount;
+	}
+
+	/**
+	 * Sets the last duration.
+	 * @param lastDuration The lastDuration to set
+	 */
+	public void setLastDuration(long lastDuration) {
+		this.lastDuration = lastDuration;
+	}
+
+	/**
+	 * Sets the last success time.
+	 * @param lastSuccessTime The lastSuccessTime to set
+	 */
+	public void setLastSuccessTime(long lastSuccessTime) {
+		this.lastSuccessTime = lastSuccessTime;
+	}
+
+	/**
+	 * Sets the range count.
+	 * @param rangeCount The rangeCount to set
+	 */
+	public void setRangeCount(int rangeCount) {
+		this.rangeCount = rangeCount;
+	}
+
+	/**
+	 * Sets the serialNumber.
+	 * @param serialNumber The serialNumber to set
+	 */
+	public void setSerialNumber(String serialNumber) {
+		this.serialNumber = serialNumber;
+	}
+
+}
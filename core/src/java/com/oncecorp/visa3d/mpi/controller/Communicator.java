@@ -24,36 +24,25 @@
 
 package com.oncecorp.visa3d.mpi.controller;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.ConnectException;
-import java.net.URL;
-import java.net.URLConnection;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
 
-import com.oncecorp.visa3d.mpi.configuration.Config;
-import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
-import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
 import com.oncecorp.visa3d.mpi.domain.payment.ErrorMessage;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
-import com.oncecorp.visa3d.mpi.messaging.DomToMsgConverter;
+import com.oncecorp.visa3d.mpi.messaging.LatencyMonitor;
 import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.messaging.StreamingMsgConverter;
 import com.oncecorp.visa3d.mpi.security.SecurityManager;
-import com.oncecorp.visa3d.mpi.utility.XMLUtil;
-
-import com.sun.net.ssl.internal.www.protocol.https.Handler;
-import com.sun.net.ssl.HttpsURLConnection;
-import com.sun.net.ssl.HostnameVerifier;
-
-import javax.net.ssl.SSLSession;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 /**
  * The Communicator class is responsible for sending 3-D
@@ -77,229 +66,72 @@ public class Communicator {
 	 */
 	public Message send(Message inMsg, String toEntity)
 		throws CommunicatorException, MessagingException {
-		//Initialize IO stream
-		OutputStreamWriter out = null;
-		BufferedReader in = null;
-		Document resDom = null;
-	
-	//  Teodora added on March 27 for retry strategy 
-	
-		int numberOfRetries;
-		long timeBetweenRetries;
-		// fetch the proper information
-		// Try to load configuration parameter NUMBER_OF_RETRIES.
-		try { 
-			
-			numberOfRetries = Integer.parseInt((String) Config.getConfigReference().getConfigData(
-						MPIConfigDefinition.NUMBER_OF_RETRIES));
-		}
+		return send(inMsg, toEntity, null);
+	}
+
+	/**
+	 * Send message to external entity
+	 * @param msg The message String to be sent
+	 * @param toEntity The entity URI
+	 * @param call Handle to cancel the request from another thread, may be null
+	 * @return The response message string
+	 */
+	public Message send(Message inMsg, String toEntity, DirectoryCall call)
+		throws CommunicatorException, MessagingException {
+		// Connection failures are retried under the directory retry policy,
+		// never past the deadline of the merchant request
+		RetryPolicy retryPolicy = RetryPolicy.getInstance(RetryPolicy.DIRECTORY);
+		long deadline = AuthenticatorSession.instance().getDeadline();
 
-		
-		catch (ConfigurationException cfgExcep) {
-			// By default, if this property is not configured, it is set to 0.
-			numberOfRetries = 0;
-		}
-		
-		// Try to load configuration parameter TIME_BETWEEN_RETRIES.
-		if (numberOfRetries != 0) {
-			try {
-				timeBetweenRetries = Long.parseLong((String) Config.getConfigReference().getConfigData(
-						MPIConfigDefinition.TIME_BETWEEN_RETRIES));
-			}
-			catch (ConfigurationException cfgExcep) {
-			// By default, if this property is not configured, it is set to 0.
-			timeBetweenRetries = 0;
-			}
-		}
-		else timeBetweenRetries = 0;
-		
-		
 		try {
 			this.logger.debug("Sending message to VISA Dir: " + toEntity);
+			XMLWriter msg = serialize(inMsg);
 
-			//Initialize connection
-			boolean initialOK =
-				SecurityManager.getInstance().initializeConnection();
-			if (!initialOK) {
-				this.logger.error(
-					"Failed to initialize connection parameters.");
-				throw new CommunicatorException("Failed to initialze connection parameters.");
-			}
-
-            /**
-             * The following change done by Gang, to change the HttpConnection to
-             * directly use SUN implementation
-             */
-            /**
-             * The following old one is replaced
-			//Establish connection to servlet
-			URL url = new URL(toEntity);
-			URLConnection conn = url.openConnection();
-            */
-           URL url;
-           if ( toEntity != null &&
-                toEntity.trim().toLowerCase().startsWith("https:") )
-               url = new URL(null, toEntity, new Handler() );
-           else
-               url = new URL( toEntity );
-              
-           	
-           
-            URLConnection conn = null;
-            int j;
-            
-               // TEODORA: try to establish the connection numberOfRetries times with timeBetweenRetries
-					for (j = 0; j <= numberOfRetries; j++) {
-					
-						
-						conn=sendOver(url);
-												
-						if (!conn.equals (null)) {
-								logger.debug("Established Connection");
-								logger.debug("The number of retries set to ..." + numberOfRetries);
-								logger.debug("The number of attempts to connect to directory was " + (++j));
-								break;
-						}
-						
-						else {
-							logger.debug("Thread will sleep for time between retries..." + timeBetweenRetries);	
-							Thread.sleep(timeBetweenRetries);
-							logger.debug("Thread woke up.");	
-						}	            
-               
+			// Post it over a pooled keep-alive connection.
+			DirectoryResponse response = null;
+			int attempts = 0;
+			long start = System.nanoTime();
+			try {
+				while (response == null) {
+					attempts++;
+					try {
+						response = DirectoryClient.getInstance().execute(toEntity, msg, call);
+					} catch (ConnectException ce) {
+						long delay = retryPolicy.retryDelay(attempts, deadline);
+						if (delay < 0 || (call != null && call.isCancelled()))
+							throw ce;
+						logger.debug("Connection failed, retrying in " + delay + " ms...");
+						Thread.sleep(delay);
 					}
-                    if  (j > numberOfRetries && conn.equals(null)) throw new CommunicatorException("Unsuccessfull connection");      
-			
-
-			//Prepare for both input and output
-			conn.setDoInput(true);
-			conn.setDoOutput(true);
-
-			//Turn off caching
-			conn.setUseCaches(false);
-
-			// Disable SSL hostname verification
-			((HttpsURLConnection)conn).setHostnameVerifier(
-					new HostnameVerifier() {
-                    		  public boolean verify(String hostname, SSLSession session) {
-                    				System.out.println("Hostname of server " + hostname);
-                    				return true;
-                    		  }
-
-							  public boolean verify(String hostname, String session) {
-                    				return true;
-                    		  }
-
-					});
-
-			//Convert inMsg to string
-			String msg = inMsg.toString();
-			this.logger.debug("Content to VISA Dir: " + msg);
-
-			//Set content type to MPI message
-			conn.setRequestProperty(
-				"Content-Type",
-				"application/xml; charset=\"utf-8\"");
-
-			//Set content length
-			conn.setRequestProperty(
-				"Content-Length",
-				Integer.toString(msg.length()));
-
-			//Create output stream
-			out = new OutputStreamWriter(conn.getOutputStream());
-
-			//Write message as POST data
-			//out.write(URLEncoder.encode(msg));
-			out.write(msg);
-
-			//Flush it
-			out.flush();
-
-			//Close output stream
-			out.close();
-			this.logger.debug("Sending finished.");
-
-			//Create input stream
-			in =
-				new BufferedReader(
-					new InputStreamReader(conn.getInputStream()));
-
-			//Read response
-			String resStr = in.readLine();
-			String line;
-			while ((line = in.readLine()) != null) {
-				resStr += line;
+				}
+			} finally {
+				retryPolicy.completed(attempts, response != null);
 			}
-
-			//Close input stream
-			in.close();
-			this.logger.debug(
-				"Receiving finished. Content received: " + resStr);
-
-			//Received response should be encoded in "x-www-form-urlencoded" format.
-			//Decode it back to String and convert request XML string into DOM with
-			//validation turned off
-
-			resDom = XMLUtil.createDocument(resStr);
-			this.logger.debug("Received message is converted to Document.");
-
-			if (resDom == null) {
-				logger.error("NULL response received by Communicator.");
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_1,
-					ErrorCodes.ERROR_MESSAGE_1,
-					"ThreeDSecure",
-					"Root element missing.",
-					"Root element missing.");
+			LatencyMonitor.record(
+				LatencyMonitor.STAGE_DIRECTORY_ROUND_TRIP,
+				inMsg.getType(),
+				start);
+
+			//Convert the response to message as it is received, decoded as
+			//UTF-8 unless the server declares another charset
+			Message newMsg;
+			start = System.nanoTime();
+			try {
+				newMsg = toMessage(response.getInputStream(), response.getCharset());
+			} finally {
+				response.close();
 			}
-
-			//Convert DOM to message
-			Message newMsg = new DomToMsgConverter().convert(resDom);
-
-			// Validate structural integrity of the new message
-			// If it is not valid then a MessagingException will be thrown
-			newMsg.validate();
-
-			//Check version support
-			MessageGenerator.checkVersionSupport(newMsg);
-
+			LatencyMonitor.record(
+				LatencyMonitor.STAGE_RESPONSE_CONVERSION,
+				newMsg.getType(),
+				start);
+			if (this.logger.isDebugEnabled())
+				this.logger.debug(
+					"Receiving finished. Bytes received: " + response.getReceivedBytes());
 			return newMsg;
 
 		} catch (MessagingException excep) {
-			this.logger.error(
-				"Failed to convert message in Communicator.",
-				excep);
-
-			// call MessageGenerator to create an empty ErrorMessage
-			ErrorMessage errMsg =
-				(ErrorMessage) MessageGenerator.create(
-					ErrorMessage.MSG_TYPE,
-					ErrorMessage.MSG_VERSION);
-
-			if ((excep.getId() == null)
-					|| excep.getId().equalsIgnoreCase("UNKNOWN")) {
-				excep.setId(inMsg.getId());
-			}
-
-			// set value for this err msg
-			errMsg.setId(excep.getId());
-			errMsg.setErrorCode(excep.getErrorCode());
-			errMsg.setErrorMessage(excep.getErrorMsg());
-			errMsg.setErrorDetail(excep.getErrorDetail());
-			errMsg.setVendorCode(excep.getVendorCode());
-
-			errMsg = (ErrorMessage) MessageEngine.process(errMsg);
-
-			// Send error to responding entity
-			ErrorRequest er = new ErrorRequest();
-			er.setToUrl(toEntity);
-			er.setMsg(errMsg);
-
-			(new ErrorHandlerThreadManager()).dispatchErrorMessage(er);
-			logger.info(
-				"Error notification dispatched to ErrorHandlerManager.");
+			dispatchError(inMsg, toEntity, excep);
 
 			// throw error back to Merchant as usual
 			throw excep;
@@ -312,66 +144,208 @@ public class Communicator {
 			throw new CommunicatorException(ex.getMessage());
 			
 		} catch (Exception e) {
-			//Log the error
-			this.logger.error("Communication error with the server. Please be sure that the server is up and running.");
+			//Log the error, a cancelled request is not one
+			if (call != null && call.isCancelled())
+				this.logger.debug("Request to " + toEntity + " cancelled.");
+			else
+				this.logger.error("Communication error with the server. Please be sure that the server is up and running.");
 
 			//Throws CommunicatorException
 			throw new CommunicatorException(e.getMessage());
-		
+		}
+	}
 
-		
+	/**
+	 * Send message to external entity without waiting for the response.
+	 * The request is carried by the AsyncDirectoryClient, and the response
+	 * converted and validated on one of its callback threads, where the
+	 * listeners of the returned future are called. No connection retry is
+	 * made: DirectoryRouter fails over to the next directory instead.
+	 * @param inMsg The message to be sent
+	 * @param toEntity The entity URI
+	 * @return Future of the response message. It fails with a
+	 * MessagingException for an invalid response, a CommunicatorException
+	 * otherwise.
+	 */
+	public DirectoryFuture sendAsync(final Message inMsg, final String toEntity) {
+		final DirectoryFuture future = new DirectoryFuture();
+		final DirectoryFuture exchange;
+		final long start = System.nanoTime();
+		try {
+			this.logger.debug("Sending message asynchronously to VISA Dir: " + toEntity);
+			exchange =
+				AsyncDirectoryClient.getInstance().post(
+					toEntity,
+					serialize(inMsg).toByteArray());
+		} catch (CommunicatorException ce) {
+			future.fail(ce);
+			return future;
+		} catch (IOException ioe) {
+			this.logger.error("Asynchronous directory client unavailable.", ioe);
+			future.fail(new CommunicatorException(ioe.getMessage()));
+			return future;
+		}
 
-		} finally {
-			//Clean-up
-			try {
-				if (out != null)
-					out.close();
-				if (in != null)
-					in.close();
-			} catch (IOException ioe) {
-				this.logger.error("Can't close IO stream", ioe);
+		future.setCanceller(new Runnable() {
+			public void run() {
+				exchange.cancel();
+			}
+		});
+		exchange.addListener(new DirectoryListener() {
+			public void completed(DirectoryFuture done) {
+				if (done.getFailure() != null) {
+					if (done.getFailure() instanceof ConnectException)
+						logger.error("Can't connect to the server. Please be sure that the server is up and running.");
+					else if (!future.isCancelled())
+						logger.error("Communication error with the server. Please be sure that the server is up and running.");
+					future.fail(new CommunicatorException(done.getFailure().getMessage()));
+					return;
+				}
+
+				AsyncExchange response = (AsyncExchange) done.getResult();
+				if (logger.isDebugEnabled())
+					logger.debug(
+						"Receiving finished. Bytes received: " + response.getReceivedBytes());
+				LatencyMonitor.record(
+					LatencyMonitor.STAGE_DIRECTORY_ROUND_TRIP,
+					inMsg.getType(),
+					start);
+				try {
+					long conversionStart = System.nanoTime();
+					Message newMsg =
+						toMessage(
+							new ByteArrayInputStream(response.getResponseBody()),
+							response.getCharset());
+					LatencyMonitor.record(
+						LatencyMonitor.STAGE_RESPONSE_CONVERSION,
+						newMsg.getType(),
+						conversionStart);
+					future.complete(newMsg);
+				} catch (MessagingException excep) {
+					try {
+						dispatchError(inMsg, toEntity, excep);
+						future.fail(excep);
+					} catch (MessagingException me) {
+						future.fail(me);
+					}
+				} catch (Exception e) {
+					logger.error("Communication error with the server. Please be sure that the server is up and running.");
+					future.fail(new CommunicatorException(e.getMessage()));
+				}
 			}
+		});
+		return future;
+	}
 
-			if (resDom != null)
-				resDom = null;
+	/**
+	 * Initialize the connection parameters and serialize a message as UTF-8
+	 * into this thread's reusable buffer.
+	 */
+	private XMLWriter serialize(Message inMsg) throws CommunicatorException {
+		//Initialize connection
+		boolean initialOK =
+			SecurityManager.getInstance().initializeConnection();
+		if (!initialOK) {
+			this.logger.error(
+				"Failed to initialize connection parameters.");
+			throw new CommunicatorException("Failed to initialze connection parameters.");
 		}
+
+		//Serialize inMsg as UTF-8 into this thread's reusable buffer
+		XMLWriter msg = XMLWriter.getThreadWriter();
+		try {
+			inMsg.writeXML(msg);
+		} catch (Exception serExcep) {
+			this.logger.error("Failed to convert message to XML.", serExcep);
+			throw new CommunicatorException("Failed to convert message to XML.");
+		}
+		if (this.logger.isDebugEnabled())
+			this.logger.debug("Content to VISA Dir: " + msg);
+		return msg;
 	}
 
-		/*
-		 * [Teodora's note - March 27, 2003]
-		 * Added method for retry strategy for Visa/Master card Directory 
-		 *  
-		 */
-
-   public URLConnection sendOver(URL url) {
-    
-    
-    	URLConnection conn;
-   		try{
-			logger.debug("Establishing Connection");
-			conn = url.openConnection();
-			return  conn;
-		} catch (IOException ioe) {
-			this.logger.error("IO Exception during establishing connection with Visa/ Master card directory", ioe);
-			return null;
-		}	
-			
-		
-			
-		
+	/**
+	 * Convert a response body to a validated message.
+	 * @param in The response body
+	 * @param charset The declared charset, null for UTF-8
+	 */
+	private Message toMessage(InputStream in, String charset) throws Exception {
+		PushbackInputStream body = new PushbackInputStream(in);
+		int first = body.read();
+		if (first == -1) {
+			logger.error("NULL response received by Communicator.");
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_1,
+				ErrorCodes.ERROR_MESSAGE_1,
+				"ThreeDSecure",
+				"Root element missing.",
+				"Root element missing.");
+		}
+		body.unread(first);
 
-    
-    }
+		//Convert response to message
+		Message newMsg =
+			new StreamingMsgConverter().convert(
+				body,
+				(charset == null) ? "UTF-8" : charset);
 
+		// Validate structural integrity of the new message
+		// If it is not valid then a MessagingException will be thrown
+		newMsg.validate();
 
+		//Check version support
+		MessageGenerator.checkVersionSupport(newMsg);
+
+		return newMsg;
+	}
+
+	/**
+	 * Notify the directory of an invalid response through an Error message.
+	 */
+	private void dispatchError(
+		Message inMsg,
+		String toEntity,
+		MessagingException excep)
+		throws MessagingException {
+		this.logger.error(
+			"Failed to convert message in Communicator.",
+			excep);
+
+		// call MessageGenerator to create an empty ErrorMessage
+		ErrorMessage errMsg =
+			(ErrorMessage) MessageGenerator.create(
+				ErrorMessage.MSG_TYPE,
+				ErrorMessage.MSG_VERSION);
+
+		if ((excep.getId() == null)
+				|| excep.getId().equalsIgnoreCase("UNKNOWN")) {
+			excep.setId(inMsg.getId());
+		}
+
+		// set value for this err msg
+		errMsg.setId(excep.getId());
+		errMsg.setErrorCode(excep.getErrorCode());
+		errMsg.setErrorMessage(excep.getErrorMsg());
+		errMsg.setErrorDetail(excep.getErrorDetail());
+		errMsg.setVendorCode(excep.getVendorCode());
+
+		errMsg = (ErrorMessage) MessageEngine.process(errMsg);
+
+		// Send error to responding entity
+		ErrorRequest er = new ErrorRequest();
+		er.setToUrl(toEntity);
+		er.setMsg(errMsg);
+
+		(new ErrorHandlerThreadManager()).dispatchErrorMessage(er);
+		logger.info(
+			"Error notification dispatched to ErrorHandlerManager.");
+	}
 
 	public Message receive(String str) throws CommunicatorException {
 		try {
-			//Convert to DOM document first
-			Document dom = XMLUtil.createDocument(str, false);
-
-			//Convert DOM to message
-			return (new DomToMsgConverter()).convert(dom);
+			//Convert to message
+			return (new StreamingMsgConverter()).convert(str);
 		} catch (Exception e) {
 			this.logger.error("Communication error.", e);
 			throw new CommunicatorException("Communication error.");
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+/**
+ * Handle on one directory request, used to abort it from another thread.
+ * Cancelling closes the connection the request is using so that a thread
+ * blocked waiting for the response fails right away.
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryCall {
+	private DirectoryConnection connection;
+	private boolean cancelled;
+
+	/**
+	 * Abort the request. A cancelled request cannot be started again.
+	 */
+	public void cancel() {
+		DirectoryConnection conn;
+		synchronized (this) {
+			cancelled = true;
+			conn = connection;
+		}
+		if (conn != null)
+			conn.abort();
+	}
+
+	/**
+	 * Returns true if the request was cancelled.
+	 * @return boolean
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Bind the request to the connection carrying it.
+	 * @return False if the request has already been cancelled
+	 */
+	synchronized boolean attach(DirectoryConnection conn) {
+		if (cancelled)
+			return false;
+		connection = conn;
+		return true;
+	}
+
+	/**
+	 * Unbind the request from its connection.
+	 */
+	synchronized void detach() {
+		connection = null;
+	}
+}
@@ -0,0 +1,524 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.security.SSLContextRegistry;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
+
+/**
+ * HTTP(S) client used to post 3-D Secure messages to the directory
+ * servers. Connections are kept alive and pooled per endpoint
+ * (scheme, host and port) so that a VEReq or CRReq normally reuses an
+ * established connection instead of paying for a TCP connect and an SSL
+ * handshake. New connections to an endpoint go through a single
+ * SSLSocketFactory, which lets JSSE resume the previous SSL session. Unless
+ * given one, the client takes the factory of the request protocol or
+ * merchant from the SSLContextRegistry, and pools connections made with
+ * different factories apart.
+ *
+ * <p>Responses are read straight from the connection and bounded by a
+ * maximum size. Connect and read timeouts, the pool limits and the maximum
+ * response size are read from the MPI configuration. Per endpoint counters are available through the
+ * PerformanceMonitor MBean.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryClient {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(DirectoryClient.class.getName());
+
+	/**
+	 * Content type of posted messages
+	 */
+	public static final String CONTENT_TYPE = "application/xml; charset=\"utf-8\"";
+
+	/**
+	 * Default configuration values
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+	public static final long DEFAULT_KEEP_ALIVE_TIME = 30000;
+	public static final long DEFAULT_MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Shared instance built from the MPI configuration
+	 */
+	private static DirectoryClient instance;
+
+	/**
+	 * SSL socket factory, null to use the SSLContextRegistry
+	 */
+	private SSLSocketFactory sslFactory;
+
+	/**
+	 * Settings
+	 */
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxConnections;
+	private int maxIdle;
+	private long keepAliveTime;
+	private long maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+	/**
+	 * Endpoints keyed by scheme://host:port
+	 */
+	private Map endpoints = new HashMap();
+
+	/**
+	 * Constructor
+	 * @param sslFactory SSL socket factory, null to use the SSLContextRegistry
+	 * @param connectTimeout Connect timeout in millis, also the maximum wait for a pooled connection
+	 * @param readTimeout Read timeout in millis
+	 * @param maxConnections Maximum number of connections per endpoint
+	 * @param maxIdle Maximum number of idle connections kept per endpoint
+	 * @param keepAliveTime Time in millis after which an idle connection is discarded
+	 */
+	public DirectoryClient(
+		SSLSocketFactory sslFactory,
+		int connectTimeout,
+		int readTimeout,
+		int maxConnections,
+		int maxIdle,
+		long keepAliveTime) {
+		this.sslFactory = sslFactory;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.maxIdle = Math.max(0, maxIdle);
+		this.keepAliveTime = keepAliveTime;
+	}
+
+	/**
+	 * Returns the shared client, creating it from the MPI configuration on first use.
+	 * @return DirectoryClient
+	 */
+	public static synchronized DirectoryClient getInstance() {
+		if (instance == null) {
+			int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+			int readTimeout = DEFAULT_READ_TIMEOUT;
+			int maxConnections = DEFAULT_MAX_CONNECTIONS;
+			int maxIdle = DEFAULT_MAX_IDLE_CONNECTIONS;
+			long keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+			long maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+			try {
+				Config cfg = Config.getConfigReference();
+				connectTimeout =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_CONNECT_TIMEOUT));
+				readTimeout =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_READ_TIMEOUT));
+				maxConnections =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_CONNECTIONS));
+				maxIdle =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_IDLE_CONNECTIONS));
+				keepAliveTime =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_KEEP_ALIVE_TIME));
+				maxResponseSize =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_MAX_RESPONSE_SIZE))
+						* 1024;
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve directory connection configuration. Defaults used for missing items.",
+					e);
+			}
+			instance =
+				new DirectoryClient(
+					null,
+					connectTimeout,
+					readTimeout,
+					maxConnections,
+					maxIdle,
+					keepAliveTime);
+			instance.setMaxResponseSize(maxResponseSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared client, closing the idle connections of the previous one.
+	 * @param client The new client, null to rebuild it from the configuration on next use
+	 */
+	public static synchronized void setInstance(DirectoryClient client) {
+		if (instance != null)
+			instance.closeIdleConnections();
+		instance = client;
+	}
+
+	/**
+	 * Post a serialized message and return the response.
+	 * @param url Target URL (http or https)
+	 * @param body Serialized message
+	 * @return The response body, decoded with its declared charset (UTF-8 by default)
+	 * @exception IOException Connection failure, timeout or non 2xx HTTP status
+	 */
+	public String post(String url, XMLWriter body) throws IOException {
+		return post(url, body, null);
+	}
+
+	/**
+	 * Post a serialized message and return the response.
+	 * @param url Target URL (http or https)
+	 * @param body Serialized message
+	 * @param call Handle to cancel the request from another thread, may be null
+	 * @return The response body, decoded with its declared charset (UTF-8 by default)
+	 * @exception IOException Connection failure, timeout, non 2xx HTTP status
+	 * or cancellation (InterruptedIOException)
+	 */
+	public String post(String url, XMLWriter body, DirectoryCall call)
+		throws IOException {
+		DirectoryResponse response = execute(url, body, call);
+		try {
+			long length = response.getContentLength();
+			ByteArrayOutputStream content =
+				new ByteArrayOutputStream(
+					length > 0 && length < 65536 ? (int) length : 4096);
+			InputStream in = response.getInputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				content.write(buf, 0, n);
+			return decode(content.toByteArray(), response.getCharset());
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Post a serialized message and return the response as soon as its
+	 * headers are received. The caller reads the body from the response
+	 * and must close it.
+	 * @param url Target URL (http or https)
+	 * @param body Serialized message
+	 * @param call Handle to cancel the request from another thread, may be null
+	 * @return The response, with a 2xx status
+	 * @exception IOException Connection failure, timeout, non 2xx HTTP status,
+	 * response over the maximum size or cancellation (InterruptedIOException)
+	 */
+	public DirectoryResponse execute(String url, XMLWriter body, DirectoryCall call)
+		throws IOException {
+		URL target = new URL(url);
+		String sslKey = null;
+		if (sslFactory == null && "https".equalsIgnoreCase(target.getProtocol())) {
+			// Client certificate of the request protocol or merchant
+			AuthenticatorSession session = AuthenticatorSession.instance();
+			sslKey =
+				SSLContextRegistry.getInstance().resolve(
+					session.getProtocol(),
+					session.getMerchantID());
+		}
+		DirectoryEndpoint endpoint = getEndpoint(target, sslKey);
+		String path = target.getFile();
+		if (path == null || path.length() == 0)
+			path = "/";
+		String hostHeader = target.getHost();
+		if (target.getPort() != -1)
+			hostHeader += ":" + target.getPort();
+
+		while (true) {
+			if (call != null && call.isCancelled())
+				throw new InterruptedIOException("Request to " + url + " cancelled");
+			DirectoryConnection conn = endpoint.takeIdle();
+			boolean pooled = (conn != null);
+			if (!pooled) {
+				endpoint.reserve();
+				try {
+					conn = connect(endpoint, sslKey);
+				} catch (IOException ioe) {
+					endpoint.release(null, false);
+					endpoint.failed();
+					throw ioe;
+				}
+			}
+
+			if (call != null && !call.attach(conn)) {
+				endpoint.release(conn, true);
+				throw new InterruptedIOException("Request to " + url + " cancelled");
+			}
+
+			try {
+				conn.writeRequest(path, hostHeader, CONTENT_TYPE, body);
+				conn.readResponseHead(maxResponseSize);
+			} catch (IOException ioe) {
+				if (call != null)
+					call.detach();
+				endpoint.release(conn, false);
+				if (call != null && call.isCancelled())
+					throw new InterruptedIOException("Request to " + url + " cancelled");
+				// The server may have dropped an idle connection we still had
+				// pooled: resend once nothing of the response has come back.
+				if (pooled
+					&& !conn.isResponseStarted()
+					&& !(ioe instanceof InterruptedIOException)) {
+					logger.debug(
+						"Pooled connection to " + endpoint.getKey()
+							+ " is no longer usable, resending.");
+					continue;
+				}
+				endpoint.failed();
+				throw ioe;
+			}
+
+			DirectoryResponse response = new DirectoryResponse(endpoint, conn, call);
+			int status = response.getStatus();
+			if (status < 200 || status >= 300) {
+				response.close();
+				endpoint.failed();
+				throw new IOException(
+					"Server returned HTTP response code: " + status
+						+ " for URL: " + url);
+			}
+			if (maxResponseSize > 0 && response.getContentLength() > maxResponseSize) {
+				response.abort();
+				endpoint.failed();
+				throw new IOException(
+					"Response of " + response.getContentLength()
+						+ " bytes exceeds the maximum size of " + maxResponseSize
+						+ " bytes for URL: " + url);
+			}
+			return response;
+		}
+	}
+
+	/**
+	 * Returns the maximum response body size.
+	 * @return long bytes, 0 for no limit
+	 */
+	public long getMaxResponseSize() {
+		return maxResponseSize;
+	}
+
+	/**
+	 * Sets the maximum response body size.
+	 * @param maxResponseSize The maximum size in bytes, 0 for no limit
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = Math.max(0, maxResponseSize);
+	}
+
+	/**
+	 * Returns the connection statistic per endpoint.
+	 * @return The map contains EndpointStatisticResult objects keyed by endpoint
+	 */
+	public Map getStatistics() {
+		Map result = new TreeMap();
+		synchronized (endpoints) {
+			Iterator it = endpoints.values().iterator();
+			while (it.hasNext()) {
+				DirectoryEndpoint endpoint = (DirectoryEndpoint) it.next();
+				result.put(endpoint.getKey(), endpoint.getStatistic());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Close every idle pooled connection.
+	 */
+	public void closeIdleConnections() {
+		synchronized (endpoints) {
+			Iterator it = endpoints.values().iterator();
+			while (it.hasNext())
+				 ((DirectoryEndpoint) it.next()).closeIdle();
+		}
+	}
+
+	/**
+	 * Returns the endpoint of a URL. Connections made with different SSL
+	 * contexts are pooled apart.
+	 */
+	private DirectoryEndpoint getEndpoint(URL target, String sslKey) throws IOException {
+		String scheme = target.getProtocol().toLowerCase();
+		boolean secure;
+		if (scheme.equals("https"))
+			secure = true;
+		else if (scheme.equals("http"))
+			secure = false;
+		else
+			throw new IOException("Unsupported protocol: " + scheme);
+		String host = target.getHost().toLowerCase();
+		int port = target.getPort();
+		if (port == -1)
+			port = secure ? 443 : 80;
+		String key = scheme + "://" + host + ":" + port;
+		if (sslKey != null && !sslKey.equals(SSLContextRegistry.DEFAULT))
+			key += " [" + sslKey + "]";
+
+		synchronized (endpoints) {
+			DirectoryEndpoint endpoint = (DirectoryEndpoint) endpoints.get(key);
+			if (endpoint == null) {
+				endpoint =
+					new DirectoryEndpoint(
+						key,
+						host,
+						port,
+						secure,
+						maxConnections,
+						maxIdle,
+						keepAliveTime,
+						connectTimeout);
+				endpoints.put(key, endpoint);
+			}
+			return endpoint;
+		}
+	}
+
+	/**
+	 * Open a new connection to an endpoint, tunneling through the
+	 * configured https proxy if any.
+	 * @param sslKey Key of the SSL context in the SSLContextRegistry, used
+	 * when no SSL socket factory was given
+	 */
+	private DirectoryConnection connect(DirectoryEndpoint endpoint, String sslKey)
+		throws IOException {
+		String host = endpoint.getHost();
+		int port = endpoint.getPort();
+		SSLContextRegistry registry = SSLContextRegistry.getInstance();
+		String proxyHost = endpoint.isSecure() ? registry.getProxyHost() : null;
+		boolean proxied = (proxyHost != null);
+
+		if (logger.isDebugEnabled())
+			logger.debug("Opening connection to " + endpoint.getKey());
+
+		Socket socket = new Socket();
+		Socket rawSocket = socket;
+		try {
+			if (proxied) {
+				socket.connect(
+					new InetSocketAddress(proxyHost, registry.getProxyPort()),
+					connectTimeout);
+			} else {
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			}
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+
+			byte[] sessionId = null;
+			if (proxied)
+				tunnel(socket, host, port);
+			if (endpoint.isSecure()) {
+				SSLSocketFactory factory = sslFactory;
+				if (factory == null)
+					factory = registry.getSocketFactory(sslKey);
+				// Directory certificates are not checked against the host name,
+				// as with the former URLConnection based implementation.
+				SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+				ssl.setUseClientMode(true);
+				ssl.startHandshake();
+				sessionId = ssl.getSession().getId();
+				socket = ssl;
+			}
+			DirectoryConnection conn = new DirectoryConnection(socket, rawSocket);
+			endpoint.connected(sessionId);
+			return conn;
+		} catch (IOException ioe) {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Establish a tunnel to host:port through an HTTP proxy.
+	 */
+	private void tunnel(Socket socket, String host, int port) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		String request =
+			"CONNECT " + host + ":" + port + " HTTP/1.0\r\n"
+				+ "Host: " + host + ":" + port + "\r\n\r\n";
+		out.write(request.getBytes("ISO-8859-1"));
+		out.flush();
+
+		// Read the proxy reply byte per byte, the SSL handshake follows it
+		InputStream in = socket.getInputStream();
+		StringBuffer reply = new StringBuffer(128);
+		int c;
+		while ((c = in.read()) != -1) {
+			reply.append((char) c);
+			int len = reply.length();
+			if (len >= 4 && reply.substring(len - 4).equals("\r\n\r\n"))
+				break;
+		}
+		String reply0 = reply.toString();
+		int eol = reply0.indexOf("\r\n");
+		String statusLine = eol >= 0 ? reply0.substring(0, eol) : reply0;
+		if (c == -1 || statusLine.indexOf(" 200") < 0)
+			throw new IOException(
+				"Unable to tunnel through proxy to " + host + ":" + port
+					+ ". Proxy returned \"" + statusLine + "\"");
+	}
+
+	private static String decode(byte[] content, String charset)
+		throws UnsupportedEncodingException {
+		if (charset != null) {
+			try {
+				return new String(content, charset);
+			} catch (UnsupportedEncodingException uee) {
+				logger.warn("Unsupported response charset " + charset + ", UTF-8 used.");
+			}
+		}
+		return new String(content, "UTF-8");
+	}
+}
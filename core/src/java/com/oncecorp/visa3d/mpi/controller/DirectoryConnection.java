@@ -0,0 +1,459 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
+
+/**
+ * A persistent HTTP/1.1 connection to a directory server endpoint. The
+ * connection carries one POST exchange at a time and is handed back to
+ * its DirectoryEndpoint pool as long as the server keeps it alive and the
+ * response body has been read up to its end.
+ *
+ * @version $Revision: 1 $
+ */
+class DirectoryConnection {
+	/**
+	 * Underlying (possibly SSL) socket and the plain socket it is layered on
+	 */
+	private Socket socket;
+	private Socket rawSocket;
+
+	/**
+	 * Buffered socket streams
+	 */
+	private InputStream in;
+	private OutputStream out;
+
+	/**
+	 * Time this connection was last handed back to its pool
+	 */
+	private long lastUsed;
+
+	/**
+	 * True once the connection has carried a complete exchange
+	 */
+	private boolean reused;
+
+	/**
+	 * True once a byte of the current response has been received
+	 */
+	private boolean responseStarted;
+
+	/**
+	 * Status code, charset and persistence of the last response
+	 */
+	private int status;
+	private String charset;
+	private boolean keepAlive;
+	private long contentLength;
+
+	/**
+	 * Body of the last response
+	 */
+	private BodyInputStream responseBody;
+
+	/**
+	 * Constructor
+	 * @param socket Connected socket, handshake already completed
+	 * @param rawSocket Plain socket under an SSL socket, the socket itself otherwise
+	 */
+	DirectoryConnection(Socket socket, Socket rawSocket) throws IOException {
+		this.socket = socket;
+		this.rawSocket = rawSocket;
+		this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Send a POST request carrying a serialized message.
+	 * @param path Request URI
+	 * @param host Host header value
+	 * @param contentType Content-Type header value
+	 * @param body Serialized message
+	 */
+	void writeRequest(String path, String host, String contentType, XMLWriter body)
+		throws IOException {
+		responseStarted = false;
+		status = 0;
+		charset = null;
+		keepAlive = false;
+		contentLength = -1;
+		responseBody = null;
+
+		out.write(requestHead(path, host, contentType, body.size()));
+		body.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Returns the head of a keep-alive POST request.
+	 * @return byte[] ISO-8859-1 encoded
+	 */
+	static byte[] requestHead(String path, String host, String contentType, int length)
+		throws IOException {
+		StringBuffer head = new StringBuffer(256);
+		head.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(host).append("\r\n");
+		head.append("Content-Type: ").append(contentType).append("\r\n");
+		head.append("Content-Length: ").append(length).append("\r\n");
+		head.append("Connection: keep-alive\r\n");
+		head.append("\r\n");
+		return head.toString().getBytes("ISO-8859-1");
+	}
+
+	/**
+	 * Read the status line and headers of the response, skipping interim
+	 * 1xx responses. The body is then available from getResponseBody().
+	 * @param maxSize Maximum body size in bytes, 0 for no limit
+	 */
+	void readResponseHead(long maxSize) throws IOException {
+		boolean chunked;
+		do {
+			String statusLine = readLine();
+			if (statusLine == null)
+				throw new EOFException("Connection closed by server");
+			responseStarted = true;
+			boolean http10 = statusLine.startsWith("HTTP/1.0");
+			status = parseStatus(statusLine);
+
+			contentLength = -1;
+			chunked = false;
+			keepAlive = !http10;
+			String line;
+			while ((line = readLine()) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon <= 0)
+					continue;
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException nfe) {
+						throw new IOException("Invalid Content-Length: " + value);
+					}
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.toLowerCase().indexOf("chunked") >= 0;
+				} else if (name.equalsIgnoreCase("Connection")) {
+					if (value.equalsIgnoreCase("close"))
+						keepAlive = false;
+					else if (value.equalsIgnoreCase("keep-alive"))
+						keepAlive = true;
+				} else if (name.equalsIgnoreCase("Content-Type")) {
+					charset = parseCharset(value);
+				}
+			}
+			if (line == null)
+				throw new EOFException("Connection closed while reading headers");
+		} while (status >= 100 && status < 200);
+
+		if (status == 204 || status == 304) {
+			responseBody = new BodyInputStream(0, false, maxSize);
+		} else if (chunked) {
+			contentLength = -1;
+			responseBody = new BodyInputStream(0, true, maxSize);
+		} else if (contentLength >= 0) {
+			responseBody = new BodyInputStream(contentLength, false, maxSize);
+		} else {
+			// Body delimited by connection close
+			keepAlive = false;
+			responseBody = new BodyInputStream(-1, false, maxSize);
+		}
+		reused = true;
+	}
+
+	/**
+	 * Returns the body of the last response, read straight from the socket.
+	 * @return BodyInputStream
+	 */
+	BodyInputStream getResponseBody() {
+		return responseBody;
+	}
+
+	/**
+	 * Returns the Content-Length of the last response, -1 if not given.
+	 * @return long
+	 */
+	long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Returns the status code of the last response.
+	 * @return int
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the charset of the last response, null if none was given.
+	 * @return String
+	 */
+	String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Returns true if the server allows this connection to be reused.
+	 * @return boolean
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Returns true if this connection has already carried an exchange.
+	 * @return boolean
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Returns true if any part of the current response has been received.
+	 * @return boolean
+	 */
+	boolean isResponseStarted() {
+		return responseStarted;
+	}
+
+	/**
+	 * Returns the time this connection was last handed back to its pool.
+	 * @return long
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Sets the time this connection was last handed back to its pool.
+	 * @param lastUsed The lastUsed to set
+	 */
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	/**
+	 * Close the underlying socket, ignoring errors.
+	 */
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * Close the plain socket from another thread, making a pending read
+	 * fail without waiting on the SSL layer.
+	 */
+	void abort() {
+		try {
+			rawSocket.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	static int parseStatus(String statusLine) throws IOException {
+		int start = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || start < 0)
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		int end = statusLine.indexOf(' ', start + 1);
+		if (end < 0)
+			end = statusLine.length();
+		try {
+			return Integer.parseInt(statusLine.substring(start + 1, end).trim());
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+	}
+
+	static String parseCharset(String contentType) {
+		int idx = contentType.toLowerCase().indexOf("charset=");
+		if (idx < 0)
+			return null;
+		String cs = contentType.substring(idx + 8);
+		int end = cs.indexOf(';');
+		if (end >= 0)
+			cs = cs.substring(0, end);
+		cs = cs.trim();
+		if (cs.length() > 1 && cs.startsWith("\"") && cs.endsWith("\""))
+			cs = cs.substring(1, cs.length() - 1);
+		return cs.length() == 0 ? null : cs;
+	}
+
+	/**
+	 * Read a CRLF (or LF) terminated header line as ISO-8859-1.
+	 * @return The line without terminator, null on end of stream
+	 */
+	private String readLine() throws IOException {
+		StringBuffer line = new StringBuffer(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int len = line.length();
+				if (len > 0 && line.charAt(len - 1) == '\r')
+					line.setLength(len - 1);
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	/**
+	 * Response body: Content-Length delimited, chunked or delimited by the
+	 * connection close. Reads never go past the end of the body, so the
+	 * connection can carry the next exchange once the body is complete.
+	 */
+	class BodyInputStream extends InputStream {
+		/**
+		 * Bytes left in the body (or in the current chunk), -1 until close
+		 */
+		private long remaining;
+		private boolean chunked;
+		private boolean firstChunk = true;
+		private boolean complete;
+		private long maxSize;
+		private long count;
+
+		BodyInputStream(long length, boolean chunked, long maxSize) {
+			this.remaining = length;
+			this.chunked = chunked;
+			this.maxSize = maxSize;
+			this.complete = (length == 0 && !chunked);
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (complete)
+				return -1;
+			if (len == 0)
+				return 0;
+			if (chunked && remaining == 0) {
+				nextChunk();
+				if (complete)
+					return -1;
+			}
+
+			int want = (remaining >= 0 && remaining < len) ? (int) remaining : len;
+			int n = in.read(b, off, want);
+			if (n == -1) {
+				if (remaining < 0) {
+					complete = true;
+					return -1;
+				}
+				throw new EOFException("Connection closed inside response body");
+			}
+			count += n;
+			if (maxSize > 0 && count > maxSize)
+				throw new IOException(
+					"Response exceeds the maximum size of " + maxSize + " bytes");
+			if (remaining > 0) {
+				remaining -= n;
+				if (remaining == 0 && !chunked)
+					complete = true;
+			}
+			return n;
+		}
+
+		public int available() throws IOException {
+			if (complete)
+				return 0;
+			int n = in.available();
+			return (remaining >= 0 && remaining < n) ? (int) remaining : n;
+		}
+
+		/**
+		 * Read up to limit bytes of what is left of the body.
+		 * @return True if the body is now complete
+		 */
+		boolean drain(long limit) throws IOException {
+			byte[] buf = new byte[4096];
+			long drained = 0;
+			while (!complete && drained < limit) {
+				int n = read(buf, 0, buf.length);
+				if (n > 0)
+					drained += n;
+			}
+			return complete;
+		}
+
+		/**
+		 * Returns true once the whole body has been read.
+		 * @return boolean
+		 */
+		boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * Returns the number of body bytes read.
+		 * @return long
+		 */
+		long getCount() {
+			return count;
+		}
+
+		private void nextChunk() throws IOException {
+			if (!firstChunk)
+				readLine();
+			firstChunk = false;
+			String size = readLine();
+			if (size == null)
+				throw new EOFException("Connection closed inside chunked body");
+			int ext = size.indexOf(';');
+			if (ext >= 0)
+				size = size.substring(0, ext);
+			try {
+				remaining = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid chunk size: " + size);
+			}
+			if (remaining == 0) {
+				// Skip trailers
+				String trailer;
+				while ((trailer = readLine()) != null && trailer.length() > 0);
+				complete = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Pool of persistent connections to one directory server endpoint
+ * (scheme, host and port), with the usage counters reported through
+ * the PerformanceMonitor MBean.
+ *
+ * @version $Revision: 1 $
+ */
+class DirectoryEndpoint {
+	/**
+	 * Endpoint key, scheme://host:port
+	 */
+	private String key;
+	private String host;
+	private int port;
+	private boolean secure;
+
+	/**
+	 * Pool limits
+	 */
+	private int maxConnections;
+	private int maxIdle;
+	private long keepAliveTime;
+	private long acquireTimeout;
+
+	/**
+	 * Idle connections, most recently used last
+	 */
+	private LinkedList idle = new LinkedList();
+
+	/**
+	 * Number of open (idle + in flight + connecting) connections
+	 */
+	private int open;
+
+	/**
+	 * Usage counters
+	 */
+	private int inFlight;
+	private long connectionCount;
+	private long resumedCount;
+	private long requestCount;
+	private long reuseCount;
+	private long failureCount;
+
+	/**
+	 * Id of the last negotiated SSL session
+	 */
+	private byte[] lastSessionId;
+
+	/**
+	 * Constructor
+	 */
+	DirectoryEndpoint(
+		String key,
+		String host,
+		int port,
+		boolean secure,
+		int maxConnections,
+		int maxIdle,
+		long keepAliveTime,
+		long acquireTimeout) {
+		this.key = key;
+		this.host = host;
+		this.port = port;
+		this.secure = secure;
+		this.maxConnections = maxConnections;
+		this.maxIdle = maxIdle;
+		this.keepAliveTime = keepAliveTime;
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	/**
+	 * Take the most recently used idle connection, dropping any that has
+	 * been idle longer than the keep-alive time.
+	 * @return An idle connection or null if none is available
+	 */
+	synchronized DirectoryConnection takeIdle() {
+		long now = System.currentTimeMillis();
+		while (!idle.isEmpty()) {
+			DirectoryConnection conn = (DirectoryConnection) idle.removeLast();
+			if (now - conn.getLastUsed() > keepAliveTime) {
+				conn.close();
+				open--;
+				continue;
+			}
+			inFlight++;
+			requestCount++;
+			reuseCount++;
+			return conn;
+		}
+		return null;
+	}
+
+	/**
+	 * Reserve a slot for a new connection, waiting for one to be released
+	 * when the endpoint already has maxConnections open.
+	 */
+	synchronized void reserve() throws IOException {
+		long deadline = System.currentTimeMillis() + acquireTimeout;
+		while (open >= maxConnections) {
+			// Rather close an idle connection than wait for a busy one
+			if (!idle.isEmpty()) {
+				((DirectoryConnection) idle.removeFirst()).close();
+				open--;
+				break;
+			}
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				failureCount++;
+				throw new IOException(
+					"Connection pool for " + key + " exhausted ("
+						+ maxConnections + " connections in use)");
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException ie) {
+				throw new IOException("Interrupted while waiting for a connection to " + key);
+			}
+		}
+		open++;
+		inFlight++;
+		requestCount++;
+	}
+
+	/**
+	 * Record a newly opened connection.
+	 * @param sessionId SSL session id, null for plain connections
+	 */
+	synchronized void connected(byte[] sessionId) {
+		connectionCount++;
+		if (sessionId != null && sessionId.length > 0) {
+			if (lastSessionId != null && Arrays.equals(sessionId, lastSessionId))
+				resumedCount++;
+			lastSessionId = sessionId;
+		}
+	}
+
+	/**
+	 * Hand a connection back once its exchange is over.
+	 * @param conn The connection, null if the reserved slot was never connected
+	 * @param reusable True if the connection can carry another exchange
+	 */
+	synchronized void release(DirectoryConnection conn, boolean reusable) {
+		inFlight--;
+		if (conn != null && reusable && idle.size() < maxIdle) {
+			conn.setLastUsed(System.currentTimeMillis());
+			idle.addLast(conn);
+		} else {
+			if (conn != null)
+				conn.close();
+			open--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Record a failed exchange.
+	 */
+	synchronized void failed() {
+		failureCount++;
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	synchronized void closeIdle() {
+		while (!idle.isEmpty()) {
+			((DirectoryConnection) idle.removeFirst()).close();
+			open--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns a snapshot of this endpoint's counters.
+	 * @return EndpointStatisticResult
+	 */
+	synchronized EndpointStatisticResult getStatistic() {
+		EndpointStatisticResult result = new EndpointStatisticResult();
+		result.setEndpoint(key);
+		result.setConnectionCount(connectionCount);
+		result.setResumedCount(resumedCount);
+		result.setRequestCount(requestCount);
+		result.setReuseCount(reuseCount);
+		result.setFailureCount(failureCount);
+		result.setInFlight(inFlight);
+		result.setOpenConnections(open);
+		result.setIdleConnections(idle.size());
+		return result;
+	}
+
+	/**
+	 * Returns the endpoint key.
+	 * @return String
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the host.
+	 * @return String
+	 */
+	String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the port.
+	 * @return int
+	 */
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns true for https endpoints.
+	 * @return boolean
+	 */
+	boolean isSecure() {
+		return secure;
+	}
+}
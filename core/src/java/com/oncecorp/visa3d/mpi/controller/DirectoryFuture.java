@@ -0,0 +1,198 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+/**
+ * Result of an asynchronous directory request. The future completes once,
+ * with a result or a failure; listeners are called when it does, so a
+ * request in flight does not hold any thread.
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryFuture {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(DirectoryFuture.class.getName());
+
+	private boolean done;
+	private boolean cancelled;
+	private Object result;
+	private Exception failure;
+	private List listeners = new ArrayList(2);
+
+	/**
+	 * Action aborting the request when the future is cancelled
+	 */
+	private Runnable canceller;
+
+	/**
+	 * Returns true once the future has completed.
+	 * @return boolean
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns true if the future was cancelled.
+	 * @return boolean
+	 */
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Returns the result, null until completed or if the request failed.
+	 * @return Object
+	 */
+	public synchronized Object getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns the failure, null until completed or if the request succeeded.
+	 * @return Exception
+	 */
+	public synchronized Exception getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Wait for the future to complete.
+	 * @param timeout Maximum wait in millis, 0 to wait for ever
+	 * @return The result
+	 * @exception Exception The failure of the request
+	 * @exception InterruptedIOException The future did not complete in time
+	 */
+	public synchronized Object get(long timeout) throws Exception {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!done) {
+			long remaining = (timeout == 0) ? 0 : deadline - System.currentTimeMillis();
+			if (timeout != 0 && remaining <= 0)
+				throw new InterruptedIOException("No response within " + timeout + " ms");
+			wait(remaining);
+		}
+		if (failure != null)
+			throw failure;
+		return result;
+	}
+
+	/**
+	 * Register a listener, called immediately if the future is complete.
+	 * @param listener The listener
+	 */
+	public void addListener(DirectoryListener listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		callListener(listener);
+	}
+
+	/**
+	 * Cancel the request: the future fails with an InterruptedIOException
+	 * and the request is aborted.
+	 * @return false if the future had already completed
+	 */
+	public boolean cancel() {
+		Runnable action;
+		synchronized (this) {
+			if (done)
+				return false;
+			cancelled = true;
+			action = canceller;
+		}
+		fail(new InterruptedIOException("Request cancelled"));
+		if (action != null)
+			action.run();
+		return true;
+	}
+
+	/**
+	 * Sets the action aborting the request on cancel.
+	 * @param canceller The canceller to set
+	 */
+	void setCanceller(Runnable canceller) {
+		boolean run;
+		synchronized (this) {
+			this.canceller = canceller;
+			run = cancelled;
+		}
+		if (run)
+			canceller.run();
+	}
+
+	/**
+	 * Complete the future with a result.
+	 * @return false if it had already completed
+	 */
+	boolean complete(Object result) {
+		return finish(result, null);
+	}
+
+	/**
+	 * Complete the future with a failure.
+	 * @return false if it had already completed
+	 */
+	boolean fail(Exception failure) {
+		return finish(null, failure);
+	}
+
+	private boolean finish(Object result, Exception failure) {
+		Object[] toNotify;
+		synchronized (this) {
+			if (done)
+				return false;
+			done = true;
+			this.result = result;
+			this.failure = failure;
+			toNotify = listeners.toArray();
+			listeners = null;
+			notifyAll();
+		}
+		for (int i = 0; i < toNotify.length; i++)
+			callListener((DirectoryListener) toNotify[i]);
+		return true;
+	}
+
+	private void callListener(DirectoryListener listener) {
+		try {
+			listener.completed(this);
+		} catch (RuntimeException re) {
+			logger.error("Directory request listener failed.", re);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response of a directory server, its body read straight from the
+ * connection. The response must be closed once read so that the
+ * connection goes back to its pool.
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryResponse {
+	/**
+	 * Maximum number of unread body bytes skipped on close to keep the
+	 * connection alive
+	 */
+	private static final long DRAIN_LIMIT = 65536;
+
+	private DirectoryEndpoint endpoint;
+	private DirectoryConnection connection;
+	private DirectoryCall call;
+	private DirectoryConnection.BodyInputStream body;
+	private boolean closed;
+
+	DirectoryResponse(
+		DirectoryEndpoint endpoint,
+		DirectoryConnection connection,
+		DirectoryCall call) {
+		this.endpoint = endpoint;
+		this.connection = connection;
+		this.call = call;
+		this.body = connection.getResponseBody();
+	}
+
+	/**
+	 * Returns the HTTP status code.
+	 * @return int
+	 */
+	public int getStatus() {
+		return connection.getStatus();
+	}
+
+	/**
+	 * Returns the charset declared by the server, null if none.
+	 * @return String
+	 */
+	public String getCharset() {
+		return connection.getCharset();
+	}
+
+	/**
+	 * Returns the declared body length, -1 if not known in advance.
+	 * @return long
+	 */
+	public long getContentLength() {
+		return connection.getContentLength();
+	}
+
+	/**
+	 * Returns the response body. Reading past the configured maximum
+	 * response size fails with an IOException.
+	 * @return InputStream
+	 */
+	public InputStream getInputStream() {
+		return body;
+	}
+
+	/**
+	 * Returns the number of body bytes read so far.
+	 * @return long
+	 */
+	public long getReceivedBytes() {
+		return body.getCount();
+	}
+
+	/**
+	 * Release the connection: back to its pool if the body could be read
+	 * up to its end, closed otherwise.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		boolean reusable = false;
+		if (call == null || !call.isCancelled()) {
+			try {
+				reusable = body.drain(DRAIN_LIMIT) && connection.isKeepAlive();
+			} catch (IOException ioe) {
+				reusable = false;
+			}
+		}
+		if (call != null)
+			call.detach();
+		endpoint.release(connection, reusable);
+	}
+
+	/**
+	 * Release the connection without reading the rest of the body.
+	 */
+	void abort() {
+		if (closed)
+			return;
+		closed = true;
+		if (call != null)
+			call.detach();
+		endpoint.release(connection, body.isComplete() && connection.isKeepAlive());
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+/**
+ * Health of one directory server URL as seen by the DirectoryRouter:
+ * exponentially weighted latency and error rate plus a circuit breaker.
+ * Instances are only accessed while holding the router lock.
+ *
+ * @version $Revision: 1 $
+ */
+class DirectoryRoute {
+	/**
+	 * Circuit breaker states
+	 */
+	static final String STATE_CLOSED = "Closed";
+	static final String STATE_OPEN = "Open";
+	static final String STATE_HALF_OPEN = "HalfOpen";
+
+	private String url;
+	private String state = STATE_CLOSED;
+
+	/**
+	 * Weighted averages, valid once sampleCount is positive
+	 */
+	private double latency;
+	private double errorRate;
+	private long sampleCount;
+	private long lastSampleTime;
+
+	/**
+	 * Breaker data
+	 */
+	private int consecutiveFailures;
+	private long openedAt;
+	private long probeStartedAt;
+
+	/**
+	 * Counters
+	 */
+	private long firstChoiceCount;
+	private long successCount;
+	private long failureCount;
+	private long tripCount;
+	private long skipCount;
+
+	DirectoryRoute(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Returns the routing score, lower is better. A URL without recent
+	 * samples scores 0 so that it gets measured again.
+	 * @param now Current time
+	 * @param staleTime Age after which samples are no longer trusted
+	 * @return double
+	 */
+	double getScore(long now, long staleTime) {
+		if (isStale(now, staleTime))
+			return 0;
+		return latency / (1 - Math.min(errorRate, 0.95));
+	}
+
+	private boolean isStale(long now, long staleTime) {
+		return sampleCount == 0 || now - lastSampleTime > staleTime;
+	}
+
+	/**
+	 * Record the outcome of a request sent to this URL.
+	 * @param success True if the directory answered
+	 * @param elapsed Request duration in millis
+	 * @param now Current time
+	 * @param weight Weight of the new sample in the averages
+	 * @param staleTime Age after which previous samples are discarded
+	 * @param failureThreshold Consecutive failures that open the breaker
+	 * @return True if this failure just opened the breaker
+	 */
+	boolean record(
+		boolean success,
+		long elapsed,
+		long now,
+		double weight,
+		long staleTime,
+		int failureThreshold) {
+		double error = success ? 0 : 1;
+		if (isStale(now, staleTime)) {
+			latency = elapsed;
+			errorRate = error;
+		} else {
+			latency += weight * (elapsed - latency);
+			errorRate += weight * (error - errorRate);
+		}
+		sampleCount++;
+		lastSampleTime = now;
+
+		if (success) {
+			successCount++;
+			consecutiveFailures = 0;
+			state = STATE_CLOSED;
+			return false;
+		}
+
+		failureCount++;
+		consecutiveFailures++;
+		if (state == STATE_HALF_OPEN
+			|| (state == STATE_CLOSED && consecutiveFailures >= failureThreshold)) {
+			state = STATE_OPEN;
+			openedAt = now;
+			tripCount++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether requests may be sent to this URL, moving an open
+	 * breaker to half-open once openTime has elapsed.
+	 * @return True if the URL can be used, as a probe when half-open
+	 */
+	boolean isAvailable(long now, long openTime) {
+		if (state == STATE_OPEN && now - openedAt >= openTime) {
+			state = STATE_HALF_OPEN;
+			probeStartedAt = 0;
+		}
+		if (state == STATE_HALF_OPEN) {
+			// A single probe at a time; give up on a probe that never reported
+			if (probeStartedAt == 0 || now - probeStartedAt >= openTime) {
+				probeStartedAt = now;
+				return true;
+			}
+			return false;
+		}
+		return state == STATE_CLOSED;
+	}
+
+	void chosenFirst() {
+		firstChoiceCount++;
+	}
+
+	void skipped() {
+		skipCount++;
+	}
+
+	String getUrl() {
+		return url;
+	}
+
+	String getState() {
+		return state;
+	}
+
+	DirectoryRouteStatisticResult getStatistic() {
+		DirectoryRouteStatisticResult result = new DirectoryRouteStatisticResult();
+		result.setUrl(url);
+		result.setState(state);
+		result.setLatency(sampleCount == 0 ? 0 : (long) latency);
+		result.setErrorRate(sampleCount == 0 ? 0 : errorRate);
+		result.setConsecutiveFailures(consecutiveFailures);
+		result.setFirstChoiceCount(firstChoiceCount);
+		result.setSuccessCount(successCount);
+		result.setFailureCount(failureCount);
+		result.setTripCount(tripCount);
+		result.setSkipCount(skipCount);
+		return result;
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.Serializable;
+
+/**
+ * Routing statistic and circuit breaker state of one directory server URL
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryRouteStatisticResult implements Serializable, Comparable {
+	private String url;
+	private String state;
+	private long latency;
+	private double errorRate;
+	private int consecutiveFailures;
+	private long firstChoiceCount;
+	private long successCount;
+	private long failureCount;
+	private long tripCount;
+	private long skipCount;
+
+	public int compareTo(Object o) {
+		return this.url.compareTo(((DirectoryRouteStatisticResult) o).getUrl());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof DirectoryRouteStatisticResult))
+			return false;
+		DirectoryRouteStatisticResult result = (DirectoryRouteStatisticResult) anObject;
+
+		return this.url.equals(result.getUrl())
+			&& this.state.equals(result.getState())
+			&& (this.latency == result.getLatency())
+			&& (this.errorRate == result.getErrorRate())
+			&& (this.consecutiveFailures == result.getConsecutiveFailures())
+			&& (this.firstChoiceCount == result.getFirstChoiceCount())
+			&& (this.successCount == result.getSuccessCount())
+			&& (this.failureCount == result.getFailureCount())
+			&& (this.tripCount == result.getTripCount())
+			&& (this.skipCount == result.getSkipCount());
+	}
+
+	public int hashCode() {
+		return url.hashCode();
+	}
+
+	/**
+	 * Returns the directory URL.
+	 * @return String
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Returns the circuit breaker state (Closed, Open or HalfOpen).
+	 * @return String
+	 */
+	public String getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the weighted average request duration in millis.
+	 * @return long
+	 */
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Returns the weighted average error rate, between 0 and 1.
+	 * @return double
+	 */
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	/**
+	 * Returns the number of failures since the last success.
+	 * @return int
+	 */
+	public int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * Returns the number of requests routed to this URL first.
+	 * @return long
+	 */
+	public long getFirstChoiceCount() {
+		return firstChoiceCount;
+	}
+
+	/**
+	 * Returns the number of requests answered.
+	 * @return long
+	 */
+	public long getSuccessCount() {
+		return successCount;
+	}
+
+	/**
+	 * Returns the number of failed requests.
+	 * @return long
+	 */
+	public long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Returns the number of times the circuit breaker opened.
+	 * @return long
+	 */
+	public long getTripCount() {
+		return tripCount;
+	}
+
+	/**
+	 * Returns the number of requests that skipped this URL because its breaker was open.
+	 * @return long
+	 */
+	public long getSkipCount() {
+		return skipCount;
+	}
+
+	/**
+	 * Sets the directory URL.
+	 * @param url The url to set
+	 */
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Sets the circuit breaker state.
+	 * @param state The state to set
+	 */
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	/**
+	 * Sets the weighted average request duration.
+	 * @param latency The latency to set
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the weighted average error rate.
+	 * @param errorRate The errorRate to set
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Sets the number of failures since the last success.
+	 * @param consecutiveFailures The consecutiveFailures to set
+	 */
+	public void setConsecutiveFailures(int consecutiveFailures) {
+		this.consecutiveFailures = consecutiveFailures;
+	}
+
+	/**
+	 * Sets the first choice count.
+	 * @param firstChoiceCount The firstChoiceCount to set
+	 */
+	public void setFirstChoiceCount(long firstChoiceCount) {
+		this.firstChoiceCount = firstChoiceCount;
+	}
+
+	/**
+	 * Sets the success count.
+	 * @param successCount The successCount to set
+	 */
+	public void setSuccessCount(long successCount) {
+		this.successCount = successCount;
+	}
+
+	/**
+	 * Sets the failure count.
+	 * @param failureCount The failureCount to set
+	 */
+	public void setFailureCount(long failureCount) {
+		this.failureCount = failureCount;
+	}
+
+	/**
+	 * Sets the trip count.
+	 * @param tripCount The tripCount to set
+	 */
+	public void setTripCount(long tripCount) {
+		this.tripCount = tripCount;
+	}
+
+	/**
+	 * Sets the skip count.
+	 * @param skipCount The skipCount to set
+	 */
+	public void setSkipCount(long skipCount) {
+		this.skipCount = skipCount;
+	}
+
+}
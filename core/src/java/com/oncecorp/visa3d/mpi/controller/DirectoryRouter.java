@@ -0,0 +1,638 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+
+/**
+ * Routes directory requests (VEReq, CRReq) across the configured directory
+ * URLs of a protocol. Each URL keeps an exponentially weighted average of
+ * its latency and error rate, and requests go to the healthiest URL first
+ * instead of always starting with the first configured one.
+ *
+ * <p>A URL that fails DirectoryFailureThreshold times in a row has its
+ * circuit breaker opened: it is skipped for DirectoryBreakerOpenTime, after
+ * which a single request is let through as a probe (half-open). A
+ * successful probe closes the breaker, a failed one opens it again. When
+ * every breaker is open the URLs are still tried in configured order.</p>
+ *
+ * <p>VEReq requests can optionally be hedged: when the primary directory has
+ * not answered within the DirectoryHedgePercentile of recent latencies, the
+ * same request is sent to the next directory and the first valid response
+ * is used. DirectoryHedgeMaxRate caps the share of requests hedged.</p>
+ *
+ * <p>Routing decisions, breaker states and hedging counters are reported
+ * through the PerformanceMonitor MBean.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class DirectoryRouter {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(DirectoryRouter.class.getName());
+
+	/**
+	 * Default configuration values
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_BREAKER_OPEN_TIME = 30000;
+	public static final double DEFAULT_LATENCY_WEIGHT = 0.2;
+	public static final long DEFAULT_LATENCY_STALE_TIME = 60000;
+	public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+	public static final long DEFAULT_HEDGE_MIN_DELAY = 100;
+	public static final int DEFAULT_HEDGE_MAX_RATE = 10;
+
+	/**
+	 * Number of primary latencies needed before hedging starts, and kept
+	 * to compute the hedge delay
+	 */
+	private static final int MIN_HEDGE_SAMPLES = 20;
+	private static final int HEDGE_SAMPLES = 512;
+
+	/**
+	 * Maximum number of hedges that can be issued in a burst
+	 */
+	private static final double HEDGE_BURST = 5;
+
+	/**
+	 * Timer firing the hedges
+	 */
+	private static Timer hedgeTimer;
+
+	/**
+	 * Shared instance built from the MPI configuration
+	 */
+	private static DirectoryRouter instance;
+
+	/**
+	 * Settings
+	 */
+	private int failureThreshold;
+	private long openTime;
+	private double weight;
+	private long staleTime;
+
+	/**
+	 * Hedging settings
+	 */
+	private boolean hedging;
+	private int hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+	private long hedgeMinDelay = DEFAULT_HEDGE_MIN_DELAY;
+	private int hedgeMaxRate = DEFAULT_HEDGE_MAX_RATE;
+
+	/**
+	 * Recent primary latencies of hedged requests and the delay derived from them
+	 */
+	private long[] hedgeSamples = new long[HEDGE_SAMPLES];
+	private long hedgeSampleCount;
+	private long hedgeDelay = -1;
+
+	/**
+	 * Hedges that can still be issued under the rate cap
+	 */
+	private double hedgeCredit;
+
+	/**
+	 * Hedging counters
+	 */
+	private long hedgedRequestCount;
+	private long hedgeIssuedCount;
+	private long hedgeWonCount;
+	private long hedgeSuppressedCount;
+
+	/**
+	 * Routes keyed by URL
+	 */
+	private Map routes = new HashMap();
+
+	/**
+	 * Constructor
+	 * @param failureThreshold Consecutive failures that open a breaker
+	 * @param openTime Time in millis a breaker stays open before a probe
+	 * @param weight Weight of a new sample in the averages, between 0 and 1
+	 * @param staleTime Age in millis after which a URL is measured again
+	 */
+	public DirectoryRouter(
+		int failureThreshold,
+		long openTime,
+		double weight,
+		long staleTime) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openTime = openTime;
+		this.weight = Math.min(1, Math.max(0.01, weight));
+		this.staleTime = staleTime;
+	}
+
+	/**
+	 * Returns the shared router, creating it from the MPI configuration on first use.
+	 * @return DirectoryRouter
+	 */
+	public static synchronized DirectoryRouter getInstance() {
+		if (instance == null) {
+			int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+			long openTime = DEFAULT_BREAKER_OPEN_TIME;
+			double weight = DEFAULT_LATENCY_WEIGHT;
+			long staleTime = DEFAULT_LATENCY_STALE_TIME;
+			boolean hedging = false;
+			int hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+			long hedgeMinDelay = DEFAULT_HEDGE_MIN_DELAY;
+			int hedgeMaxRate = DEFAULT_HEDGE_MAX_RATE;
+			try {
+				Config cfg = Config.getConfigReference();
+				failureThreshold =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_FAILURE_THRESHOLD));
+				openTime =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_BREAKER_OPEN_TIME));
+				weight =
+					Double.parseDouble(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_LATENCY_WEIGHT));
+				staleTime =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_LATENCY_STALE_TIME));
+				hedging =
+					"true".equalsIgnoreCase(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_HEDGING));
+				hedgePercentile =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_HEDGE_PERCENTILE));
+				hedgeMinDelay =
+					Long.parseLong(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_HEDGE_MIN_DELAY));
+				hedgeMaxRate =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.DIRECTORY_HEDGE_MAX_RATE));
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve directory routing configuration. Defaults used for missing items.",
+					e);
+			}
+			instance = new DirectoryRouter(failureThreshold, openTime, weight, staleTime);
+			instance.setHedgePolicy(hedging, hedgePercentile, hedgeMinDelay, hedgeMaxRate);
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared router.
+	 * @param router The new router, null to rebuild it from the configuration on next use
+	 */
+	public static synchronized void setInstance(DirectoryRouter router) {
+		instance = router;
+	}
+
+	/**
+	 * Send a message to the healthiest directory, failing over to the
+	 * other URLs in routing order.
+	 * @param msg The request
+	 * @param urls The configured directory URLs, null entries are ignored
+	 * @return The first response received, null if no URL is configured
+	 * @exception CommunicatorException None of the directories could be reached
+	 * @exception MessagingException Invalid response
+	 */
+	public Message send(Message msg, String[] urls)
+		throws CommunicatorException, MessagingException {
+		return send(msg, route(urls), 0, null, false);
+	}
+
+	/**
+	 * Send a message like send(), hedging it to the second directory in
+	 * routing order when hedging is enabled and the first directory is
+	 * slower than usual.
+	 * @param msg The request
+	 * @param urls The configured directory URLs, null entries are ignored
+	 * @return The first valid response received, null if no URL is configured
+	 * @exception CommunicatorException None of the directories could be reached
+	 * @exception MessagingException Invalid response
+	 */
+	public Message sendHedged(Message msg, String[] urls)
+		throws CommunicatorException, MessagingException {
+		String[] routed = route(urls);
+		long delay = startHedgedRequest();
+		if (routed.length < 2 || delay < 0)
+			return send(msg, routed, 0, null, isHedging());
+
+		HedgedRequest request = new HedgedRequest(this, msg, routed[1]);
+		getHedgeTimer().schedule(request, delay);
+
+		long start = System.currentTimeMillis();
+		Message response = null;
+		MessagingException invalid = null;
+		CommunicatorException unreachable = null;
+		try {
+			response = new Communicator().send(msg, routed[0], request.getPrimaryCall());
+		} catch (MessagingException me) {
+			invalid = me;
+		} catch (CommunicatorException ce) {
+			unreachable = ce;
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		Message hedgeResponse = request.primaryDone(response != null);
+		boolean overtaken = request.getPrimaryCall().isCancelled();
+		// A primary request cut short by the hedge is slow, not failing
+		record(routed[0], overtaken || unreachable == null, elapsed);
+		if (response != null || overtaken)
+			addHedgeSample(elapsed);
+
+		if (hedgeResponse != null) {
+			hedgeWon(routed[1]);
+			return hedgeResponse;
+		}
+		if (response != null)
+			return response;
+		if (invalid != null)
+			throw invalid;
+		if (unreachable != null) {
+			logger.error("Unable to send message to directory: " + routed[0]);
+			logger.error("\tError message is : " + unreachable.getMessage());
+		}
+		return send(msg, routed, request.isHedgeStarted() ? 2 : 1, unreachable, false);
+	}
+
+	/**
+	 * Send a message to routed directories in order, starting at a given one.
+	 * @param sampled True to add the latency of the first directory to the hedge samples
+	 */
+	private Message send(
+		Message msg,
+		String[] routed,
+		int from,
+		CommunicatorException lastError,
+		boolean sampled)
+		throws CommunicatorException, MessagingException {
+		for (int i = from; i < routed.length; i++) {
+			long start = System.currentTimeMillis();
+			boolean answered = false;
+			try {
+				Message response = new Communicator().send(msg, routed[i]);
+				answered = true;
+				if (response != null) {
+					if (sampled && i == from)
+						addHedgeSample(System.currentTimeMillis() - start);
+					return response;
+				}
+			} catch (MessagingException me) {
+				// The directory did answer, the content is the problem
+				answered = true;
+				throw me;
+			} catch (CommunicatorException ce) {
+				logger.error("Unable to send message to directory: " + routed[i]);
+				logger.error("\tError message is : " + ce.getMessage());
+				lastError = ce;
+			} finally {
+				record(routed[i], answered, System.currentTimeMillis() - start);
+			}
+		}
+
+		if (lastError != null)
+			throw lastError;
+		return null;
+	}
+
+	/**
+	 * Send a message like send() without waiting for the response. The
+	 * next directory is only tried once the previous one has failed, from
+	 * the thread that completed it. Requests sent this way are not hedged.
+	 * @param msg The request
+	 * @param urls The configured directory URLs, null entries are ignored
+	 * @return Future of the first response received, whose result is null
+	 * if no URL is configured. It fails like send() does.
+	 */
+	public DirectoryFuture sendAsync(Message msg, String[] urls) {
+		DirectoryFuture future = new DirectoryFuture();
+		sendAsync(msg, route(urls), 0, null, future);
+		return future;
+	}
+
+	/**
+	 * Send a message to the routed directory at a given index, continuing
+	 * with the next one when it cannot be reached.
+	 */
+	private void sendAsync(
+		final Message msg,
+		final String[] routed,
+		final int index,
+		CommunicatorException lastError,
+		final DirectoryFuture future) {
+		if (future.isDone())
+			return;
+		if (index >= routed.length) {
+			if (lastError != null)
+				future.fail(lastError);
+			else
+				future.complete(null);
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		final DirectoryFuture call = new Communicator().sendAsync(msg, routed[index]);
+		future.setCanceller(new Runnable() {
+			public void run() {
+				call.cancel();
+			}
+		});
+		call.addListener(new DirectoryListener() {
+			public void completed(DirectoryFuture done) {
+				Exception failure = done.getFailure();
+				record(
+					routed[index],
+					!(failure instanceof CommunicatorException),
+					System.currentTimeMillis() - start);
+				if (failure instanceof CommunicatorException) {
+					logger.error("Unable to send message to directory: " + routed[index]);
+					logger.error("\tError message is : " + failure.getMessage());
+					sendAsync(msg, routed, index + 1, (CommunicatorException) failure, future);
+				} else if (failure != null) {
+					future.fail(failure);
+				} else if (done.getResult() == null) {
+					sendAsync(msg, routed, index + 1, null, future);
+				} else {
+					future.complete(done.getResult());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Order directory URLs for a request: half-open probes first, then
+	 * available URLs by score. URLs with an open breaker are left out
+	 * unless no URL is available.
+	 * @param urls The configured directory URLs, null entries are ignored
+	 * @return The URLs to try, in order
+	 */
+	public synchronized String[] route(String[] urls) {
+		final long now = System.currentTimeMillis();
+		List available = new ArrayList();
+		List skipped = new ArrayList();
+		if (urls != null) {
+			for (int i = 0; i < urls.length; i++) {
+				if (XMLUtil.isNull(urls[i]))
+					continue;
+				DirectoryRoute route = getRoute(urls[i]);
+				if (available.contains(route) || skipped.contains(route))
+					continue;
+				if (route.isAvailable(now, openTime))
+					available.add(route);
+				else
+					skipped.add(route);
+			}
+		}
+
+		List ordered;
+		if (available.isEmpty()) {
+			if (!skipped.isEmpty())
+				logger.warn("All directory circuit breakers are open, trying directories in configured order.");
+			ordered = skipped;
+		} else {
+			// Stable sort: configured order breaks ties
+			Collections.sort(available, new Comparator() {
+				public int compare(Object o1, Object o2) {
+					DirectoryRoute r1 = (DirectoryRoute) o1;
+					DirectoryRoute r2 = (DirectoryRoute) o2;
+					boolean probe1 = r1.getState() == DirectoryRoute.STATE_HALF_OPEN;
+					boolean probe2 = r2.getState() == DirectoryRoute.STATE_HALF_OPEN;
+					if (probe1 != probe2)
+						return probe1 ? -1 : 1;
+					double s1 = r1.getScore(now, staleTime);
+					double s2 = r2.getScore(now, staleTime);
+					return s1 < s2 ? -1 : (s1 > s2 ? 1 : 0);
+				}
+			});
+			for (int i = 0; i < skipped.size(); i++)
+				 ((DirectoryRoute) skipped.get(i)).skipped();
+			ordered = available;
+		}
+
+		String[] result = new String[ordered.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ((DirectoryRoute) ordered.get(i)).getUrl();
+		if (result.length > 0) {
+			((DirectoryRoute) ordered.get(0)).chosenFirst();
+			if (logger.isDebugEnabled())
+				logger.debug("Directory routed to " + result[0]);
+		}
+		return result;
+	}
+
+	/**
+	 * Record the outcome of a request sent to a directory.
+	 * @param url The directory URL
+	 * @param success True if the directory answered
+	 * @param elapsed Request duration in millis
+	 */
+	public synchronized void record(String url, boolean success, long elapsed) {
+		DirectoryRoute route = getRoute(url);
+		boolean tripped =
+			route.record(
+				success,
+				elapsed,
+				System.currentTimeMillis(),
+				weight,
+				staleTime,
+				failureThreshold);
+		if (tripped)
+			logger.warn(
+				"Circuit breaker opened for directory " + url + " for "
+					+ openTime + " ms.");
+	}
+
+	/**
+	 * Set the hedging policy.
+	 * @param hedging True to hedge requests sent through sendHedged()
+	 * @param percentile Percentile of recent primary latencies after which a request is hedged
+	 * @param minDelay Minimum hedge delay in millis
+	 * @param maxRate Maximum share of requests hedged, in percent
+	 */
+	public synchronized void setHedgePolicy(
+		boolean hedging,
+		int percentile,
+		long minDelay,
+		int maxRate) {
+		this.hedging = hedging;
+		this.hedgePercentile = Math.min(100, Math.max(1, percentile));
+		this.hedgeMinDelay = Math.max(0, minDelay);
+		this.hedgeMaxRate = Math.min(100, Math.max(0, maxRate));
+		this.hedgeDelay = -1;
+		this.hedgeCredit = this.hedgeMaxRate / 100.0;
+	}
+
+	/**
+	 * Returns true if requests sent through sendHedged() are hedged.
+	 * @return boolean
+	 */
+	public synchronized boolean isHedging() {
+		return hedging;
+	}
+
+	/**
+	 * Count a request eligible for hedging and return its hedge delay.
+	 * @return The hedge delay in millis, -1 if the request is not to be hedged
+	 */
+	private synchronized long startHedgedRequest() {
+		if (!hedging)
+			return -1;
+		hedgedRequestCount++;
+		hedgeCredit = Math.min(HEDGE_BURST, hedgeCredit + hedgeMaxRate / 100.0);
+		return getHedgeDelay();
+	}
+
+	/**
+	 * Take a hedge from the rate cap.
+	 * @return True if a hedge may be issued
+	 */
+	synchronized boolean allowHedge() {
+		if (hedgeCredit < 1) {
+			hedgeSuppressedCount++;
+			return false;
+		}
+		hedgeCredit -= 1;
+		hedgeIssuedCount++;
+		return true;
+	}
+
+	private synchronized void hedgeWon(String url) {
+		hedgeWonCount++;
+		if (logger.isDebugEnabled())
+			logger.debug("Hedged request answered first by " + url);
+	}
+
+	private synchronized void addHedgeSample(long latency) {
+		hedgeSamples[(int) (hedgeSampleCount % HEDGE_SAMPLES)] = latency;
+		hedgeSampleCount++;
+		// Refresh the delay every 16 samples
+		if ((hedgeSampleCount & 15) == 0)
+			hedgeDelay = -1;
+	}
+
+	/**
+	 * Returns the current hedge delay: the configured percentile of recent
+	 * primary latencies, at least the minimum delay.
+	 * @return long millis, -1 while there are not enough samples
+	 */
+	public synchronized long getHedgeDelay() {
+		if (hedgeSampleCount < MIN_HEDGE_SAMPLES)
+			return -1;
+		if (hedgeDelay < 0) {
+			int n = (int) Math.min(hedgeSampleCount, HEDGE_SAMPLES);
+			long[] sorted = new long[n];
+			System.arraycopy(hedgeSamples, 0, sorted, 0, n);
+			Arrays.sort(sorted);
+			hedgeDelay =
+				Math.max(hedgeMinDelay, sorted[(n - 1) * hedgePercentile / 100]);
+		}
+		return hedgeDelay;
+	}
+
+	/**
+	 * Returns the number of requests sent with hedging enabled.
+	 * @return long
+	 */
+	public synchronized long getHedgedRequestCount() {
+		return hedgedRequestCount;
+	}
+
+	/**
+	 * Returns the number of hedges sent.
+	 * @return long
+	 */
+	public synchronized long getHedgeIssuedCount() {
+		return hedgeIssuedCount;
+	}
+
+	/**
+	 * Returns the number of requests answered first by the hedge.
+	 * @return long
+	 */
+	public synchronized long getHedgeWonCount() {
+		return hedgeWonCount;
+	}
+
+	/**
+	 * Returns the number of hedges not sent because of the rate cap.
+	 * @return long
+	 */
+	public synchronized long getHedgeSuppressedCount() {
+		return hedgeSuppressedCount;
+	}
+
+	private static synchronized Timer getHedgeTimer() {
+		if (hedgeTimer == null)
+			hedgeTimer = new Timer(true);
+		return hedgeTimer;
+	}
+
+	/**
+	 * Returns the routing statistic per directory URL.
+	 * @return The map contains DirectoryRouteStatisticResult objects keyed by URL
+	 */
+	public synchronized Map getStatistics() {
+		Map result = new TreeMap();
+		Iterator it = routes.values().iterator();
+		while (it.hasNext()) {
+			DirectoryRoute route = (DirectoryRoute) it.next();
+			result.put(route.getUrl(), route.getStatistic());
+		}
+		return result;
+	}
+
+	private DirectoryRoute getRoute(String url) {
+		DirectoryRoute route = (DirectoryRoute) routes.get(url);
+		if (route == null) {
+			route = new DirectoryRoute(url);
+			routes.put(url, route);
+		}
+		return route;
+	}
+}
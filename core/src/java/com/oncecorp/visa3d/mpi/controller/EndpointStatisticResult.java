@@ -0,0 +1,221 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.Serializable;
+
+/**
+ * Connection usage statistic of one directory server endpoint
+ *
+ * @version $Revision: 1 $
+ */
+public class EndpointStatisticResult implements Serializable, Comparable {
+	private String endpoint;
+	private long connectionCount;
+	private long resumedCount;
+	private long requestCount;
+	private long reuseCount;
+	private long failureCount;
+	private int inFlight;
+	private int openConnections;
+	private int idleConnections;
+
+	public int compareTo(Object o) {
+		return this.endpoint.compareTo(((EndpointStatisticResult) o).getEndpoint());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof EndpointStatisticResult))
+			return false;
+		EndpointStatisticResult result = (EndpointStatisticResult) anObject;
+
+		return this.endpoint.equals(result.getEndpoint())
+			&& (this.connectionCount == result.getConnectionCount())
+			&& (this.resumedCount == result.getResumedCount())
+			&& (this.requestCount == result.getRequestCount())
+			&& (this.reuseCount == result.getReuseCount())
+			&& (this.failureCount == result.getFailureCount())
+			&& (this.inFlight == result.getInFlight())
+			&& (this.openConnections == result.getOpenConnections())
+			&& (this.idleConnections == result.getIdleConnections());
+	}
+
+	public int hashCode() {
+		return endpoint.hashCode();
+	}
+
+	/**
+	 * Returns the endpoint (scheme://host:port).
+	 * @return String
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the number of connections opened, each one costing a TCP connect and an SSL handshake.
+	 * @return long
+	 */
+	public long getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Returns the number of SSL handshakes that resumed the previous session.
+	 * @return long
+	 */
+	public long getResumedCount() {
+		return resumedCount;
+	}
+
+	/**
+	 * Returns the number of requests sent.
+	 * @return long
+	 */
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Returns the number of requests sent over an already open connection.
+	 * @return long
+	 */
+	public long getReuseCount() {
+		return reuseCount;
+	}
+
+	/**
+	 * Returns the number of failed requests.
+	 * @return long
+	 */
+	public long getFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 * @return int
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of open connections.
+	 * @return int
+	 */
+	public int getOpenConnections() {
+		return openConnections;
+	}
+
+	/**
+	 * Returns the number of idle pooled connections.
+	 * @return int
+	 */
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+
+	/**
+	 * Returns the ratio of requests sent over an already open connection.
+	 * @return double
+	 */
+	public double getReuseRatio() {
+		return requestCount == 0 ? 0 : (double) reuseCount / requestCount;
+	}
+
+	/**
+	 * Sets the endpoint.
+	 * @param endpoint The endpoint to set
+	 */
+	public void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Sets the connection count.
+	 * @param connectionCount The connectionCount to set
+	 */
+	public void setConnectionCount(long connectionCount) {
+		this.connectionCount = connectionCount;
+	}
+
+	/**
+	 * Sets the resumed handshake count.
+	 * @param resumedCount The resumedCount to set
+	 */
+	public void setResumedCount(long resumedCount) {
+		this.resumedCount = resumedCount;
+	}
+
+	/**
+	 * Sets the request count.
+	 * @param requestCount The requestCount to set
+	 */
+	public void setRequestCount(long requestCount) {
+		this.requestCount = requestCount;
+	}
+
+	/**
+	 * Sets the reuse count.
+	 * @param reuseCount The reuseCount to set
+	 */
+	public void setReuseCount(long reuseCount) {
+		this.reuseCount = reuseCount;
+	}
+
+	/**
+	 * Sets the failure count.
+	 * @param failureCount The failureCount to set
+	 */
+	public void setFailureCount(long failureCount) {
+		this.failureCount = failureCount;
+	}
+
+	/**
+	 * Sets the number of requests in flight.
+	 * @param inFlight The inFlight to set
+	 */
+	public void setInFlight(int inFlight) {
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Sets the number of open connections.
+	 * @param openConnections The openConnections to set
+	 */
+	public void setOpenConnections(int openConnections) {
+		this.openConnections = openConnections;
+	}
+
+	/**
+	 * Sets the number of idle pooled connections.
+	 * @param idleConnections The idleConnections to set
+	 */
+	public void setIdleConnections(int idleConnections) {
+		this.idleConnections = idleConnections;
+	}
+
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.ID_Generator;
+import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends the error notifications of the Delay dispatch mode. Notifications
+ * are put in a bounded in-memory queue by the request threads and sent by
+ * a small pool of dispatcher threads, which wake up as soon as something
+ * is queued.
+ * <p>
+ * A dispatcher thread sends the notification at the head of the queue
+ * together with the other ones queued for the same URL, up to
+ * <code>batchSize</code>, one after the other. As they go through the
+ * DirectoryClient, they reuse the same keep-alive connection. A
+ * notification for a URL and message id already queued is coalesced with
+ * the queued one. When the queue is full, the notification is dropped.
+ * <p>
+ * Failed notifications are queued again and retried according to the
+ * ErrorDispatch RetryPolicy.
+ * <p>
+ * When the configuration changes, the queued notifications, retries not yet
+ * due included, are handed over to the dispatcher replacing this one. From
+ * then on, the notifications dispatched or requeued here are forwarded to
+ * it, so that nothing is lost while the threads of this dispatcher finish
+ * their current batch.
+ *
+ * @version $Revision: 1 $
+ */
+public class ErrorDispatcher {
+
+	/** Default queue capacity, in notifications */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Default number of dispatcher threads */
+	public static final int DEFAULT_THREADS = 2;
+
+	/** Default maximum number of notifications sent in a row to the same URL */
+	public static final int DEFAULT_BATCH_SIZE = 20;
+
+	/** Time given to the dispatcher threads to drain the queue on shutdown */
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
+	private static Logger logger =
+		MPILogger.getLogger(ErrorDispatcher.class.getName());
+
+	private int capacity;
+	private int batchSize;
+
+	private LinkedList queue = new LinkedList();
+	private Map queued = new HashMap();
+	private boolean running = true;
+	private ErrorDispatcher successor;
+	private Thread[] workers;
+
+	private long sentCount;
+	private long failedCount;
+	private long batchCount;
+	private long droppedCount;
+	private long coalescedCount;
+
+	/**
+	 * Creates the dispatcher and starts its threads.
+	 * @param capacity The queue capacity, in notifications
+	 * @param threads The number of dispatcher threads
+	 * @param batchSize The maximum number of notifications sent in a row to the same URL
+	 */
+	public ErrorDispatcher(int capacity, int threads, int batchSize) {
+		this.capacity = Math.max(1, capacity);
+		this.batchSize = Math.max(1, batchSize);
+
+		workers = new Thread[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("ErrorDispatcher-" + i) {
+				public void run() {
+					work();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		logger.info(
+			"Error dispatcher started: queue capacity "
+				+ this.capacity
+				+ ", "
+				+ workers.length
+				+ " dispatcher threads, batch size "
+				+ this.batchSize);
+	}
+
+	/**
+	 * Queues an error notification.
+	 * @param req The notification
+	 * @return false if the notification was dropped
+	 */
+	public boolean dispatch(ErrorRequest req) {
+		ErrorDispatcher next;
+		synchronized (queue) {
+			next = successor;
+			if (next == null) {
+				if (!running) {
+					droppedCount++;
+					logger.error("Error dispatcher is shut down. Error notification dropped.");
+					return false;
+				}
+
+				String key = getKey(req);
+				if (key != null && queued.containsKey(key)) {
+					coalescedCount++;
+					logger.debug("Error notification coalesced with the queued one for: " + key);
+					return true;
+				}
+
+				if (queue.size() >= capacity) {
+					droppedCount++;
+					logger.error("Error dispatch queue is full. Error notification dropped.");
+					return false;
+				}
+
+				queue.addLast(req);
+				if (key != null)
+					queued.put(key, req);
+				queue.notifyAll();
+				return true;
+			}
+		}
+		return next.dispatch(req);
+	}
+
+	/**
+	 * Stops accepting notifications and hands the queued ones, retries not
+	 * yet due included, over to another dispatcher. Does not wait for the
+	 * dispatcher threads: the notifications they are sending complete here,
+	 * and those failing are retried by the successor.
+	 * @param next The dispatcher replacing this one
+	 */
+	public void handOver(ErrorDispatcher next) {
+		ArrayList pending;
+		synchronized (queue) {
+			running = false;
+			successor = next;
+			pending = new ArrayList(queue);
+			queue.clear();
+			queued.clear();
+			queue.notifyAll();
+		}
+
+		for (int i = 0; i < pending.size(); i++)
+			next.requeue((ErrorRequest) pending.get(i));
+		logger.info(
+			"Error dispatcher replaced, "
+				+ pending.size()
+				+ " queued error notifications handed over.");
+	}
+
+	/**
+	 * Stops accepting notifications and waits for the dispatcher threads to
+	 * send what is due.
+	 */
+	public void shutdown() {
+		synchronized (queue) {
+			running = false;
+			queue.notifyAll();
+		}
+
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		for (int i = 0; i < workers.length; i++) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+
+			try {
+				workers[i].join(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		int left = getQueueDepth();
+		if (left > 0)
+			logger.warn(left + " error notifications still queued after dispatcher shutdown.");
+
+		logger.info("Error dispatcher stopped.");
+	}
+
+	/**
+	 * Dispatcher thread main loop.
+	 */
+	private void work() {
+		RetryPolicy retryPolicy = RetryPolicy.getInstance(RetryPolicy.ERROR_DISPATCH);
+		ArrayList batch = new ArrayList(batchSize);
+
+		while (take(batch)) {
+			long retryTime = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				ErrorRequest er = (ErrorRequest) batch.get(i);
+				if (retryTime > 0) {
+					// The URL just failed: retry the rest of the batch along
+					er.setNextAttemptTime(retryTime);
+					requeue(er);
+					continue;
+				}
+
+				er.setAttempts(er.getAttempts() + 1);
+				if (er.getSession() != null)
+					AuthenticatorSession.instance().restore(er.getSession());
+				else
+					AuthenticatorSession.instance().reset();
+				if (send(er.getToUrl(), er.getMsg())) {
+					retryPolicy.completed(er.getAttempts(), true);
+					synchronized (this) {
+						sentCount++;
+					}
+					continue;
+				}
+
+				long delay = retryPolicy.retryDelay(er.getAttempts(), 0);
+				if (delay < 0) {
+					retryPolicy.completed(er.getAttempts(), false);
+					synchronized (this) {
+						failedCount++;
+					}
+					logger.error(
+						"Error notification abandoned after " + er.getAttempts() + " attempts.");
+				} else {
+					logger.debug("Error notification failed, retrying in " + delay + " ms...");
+					retryTime = System.currentTimeMillis() + delay;
+					er.setNextAttemptTime(retryTime);
+					requeue(er);
+				}
+			}
+
+			synchronized (this) {
+				batchCount++;
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Waits for a notification due to be sent and moves it to the batch,
+	 * together with the other due ones for the same URL.
+	 * @return false once the dispatcher is shut down and nothing is due
+	 */
+	private boolean take(ArrayList batch) {
+		synchronized (queue) {
+			ErrorRequest first = null;
+			while (first == null) {
+				long now = System.currentTimeMillis();
+				long wait = 0;
+				for (Iterator i = queue.iterator(); i.hasNext();) {
+					ErrorRequest er = (ErrorRequest) i.next();
+					long due = er.getNextAttemptTime() - now;
+					if (due <= 0) {
+						first = er;
+						i.remove();
+						break;
+					}
+					if (wait == 0 || due < wait)
+						wait = due;
+				}
+
+				if (first == null) {
+					// Retries not yet due are given up on shutdown
+					if (!running)
+						return false;
+
+					try {
+						queue.wait(wait);
+					} catch (InterruptedException e) {
+						// Check the queue again
+					}
+				}
+			}
+
+			batch.add(first);
+			long now = System.currentTimeMillis();
+			for (Iterator i = queue.iterator(); i.hasNext() && batch.size() < batchSize;) {
+				ErrorRequest er = (ErrorRequest) i.next();
+				if (er.getNextAttemptTime() <= now && first.getToUrl().equals(er.getToUrl())) {
+					batch.add(er);
+					i.remove();
+				}
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				String key = getKey((ErrorRequest) batch.get(i));
+				if (key != null)
+					queued.remove(key);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Queues a failed notification again, unless a notification for the
+	 * same message was queued since.
+	 */
+	private void requeue(ErrorRequest req) {
+		ErrorDispatcher next;
+		synchronized (queue) {
+			next = successor;
+			if (next == null) {
+				String key = getKey(req);
+				if (key != null && queued.containsKey(key)) {
+					coalescedCount++;
+					return;
+				}
+
+				if (queue.size() >= capacity) {
+					droppedCount++;
+					logger.error("Error dispatch queue is full. Error notification dropped.");
+					return;
+				}
+
+				queue.addLast(req);
+				if (key != null)
+					queued.put(key, req);
+				queue.notifyAll();
+				return;
+			}
+		}
+		next.requeue(req);
+	}
+
+	/**
+	 * Returns the key identifying notifications for the same message,
+	 * null if the message id is unknown.
+	 */
+	private static String getKey(ErrorRequest req) {
+		String id = req.getMsg().getId();
+		if (id == null || id.equals("UNKNOWN"))
+			return null;
+
+		return req.getToUrl() + " " + id;
+	}
+
+	/**
+	 * Sends an error notification through the DirectoryClient.
+	 * @param targetUrl The URL to send to
+	 * @param sentMsg The error message
+	 * @return true if the notification was accepted
+	 */
+	public static boolean send(String targetUrl, Message sentMsg) {
+		try {
+			//Precheck id
+			if ((sentMsg.getId() != null)
+				&& (sentMsg.getId().equals("UNKNOWN"))) {
+				sentMsg.setId(ID_Generator.getUniqueId());
+				logger.debug(
+					"UNKNOWN id replaced with new id: " + sentMsg.getId());
+			}
+
+			logger.debug("Sending message to: " + targetUrl);
+
+			//Serialize inMsg as UTF-8 into this thread's reusable buffer
+			XMLWriter msg = XMLWriter.getThreadWriter();
+			sentMsg.writeXML(msg);
+			if (logger.isDebugEnabled())
+				logger.debug("Content to targetUrl: " + msg);
+
+			DirectoryClient.getInstance().post(targetUrl, msg);
+
+			logger.debug(
+				"Error Message (id ="
+					+ sentMsg.getId()
+					+ ") is sent to targetUrl: ["
+					+ targetUrl
+					+ "] successfully");
+			return true;
+		} catch (Exception e) {
+			logger.error(
+				"Error Message (id ="
+					+ sentMsg.getId()
+					+ ") cannot be sent back to targetUrl: ["
+					+ targetUrl
+					+ "], Reason: "
+					+ e.getMessage(),
+				e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of queued notifications, retries included.
+	 * @return int
+	 */
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Returns the number of notifications sent.
+	 * @return long
+	 */
+	public synchronized long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * Returns the number of notifications abandoned after their last retry.
+	 * @return long
+	 */
+	public synchronized long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * Returns the number of batches of notifications sent to the same URL.
+	 * @return long
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Returns the number of notifications dropped on a full queue.
+	 * @return long
+	 */
+	public long getDroppedCount() {
+		synchronized (queue) {
+			return droppedCount;
+		}
+	}
+
+	/**
+	 * Returns the number of notifications coalesced with a queued one.
+	 * @return long
+	 */
+	public long getCoalescedCount() {
+		synchronized (queue) {
+			return coalescedCount;
+		}
+	}
+}
@@ -28,27 +28,13 @@ import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
-import com.oncecorp.visa3d.mpi.messaging.ID_Generator;
-import com.oncecorp.visa3d.mpi.messaging.Message;
-
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Vector;
 
 import org.apache.log4j.Logger;
 
-import com.sun.net.ssl.internal.www.protocol.https.Handler;
-import com.sun.net.ssl.internal.www.protocol.https.HttpsURLConnection;
-
 
 public class ErrorHandlerThreadManager {
 
-	// List of dispatch modes and default interval
-	private static final int DEFAULT_DISPATCH_INTERVAL 	= 5000;
+	// List of dispatch modes
 	private static final String DIRECT_DISPATCH_MODE 	= "Direct";
 	private static final String DELAY_DISPATCH_MODE 	= "Delay";
 
@@ -57,12 +43,8 @@ public class ErrorHandlerThreadManager {
 	 */
 	private static Logger logger = MPILogger.getLogger(Communicator.class.getName());
 	private static String dispatchMode;
-	private static int errorThreadSleepInterval;
 
-	private static Thread errorThread;
-	private static Vector errorVector = new Vector();
-
-	public static byte[] lock = { 0 };
+	private static ErrorDispatcher dispatcher;
 
 	public void dispatchErrorMessage(ErrorRequest req) {
 		//Load config attributes if not loaded
@@ -72,9 +54,6 @@ public class ErrorHandlerThreadManager {
 				String mode =
 					(String) cfg.getConfigData(
 						MPIConfigDefinition.ERROR_DISPATCH_MODE);
-				String interval =
-					(String) cfg.getConfigData(
-						MPIConfigDefinition.ErrorThreadSleepInterval);
 
 				if (mode != null) {
 					setDispatchMode(mode);
@@ -85,33 +64,13 @@ public class ErrorHandlerThreadManager {
 						"No dispatch mode value found. Set to default:" + DIRECT_DISPATCH_MODE);
 				}
 
-				if (interval != null) {
-					try {
-						setErrorThreadSleepInterval(Integer.parseInt(interval));
-						logger.debug(
-							"Error thread sleep interval set to: "
-								+ getErrorThreadSleepInterval());
-					} catch (NumberFormatException ne) {
-						setErrorThreadSleepInterval(DEFAULT_DISPATCH_INTERVAL);
-						logger.error(
-							"Invalid value for error thread sleep interval. Set to default",
-							ne);
-					}
-				}
-				else {
-					setErrorThreadSleepInterval(DEFAULT_DISPATCH_INTERVAL);
-					logger.error(
-						"No error thread sleep interval value found. Set to default");
-				}
-
 			} catch (ConfigurationException e) {
 				logger.error(
 					"Failed to load config attributes for error thread manager",
 					e);
 				setDispatchMode(DIRECT_DISPATCH_MODE);
-				setErrorThreadSleepInterval(DEFAULT_DISPATCH_INTERVAL);
 				logger.debug(
-					"Error thread manager dispatch mode & thread sleep interval set to default.");
+					"Error thread manager dispatch mode set to default.");
 			}
 		}
 
@@ -119,7 +78,29 @@ public class ErrorHandlerThreadManager {
 		if (getDispatchMode().equals(DIRECT_DISPATCH_MODE)) {
 			logger.debug("Error dispatch mode:" + DIRECT_DISPATCH_MODE);
 			try {
-				send(req.getToUrl(), req.getMsg());
+				// Retried on the calling thread, within the deadline of its request
+				RetryPolicy retryPolicy = RetryPolicy.getInstance(RetryPolicy.ERROR_DISPATCH);
+				long deadline = AuthenticatorSession.instance().getDeadline();
+				boolean sent = false;
+				int attempts = 0;
+				try {
+					while (!sent) {
+						attempts++;
+						sent = ErrorDispatcher.send(req.getToUrl(), req.getMsg());
+						if (!sent) {
+							long delay = retryPolicy.retryDelay(attempts, deadline);
+							if (delay < 0)
+								break;
+							logger.debug("Error notification failed, retrying in " + delay + " ms...");
+							Thread.sleep(delay);
+						}
+					}
+				} finally {
+					retryPolicy.completed(attempts, sent);
+				}
+				if (!sent)
+					logger.error(
+						"Error notification abandoned after " + attempts + " attempts.");
 			} catch (Exception e) {
 				logger.error(
 					"Failed to send error notification in direct mode.",
@@ -127,181 +108,86 @@ public class ErrorHandlerThreadManager {
 			}
 		} else {
 			logger.debug("Error dispatch mode: " + getDispatchMode());
-			if ((errorThread == null) || (!errorThread.isAlive())) {
-				createNewErrorThread();
-				logger.debug("ErrorHandlerThread created.");
-			}
-
-			synchronized (lock) {
-				errorVector.add(req);
+			// Sent with the client certificate of the requesting thread
+			if (req.getSession() == null)
+				req.setSession(AuthenticatorSession.instance().capture());
+			if (createDispatcher().dispatch(req))
 				logger.debug("New ErrorRequest added.");
-			}
 		}
 
 	}
 
-	private void send(String targetUrl, Message sentMsg) {
-		// do logging
-		logger.debug("ErrorHandlerThread is called");
-
-		//Initialize IO stream
-		OutputStreamWriter out = null;
+	private static synchronized ErrorDispatcher createDispatcher() {
+		if (dispatcher != null)
+			return dispatcher;
 
+		int capacity = ErrorDispatcher.DEFAULT_CAPACITY;
+		int threads = ErrorDispatcher.DEFAULT_THREADS;
+		int batchSize = ErrorDispatcher.DEFAULT_BATCH_SIZE;
 		try {
-			//Precheck id
-			if ((sentMsg.getId() != null)
-				&& (sentMsg.getId().equals("UNKNOWN"))) {
-				sentMsg.setId(ID_Generator.getUniqueId());
-				logger.debug(
-					"UNKNOWN id replaced with new id: " + sentMsg.getId());
-			}
-
-			logger.debug("Sending message to: " + targetUrl);
-
-            /**
-             * The following change done by Gang, to change the HttpConnection to
-             * directly use SUN implementation
-             */
-            /**
-             * The following old one is replaced
-            //Establish connection to servlet
-            URL url = new URL(targetUrl);
-            */
-            //Establish connection to servlet
-            URL url;
-            if ( targetUrl != null &&
-                 targetUrl.trim().toLowerCase().startsWith("https:") )
-                url = new URL(null, targetUrl, new Handler() );
-            else
-                url = new URL( targetUrl );
-			URLConnection conn = url.openConnection();
-			logger.debug("connection setup finished.");
-
-			//Prepare for both input and output
-			conn.setDoInput(true);
-			conn.setDoOutput(true);
-
-			//Turn off caching
-			conn.setUseCaches(false);
-
-			//Convert inMsg to string
-			String msg = sentMsg.toString();
-			logger.debug("Content to targetUrl: " + msg);
-
-			//Set content type to MPI message
-			conn.setRequestProperty(
-				"Content-Type",
-				"application/xml; charset=\"utf-8\"");
-
-			//Set content length
-			conn.setRequestProperty(
-				"Content-Length",
-				Integer.toString(msg.length()));
-
-			//Create output stream
-			out = new OutputStreamWriter(conn.getOutputStream());
-
-			//Write message as POST data
-			//out.write(URLEncoder.encode(msg));
-			out.write(msg);
-
-			//Flush it
-			out.flush();
-
-			//Close output stream
-			out.close();
-			logger.debug("Sending finished.");
-
-			// prepare for logging
-			Date timestamp = Calendar.getInstance().getTime();
-
-            /** Old code
-			// check the response
-			if (conn instanceof HttpURLConnection) {
-				// get Response Code
-				HttpURLConnection ht = (HttpURLConnection) conn;
-				int i = ht.getResponseCode();
-            */
-           // check the response
-           if ( (conn instanceof HttpURLConnection)
-                || ( conn instanceof HttpsURLConnection ) ) {
-
-              int i;
-              // get Response Code
-              if ( conn instanceof HttpURLConnection )
-              {
-                  HttpURLConnection ht = (HttpURLConnection) conn;
-                  i = ht.getResponseCode();
-              }
-              else
-              {
-                  HttpsURLConnection hts = (HttpsURLConnection) conn;
-                  i = hts.getResponseCode();
-              }
-
-
-				// logging handling
-				if (i == 200) {
-					// do logging
-					logger.debug(
-						"Error Message (id ="
-							+ sentMsg.getId()
-							+ ") is sent to targetUrl: ["
-							+ targetUrl
-							+ "] successfully - Time At: ["
-							+ timestamp.toString()
-							+ "]");
-				} else {
-					// do logging
-					logger.error(
-						"Error Message (id ="
-							+ sentMsg.getId()
-							+ ") cannot be sent back to  targetUrl: ["
-							+ targetUrl
-							+ "] - Time At: ["
-							+ timestamp.toString()
-							+ "]");
-				}
-			} else {
-				logger.error("NO HTTP connection was set up");
-			}
+			Config cfg = Config.getConfigReference();
+			capacity =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.ERROR_DISPATCH_QUEUE_CAPACITY));
+			threads =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.ERROR_DISPATCH_THREADS));
+			batchSize =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.ERROR_DISPATCH_BATCH_SIZE));
 		} catch (Exception e) {
 			logger.error(
-				"Failed to send error message to targetUrl, Reason: "
-					+ e.getMessage(),
+				"Failed to retrieve error dispatcher configuration. Defaults used for missing items.",
 				e);
-		} finally {
-			try {
-				if (out != null)
-					out.close();
-			} catch (Exception e) {
-				logger.error(
-					"Couldn't close outputstream in ErrorHandlerThread finally block.",
-					e);
-			}
 		}
+		dispatcher = new ErrorDispatcher(capacity, threads, batchSize);
+		logger.info("Error dispatcher instantiated");
+		return dispatcher;
 	}
 
-	private void createNewErrorThread() {
-		errorThread = new ErrorHandlerThread();
-		logger.info("Error Handler Thread instantiated");
-		errorThread.start();
+	/**
+	 * Returns the dispatcher of the Delay mode.
+	 * @return ErrorDispatcher, null until a notification was dispatched in Delay mode
+	 */
+	public static synchronized ErrorDispatcher getDispatcher() {
+		return dispatcher;
 	}
 
 	/**
-	 * Returns the errorVector.
-	 * @return Vector
+	 * Replace the dispatcher of the Delay mode by one created from the
+	 * current configuration, if one is in use. The queued notifications,
+	 * retries included, are handed over to the new dispatcher without
+	 * waiting for the threads of the previous one.
 	 */
-	public static Vector getErrorVector() {
-		return errorVector;
+	public static void reconfigure() {
+		ErrorDispatcher previous;
+		ErrorDispatcher next;
+		synchronized (ErrorHandlerThreadManager.class) {
+			previous = dispatcher;
+			if (previous == null)
+				return;
+
+			dispatcher = null;
+			next = createDispatcher();
+		}
+		previous.handOver(next);
 	}
 
 	/**
-	 * Sets the errorVector.
-	 * @param errorVector The errorVector to set
+	 * Replace the dispatcher of the Delay mode, shutting down the previous one.
+	 * @param errorDispatcher The new dispatcher, null to create it from the configuration on next use
 	 */
-	public static void setErrorVector(Vector errorVector) {
-		ErrorHandlerThreadManager.errorVector = errorVector;
+	public static void setDispatcher(ErrorDispatcher errorDispatcher) {
+		ErrorDispatcher previous;
+		synchronized (ErrorHandlerThreadManager.class) {
+			previous = dispatcher;
+			dispatcher = errorDispatcher;
+		}
+		if (previous != null)
+			previous.shutdown();
 	}
 
 	/**
@@ -312,14 +198,6 @@ public class ErrorHandlerThreadManager {
 		return dispatchMode;
 	}
 
-	/**
-	 * Returns the errorThreadSleepInteval.
-	 * @return int
-	 */
-	public static int getErrorThreadSleepInterval() {
-		return errorThreadSleepInterval;
-	}
-
 	/**
 	 * Sets the dispatchMode.
 	 * @param dispatchMode The dispatchMode to set
@@ -337,13 +215,4 @@ public class ErrorHandlerThreadManager {
 		}
 	}
 
-	/**
-	 * Sets the errorThreadSleepInteval.
-	 * @param errorThreadSleepInteval The errorThreadSleepInteval to set
-	 */
-	public static void setErrorThreadSleepInterval(int errorThreadSleepInteval) {
-		ErrorHandlerThreadManager.errorThreadSleepInterval =
-			errorThreadSleepInteval;
-	}
-
 }
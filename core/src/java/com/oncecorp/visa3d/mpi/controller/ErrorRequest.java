@@ -35,6 +35,9 @@ import com.oncecorp.visa3d.mpi.messaging.Message;
 public class ErrorRequest {
 	private String toUrl;
 	private Message msg;
+	private int attempts;
+	private long nextAttemptTime;
+	private Object[] session;
 
 	/**
 	 * Returns the msg.
@@ -68,4 +71,52 @@ public class ErrorRequest {
 		this.toUrl = toUrl;
 	}
 
+	/**
+	 * Returns the number of attempts made to send the notification.
+	 * @return int
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Sets the number of attempts made to send the notification.
+	 * @param attempts The attempts to set
+	 */
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * Returns the time in millis before which the notification is not retried.
+	 * @return long
+	 */
+	public long getNextAttemptTime() {
+		return nextAttemptTime;
+	}
+
+	/**
+	 * Sets the time in millis before which the notification is not retried.
+	 * @param nextAttemptTime The nextAttemptTime to set
+	 */
+	public void setNextAttemptTime(long nextAttemptTime) {
+		this.nextAttemptTime = nextAttemptTime;
+	}
+
+	/**
+	 * Returns the AuthenticatorSession values of the requesting thread.
+	 * @return Object[], null if not captured
+	 */
+	public Object[] getSession() {
+		return session;
+	}
+
+	/**
+	 * Sets the AuthenticatorSession values of the requesting thread.
+	 * @param session The values returned by AuthenticatorSession.capture()
+	 */
+	public void setSession(Object[] session) {
+		this.session = session;
+	}
+
 }
@@ -104,6 +104,7 @@ public class HTMLAuthenticatorImpl implements HTMLFieldDefinition {
 			// Set the proper integration layer used by the merchant application
 			// This is needed to modofy functionality further down the pipe
 			AuthenticatorSession.instance().setPaymentInterface(AuthenticatorSession.HTML_INTERFACE);
+			AuthenticatorSession.instance().setDeadline(RetryPolicy.newRequestDeadline());
 
 			try {
 				// checks request type
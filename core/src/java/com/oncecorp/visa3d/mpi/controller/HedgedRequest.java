@@ -0,0 +1,167 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.util.TimerTask;
+
+import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+
+/**
+ * Hedge of one directory request: scheduled on the DirectoryRouter timer,
+ * it sends the same message to a secondary directory if the primary one
+ * has not answered yet. The first valid response wins and the other
+ * request is cancelled.
+ *
+ * @version $Revision: 1 $
+ */
+class HedgedRequest extends TimerTask {
+	private DirectoryRouter router;
+	private Message msg;
+	private String url;
+
+	/**
+	 * Session of the requesting thread, for the hedge to use the same
+	 * client certificate
+	 */
+	private Object[] session = AuthenticatorSession.instance().capture();
+
+	/**
+	 * Handles on the primary and hedge requests
+	 */
+	private DirectoryCall primaryCall = new DirectoryCall();
+	private DirectoryCall hedgeCall = new DirectoryCall();
+
+	/**
+	 * Progress of both requests, guarded by this
+	 */
+	private boolean primaryDone;
+	private boolean hedgeStarted;
+	private boolean hedgeDone;
+	private boolean hedgeWon;
+	private Message hedgeResponse;
+
+	/**
+	 * Constructor
+	 * @param router Router recording the hedge outcome
+	 * @param msg Message sent to the primary directory
+	 * @param url Secondary directory URL
+	 */
+	HedgedRequest(DirectoryRouter router, Message msg, String url) {
+		this.router = router;
+		this.msg = msg;
+		this.url = url;
+	}
+
+	/**
+	 * Hedge delay expired: start the hedge unless the primary request is
+	 * over or the hedge rate cap is reached.
+	 */
+	public void run() {
+		synchronized (this) {
+			if (primaryDone || !router.allowHedge())
+				return;
+			hedgeStarted = true;
+		}
+		Thread hedge = new Thread(new Runnable() {
+			public void run() {
+				sendHedge();
+			}
+		}, "DirectoryHedge");
+		hedge.setDaemon(true);
+		hedge.start();
+	}
+
+	private void sendHedge() {
+		long start = System.currentTimeMillis();
+		Message response = null;
+		boolean answered = false;
+		AuthenticatorSession.instance().restore(session);
+		try {
+			response = new Communicator().send(msg, url, hedgeCall);
+			answered = true;
+		} catch (MessagingException me) {
+			answered = true;
+		} catch (CommunicatorException ce) {
+			// Not answered
+		} finally {
+			boolean won;
+			synchronized (this) {
+				hedgeDone = true;
+				hedgeResponse = response;
+				won = (response != null && !primaryDone);
+				hedgeWon = won;
+				notifyAll();
+			}
+			if (won)
+				primaryCall.cancel();
+			if (!hedgeCall.isCancelled())
+				router.record(url, answered, System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Called by the requesting thread once the primary request is over.
+	 * When the primary request failed, waits for a hedge in flight.
+	 * @param primaryValid True if the primary directory sent a valid response
+	 * @return The hedge response to use, null to keep the primary outcome
+	 */
+	synchronized Message primaryDone(boolean primaryValid) {
+		primaryDone = true;
+		cancel();
+		if (hedgeWon)
+			return hedgeResponse;
+		if (primaryValid) {
+			if (hedgeStarted && !hedgeDone)
+				hedgeCall.cancel();
+			return null;
+		}
+		while (hedgeStarted && !hedgeDone) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				hedgeCall.cancel();
+				return null;
+			}
+		}
+		return hedgeResponse;
+	}
+
+	/**
+	 * Returns the handle on the primary request.
+	 * @return DirectoryCall
+	 */
+	DirectoryCall getPrimaryCall() {
+		return primaryCall;
+	}
+
+	/**
+	 * Returns true if the hedge has been sent.
+	 * @return boolean
+	 */
+	synchronized boolean isHedgeStarted() {
+		return hedgeStarted;
+	}
+}
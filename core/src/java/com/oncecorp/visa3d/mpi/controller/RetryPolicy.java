@@ -0,0 +1,376 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+/**
+ * Decides whether and when a failed attempt is retried, for one kind of
+ * outgoing request: VEReq/CRReq connections (Directory), error
+ * notifications (ErrorDispatch) and card range refreshes (CardRange).
+ *
+ * <p>The delay before retry n is the base delay doubled n - 1 times, capped
+ * by RetryMaxDelay, of which RetryJitter percent is randomized so that
+ * clients failing together do not retry together. No retry is granted if
+ * it would start after the deadline of the request.</p>
+ *
+ * <p>A retry budget keeps a directory which is down from receiving a retry
+ * storm: every failed attempt takes a token out of RetryBudget tokens, every
+ * successful request gives back RetryBudgetRatio token, and retries are
+ * only granted while more than half of the tokens are left.</p>
+ *
+ * <p>Attempts per request and refused retries are reported through the
+ * PerformanceMonitor MBean.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class RetryPolicy {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(RetryPolicy.class.getName());
+
+	/**
+	 * Policy names
+	 */
+	public static final String DIRECTORY = "Directory";
+	public static final String ERROR_DISPATCH = "ErrorDispatch";
+	public static final String CARD_RANGE = "CardRange";
+
+	/**
+	 * Default configuration values
+	 */
+	public static final int DEFAULT_ERROR_DISPATCH_RETRIES = 3;
+	public static final long DEFAULT_ERROR_DISPATCH_RETRY_DELAY = 1000;
+	public static final int DEFAULT_CARD_RANGE_RETRIES = 3;
+	public static final long DEFAULT_CARD_RANGE_RETRY_DELAY = 5000;
+	public static final long DEFAULT_MAX_DELAY = 60000;
+	public static final int DEFAULT_JITTER = 50;
+	public static final int DEFAULT_BUDGET = 10;
+	public static final double DEFAULT_BUDGET_RATIO = 0.1;
+	public static final long DEFAULT_REQUEST_DEADLINE = 0;
+
+	/**
+	 * Requests are counted by number of attempts up to this one, the last
+	 * counter holds the requests which took more
+	 */
+	private static final int MAX_COUNTED_ATTEMPTS = 8;
+
+	/**
+	 * Shared policies built from the MPI configuration, by name
+	 */
+	private static Map instances = new HashMap();
+
+	/**
+	 * Time allowed to a merchant request, -1 until loaded
+	 */
+	private static long requestDeadline = -1;
+
+	/**
+	 * Settings
+	 */
+	private String name;
+	private int maxRetries;
+	private long baseDelay;
+	private long maxDelay;
+	private int jitter;
+	private int budget;
+	private double budgetRatio;
+
+	/**
+	 * Retry tokens left
+	 */
+	private double tokens;
+
+	private Random random = new Random();
+
+	/**
+	 * Counters
+	 */
+	private long requestCount;
+	private long attemptCount;
+	private long retryCount;
+	private long exhaustedCount;
+	private long budgetRefusedCount;
+	private long deadlineRefusedCount;
+	private long[] attemptCounts = new long[MAX_COUNTED_ATTEMPTS];
+	private int maxAttempts;
+
+	/**
+	 * Constructor
+	 * @param name The policy name
+	 * @param maxRetries Maximum number of retries of a request
+	 * @param baseDelay Delay in millis before the first retry
+	 * @param maxDelay Maximum delay in millis before a retry
+	 * @param jitter Percent of the delay randomized, between 0 and 100
+	 * @param budget Number of retry tokens, 0 for no budget
+	 * @param budgetRatio Tokens given back by a successful request
+	 */
+	public RetryPolicy(
+		String name,
+		int maxRetries,
+		long baseDelay,
+		long maxDelay,
+		int jitter,
+		int budget,
+		double budgetRatio) {
+		this.name = name;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.baseDelay = Math.max(0, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		this.jitter = Math.min(100, Math.max(0, jitter));
+		this.budget = Math.max(0, budget);
+		this.budgetRatio = Math.max(0, budgetRatio);
+		this.tokens = this.budget;
+	}
+
+	/**
+	 * Returns a shared policy, creating it from the MPI configuration on first use.
+	 * @param name DIRECTORY, ERROR_DISPATCH or CARD_RANGE
+	 * @return RetryPolicy
+	 */
+	public static synchronized RetryPolicy getInstance(String name) {
+		RetryPolicy policy = (RetryPolicy) instances.get(name);
+		if (policy == null) {
+			int retries = 0;
+			long delay = 0;
+			long maxDelay = DEFAULT_MAX_DELAY;
+			int jitter = DEFAULT_JITTER;
+			int budget = DEFAULT_BUDGET;
+			double budgetRatio = DEFAULT_BUDGET_RATIO;
+			String retriesKey = MPIConfigDefinition.NUMBER_OF_RETRIES;
+			String delayKey = MPIConfigDefinition.TIME_BETWEEN_RETRIES;
+			if (ERROR_DISPATCH.equals(name)) {
+				retries = DEFAULT_ERROR_DISPATCH_RETRIES;
+				delay = DEFAULT_ERROR_DISPATCH_RETRY_DELAY;
+				retriesKey = MPIConfigDefinition.ERROR_DISPATCH_RETRIES;
+				delayKey = MPIConfigDefinition.ERROR_DISPATCH_RETRY_DELAY;
+			} else if (CARD_RANGE.equals(name)) {
+				retries = DEFAULT_CARD_RANGE_RETRIES;
+				delay = DEFAULT_CARD_RANGE_RETRY_DELAY;
+				retriesKey = MPIConfigDefinition.CARD_RANGE_RETRIES;
+				delayKey = MPIConfigDefinition.CARD_RANGE_RETRY_DELAY;
+			}
+			try {
+				// Not configured means no directory retry, as it always did
+				Config cfg = Config.getConfigReference();
+				retries = Integer.parseInt((String) cfg.getConfigData(retriesKey));
+				delay = Long.parseLong((String) cfg.getConfigData(delayKey));
+			} catch (Exception e) {
+				logger.debug(name + " retries not configured. Defaults used.");
+			}
+			try {
+				Config cfg = Config.getConfigReference();
+				maxDelay =
+					Long.parseLong(
+						(String) cfg.getConfigData(MPIConfigDefinition.RETRY_MAX_DELAY));
+				jitter =
+					Integer.parseInt(
+						(String) cfg.getConfigData(MPIConfigDefinition.RETRY_JITTER));
+				budget =
+					Integer.parseInt(
+						(String) cfg.getConfigData(MPIConfigDefinition.RETRY_BUDGET));
+				budgetRatio =
+					Double.parseDouble(
+						(String) cfg.getConfigData(MPIConfigDefinition.RETRY_BUDGET_RATIO));
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve " + name + " retry configuration. Defaults used for missing items.",
+					e);
+			}
+			policy = new RetryPolicy(name, retries, delay, maxDelay, jitter, budget, budgetRatio);
+			instances.put(name, policy);
+		}
+		return policy;
+	}
+
+	/**
+	 * Replace a shared policy.
+	 * @param name The policy name
+	 * @param policy The new policy, null to rebuild it from the configuration on next use
+	 */
+	public static synchronized void setInstance(String name, RetryPolicy policy) {
+		if (policy == null)
+			instances.remove(name);
+		else
+			instances.put(name, policy);
+	}
+
+	/**
+	 * Returns the statistic of the shared policies.
+	 * @return Map of RetryStatisticResult by policy name
+	 */
+	public static synchronized Map getStatistics() {
+		Map result = new HashMap();
+		for (Iterator it = instances.values().iterator(); it.hasNext();) {
+			RetryPolicy policy = (RetryPolicy) it.next();
+			result.put(policy.getName(), policy.getStatistic());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the deadline of a merchant request starting now, after which
+	 * no retry is started on its behalf.
+	 * @return The deadline in millis, 0 if RequestDeadline is not configured
+	 */
+	public static long newRequestDeadline() {
+		long allowed;
+		synchronized (RetryPolicy.class) {
+			if (requestDeadline < 0) {
+				requestDeadline = DEFAULT_REQUEST_DEADLINE;
+				try {
+					requestDeadline =
+						Long.parseLong(
+							(String) Config.getConfigReference().getConfigData(
+								MPIConfigDefinition.REQUEST_DEADLINE));
+				} catch (Exception e) {
+					logger.error(
+						"Failed to retrieve request deadline configuration. Default used.",
+						e);
+				}
+			}
+			allowed = requestDeadline;
+		}
+		return (allowed > 0) ? System.currentTimeMillis() + allowed : 0;
+	}
+
+	/**
+	 * Set the time allowed to a merchant request.
+	 * @param deadline Time in millis, 0 for none, -1 to reload it from the configuration
+	 */
+	public static synchronized void setRequestDeadline(long deadline) {
+		requestDeadline = deadline;
+	}
+
+	/**
+	 * Called after a failed attempt of a request, to know whether and when
+	 * to retry it.
+	 * @param attempt Number of attempts made so far, starting at 1
+	 * @param deadline Time in millis after which no retry may start, 0 for none
+	 * @return The delay in millis before the next attempt, -1 not to retry
+	 */
+	public synchronized long retryDelay(int attempt, long deadline) {
+		tokens = Math.max(0, tokens - 1);
+		if (attempt > maxRetries) {
+			exhaustedCount++;
+			return -1;
+		}
+		if (budget > 0 && tokens <= budget / 2.0) {
+			budgetRefusedCount++;
+			logger.debug(name + " retry refused: retry budget spent.");
+			return -1;
+		}
+
+		long delay = baseDelay;
+		for (int i = 1; i < attempt && delay < maxDelay; i++)
+			delay *= 2;
+		delay = Math.min(delay, maxDelay);
+		delay -= (long) (random.nextDouble() * delay * jitter / 100);
+
+		if (deadline > 0 && System.currentTimeMillis() + delay >= deadline) {
+			deadlineRefusedCount++;
+			logger.debug(name + " retry refused: request deadline reached.");
+			return -1;
+		}
+		retryCount++;
+		return delay;
+	}
+
+	/**
+	 * Called once a request is over, whether it succeeded or not.
+	 * @param attempts Number of attempts made
+	 * @param success True if the last attempt succeeded
+	 */
+	public synchronized void completed(int attempts, boolean success) {
+		requestCount++;
+		attemptCount += attempts;
+		attemptCounts[Math.min(Math.max(attempts, 1), MAX_COUNTED_ATTEMPTS) - 1]++;
+		maxAttempts = Math.max(maxAttempts, attempts);
+		if (success)
+			tokens = Math.min(budget, tokens + budgetRatio);
+	}
+
+	/**
+	 * Returns the policy name.
+	 * @return String
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the maximum number of retries of a request.
+	 * @return int
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns the delay in millis before the first retry.
+	 * @return long
+	 */
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * Returns the retry tokens left.
+	 * @return double
+	 */
+	public synchronized double getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Returns the current statistic of this policy.
+	 * @return RetryStatisticResult
+	 */
+	public synchronized RetryStatisticResult getStatistic() {
+		RetryStatisticResult result = new RetryStatisticResult();
+		result.setName(name);
+		result.setRequestCount(requestCount);
+		result.setAttemptCount(attemptCount);
+		result.setRetryCount(retryCount);
+		result.setExhaustedCount(exhaustedCount);
+		result.setBudgetRefusedCount(budgetRefusedCount);
+		result.setDeadlineRefusedCount(deadlineRefusedCount);
+		result.setAttemptCounts((long[]) attemptCounts.clone());
+		result.setMaxAttempts(maxAttempts);
+		result.setTokens(tokens);
+		return result;
+	}
+}
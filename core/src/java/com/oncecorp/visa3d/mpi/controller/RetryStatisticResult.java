@@ -0,0 +1,240 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.controller;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Attempts and retries of the requests sent under one retry policy
+ *
+ * @version $Revision: 1 $
+ */
+public class RetryStatisticResult implements Serializable, Comparable {
+	private String name;
+	private long requestCount;
+	private long attemptCount;
+	private long retryCount;
+	private long exhaustedCount;
+	private long budgetRefusedCount;
+	private long deadlineRefusedCount;
+	private long[] attemptCounts;
+	private int maxAttempts;
+	private double tokens;
+
+	public int compareTo(Object o) {
+		return this.name.compareTo(((RetryStatisticResult) o).getName());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof RetryStatisticResult))
+			return false;
+		RetryStatisticResult result = (RetryStatisticResult) anObject;
+
+		return this.name.equals(result.getName())
+			&& (this.requestCount == result.getRequestCount())
+			&& (this.attemptCount == result.getAttemptCount())
+			&& (this.retryCount == result.getRetryCount())
+			&& (this.exhaustedCount == result.getExhaustedCount())
+			&& (this.budgetRefusedCount == result.getBudgetRefusedCount())
+			&& (this.deadlineRefusedCount == result.getDeadlineRefusedCount())
+			&& Arrays.equals(this.attemptCounts, result.getAttemptCounts())
+			&& (this.maxAttempts == result.getMaxAttempts())
+			&& (this.tokens == result.getTokens());
+	}
+
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	/**
+	 * Returns the retry policy name.
+	 * @return String
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of requests completed.
+	 * @return long
+	 */
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Returns the number of attempts of the completed requests.
+	 * @return long
+	 */
+	public long getAttemptCount() {
+		return attemptCount;
+	}
+
+	/**
+	 * Returns the average number of attempts per request.
+	 * @return double
+	 */
+	public double getAverageAttempts() {
+		return (requestCount == 0) ? 0 : (double) attemptCount / requestCount;
+	}
+
+	/**
+	 * Returns the number of retries granted.
+	 * @return long
+	 */
+	public long getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * Returns the number of retries refused because the request had none left.
+	 * @return long
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount;
+	}
+
+	/**
+	 * Returns the number of retries refused because the retry budget was spent.
+	 * @return long
+	 */
+	public long getBudgetRefusedCount() {
+		return budgetRefusedCount;
+	}
+
+	/**
+	 * Returns the number of retries refused because they would have started after the request deadline.
+	 * @return long
+	 */
+	public long getDeadlineRefusedCount() {
+		return deadlineRefusedCount;
+	}
+
+	/**
+	 * Returns the number of requests by number of attempts: index 0 for one attempt, the last index for that many attempts or more.
+	 * @return long[]
+	 */
+	public long[] getAttemptCounts() {
+		return attemptCounts;
+	}
+
+	/**
+	 * Returns the largest number of attempts of a request.
+	 * @return int
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns the retry tokens left.
+	 * @return double
+	 */
+	public double getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Sets the policy name.
+	 * @param name The name to set
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Sets the request count.
+	 * @param requestCount The requestCount to set
+	 */
+	public void setRequestCount(long requestCount) {
+		this.requestCount = requestCount;
+	}
+
+	/**
+	 * Sets the attempt count.
+	 * @param attemptCount The attemptCount to set
+	 */
+	public void setAttemptCount(long attemptCount) {
+		this.attemptCount = attemptCount;
+	}
+
+	/**
+	 * Sets the retry count.
+	 * @param retryCount The retryCount to set
+	 */
+	public void setRetryCount(long retryCount) {
+		this.retryCount = retryCount;
+	}
+
+	/**
+	 * Sets the exhausted count.
+	 * @param exhaustedCount The exhaustedCount to set
+	 */
+	public void setExhaustedCount(long exhaustedCount) {
+		this.exhaustedCount = exhaustedCount;
+	}
+
+	/**
+	 * Sets the budget refused count.
+	 * @param budgetRefusedCount The budgetRefusedCount to set
+	 */
+	public void setBudgetRefusedCount(long budgetRefusedCount) {
+		this.budgetRefusedCount = budgetRefusedCount;
+	}
+
+	/**
+	 * Sets the deadline refused count.
+	 * @param deadlineRefusedCount The deadlineRefusedCount to set
+	 */
+	public void setDeadlineRefusedCount(long deadlineRefusedCount) {
+		this.deadlineRefusedCount = deadlineRefusedCount;
+	}
+
+	/**
+	 * Sets the counts by number of attempts.
+	 * @param attemptCounts The attemptCounts to set
+	 */
+	public void setAttemptCounts(long[] attemptCounts) {
+		this.attemptCounts = attemptCounts;
+	}
+
+	/**
+	 * Sets the maximum number of attempts.
+	 * @param maxAttempts The maxAttempts to set
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Sets the tokens left.
+	 * @param tokens The tokens to set
+	 */
+	public void setTokens(double tokens) {
+		this.tokens = tokens;
+	}
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Immutable table routing a card number to its authentication protocol by
+ * the first digits of the card (the BIN).
+ *
+ * <p>The table is built from a list of rules separated by ';', each giving
+ * a prefix, or a range of prefixes, of up to 8 digits and the protocol of
+ * the cards starting with it, for instance
+ * <code>4=VISA 3D-Secure; 51-55=MasterCard SecureCode;
+ * 2221-2720=MasterCard SecureCode</code>. When rules overlap, the most
+ * specific one wins.</p>
+ *
+ * <p>Rules are flattened into disjoint ranges of 8 digit BINs held in
+ * sorted arrays, so that routing a card is a binary search over primitive
+ * values which does not allocate. Each range also carries the object
+ * attached to its protocol when the table was built, so that the caller
+ * gets both in one lookup.</p>
+ *
+ * @see com.oncecorp.visa3d.mpi.domain.CardRangeManager
+ * @version $Revision: 1 $
+ */
+public final class BinRoutingIndex {
+	/**
+	 * Number of card digits used for routing
+	 */
+	public static final int BIN_LENGTH = 8;
+
+	/**
+	 * Routing ranges, sorted and disjoint
+	 */
+	private final int[] lows;
+	private final int[] highs;
+	private final String[] protocols;
+	private final Object[] targets;
+
+	/**
+	 * The rules the table was built from
+	 */
+	private final String rules;
+
+	private BinRoutingIndex(
+		int[] lows,
+		int[] highs,
+		String[] protocols,
+		Object[] targets,
+		String rules) {
+		this.lows = lows;
+		this.highs = highs;
+		this.protocols = protocols;
+		this.targets = targets;
+		this.rules = rules;
+	}
+
+	/**
+	 * Build a table from its rules
+	 * @param rules The rules, separated by ';'
+	 * @param protocolTargets The object attached to each supported protocol,
+	 * by protocol name. Other protocols are rejected
+	 * @return The table
+	 * @throws IllegalArgumentException If a rule is invalid
+	 */
+	public static BinRoutingIndex build(String rules, Map protocolTargets) {
+		if (rules == null)
+			throw new IllegalArgumentException("No card scheme routing rules");
+
+		// Parse rules
+		ArrayList parsed = new ArrayList();
+		StringTokenizer st = new StringTokenizer(rules, ";");
+		while (st.hasMoreTokens()) {
+			String rule = st.nextToken().trim();
+			if (rule.length() == 0)
+				continue;
+			int eq = rule.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Missing protocol in routing rule: " + rule);
+			String prefixes = rule.substring(0, eq).trim();
+			String protocol = findProtocol(protocolTargets, rule.substring(eq + 1).trim());
+			if (protocol == null)
+				throw new IllegalArgumentException("Unsupported protocol in routing rule: " + rule);
+			Object target = protocolTargets.get(protocol);
+
+			int dash = prefixes.indexOf('-');
+			String low = (dash < 0) ? prefixes : prefixes.substring(0, dash).trim();
+			String high = (dash < 0) ? prefixes : prefixes.substring(dash + 1).trim();
+			int lowBin = padPrefix(low, '0', rule);
+			int highBin = padPrefix(high, '9', rule);
+			if (highBin < lowBin)
+				throw new IllegalArgumentException("Invalid prefix range in routing rule: " + rule);
+			parsed.add(new Object[] { new int[] { lowBin, highBin }, protocol, target });
+		}
+
+		// Cut the BIN space at each rule boundary
+		int[] bounds = new int[parsed.size() * 2];
+		for (int i = 0; i < parsed.size(); i++) {
+			int[] range = (int[]) ((Object[]) parsed.get(i))[0];
+			bounds[2 * i] = range[0];
+			bounds[2 * i + 1] = range[1] + 1;
+		}
+		Arrays.sort(bounds);
+
+		// Give each piece to the narrowest rule covering it, merging pieces
+		// of the same rule
+		int[] lows = new int[bounds.length];
+		int[] highs = new int[bounds.length];
+		String[] protocols = new String[bounds.length];
+		Object[] targets = new Object[bounds.length];
+		int size = 0;
+		for (int b = 0; b < bounds.length - 1; b++) {
+			int start = bounds[b];
+			int end = bounds[b + 1] - 1;
+			if (end < start)
+				continue;
+			Object[] best = null;
+			int bestWidth = Integer.MAX_VALUE;
+			for (int i = 0; i < parsed.size(); i++) {
+				Object[] rule = (Object[]) parsed.get(i);
+				int[] range = (int[]) rule[0];
+				if (range[0] <= start && end <= range[1] && range[1] - range[0] < bestWidth) {
+					best = rule;
+					bestWidth = range[1] - range[0];
+				}
+			}
+			if (best == null)
+				continue;
+			if (size > 0 && highs[size - 1] == start - 1 && targets[size - 1] == best[2]) {
+				highs[size - 1] = end;
+			} else {
+				lows[size] = start;
+				highs[size] = end;
+				protocols[size] = (String) best[1];
+				targets[size] = best[2];
+				size++;
+			}
+		}
+
+		int[] l = new int[size];
+		int[] h = new int[size];
+		String[] p = new String[size];
+		Object[] t = new Object[size];
+		System.arraycopy(lows, 0, l, 0, size);
+		System.arraycopy(highs, 0, h, 0, size);
+		System.arraycopy(protocols, 0, p, 0, size);
+		System.arraycopy(targets, 0, t, 0, size);
+		return new BinRoutingIndex(l, h, p, t, rules.trim());
+	}
+
+	private static String findProtocol(Map protocolTargets, String name) {
+		// Protocol names are matched ignoring case, as everywhere else
+		Object[] protocols = protocolTargets.keySet().toArray();
+		for (int i = 0; i < protocols.length; i++) {
+			if (((String) protocols[i]).equalsIgnoreCase(name))
+				return (String) protocols[i];
+		}
+		return null;
+	}
+
+	private static int padPrefix(String prefix, char pad, String rule) {
+		int length = prefix.length();
+		if (length == 0 || length > BIN_LENGTH)
+			throw new IllegalArgumentException("Invalid prefix in routing rule: " + rule);
+		int value = 0;
+		for (int i = 0; i < BIN_LENGTH; i++) {
+			char c = (i < length) ? prefix.charAt(i) : pad;
+			if (c < '0' || c > '9')
+				throw new IllegalArgumentException("Invalid prefix in routing rule: " + rule);
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Find the routing range of a card
+	 * @param card The card number
+	 * @return The range, -1 if the card is not routed
+	 */
+	public int find(String card) {
+		if (card == null)
+			return -1;
+		int length = card.length();
+		int bin = 0;
+		for (int i = 0; i < BIN_LENGTH; i++) {
+			int digit = 0;
+			if (i < length) {
+				digit = card.charAt(i) - '0';
+				if (digit < 0 || digit > 9)
+					return -1;
+			}
+			bin = bin * 10 + digit;
+		}
+
+		int low = 0;
+		int high = lows.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (lows[mid] <= bin)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return ((high >= 0) && (bin <= highs[high])) ? high : -1;
+	}
+
+	/**
+	 * Returns the protocol of a card
+	 * @param card The card number
+	 * @return The protocol, null if the card is not routed
+	 */
+	public String getProtocol(String card) {
+		int range = find(card);
+		return (range < 0) ? null : protocols[range];
+	}
+
+	/**
+	 * Returns the protocol of a routing range
+	 * @param range The range, as returned by find()
+	 * @return String
+	 */
+	public String getProtocol(int range) {
+		return protocols[range];
+	}
+
+	/**
+	 * Returns the object attached to the protocol of a routing range
+	 * @param range The range, as returned by find()
+	 * @return Object
+	 */
+	public Object getTarget(int range) {
+		return targets[range];
+	}
+
+	/**
+	 * Returns the number of routing ranges, once flattened
+	 * @return int
+	 */
+	public int size() {
+		return lows.length;
+	}
+
+	/**
+	 * Returns the rules the table was built from
+	 * @return String
+	 */
+	public String getRules() {
+		return rules;
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.domain;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable set of card ranges of one authentication protocol, searched by
+ * card number.
+ *
+ * <p>Ranges are kept as two sorted <code>long</code> arrays of begins and
+ * ends, overlapping and adjacent ranges merged, so that looking a card up
+ * is a binary search which neither locks nor allocates. A new index is
+ * built for every card range update and published as a whole, readers
+ * never see a half-updated range set.</p>
+ *
+ * @see com.oncecorp.visa3d.mpi.domain.CardRangeManager
+ * @version $Revision: 1 $
+ */
+public final class CardRangeIndex {
+	/**
+	 * Index without any range
+	 */
+	public static final CardRangeIndex EMPTY = new CardRangeIndex(new long[0], new long[0]);
+
+	/**
+	 * Orders {begin, end} pairs by begin
+	 */
+	private static final Comparator BY_BEGIN = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			long b1 = ((long[]) o1)[0];
+			long b2 = ((long[]) o2)[0];
+			return (b1 < b2) ? -1 : ((b1 == b2) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Merged ranges, sorted
+	 */
+	private final long[] begins;
+	private final long[] ends;
+
+	private CardRangeIndex(long[] begins, long[] ends) {
+		this.begins = begins;
+		this.ends = ends;
+	}
+
+	/**
+	 * Build an index from the card ranges received from the directory
+	 * @param rangeBegins The range begins, as Long
+	 * @param rangeEnds The range ends, as Long, same order as the begins
+	 * @return The index
+	 */
+	public static CardRangeIndex build(Object[] rangeBegins, Object[] rangeEnds) {
+		int count = Math.min(rangeBegins.length, rangeEnds.length);
+		long[][] ranges = new long[count][];
+		int valid = 0;
+		for (int i = 0; i < count; i++) {
+			long begin = ((Long) rangeBegins[i]).longValue();
+			long end = ((Long) rangeEnds[i]).longValue();
+			// A range ending before it begins holds no card
+			if (end >= begin)
+				ranges[valid++] = new long[] { begin, end };
+		}
+		if (valid == 0)
+			return EMPTY;
+		if (valid < count) {
+			long[][] trimmed = new long[valid][];
+			System.arraycopy(ranges, 0, trimmed, 0, valid);
+			ranges = trimmed;
+		}
+		Arrays.sort(ranges, BY_BEGIN);
+
+		long[] begins = new long[valid];
+		long[] ends = new long[valid];
+		int size = 0;
+		for (int i = 0; i < valid; i++) {
+			long begin = ranges[i][0];
+			long end = ranges[i][1];
+			if (size > 0 && ends[size - 1] != Long.MAX_VALUE && begin <= ends[size - 1] + 1) {
+				if (end > ends[size - 1])
+					ends[size - 1] = end;
+			} else {
+				begins[size] = begin;
+				ends[size] = end;
+				size++;
+			}
+		}
+		if (size < valid) {
+			long[] b = new long[size];
+			long[] e = new long[size];
+			System.arraycopy(begins, 0, b, 0, size);
+			System.arraycopy(ends, 0, e, 0, size);
+			begins = b;
+			ends = e;
+		}
+		return new CardRangeIndex(begins, ends);
+	}
+
+	/**
+	 * Check whether a card is in one of the ranges
+	 * @param card The card number
+	 * @return True if the card is in a range
+	 */
+	public boolean contains(long card) {
+		int low = 0;
+		int high = begins.length - 1;
+		// Find the last range beginning at or before the card
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (begins[mid] <= card)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return (high >= 0) && (card <= ends[high]);
+	}
+
+	/**
+	 * Check whether a card is in one of the ranges
+	 * @param card The card number
+	 * @return True if the card is in a range, false if it is not a number
+	 */
+	public boolean contains(String card) {
+		long cardNumber = parseCard(card);
+		return (cardNumber >= 0) && contains(cardNumber);
+	}
+
+	/**
+	 * Convert a card number without creating objects
+	 * @param card The card number
+	 * @return The number, -1 if it is not made of digits or is too large
+	 */
+	public static long parseCard(String card) {
+		int length = card.length();
+		if (length == 0)
+			return -1;
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = card.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			if (value > (Long.MAX_VALUE - digit) / 10)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the number of ranges once merged
+	 * @return int
+	 */
+	public int size() {
+		return begins.length;
+	}
+
+	/**
+	 * Returns the begin of a merged range
+	 * @param i The range index
+	 * @return long
+	 */
+	public long getBegin(int i) {
+		return begins[i];
+	}
+
+	/**
+	 * Returns the end of a merged range
+	 * @param i The range index
+	 * @return long
+	 */
+	public long getEnd(int i) {
+		return ends[i];
+	}
+}
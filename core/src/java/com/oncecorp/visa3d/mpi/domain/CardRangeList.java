@@ -41,10 +41,10 @@ import java.util.TreeSet;
 public class CardRangeList {
 
 	/**
-	 * Card range cache
+	 * Card range cache, replaced as a whole on each refresh. Null until
+	 * card ranges are received
 	 */
-	private Long[] begins;
-	private Long[] ends;
+	private volatile CardRangeIndex index;
 
 	/**
 	 * Buffered card range. Used only when receiving a new set of ranges. Will be synchronized
@@ -57,12 +57,12 @@ public class CardRangeList {
 	/**
 	 * Cache load flag
 	 */
-	private boolean cardRangeLoaded;
+	private volatile boolean cardRangeLoaded;
 
 	/**
 	 * Cache serialNumber
 	 */
-	private String serialNumber;
+	private volatile String serialNumber;
 
 	/**
 	 * @return TreeSet
@@ -85,13 +85,6 @@ public class CardRangeList {
 		return cardRangeLoaded;
 	}
 
-	/**
-	 * @return Long[]
-	 */
-	public Long[] getEnds() {
-		return ends;
-	}
-
 	/**
 	 * @return String
 	 */
@@ -123,14 +116,6 @@ public class CardRangeList {
 		this.cardRangeLoaded = cardRangeLoaded;
 	}
 
-	/**
-	 * Sets the ends.
-	 * @param ends The ends to set
-	 */
-	public void setEnds(Long[] ends) {
-		this.ends = ends;
-	}
-
 	/**
 	 * Sets the serialNumber.
 	 * @param serialNumber The serialNumber to set
@@ -139,18 +124,18 @@ public class CardRangeList {
 		this.serialNumber = serialNumber;
 	}
 	/**
-	 * @return Long[]
+	 * @return CardRangeIndex, null if no card range was received
 	 */
-	public Long[] getBegins() {
-		return begins;
+	public CardRangeIndex getIndex() {
+		return index;
 	}
 
 	/**
-	 * Sets the begins.
-	 * @param begins The begins to set
+	 * Sets the index.
+	 * @param index The index to set
 	 */
-	public void setBegins(Long[] begins) {
-		this.begins = begins;
+	public void setIndex(CardRangeIndex index) {
+		this.index = index;
 	}
 
 }
@@ -24,14 +24,19 @@
 
 package com.oncecorp.visa3d.mpi.domain;
 
+import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 
 import org.apache.log4j.Logger;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeSet;
 
 /**
- * Manages cached card range. The cache is synchronized but only blocked during refreshing.
+ * Manages cached card range. Each protocol publishes its card ranges as an
+ * immutable CardRangeIndex, so verification never blocks and refreshing
+ * replaces the whole range set at once.
  * This class provides card number verification as well. 
  * 
  * @version 0.1 Oct 17, 2002
@@ -46,50 +51,48 @@ public class CardRangeManager {
 	/**
 	 * The card range for each authentication protocol
 	 */
-	private static CardRangeList visaList = new CardRangeList();
-	private static CardRangeList secureCodeList = new CardRangeList();
+	private static final CardRangeList visaList = new CardRangeList();
+	private static final CardRangeList secureCodeList = new CardRangeList();
 
 	/**
-	 * Cache Lock
+	 * Default card scheme routing
 	 */
-	private static boolean available = true; // Indicate if we can refresh the master copy of card ranges
+	public static final String DEFAULT_ROUTING =
+		"4=" + MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE
+			+ "; 5=" + MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE
+			+ "; 2221-2720=" + MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE;
+
+	/**
+	 * Card scheme routing, replaced as a whole on update. Null until loaded
+	 * from the configuration
+	 */
+	private static volatile BinRoutingIndex routing;
 
 	/**
 	 * Refresh cached card range. This will be called by CRRes message processor whenever new card
 	 * range updates received. The processor updates card range in buffered cache and calls this method 
 	 * to refresh main cache.
 	 */
-	public synchronized void refresh(String aProtocolType) {
+	public void refresh(String aProtocolType) {
 
 		CardRangeList protocolRangeList = getWorkingList(aProtocolType);
 
-		while (!available) {
-			try {
-				logger.debug("Acquire lock to refresh Card Range Cache...");
-				wait();
+		// Refreshers of the same protocol build their index one after the other,
+		// readers keep using the previous index meanwhile
+		synchronized (protocolRangeList) {
+			logger.debug("Start refreshing Card Range Cache...");
+
+			if (protocolRangeList.getBufferedBegins() != null) {
+				protocolRangeList.setIndex(
+					CardRangeIndex.build(
+						protocolRangeList.getBufferedBegins().toArray(),
+						protocolRangeList.getBufferedEnds().toArray()));
 			}
-			catch (InterruptedException ie) {
-				logger.debug("refresh() thread interrupted by  other thread.");
+			else {
+				protocolRangeList.setIndex(null);
 			}
+			logger.debug("Refreshing finished.");
 		}
-
-		available = false;
-		logger.debug("Lock obtained. Start refreshing Card Range Cache...");
-
-		if (protocolRangeList.getBufferedBegins() != null) {
-			protocolRangeList.setBegins(castToLongArray(protocolRangeList.getBufferedBegins().toArray()));
-			protocolRangeList.setEnds(castToLongArray(protocolRangeList.getBufferedEnds().toArray()));
-		}
-		else {
-			protocolRangeList.setBegins(null);
-			protocolRangeList.setEnds(null);
-		}
-		logger.debug("Refreshing finished.");
-
-		available = true;
-		logger.debug("Lock released by refresher.");
-		notifyAll();
-
 	}
 
 	private static CardRangeList getWorkingList(String aProtocolType) {
@@ -112,21 +115,17 @@ public class CardRangeManager {
 	 */
 	public boolean verifyCard(String card) {
 		// Retrieve the proper list for the type of card we are dealing with	
-		CardRangeList protocolList = null;
-		if (card.startsWith("4")) {
-			protocolList = getWorkingList(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE);
-		}
-		else if (card.startsWith("5")) {
-			protocolList = getWorkingList(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE);
-		}
-		else {
+		BinRoutingIndex cardRouting = getRouting();
+		int route = cardRouting.find(card);
+		if (route < 0) {
 			// Unknown card, verification fails automatically
 			return false;
 		}
+		CardRangeList protocolList = (CardRangeList) cardRouting.getTarget(route);
 
-		logger.debug("Starting verifying card " + card + "...");
 		//Check CR load status
-		if (protocolList.getBegins() == null) {
+		CardRangeIndex index = protocolList.getIndex();
+		if (index == null) {
 			if (protocolList.isCardRangeLoaded()) {
 				logger.debug("Card Range loaded with NULL value. Skip card range verification.");
 				return true;
@@ -138,50 +137,83 @@ public class CardRangeManager {
 			}
 		}
 
-		Long[] begins = protocolList.getBegins();
-		Long[] ends   = protocolList.getEnds();
-		Long cardNumber = Long.valueOf(card);
-		int size = begins.length;
-		int index = size / 2;
-		int factor = index / 2;
+		boolean inRange = index.contains(card);
+		if (logger.isDebugEnabled())
+			logger.debug("Card is " + (inRange ? "in range." : "not in any cached range."));
+		return inRange;
+	}
 
-		while (true) {
-			if ((cardNumber.compareTo(begins[index]) >= 0)
-				&& ((index == (size - 1)) || (cardNumber.compareTo(begins[index + 1]) < 0))) {
-				logger.debug("Narrow to card range [" + index + "] :" + begins[index] + " to " + ends[index]);
+	/**
+	 * Returns the authentication protocol of a card
+	 * 
+	 * @param card The card number
+	 * @return The protocol, null if no protocol handles the card
+	 */
+	public static String getProtocolType(String card) {
+		return getRouting().getProtocol(card);
+	}
 
-				if (cardNumber.compareTo(ends[index]) <= 0) {
-					logger.debug("Card [" + card + "] is in range.");
-					return true;
-				}
-				else {
-					logger.debug("Card [" + card + "] is not in any cached range.");
-					return false;
+	/**
+	 * Returns the card scheme routing, loading it from the configuration
+	 * on first use
+	 * @return BinRoutingIndex
+	 */
+	public static BinRoutingIndex getRouting() {
+		BinRoutingIndex current = routing;
+		if (current == null) {
+			synchronized (CardRangeManager.class) {
+				if (routing == null) {
+					String rules = null;
+					try {
+						rules =
+							(String) Config.getConfigReference().getConfigData(
+								MPIConfigDefinition.CARD_SCHEME_ROUTING);
+					}
+					catch (Exception e) {
+						logger.error("Failed to retrieve card scheme routing. Default used.", e);
+					}
+					if ((rules == null) || (rules.trim().length() == 0)) {
+						rules = DEFAULT_ROUTING;
+					}
+					try {
+						routing = buildRouting(rules);
+					}
+					catch (IllegalArgumentException iae) {
+						logger.error("Invalid card scheme routing. Default used: " + iae.getMessage());
+						routing = buildRouting(DEFAULT_ROUTING);
+					}
+					logger.info("Card scheme routing: " + routing.getRules());
 				}
+				current = routing;
 			}
-			else {
-				if (cardNumber.compareTo(begins[index]) < 0) {
-					if (factor != 0)
-						index -= factor;
-					else
-						index -= 1;
-				}
-				else {
-					if (factor != 0)
-						index += factor;
-					else
-						index += 1;
-				}
-
-				if (factor != 0)
-					factor /= 2;
+		}
+		return current;
+	}
 
-				if ((index < 0) || (index == size)) {
-					logger.debug("Card [" + card + "] is not in any cached range.");
-					return false;
-				}
-			}
+	/**
+	 * Replace the card scheme routing, without restarting
+	 * @param rules The routing rules, empty for the default ones, null to
+	 * load them again from the configuration
+	 * @throws IllegalArgumentException If the rules are invalid, the routing
+	 * is then unchanged
+	 */
+	public static void setRouting(String rules) {
+		if ((rules != null) && (rules.trim().length() == 0)) {
+			rules = DEFAULT_ROUTING;
+		}
+		BinRoutingIndex newRouting = (rules == null) ? null : buildRouting(rules);
+		synchronized (CardRangeManager.class) {
+			routing = newRouting;
 		}
+		if (newRouting != null)
+			logger.info("Card scheme routing updated: " + newRouting.getRules());
+	}
+
+	private static BinRoutingIndex buildRouting(String rules) {
+		Map lists = new HashMap();
+		lists.put(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE, visaList);
+		lists.put(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE, secureCodeList);
+		return BinRoutingIndex.build(rules, lists);
 	}
 
 	/**
@@ -248,15 +280,4 @@ public class CardRangeManager {
 		getWorkingList(aProtocolType).setSerialNumber(serialNumber);
 	}
 
-	private Long[] castToLongArray(Object[] array) {
-		if (array == null)
-			return null;
-		Long[] newArray = new Long[array.length];
-		for (int i = 0; i < array.length; i++) {
-			newArray[i] = (Long) array[i];
-		}
-
-		return newArray;
-	}
-
 }
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.domain;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+/**
+ * Local copy of the card ranges applied for each protocol, so that a
+ * restarted server verifies cards from its first request and only asks the
+ * directory for the updates made since the saved serialNumber.
+ *
+ * <p>Each protocol has its own file in the CardRangeSnapshotDirectory,
+ * rewritten after each card range update: a header (magic, version, range
+ * count, save time, serialNumber), the range begins and ends as longs and
+ * a CRC32 of all of it. Files are written next to their final name and
+ * renamed, and read through a memory mapping. A file which is truncated,
+ * of another version or fails the CRC check is deleted, and the card
+ * ranges are then fetched in full as if there were no snapshot.</p>
+ *
+ * @see com.oncecorp.visa3d.mpi.domain.CardRangeManager
+ * @version $Revision: 1 $
+ */
+public class CardRangeSnapshot {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(CardRangeSnapshot.class.getName());
+
+	/**
+	 * File format
+	 */
+	private static final int MAGIC = 0x43525331; // "CRS1"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 2;
+	private static final int CRC_SIZE = 8;
+	private static final String FILE_SUFFIX = ".crs";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * Shared snapshot built from the MPI configuration
+	 */
+	private static CardRangeSnapshot instance;
+
+	/**
+	 * Snapshot directory, null when disabled
+	 */
+	private File directory;
+
+	/**
+	 * Constructor
+	 * @param directory The snapshot directory, null to disable snapshots
+	 */
+	public CardRangeSnapshot(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the shared snapshot, built from the MPI configuration on first use
+	 * @return The snapshot
+	 */
+	public static synchronized CardRangeSnapshot getInstance() {
+		if (instance == null) {
+			String dir = null;
+			try {
+				dir =
+					(String) Config.getConfigReference().getConfigData(
+						MPIConfigDefinition.CARD_RANGE_SNAPSHOT_DIRECTORY);
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve card range snapshot configuration. Snapshots disabled.",
+					e);
+			}
+			if ((dir == null) || (dir.trim().length() == 0)) {
+				logger.info("No card range snapshot directory configured, snapshots disabled.");
+				instance = new CardRangeSnapshot(null);
+			} else {
+				instance = new CardRangeSnapshot(new File(dir.trim()));
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared snapshot, null to build it again from the configuration
+	 * @param snapshot The new snapshot
+	 */
+	public static synchronized void setInstance(CardRangeSnapshot snapshot) {
+		instance = snapshot;
+	}
+
+	/**
+	 * Check whether snapshots are saved
+	 * @return boolean
+	 */
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	/**
+	 * Save the card ranges currently applied for a protocol
+	 * @param aProtocolType The protocol
+	 * @return true if saved
+	 */
+	public boolean save(String aProtocolType) {
+		if (directory == null)
+			return false;
+		TreeSet begins = CardRangeManager.getBufferedBegins(aProtocolType);
+		TreeSet ends = CardRangeManager.getBufferedEnds(aProtocolType);
+		String serialNumber = CardRangeManager.getSerialNumber(aProtocolType);
+		if ((begins == null) || (ends == null) || (serialNumber == null)) {
+			delete(aProtocolType);
+			return false;
+		}
+
+		File file = file(aProtocolType);
+		File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+		RandomAccessFile out = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Cannot create card range snapshot directory " + directory);
+
+			byte[] serial = serialNumber.getBytes("UTF-8");
+			int count = begins.size();
+			ByteBuffer buffer =
+				ByteBuffer.allocate(HEADER_SIZE + serial.length + count * 16 + CRC_SIZE);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(count);
+			buffer.putLong(System.currentTimeMillis());
+			buffer.putShort((short) serial.length);
+			buffer.put(serial);
+			for (Iterator it = begins.iterator(); it.hasNext();)
+				buffer.putLong(((Long) it.next()).longValue());
+			for (Iterator it = ends.iterator(); it.hasNext();)
+				buffer.putLong(((Long) it.next()).longValue());
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), 0, buffer.position());
+			buffer.putLong(crc.getValue());
+
+			out = new RandomAccessFile(temp, "rw");
+			out.setLength(0);
+			out.write(buffer.array());
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot rename " + temp + " to " + file);
+			}
+			logger.debug(
+				"Card range snapshot saved for " + aProtocolType + ": " + count
+					+ " ranges, serialNumber " + serialNumber);
+			return true;
+		} catch (Exception e) {
+			logger.error("Failed to save card range snapshot for " + aProtocolType, e);
+			temp.delete();
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply the saved card ranges of a protocol, unless card ranges were
+	 * already received
+	 * @param aProtocolType The protocol
+	 * @return true if restored
+	 */
+	public boolean restore(String aProtocolType) {
+		if ((directory == null) || CardRangeManager.isCardRangeLoaded(aProtocolType))
+			return false;
+		File file = file(aProtocolType);
+		if (!file.isFile())
+			return false;
+
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			if (length < HEADER_SIZE + CRC_SIZE || length > Integer.MAX_VALUE)
+				throw new IOException("Invalid length " + length);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a card range snapshot");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version " + version);
+			int count = buffer.getInt();
+			long savedTime = buffer.getLong();
+			int serialLength = buffer.getShort() & 0xffff;
+			if (count < 0
+				|| length != HEADER_SIZE + serialLength + (long) count * 16 + CRC_SIZE)
+				throw new IOException("Truncated or invalid length " + length);
+
+			// Check the CRC before using anything
+			byte[] content = new byte[(int) length - CRC_SIZE];
+			buffer.position(0);
+			buffer.get(content);
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			if (buffer.getLong() != crc.getValue())
+				throw new IOException("CRC check failed");
+
+			buffer.position(HEADER_SIZE);
+			byte[] serial = new byte[serialLength];
+			buffer.get(serial);
+			TreeSet begins = new TreeSet();
+			TreeSet ends = new TreeSet();
+			for (int i = 0; i < count; i++)
+				begins.add(new Long(buffer.getLong()));
+			for (int i = 0; i < count; i++)
+				ends.add(new Long(buffer.getLong()));
+			in.close();
+			in = null;
+
+			String serialNumber = new String(serial, "UTF-8");
+			CardRangeManager.setSerialNumber(aProtocolType, serialNumber);
+			CardRangeManager.setBufferedBegins(aProtocolType, begins);
+			CardRangeManager.setBufferedEnds(aProtocolType, ends);
+			(new CardRangeManager()).refresh(aProtocolType);
+			CardRangeManager.setCardRangeLoaded(aProtocolType, true);
+			logger.info(
+				"Card ranges restored for " + aProtocolType + ": " + count
+					+ " ranges, serialNumber " + serialNumber + ", saved "
+					+ ((System.currentTimeMillis() - savedTime) / 1000) + " s ago.");
+			return true;
+		} catch (Exception e) {
+			logger.warn(
+				"Invalid card range snapshot " + file + ", card ranges will be fetched in full: "
+					+ e.getMessage());
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ioe) {
+				}
+			}
+			file.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Remove the saved card ranges of a protocol, after its card ranges
+	 * were reset
+	 * @param aProtocolType The protocol
+	 */
+	public void delete(String aProtocolType) {
+		if (directory != null)
+			file(aProtocolType).delete();
+	}
+
+	/**
+	 * Returns the snapshot file of a protocol
+	 * @param aProtocolType The protocol
+	 * @return File
+	 */
+	File file(String aProtocolType) {
+		StringBuffer name = new StringBuffer(aProtocolType.length() + FILE_SUFFIX.length());
+		for (int i = 0; i < aProtocolType.length(); i++) {
+			char c = aProtocolType.charAt(i);
+			name.append(Character.isLetterOrDigit(c) ? c : '_');
+		}
+		return new File(directory, name.append(FILE_SUFFIX).toString());
+	}
+}
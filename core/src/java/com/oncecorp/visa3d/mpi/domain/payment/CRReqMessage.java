@@ -30,6 +30,7 @@ import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageValidator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -189,42 +190,9 @@ public class CRReqMessage extends Message {
 	 */
 	public String toString() {
 		try {
-			StringBuffer sb = new StringBuffer();
-
-			sb.append(
-				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-					+ "<ThreeDSecure>"
-					+ "<Message id=\"");
-
-			sb.append(XMLUtil.filterSpecialChars(getId()));
-			sb.append("\"><CRReq><version>");
-			sb.append(XMLUtil.filterSpecialChars(getVersion()));
-			sb.append("</version><Merchant><acqBIN>");
-			sb.append(XMLUtil.filterSpecialChars(getMerchantAcqBIN()));
-			sb.append("</acqBIN><merID>");
-			sb.append(XMLUtil.filterSpecialChars(getMerchantID()));
-			sb.append("</merID>");
-			
-			// Add password if specified (optional)
-			if (isNotNull(getMerchantPassword())) {
-				sb.append("<password>");
-				sb.append(XMLUtil.filterSpecialChars(getMerchantPassword()));
-				sb.append("</password>");
-			}	
-			
-			sb.append("</Merchant>");
-
-			// add serial number (Optional)
-			if ((getSerialNumber() != null)
-				&& (getSerialNumber().length() != 0)) {
-				sb.append("<serialNumber>");
-				sb.append(XMLUtil.filterSpecialChars(getSerialNumber()));
-				sb.append("</serialNumber>");
-			}
-
-			sb.append("</CRReq></Message></ThreeDSecure>");
-
-			return sb.toString();
+			XMLWriter out = new XMLWriter();
+			writeXML(out);
+			return out.toString();
 		} catch (Exception e) {
 			this.logger.error(
 				"Failed to convert CRReq message to XML string.",
@@ -233,6 +201,46 @@ public class CRReqMessage extends Message {
 		}
 	}
 
+	/**
+	 * XMLSerializable interface method: writes the CRReq message as
+	 * UTF-8 encoded XML without building intermediate strings.
+	 * @param out The writer receiving the message
+	 */
+	public void writeXML(XMLWriter out) throws Exception {
+		out.markup(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ThreeDSecure>"
+				+ "<Message id=\"");
+
+		out.text(getId());
+		out.markup("\"><CRReq><version>");
+		out.text(getVersion());
+		out.markup("</version><Merchant><acqBIN>");
+		out.text(getMerchantAcqBIN());
+		out.markup("</acqBIN><merID>");
+		out.text(getMerchantID());
+		out.markup("</merID>");
+		
+		// Add password if specified (optional)
+		if (isNotNull(getMerchantPassword())) {
+			out.markup("<password>");
+			out.text(getMerchantPassword());
+			out.markup("</password>");
+		}	
+		
+		out.markup("</Merchant>");
+
+		// add serial number (Optional)
+		if ((getSerialNumber() != null)
+			&& (getSerialNumber().length() != 0)) {
+			out.markup("<serialNumber>");
+			out.text(getSerialNumber());
+			out.markup("</serialNumber>");
+		}
+
+		out.markup("</CRReq></Message></ThreeDSecure>");
+	}
+
 	/**
 	 * Validate message attributes against Visa 3-D DTD definition.
 	 * 
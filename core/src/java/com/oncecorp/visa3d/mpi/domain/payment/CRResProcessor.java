@@ -30,6 +30,7 @@ import com.oncecorp.visa3d.mpi.controller.ErrorHandlerThreadManager;
 import com.oncecorp.visa3d.mpi.controller.ErrorRequest;
 import com.oncecorp.visa3d.mpi.domain.CardRange;
 import com.oncecorp.visa3d.mpi.domain.CardRangeManager;
+import com.oncecorp.visa3d.mpi.domain.CardRangeSnapshot;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
@@ -153,6 +154,9 @@ public class CRResProcessor implements MessageProcessor {
 
 			logger.debug("Set cardRangeLoaded to true.");
 			CardRangeManager.setCardRangeLoaded(crresProtocol, true);
+
+			//Keep the applied card ranges for the next start
+			CardRangeSnapshot.getInstance().save(crresProtocol);
 		}
 
 		//return message itself
@@ -170,6 +174,7 @@ public class CRResProcessor implements MessageProcessor {
 			CardRangeManager.setBufferedEnds(crresProtocol, null);
 			CardRangeManager.setCardRangeLoaded(crresProtocol, false);
 			(new CardRangeManager()).refresh(crresProtocol);
+			CardRangeSnapshot.getInstance().delete(crresProtocol);
 			logger.info("CR has been reset.");
 
 			//Send notification error message to visa dir
@@ -29,6 +29,7 @@ import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageValidator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -314,38 +315,45 @@ public class ErrorMessage extends Message {
 	 */
 	public String toString() {
 		try {
-			StringBuffer sb = new StringBuffer();
-
-			sb.append(
-				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-					+ "<ThreeDSecure>"
-					+ "<Message id=\"");
-
-			sb.append(XMLUtil.filterSpecialChars(getId()));
-			sb.append("\"><Error><version>");
-			sb.append(XMLUtil.filterSpecialChars(getVersion()));
-			sb.append("</version><errorCode>");
-			sb.append(XMLUtil.filterSpecialChars(getErrorCode()));
-			sb.append("</errorCode><errorMessage>");
-			sb.append(XMLUtil.filterSpecialChars(getErrorMessage()));
-			sb.append("</errorMessage><errorDetail>");
-			sb.append(XMLUtil.filterSpecialChars(getErrorDetail()));
-			sb.append("</errorDetail>");
-
-			// add vendorCode (Optional)
-			if ((getVendorCode() != null) && (getVendorCode().length() != 0)) {
-				sb.append("<vendorCode>");
-				sb.append(XMLUtil.filterSpecialChars(getVendorCode()));
-				sb.append("</vendorCode>");
-			}
-
-			sb.append("</Error></Message></ThreeDSecure>");
-
-			return sb.toString();
+			XMLWriter out = new XMLWriter();
+			writeXML(out);
+			return out.toString();
 		} catch (Exception e) {
 			logger.error("Failed to convert Error message to XML string.", e);
 			return null;
 		}
 
 	}
+
+	/**
+	 * XMLSerializable interface method: writes the Error message as
+	 * UTF-8 encoded XML without building intermediate strings.
+	 * @param out The writer receiving the message
+	 */
+	public void writeXML(XMLWriter out) throws Exception {
+		out.markup(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ThreeDSecure>"
+				+ "<Message id=\"");
+
+		out.text(getId());
+		out.markup("\"><Error><version>");
+		out.text(getVersion());
+		out.markup("</version><errorCode>");
+		out.text(getErrorCode());
+		out.markup("</errorCode><errorMessage>");
+		out.text(getErrorMessage());
+		out.markup("</errorMessage><errorDetail>");
+		out.text(getErrorDetail());
+		out.markup("</errorDetail>");
+
+		// add vendorCode (Optional)
+		if ((getVendorCode() != null) && (getVendorCode().length() != 0)) {
+			out.markup("<vendorCode>");
+			out.text(getVendorCode());
+			out.markup("</vendorCode>");
+		}
+
+		out.markup("</Error></Message></ThreeDSecure>");
+	}
 }
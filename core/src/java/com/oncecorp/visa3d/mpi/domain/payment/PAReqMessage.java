@@ -31,6 +31,7 @@ import com.oncecorp.visa3d.mpi.messaging.MessageValidator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
 import com.oncecorp.visa3d.mpi.utility.URLValidator;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -524,100 +525,107 @@ public class PAReqMessage extends Message {
 	 */
 	public String toString() {
 		try {
-			StringBuffer sb = new StringBuffer();
-
-			sb.append(
-				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-					+ "<ThreeDSecure>"
-					+ "<Message id=\"");
-
-			sb.append(XMLUtil.filterSpecialChars(getId()));
-			sb.append("\"><PAReq><version>");
-			sb.append(XMLUtil.filterSpecialChars(getVersion()));
-			sb.append("</version><Merchant><acqBIN>");
-			sb.append(XMLUtil.filterSpecialChars(getMerAcqBIN()));
-			sb.append("</acqBIN><merID>");
-			sb.append(XMLUtil.filterSpecialChars(getMerID()));
-			sb.append("</merID><name>");
-			sb.append(XMLUtil.filterSpecialChars(getMerName()));
-			sb.append("</name><country>");
-			sb.append(XMLUtil.filterSpecialChars(getMerCountry()));
-			sb.append("</country><url>");
-			sb.append(XMLUtil.filterSpecialChars(getMerURL()));
-			sb.append("</url></Merchant><Purchase><xid>");
-			sb.append(XMLUtil.filterSpecialChars(getPurXid()));
-			sb.append("</xid><date>");
-			sb.append(XMLUtil.filterSpecialChars(getPurDate()));
-			sb.append("</date><amount>");
-			sb.append(XMLUtil.filterSpecialChars(getPurDispAmount()));
-			sb.append("</amount><purchAmount>");
-			sb.append(XMLUtil.filterSpecialChars(getPurAmount()));
-			sb.append("</purchAmount><currency>");
-			sb.append(XMLUtil.filterSpecialChars(getPurCurrency()));
-			sb.append("</currency><exponent>");
-			sb.append(XMLUtil.filterSpecialChars(getPurExponent()));
-			sb.append("</exponent>");
-
-			// add purchase description (Optional)
-			if (isNotNull(getPurDesc())) {
-				sb.append("<desc>");
-				sb.append(XMLUtil.filterSpecialChars(getPurDesc()));
-				sb.append("</desc>");
-			}
+			XMLWriter out = new XMLWriter();
+			writeXML(out);
+			return out.toString();
+		} catch (Exception e) {
+			logger.error("Failed to convert PAReq message to XML string.", e);
+			return null;
+		}
+
+	}
+
+	/**
+	 * XMLSerializable interface method: writes the PAReq message as
+	 * UTF-8 encoded XML without building intermediate strings.
+	 * @param out The writer receiving the message
+	 */
+	public void writeXML(XMLWriter out) throws Exception {
+		out.markup(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ThreeDSecure>"
+				+ "<Message id=\"");
+
+		out.text(getId());
+		out.markup("\"><PAReq><version>");
+		out.text(getVersion());
+		out.markup("</version><Merchant><acqBIN>");
+		out.text(getMerAcqBIN());
+		out.markup("</acqBIN><merID>");
+		out.text(getMerID());
+		out.markup("</merID><name>");
+		out.text(getMerName());
+		out.markup("</name><country>");
+		out.text(getMerCountry());
+		out.markup("</country><url>");
+		out.text(getMerURL());
+		out.markup("</url></Merchant><Purchase><xid>");
+		out.text(getPurXid());
+		out.markup("</xid><date>");
+		out.text(getPurDate());
+		out.markup("</date><amount>");
+		out.text(getPurDispAmount());
+		out.markup("</amount><purchAmount>");
+		out.text(getPurAmount());
+		out.markup("</purchAmount><currency>");
+		out.text(getPurCurrency());
+		out.markup("</currency><exponent>");
+		out.text(getPurExponent());
+		out.markup("</exponent>");
+
+		// add purchase description (Optional)
+		if (isNotNull(getPurDesc())) {
+			out.markup("<desc>");
+			out.text(getPurDesc());
+			out.markup("</desc>");
+		}
 
-			// add Purchase Recurring (Optional)
+		// add Purchase Recurring (Optional)
+		if (isNotNull(getPurRecurFrequency())
+			|| isNotNull(getPurRecurExpiry())) {
 			if (isNotNull(getPurRecurFrequency())
-				|| isNotNull(getPurRecurExpiry())) {
-				if (isNotNull(getPurRecurFrequency())
-					&& isNotNull(getPurRecurExpiry())) {
-					sb.append("<Recur><frequency>");
-					sb.append(XMLUtil.filterSpecialChars(getPurRecurFrequency()));
-					sb.append("</frequency><endRecur>");
-					sb.append(XMLUtil.filterSpecialChars(getPurRecurExpiry()));
-					sb.append("</endRecur></Recur>");
-				} else {
-					this.logger.error(
-						"Failed to create PAReq message document. [Recurring frequency & endRecur should be co-existed.]");
-					return null;
-				}
+				&& isNotNull(getPurRecurExpiry())) {
+				out.markup("<Recur><frequency>");
+				out.text(getPurRecurFrequency());
+				out.markup("</frequency><endRecur>");
+				out.text(getPurRecurExpiry());
+				out.markup("</endRecur></Recur>");
+			} else {
+				this.logger.error(
+					"Failed to create PAReq message document. [Recurring frequency & endRecur should be co-existed.]");
+				throw new MessagingException("Recurring frequency & endRecur should be co-existed.");
 			}
+		}
 
-			// add Purchase installment (Optional)
-			if (isNotNull(getPurInstall())) {
-				sb.append("<install>");
-				sb.append(XMLUtil.filterSpecialChars(getPurInstall()));
-				sb.append("</install>");
-			}
+		// add Purchase installment (Optional)
+		if (isNotNull(getPurInstall())) {
+			out.markup("<install>");
+			out.text(getPurInstall());
+			out.markup("</install>");
+		}
 
-			sb.append("</Purchase><CH><acctID>");
-			sb.append(XMLUtil.filterSpecialChars(getChAcctID()));
-			sb.append("</acctID><expiry>");
-			sb.append(XMLUtil.filterSpecialChars(getChExpiry()));
-			sb.append("</expiry></CH>");
+		out.markup("</Purchase><CH><acctID>");
+		out.text(getChAcctID());
+		out.markup("</acctID><expiry>");
+		out.text(getChExpiry());
+		out.markup("</expiry></CH>");
 
-			// add Extensions (Optional)
-			if ((getExtension() != null) && (getExtension().length != 0)) {
-				//Get extensions
-				Extension[] extensions = getExtension();
+		// add Extensions (Optional)
+		if ((getExtension() != null) && (getExtension().length != 0)) {
+			//Get extensions
+			Extension[] extensions = getExtension();
 
-				//Append all extension elements
-				for (int i = 0; i < extensions.length; i++) {
-					//Get individual extension
-					Extension extension = extensions[i];
+			//Append all extension elements
+			for (int i = 0; i < extensions.length; i++) {
+				//Get individual extension
+				Extension extension = extensions[i];
 
-					//Append Extension element to VEReq element
-					sb.append(extension.toString());
-				}
+				//Append Extension element to VEReq element
+				extension.writeXML(out);
 			}
-
-			sb.append("</PAReq></Message></ThreeDSecure>");
-
-			return sb.toString();
-		} catch (Exception e) {
-			logger.error("Failed to convert PAReq message to XML string.", e);
-			return null;
 		}
 
+		out.markup("</PAReq></Message></ThreeDSecure>");
 	}
 
 	/**
@@ -30,6 +30,7 @@ import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageValidator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 import org.apache.log4j.Logger;
 import org.w3c.dom.Document;
@@ -486,82 +487,89 @@ public class VEReqMessage extends Message {
 	 */
 	public String toString() {
 		try {
-			StringBuffer sb = new StringBuffer();
-
-			sb.append(
-				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
-					+ "<ThreeDSecure>"
-					+ "<Message id=\"");
-
-			sb.append(XMLUtil.filterSpecialChars(getId()));
-			sb.append("\"><VEReq><version>");
-			sb.append(XMLUtil.filterSpecialChars(getVersion()));
-			sb.append("</version><pan>");
-			sb.append(XMLUtil.filterSpecialChars(getPan()));
-			sb.append("</pan><Merchant><acqBIN>");
-			sb.append(XMLUtil.filterSpecialChars(getAcqBIN()));
-			sb.append("</acqBIN><merID>");
-			sb.append(XMLUtil.filterSpecialChars(getMerID()));
-			sb.append("</merID>");
-
-			// add Merchant Password (Optional)
-			if (isNotNull(getPassword())) {
-				sb.append("<password>");
-				sb.append(XMLUtil.filterSpecialChars(getPassword()));
-				sb.append("</password>");
-			}
+			XMLWriter out = new XMLWriter();
+			writeXML(out);
+			return out.toString();
+		} catch (Exception e) {
+			logger.error("Failed to convert VEReq message to XML string.", e);
+			return null;
+		}
 
-			sb.append("</Merchant>");
-
-			// add Browser (Optional)
-			if (isNotNull(getDeviceCategory())
-				|| isNotNull(getAccept())
-				|| isNotNull(getUserAgent())) {
-				sb.append("<Browser>");
-				if (isNotNull(getDeviceCategory())) {
-					sb.append("<deviceCategory>");
-					sb.append(XMLUtil.filterSpecialChars(getDeviceCategory()));
-					sb.append("</deviceCategory>");
-				}
+	}
 
-				if (isNotNull(getAccept())) {
-					sb.append("<accept>");
-					sb.append(XMLUtil.filterSpecialChars(getAccept()));
-					sb.append("</accept>");
-				}
+	/**
+	 * XMLSerializable interface method: writes the VEReq message as
+	 * UTF-8 encoded XML without building intermediate strings.
+	 * @param out The writer receiving the message
+	 */
+	public void writeXML(XMLWriter out) throws Exception {
+		out.markup(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ThreeDSecure>"
+				+ "<Message id=\"");
+
+		out.text(getId());
+		out.markup("\"><VEReq><version>");
+		out.text(getVersion());
+		out.markup("</version><pan>");
+		out.text(getPan());
+		out.markup("</pan><Merchant><acqBIN>");
+		out.text(getAcqBIN());
+		out.markup("</acqBIN><merID>");
+		out.text(getMerID());
+		out.markup("</merID>");
+
+		// add Merchant Password (Optional)
+		if (isNotNull(getPassword())) {
+			out.markup("<password>");
+			out.text(getPassword());
+			out.markup("</password>");
+		}
 
-				if (isNotNull(getUserAgent())) {
-					sb.append("<userAgent>");
-					sb.append(XMLUtil.filterSpecialChars(getUserAgent()));
-					sb.append("</userAgent>");
-				}
+		out.markup("</Merchant>");
+
+		// add Browser (Optional)
+		if (isNotNull(getDeviceCategory())
+			|| isNotNull(getAccept())
+			|| isNotNull(getUserAgent())) {
+			out.markup("<Browser>");
+			if (isNotNull(getDeviceCategory())) {
+				out.markup("<deviceCategory>");
+				out.text(getDeviceCategory());
+				out.markup("</deviceCategory>");
+			}
 
-				sb.append("</Browser>");
+			if (isNotNull(getAccept())) {
+				out.markup("<accept>");
+				out.text(getAccept());
+				out.markup("</accept>");
 			}
 
-			// add Extensions (Optional)
-			if ((getExtension() != null) && (getExtension().length != 0)) {
-				//Get extensions
-				Extension[] extensions = getExtension();
+			if (isNotNull(getUserAgent())) {
+				out.markup("<userAgent>");
+				out.text(getUserAgent());
+				out.markup("</userAgent>");
+			}
 
-				//Append all extension elements
-				for (int i = 0; i < extensions.length; i++) {
-					//Get individual extension
-					Extension extension = extensions[i];
+			out.markup("</Browser>");
+		}
 
-					//Append Extension element to VEReq element
-					sb.append(extension.toString());
-				}
-			}
+		// add Extensions (Optional)
+		if ((getExtension() != null) && (getExtension().length != 0)) {
+			//Get extensions
+			Extension[] extensions = getExtension();
 
-			sb.append("</VEReq></Message></ThreeDSecure>");
+			//Append all extension elements
+			for (int i = 0; i < extensions.length; i++) {
+				//Get individual extension
+				Extension extension = extensions[i];
 
-			return sb.toString();
-		} catch (Exception e) {
-			logger.error("Failed to convert VEReq message to XML string.", e);
-			return null;
+				//Append Extension element to VEReq element
+				extension.writeXML(out);
+			}
 		}
 
+		out.markup("</VEReq></Message></ThreeDSecure>");
 	}
 
 	private boolean isNotNull(String in) {
@@ -0,0 +1,456 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.MessageCacheManager;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Memory bounded message cache manager for Payment domain. Instead of the
+ * VEReq/PAReq object graphs, only the fields needed to match and answer the
+ * PARes are kept, encoded by CompactPaymentCacheCodec into fixed size slots
+ * of a direct ByteBuffer allocated once with the configured byte budget.
+ * <p>
+ * When the budget is exhausted, expired transactions are reclaimed first;
+ * then, depending on the configured policy, the new transaction is either
+ * rejected with a "Transient system failure" (Reject) or the oldest pending
+ * transactions are evicted to make room (EvictOldest). Expired and evicted
+ * transactions are reported with an ERROR_CODE_70 ErrorMessage by the
+ * expiry thread, never by the request thread which caused the eviction.
+ * <p>
+ * Cached items are rebuilt on lookup, so callers receive a PaymentCacheObject
+ * whose VEReq and PAReq messages only carry the stored fields.
+ *
+ * @version $Revision: 1 $
+ */
+public class BoundedPaymentMessageCacheManager implements MessageCacheManager {
+
+	/**
+	 * Local log4j Logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(BoundedPaymentMessageCacheManager.class.getName());
+
+	/**
+	 * Full policy: reject new transactions
+	 */
+	public static final String POLICY_REJECT = "Reject";
+
+	/**
+	 * Full policy: evict the oldest pending transactions
+	 */
+	public static final String POLICY_EVICT_OLDEST = "EvictOldest";
+
+	/**
+	 * Number of segments. Must be a power of two.
+	 */
+	private static final int SEGMENT_COUNT = 16;
+
+	/**
+	 * Expiry thread period (in millis)
+	 */
+	private static final long EXPIRY_PERIOD = 1000;
+
+	/**
+	 * Default item expiry interval: 5 mins
+	 */
+	private static final long DEFAULT_INTERVAL = 300000;
+
+	/**
+	 * Default budget: 16 MB
+	 */
+	private static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+	/**
+	 * Default slot size (in bytes)
+	 */
+	private static final int DEFAULT_SLOT_SIZE = 512;
+
+	/**
+	 * Store segments, created by the first instance
+	 */
+	private static volatile PendingTransactionSegment[] segments;
+
+	/**
+	 * Item expiry interval
+	 */
+	private static long interval;
+
+	/**
+	 * Whether the oldest transactions are evicted when full
+	 */
+	private static boolean evictOldest;
+
+	/**
+	 * Records dropped by addItem, waiting to be reported by the expiry thread
+	 */
+	private static List droppedRecords = new ArrayList();
+
+	/**
+	 * Constructor. The first instance allocates the store and starts the
+	 * expiry thread.
+	 */
+	public BoundedPaymentMessageCacheManager() {
+		init();
+	}
+
+	private static synchronized void init() {
+		if (segments != null)
+			return;
+
+		interval = DEFAULT_INTERVAL;
+		long budget = DEFAULT_BUDGET;
+		int slotSize = DEFAULT_SLOT_SIZE;
+		String policy = POLICY_REJECT;
+		try {
+			Config config = Config.getConfigReference();
+			interval =
+				Long.parseLong(
+					(String) config.getConfigData(
+						MPIConfigDefinition.CACHE_EXPIRY_INTERVAL))
+					* 60000;
+			budget =
+				Long.parseLong(
+					(String) config.getConfigData(
+						MPIConfigDefinition.TRANSACTION_STORE_BUDGET))
+					* 1024;
+			slotSize =
+				Integer.parseInt(
+					(String) config.getConfigData(
+						MPIConfigDefinition.TRANSACTION_STORE_SLOT_SIZE));
+			policy =
+				(String) config.getConfigData(
+					MPIConfigDefinition.TRANSACTION_STORE_FULL_POLICY);
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve transaction store configuration. Defaults used for missing items.",
+				e);
+		}
+		evictOldest = POLICY_EVICT_OLDEST.equalsIgnoreCase(policy);
+
+		int slotsPerSegment =
+			(int) Math.max(
+				1,
+				Math.min(
+					Integer.MAX_VALUE / SEGMENT_COUNT / slotSize,
+					budget / SEGMENT_COUNT / slotSize));
+		ByteBuffer store =
+			ByteBuffer.allocateDirect(SEGMENT_COUNT * slotsPerSegment * slotSize);
+		PendingTransactionSegment[] created =
+			new PendingTransactionSegment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			store.limit((i + 1) * slotsPerSegment * slotSize);
+			store.position(i * slotsPerSegment * slotSize);
+			created[i] =
+				new PendingTransactionSegment(store.slice(), slotSize, slotsPerSegment);
+		}
+		segments = created;
+
+		Thread expiry = new Thread("PaymentTransactionStoreExpiry") {
+			public void run() {
+				expireLoop();
+			}
+		};
+		expiry.setDaemon(true);
+		expiry.start();
+
+		logger.info(
+			"Transaction store allocated: "
+				+ store.capacity()
+				+ " bytes in "
+				+ SEGMENT_COUNT * slotsPerSegment
+				+ " slots of "
+				+ slotSize
+				+ " bytes, full policy: "
+				+ (evictOldest ? POLICY_EVICT_OLDEST : POLICY_REJECT)
+				+ ", expiry interval (in millis second): "
+				+ interval);
+	}
+
+	/**
+	 * Get cached item by its identity.
+	 *
+	 * @param id The item identity
+	 */
+	public Object getCachedItem(String id) {
+		if (id == null)
+			return null;
+
+		try {
+			byte[] key = CompactPaymentCacheCodec.encodeKey(id);
+			int hash = hash(id);
+			byte[] record = segmentFor(hash).get(hash, key);
+			return (record == null) ? null : CompactPaymentCacheCodec.decode(record);
+		} catch (Exception e) {
+			logger.error("Failed to read cached item " + id, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Add new item. The item will expire after the configured interval
+	 * unless it is removed before.
+	 *
+	 * @param id The item identity
+	 * @param item The item to be added, must be a PaymentCacheObject
+	 */
+	public void addItem(String id, Object item) throws MessagingException {
+		if (id == null) {
+			logger.error("Unable to cache item without identity.");
+			throw new MessagingException("Unable to cache item without identity.");
+		}
+		if (!(item instanceof PaymentCacheObject)) {
+			logger.error("Unable to cache item of type " + item);
+			throw new MessagingException("Only PaymentCacheObject can be cached.");
+		}
+
+		byte[] key;
+		byte[] record;
+		try {
+			key = CompactPaymentCacheCodec.encodeKey(id);
+			record = CompactPaymentCacheCodec.encode(id, (PaymentCacheObject) item);
+		} catch (IOException e) {
+			logger.error("Failed to encode item " + id, e);
+			throw new MessagingException("Failed to encode item " + id);
+		}
+
+		int hash = hash(id);
+		long now = System.currentTimeMillis();
+		List dropped = new ArrayList();
+		boolean admitted =
+			segmentFor(hash).put(
+				hash,
+				key,
+				record,
+				now,
+				now - interval,
+				evictOldest,
+				dropped);
+
+		if (!dropped.isEmpty()) {
+			synchronized (droppedRecords) {
+				droppedRecords.addAll(dropped);
+				droppedRecords.notify();
+			}
+		}
+
+		if (!admitted) {
+			logger.warn(
+				"Transaction store full. Item "
+					+ id
+					+ " ("
+					+ record.length
+					+ " bytes) rejected.");
+			throw new MessagingException(
+				id,
+				ErrorCodes.ERROR_CODE_98,
+				ErrorCodes.ERROR_MESSAGE_98,
+				"Transaction store",
+				"Too many pending transactions.",
+				"Transaction store full. Transaction [id:" + id + "] rejected.");
+		}
+		logger.debug("Item " + id + " added.");
+	}
+
+	/**
+	 * Remove cached item by its identity.
+	 *
+	 * @param id The item identity
+	 */
+	public void removeItem(String id) {
+		if (id == null)
+			return;
+
+		try {
+			int hash = hash(id);
+			if (segmentFor(hash).remove(hash, CompactPaymentCacheCodec.encodeKey(id)))
+				logger.debug("Item removed from cache: " + id);
+		} catch (IOException e) {
+			logger.error("Failed to remove item " + id, e);
+		}
+	}
+
+	/**
+	 * Expiry thread body. Also reports the records dropped by addItem, as
+	 * soon as they are handed over.
+	 */
+	private static void expireLoop() {
+		List expired = new ArrayList();
+		long nextExpiry = System.currentTimeMillis() + EXPIRY_PERIOD;
+		while (true) {
+			List dropped;
+			synchronized (droppedRecords) {
+				try {
+					long now = System.currentTimeMillis();
+					while (droppedRecords.isEmpty() && (now < nextExpiry)) {
+						droppedRecords.wait(nextExpiry - now);
+						now = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				dropped = new ArrayList(droppedRecords);
+				droppedRecords.clear();
+			}
+
+			publishDropped(
+				dropped,
+				"Pending VEReq & PAReq dropped from full transaction store without corresponding PARes message.");
+
+			if (System.currentTimeMillis() < nextExpiry)
+				continue;
+
+			long expiryTime = System.currentTimeMillis() - interval;
+			for (int i = 0; i < SEGMENT_COUNT; i++) {
+				segments[i].expire(expiryTime, expired);
+				publishDropped(
+					expired,
+					"Expired VEReq & PAReq removed without corresponding PARes message.");
+				expired.clear();
+			}
+			nextExpiry = System.currentTimeMillis() + EXPIRY_PERIOD;
+		}
+	}
+
+	/**
+	 * Report dropped records as incomplete transactions
+	 *
+	 * @param records The dropped records
+	 * @param reason The reason reported
+	 */
+	private static void publishDropped(List records, String reason) {
+		for (int i = 0; i < records.size(); i++) {
+			try {
+				byte[] record = (byte[]) records.get(i);
+				String id = CompactPaymentCacheCodec.decodeKey(record);
+				PaymentCacheObject item = CompactPaymentCacheCodec.decode(record);
+				logger.debug("Item " + id + " dropped from transaction store.");
+				IncompleteTransactionPublisher.publish(id, item, reason);
+			} catch (Exception e) {
+				logger.error("Failed to decode dropped item.", e);
+			}
+		}
+	}
+
+	private static int hash(String id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static PendingTransactionSegment segmentFor(int hash) {
+		return segments[(hash >>> 24) & (SEGMENT_COUNT - 1)];
+	}
+
+	/**
+	 * Returns the store capacity in bytes, 0 if the store is not in use.
+	 * @return long
+	 */
+	public static long getCapacityBytes() {
+		long total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getCapacityBytes();
+		return total;
+	}
+
+	/**
+	 * Returns the number of bytes held by pending transactions.
+	 * @return long
+	 */
+	public static long getUsedBytes() {
+		long total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getUsedBytes();
+		return total;
+	}
+
+	/**
+	 * Returns the number of pending transactions.
+	 * @return int
+	 */
+	public static int getItemCount() {
+		int total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getEntryCount();
+		return total;
+	}
+
+	/**
+	 * Returns the number of transactions evicted to admit newer ones.
+	 * @return long
+	 */
+	public static long getEvictionCount() {
+		long total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getEvictionCount();
+		return total;
+	}
+
+	/**
+	 * Returns the number of transactions rejected because the store was full.
+	 * @return long
+	 */
+	public static long getRejectionCount() {
+		long total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getRejectionCount();
+		return total;
+	}
+
+	/**
+	 * Returns the number of transactions that expired.
+	 * @return long
+	 */
+	public static long getExpirationCount() {
+		long total = 0;
+		PendingTransactionSegment[] current = segments;
+		for (int i = 0; current != null && i < current.length; i++)
+			total += current[i].getExpirationCount();
+		return total;
+	}
+
+	/**
+	 * Returns the interval.
+	 * @return long
+	 */
+	public static long getInterval() {
+		return interval;
+	}
+}
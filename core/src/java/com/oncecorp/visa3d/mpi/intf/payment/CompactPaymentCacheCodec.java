@@ -0,0 +1,271 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.domain.payment.PAReqMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.security.TripleDESEncrypter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary form of a PaymentCacheObject. Only the fields read back
+ * once the PARes arrives are kept:
+ * <ul>
+ * <li>VEReq: id, pan, merID</li>
+ * <li>PAReq: id, merAcqBIN, merID, purXid, purDate, purAmount, purCurrency,
+ * purExponent</li>
+ * <li>ACS URL, merchant data, protocol type and merchant URL</li>
+ * </ul>
+ * Each field is written as its UTF-8 byte length (-1 for null) followed by
+ * the UTF-8 bytes. The transaction id is always the first field so a record can be
+ * matched against the result of <code>encodeKey</code> without decoding it.
+ * <p>
+ * Records leaving the JVM, such as those of the shared pending transaction
+ * store, are encoded with the PAN encrypted by the TripleDESEncrypter: every
+ * core node loads the same Triple-DES key, so any of them can read the PAN
+ * back, while the store itself never holds it in clear.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class CompactPaymentCacheCodec {
+
+	/**
+	 * Record format version
+	 */
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Character encoding of string fields
+	 */
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * PAN modes
+	 */
+	private static final byte PAN_CLEAR = 0;
+	private static final byte PAN_ENCRYPTED = 1;
+
+	/**
+	 * Encode the key part of a record.
+	 *
+	 * @param id The transaction id
+	 * @return byte[] the prefix every record stored under this id starts with
+	 */
+	public static byte[] encodeKey(String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, id);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode the transaction id a record is stored under.
+	 *
+	 * @param record The compact record
+	 * @return String the transaction id
+	 */
+	public static String decodeKey(byte[] record) throws IOException {
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(record));
+		if (in.readByte() != FORMAT_VERSION)
+			throw new IOException("Unsupported payment cache record format.");
+		return readString(in);
+	}
+
+	/**
+	 * Encode a cache object kept in memory, with the PAN in clear.
+	 *
+	 * @param id The transaction id
+	 * @param item The cache object
+	 * @return byte[] the compact record
+	 */
+	public static byte[] encode(String id, PaymentCacheObject item)
+		throws IOException {
+		return encode(id, item, false);
+	}
+
+	/**
+	 * Encode a cache object.
+	 *
+	 * @param id The transaction id
+	 * @param item The cache object
+	 * @param encryptPan True to encrypt the PAN, for records stored outside of the JVM
+	 * @return byte[] the compact record
+	 */
+	public static byte[] encode(
+		String id,
+		PaymentCacheObject item,
+		boolean encryptPan)
+		throws IOException {
+		VEReqMessage vereq = item.getVereqMsg();
+		PAReqMessage pareq = item.getPareqMsg();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, id);
+
+		writeString(out, vereq == null ? null : vereq.getId());
+		String pan = (vereq == null) ? null : vereq.getPan();
+		if (encryptPan && (pan != null)) {
+			String[] encrypted;
+			try {
+				encrypted = TripleDESEncrypter.getInstance().encrypt(pan);
+			} catch (Exception e) {
+				throw new IOException("Failed to encrypt PAN: " + e.getMessage());
+			}
+			if ((encrypted == null) || (encrypted.length != 2))
+				throw new IOException("Encryption result is null or with incorrect length.");
+
+			out.writeByte(PAN_ENCRYPTED);
+			writeString(out, encrypted[0]);
+			writeString(out, encrypted[1]);
+		} else {
+			out.writeByte(PAN_CLEAR);
+			writeString(out, pan);
+		}
+		writeString(out, vereq == null ? null : vereq.getMerID());
+
+		writeString(out, pareq == null ? null : pareq.getId());
+		writeString(out, pareq == null ? null : pareq.getMerAcqBIN());
+		writeString(out, pareq == null ? null : pareq.getMerID());
+		writeString(out, pareq == null ? null : pareq.getPurXid());
+		writeString(out, pareq == null ? null : pareq.getPurDate());
+		writeString(out, pareq == null ? null : pareq.getPurAmount());
+		writeString(out, pareq == null ? null : pareq.getPurCurrency());
+		writeString(out, pareq == null ? null : pareq.getPurExponent());
+
+		writeString(out, item.getAcsUrl());
+		writeString(out, item.getMerchantData());
+		writeString(out, item.getProtocolType());
+		writeString(out, item.getMerchantURL());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a record into a cache object carrying partially populated
+	 * VEReq and PAReq messages.
+	 *
+	 * @param record The compact record
+	 * @return PaymentCacheObject
+	 */
+	public static PaymentCacheObject decode(byte[] record)
+		throws IOException, MessagingException {
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(record));
+		if (in.readByte() != FORMAT_VERSION)
+			throw new IOException("Unsupported payment cache record format.");
+		readString(in);
+
+		PaymentCacheObject item = new PaymentCacheObject();
+
+		String vereqId = readString(in);
+		String pan;
+		if (in.readByte() == PAN_ENCRYPTED) {
+			String encrypted = readString(in);
+			String iv = readString(in);
+			try {
+				pan = TripleDESEncrypter.getInstance().decrypt(encrypted, iv);
+			} catch (Exception e) {
+				throw new IOException("Failed to decrypt PAN: " + e.getMessage());
+			}
+		} else {
+			pan = readString(in);
+		}
+		String vereqMerID = readString(in);
+		if (vereqId != null) {
+			VEReqMessage vereq = new VEReqMessage();
+			vereq.setId(vereqId);
+			if (pan != null)
+				vereq.setPan(pan);
+			if (vereqMerID != null)
+				vereq.setMerID(vereqMerID);
+			item.setVereqMsg(vereq);
+		}
+
+		String pareqId = readString(in);
+		String merAcqBIN = readString(in);
+		String pareqMerID = readString(in);
+		String purXid = readString(in);
+		String purDate = readString(in);
+		String purAmount = readString(in);
+		String purCurrency = readString(in);
+		String purExponent = readString(in);
+		if (pareqId != null) {
+			PAReqMessage pareq = new PAReqMessage();
+			pareq.setId(pareqId);
+			if (merAcqBIN != null)
+				pareq.setMerAcqBIN(merAcqBIN);
+			if (pareqMerID != null)
+				pareq.setMerID(pareqMerID);
+			if (purXid != null)
+				pareq.setPurXid(purXid);
+			if (purDate != null)
+				pareq.setPurDate(purDate);
+			if (purAmount != null)
+				pareq.setPurAmount(purAmount);
+			if (purCurrency != null)
+				pareq.setPurCurrency(purCurrency);
+			if (purExponent != null)
+				pareq.setPurExponent(purExponent);
+			item.setPareqMsg(pareq);
+		}
+
+		item.setAcsUrl(readString(in));
+		item.setMerchantData(readString(in));
+		item.setProtocolType(readString(in));
+		item.setMerchantURL(readString(in));
+		return item;
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+		throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] utf8 = value.getBytes(ENCODING);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, ENCODING);
+	}
+}
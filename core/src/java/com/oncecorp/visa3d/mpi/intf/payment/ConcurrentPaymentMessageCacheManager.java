@@ -0,0 +1,259 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.MessageCacheManager;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.utility.TimingWheel;
+
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Concurrent message cache manager for Payment domain. It stores the same
+ * VEReq/PAReq cache units as PaymentMessageCacheManager but:
+ * <ul>
+ * <li>splits the cache in independently locked segments, so that insert,
+ * lookup and removal of unrelated transactions never contend;</li>
+ * <li>expires items through a TimingWheel running on its own thread instead
+ * of scanning every pending transaction on each insert.</li>
+ * </ul>
+ * Expired items are still reported with an ERROR_CODE_70 ErrorMessage.
+ *
+ * @version $Revision: 1 $
+ */
+public class ConcurrentPaymentMessageCacheManager
+	implements MessageCacheManager, TimingWheel.TimeoutListener {
+
+	/**
+	 * Local log4j Logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(ConcurrentPaymentMessageCacheManager.class.getName());
+
+	/**
+	 * Number of cache segments. Must be a power of two.
+	 */
+	private static final int SEGMENT_COUNT = 32;
+
+	/**
+	 * Expiry resolution (in millis)
+	 */
+	private static final long TICK_DURATION = 1000;
+
+	/**
+	 * Default item expiry interval: 5 mins
+	 */
+	private static final long DEFAULT_INTERVAL = 300000;
+
+	/**
+	 * Cache segments. Each segment is a HashMap guarded by its own monitor.
+	 * <ul>
+	 * <li>key: id</li>
+	 * <li>value: CacheEntry</li>
+	 * </ul>
+	 */
+	private static HashMap[] segments;
+
+	/**
+	 * Expiry wheel
+	 */
+	private static TimingWheel wheel;
+
+	/**
+	 * Item expiry interval
+	 */
+	private static long interval;
+
+	static {
+		try {
+			interval =
+				Long.parseLong(
+					(String) Config.getConfigReference().getConfigData(
+						MPIConfigDefinition.CACHE_EXPIRY_INTERVAL))
+					* 60000;
+			logger.info("Cache Expiry interval set to (in millis second): " + interval);
+		} catch (Exception e) {
+			logger.error("Failed to retrieve CacheExpiryInterval. Interval set to default as 5 mins.", e);
+			interval = DEFAULT_INTERVAL;
+		}
+
+		segments = new HashMap[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++)
+			segments[i] = new HashMap();
+
+		wheel =
+			new TimingWheel(
+				"PaymentCacheExpiry",
+				TICK_DURATION,
+				new ConcurrentPaymentMessageCacheManager());
+		wheel.start();
+	}
+
+	/**
+	 * Cache entry: the cached item and its pending expiry
+	 */
+	private static class CacheEntry {
+		private Object item;
+		private TimingWheel.Timeout timeout;
+
+		private CacheEntry(Object item) {
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Get cached item by its identity.
+	 *
+	 * @param id The item identity
+	 */
+	public Object getCachedItem(String id) {
+		if (id == null)
+			return null;
+
+		HashMap segment = segmentFor(id);
+		synchronized (segment) {
+			CacheEntry entry = (CacheEntry) segment.get(id);
+			return (entry == null) ? null : entry.item;
+		}
+	}
+
+	/**
+	 * Add new item. The item will expire after the configured interval
+	 * unless it is removed before.
+	 *
+	 * @param id The item identity
+	 * @param item The item to be added
+	 */
+	public void addItem(String id, Object item) throws MessagingException {
+		if (id == null) {
+			logger.error("Unable to cache item without identity.");
+			throw new MessagingException("Unable to cache item without identity.");
+		}
+
+		CacheEntry entry = new CacheEntry(item);
+		CacheEntry previous = null;
+		HashMap segment = segmentFor(id);
+		synchronized (segment) {
+			entry.timeout = wheel.schedule(id, entry, interval);
+			previous = (CacheEntry) segment.put(id, entry);
+		}
+
+		if (previous != null) {
+			wheel.cancel(previous.timeout);
+			logger.debug("Item " + id + " replaced.");
+		} else {
+			logger.debug("Item " + id + " added.");
+		}
+	}
+
+	/**
+	 * Remove cached item by its identity.
+	 *
+	 * @param id The item identity
+	 */
+	public void removeItem(String id) {
+		if (id == null)
+			return;
+
+		CacheEntry entry = null;
+		HashMap segment = segmentFor(id);
+		synchronized (segment) {
+			entry = (CacheEntry) segment.remove(id);
+		}
+
+		if (entry != null) {
+			wheel.cancel(entry.timeout);
+			logger.debug("Item removed from cache: " + id);
+		}
+	}
+
+	/**
+	 * Expiry callback invoked on the timing wheel thread. The item is only
+	 * removed if it has not been replaced since the timeout was scheduled.
+	 *
+	 * @param timeout The expired timeout
+	 */
+	public void timeoutExpired(TimingWheel.Timeout timeout) {
+		String id = (String) timeout.getKey();
+		CacheEntry entry = (CacheEntry) timeout.getAttachment();
+
+		HashMap segment = segmentFor(id);
+		synchronized (segment) {
+			if (segment.get(id) != entry)
+				return;
+			segment.remove(id);
+		}
+
+		logger.debug("Expired item " + id + " removed.");
+		IncompleteTransactionPublisher.publish(
+			id,
+			entry.item,
+			"Expired VEReq & PAReq removed without corresponding PARes message.");
+	}
+
+	/**
+	 * Returns the number of items currently cached.
+	 * @return int
+	 */
+	public static int getItemCount() {
+		int count = 0;
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			synchronized (segments[i]) {
+				count += segments[i].size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the interval.
+	 * @return long
+	 */
+	public static long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Sets the interval. Only items added afterwards are affected.
+	 * @param interval The interval to set
+	 */
+	public static void setInterval(long interval) {
+		ConcurrentPaymentMessageCacheManager.interval = interval;
+	}
+
+	/**
+	 * Locate the segment holding an id
+	 */
+	private static HashMap segmentFor(String id) {
+		int h = id.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENT_COUNT - 1)];
+	}
+}
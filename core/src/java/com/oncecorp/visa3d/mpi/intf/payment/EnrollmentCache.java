@@ -0,0 +1,343 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+/**
+ * Short-lived cache of the VERes received for cards which are not enrolled,
+ * so that a PaymentVerifReq repeated for the same card by the same merchant
+ * (retried checkout, several items paid separately) is answered without
+ * asking the directory again.
+ *
+ * <p>Only VERes with enrolled "N" and no invalid request code are kept:
+ * "Y" answers carry an ACS URL and account ID tied to one transaction and
+ * "U" answers report a transient failure. Entries expire after
+ * EnrollmentCacheTTL millis and the cache holds at most
+ * EnrollmentCacheMaxSize entries, the least recently used going first.
+ * It is only used for the merchants listed in EnrollmentCacheMerchants,
+ * "*" meaning all of them.</p>
+ *
+ * <p>Entries are keyed by merchant ID and a SHA-256 hash of the PAN salted
+ * with a random value drawn once per JVM: the clear PAN is never kept, and
+ * the hashes cannot be compared with those of another process.</p>
+ *
+ * @version $Revision: 1 $
+ */
+public class EnrollmentCache {
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(EnrollmentCache.class.getName());
+
+	/**
+	 * Default configuration values: disabled
+	 */
+	public static final long DEFAULT_TTL = 0;
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/**
+	 * Merchant list value enabling the cache for all merchants
+	 */
+	public static final String ALL_MERCHANTS = "*";
+
+	/**
+	 * Shared cache built from the MPI configuration
+	 */
+	private static EnrollmentCache instance;
+
+	/**
+	 * Settings
+	 */
+	private long ttl;
+	private int maxSize;
+	private Set merchants;
+
+	/**
+	 * Hash salt, never leaves the JVM
+	 */
+	private byte[] salt = new byte[16];
+
+	/**
+	 * Entries by key, in access order
+	 */
+	private LinkedHashMap entries;
+
+	/**
+	 * Counters
+	 */
+	private long hitCount;
+	private long missCount;
+	private long storeCount;
+	private long expiredCount;
+
+	/**
+	 * Constructor
+	 * @param ttl Time to live of an entry in millis, 0 to disable the cache
+	 * @param maxSize Maximum number of entries
+	 * @param merchants Merchant IDs using the cache, null for all of them
+	 */
+	public EnrollmentCache(long ttl, int maxSize, Set merchants) {
+		this.ttl = ttl;
+		this.maxSize = (maxSize < 1) ? 1 : maxSize;
+		this.merchants = merchants;
+		new SecureRandom().nextBytes(salt);
+
+		final int limit = this.maxSize;
+		entries = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > limit;
+			}
+		};
+	}
+
+	/**
+	 * Returns the shared cache, built from the MPI configuration on first use
+	 * @return The cache
+	 */
+	public static synchronized EnrollmentCache getInstance() {
+		if (instance == null) {
+			long ttl = DEFAULT_TTL;
+			int maxSize = DEFAULT_MAX_SIZE;
+			Set merchants = new HashSet();
+			try {
+				Config cfg = Config.getConfigReference();
+				ttl =
+					Long.parseLong(
+						(String) cfg.getConfigData(MPIConfigDefinition.ENROLLMENT_CACHE_TTL));
+				maxSize =
+					Integer.parseInt(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.ENROLLMENT_CACHE_MAX_SIZE));
+				merchants =
+					parseMerchants(
+						(String) cfg.getConfigData(
+							MPIConfigDefinition.ENROLLMENT_CACHE_MERCHANTS));
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve enrollment cache configuration. Defaults used for missing items.",
+					e);
+			}
+			instance = new EnrollmentCache(ttl, maxSize, merchants);
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared cache, null to build it again from the configuration
+	 * @param cache The new cache
+	 */
+	public static synchronized void setInstance(EnrollmentCache cache) {
+		instance = cache;
+	}
+
+	/**
+	 * Parse a comma separated merchant ID list
+	 * @param list The list, "*" for all merchants
+	 * @return The merchant IDs, null for all merchants
+	 */
+	static Set parseMerchants(String list) {
+		Set merchants = new HashSet();
+		if (list == null)
+			return merchants;
+		StringTokenizer st = new StringTokenizer(list, ",");
+		while (st.hasMoreTokens()) {
+			String id = st.nextToken().trim();
+			if (ALL_MERCHANTS.equals(id))
+				return null;
+			if (id.length() > 0)
+				merchants.add(id);
+		}
+		return merchants;
+	}
+
+	/**
+	 * Check whether a merchant uses the cache
+	 * @param merchantId The merchant ID
+	 * @return boolean
+	 */
+	public boolean isEnabled(String merchantId) {
+		if (ttl <= 0 || merchantId == null)
+			return false;
+		return (merchants == null) || merchants.contains(merchantId);
+	}
+
+	/**
+	 * Returns the VERes cached for a card
+	 * @param merchantId The merchant ID
+	 * @param pan The card number
+	 * @return The VERes, null if none is cached or the entry expired
+	 */
+	public VEResMessage get(String merchantId, String pan) {
+		if (!isEnabled(merchantId) || pan == null)
+			return null;
+		String key = key(merchantId, pan);
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Object[] entry = (Object[]) entries.get(key);
+			if (entry != null && ((Long) entry[1]).longValue() <= now) {
+				entries.remove(key);
+				expiredCount++;
+				entry = null;
+			}
+			if (entry == null) {
+				missCount++;
+				return null;
+			}
+			hitCount++;
+			return (VEResMessage) entry[0];
+		}
+	}
+
+	/**
+	 * Cache a VERes, if it may be reused
+	 * @param merchantId The merchant ID
+	 * @param pan The card number
+	 * @param vresMsg The VERes received for the card
+	 * @return true if cached
+	 */
+	public boolean put(String merchantId, String pan, VEResMessage vresMsg) {
+		if (!isEnabled(merchantId) || pan == null || !isReusable(vresMsg))
+			return false;
+		String key = key(merchantId, pan);
+		Long expiry = new Long(System.currentTimeMillis() + ttl);
+		synchronized (this) {
+			entries.put(key, new Object[] { vresMsg, expiry });
+			storeCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a VERes may answer later requests for the same card
+	 * @param vresMsg The VERes
+	 * @return true for a valid "N" answer
+	 */
+	public static boolean isReusable(VEResMessage vresMsg) {
+		if (vresMsg == null || !"N".equalsIgnoreCase(vresMsg.getEnrolled()))
+			return false;
+		String iReqCode = vresMsg.getIReqCode();
+		return (iReqCode == null) || (iReqCode.trim().length() == 0);
+	}
+
+	/**
+	 * Remove all entries
+	 * @return The number of entries removed
+	 */
+	public synchronized int flush() {
+		int size = entries.size();
+		entries.clear();
+		logger.info("Enrollment cache flushed, " + size + " entries removed.");
+		return size;
+	}
+
+	/**
+	 * Build the key of a card
+	 * @param merchantId The merchant ID
+	 * @param pan The card number
+	 * @return The merchant ID and salted PAN hash
+	 */
+	private String key(String merchantId, String pan) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(salt);
+			md.update(pan.trim().getBytes("UTF-8"));
+			byte[] hash = md.digest();
+			StringBuffer sb = new StringBuffer(merchantId.length() + 1 + hash.length * 2);
+			sb.append(merchantId).append(':');
+			for (int i = 0; i < hash.length; i++) {
+				sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(hash[i] & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			// SHA-256 and UTF-8 are always available
+			throw new IllegalStateException("Unable to hash PAN: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of cached entries, expired ones included
+	 * @return int
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache
+	 * @return long
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups which found no valid entry
+	 * @return long
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of VERes cached
+	 * @return long
+	 */
+	public synchronized long getStoreCount() {
+		return storeCount;
+	}
+
+	/**
+	 * Returns the number of entries found expired
+	 * @return long
+	 */
+	public synchronized long getExpiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * Returns the percentage of lookups answered from the cache
+	 * @return int, 0 before the first lookup
+	 */
+	public synchronized int getHitRatio() {
+		long lookups = hitCount + missCount;
+		return (lookups == 0) ? 0 : (int) (hitCount * 100 / lookups);
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorMessage;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
+import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes the "Incomplete transaction" ErrorMessage (ERROR_CODE_70) for
+ * VEReq/PAReq pairs dropped from a payment cache without a corresponding
+ * PARes. Shared by the cache managers, which call it from their own expiry
+ * thread: the session is therefore primed with the merchant and protocol of
+ * the abandoned transaction before processing, and the session values of
+ * the calling thread are restored afterwards.
+ *
+ * @version $Revision: 1 $
+ */
+public class IncompleteTransactionPublisher {
+
+	/**
+	 * Local log4j Logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(IncompleteTransactionPublisher.class.getName());
+
+	/**
+	 * Number of incomplete transactions reported, once processed and published
+	 */
+	private static AtomicLong reportedCount = new AtomicLong();
+
+	/**
+	 * Publish an incomplete transaction
+	 *
+	 * @param id The transaction id
+	 * @param item The cached item, usually a PaymentCacheObject
+	 * @param reason Reason reported in the error detail
+	 */
+	public static void publish(String id, Object item, String reason) {
+		Object[] session = AuthenticatorSession.instance().capture();
+		try {
+			if (item instanceof PaymentCacheObject) {
+				PaymentCacheObject cacheObject = (PaymentCacheObject) item;
+				if (cacheObject.getPareqMsg() != null)
+					AuthenticatorSession.instance().setMerchantID(
+						cacheObject.getPareqMsg().getMerID());
+				AuthenticatorSession.instance().setProtocol(cacheObject.getProtocolType());
+			}
+
+			ErrorMessage errMsg = createErrorMessage(id, reason);
+			MessageEngine.process(errMsg);
+			reportedCount.incrementAndGet();
+			logger.debug("Incomplete transaction " + id + " published.");
+		} catch (Exception e) {
+			logger.error("Failed to publish incomplete transaction " + id, e);
+		} finally {
+			AuthenticatorSession.instance().restore(session);
+		}
+	}
+
+	/**
+	 * Build the ERROR_CODE_70 ErrorMessage of an incomplete transaction
+	 *
+	 * @param id The transaction id
+	 * @param reason Reason reported in the error detail
+	 */
+	static ErrorMessage createErrorMessage(String id, String reason)
+		throws Exception {
+		// call MessageGenerator to create an empty ErrorMessage
+		ErrorMessage errMsg =
+			(ErrorMessage) MessageGenerator.create(
+				ErrorMessage.MSG_TYPE,
+				ErrorMessage.MSG_VERSION);
+
+		// set value for this err msg
+		errMsg.setId(id);
+		errMsg.setErrorCode(ErrorCodes.ERROR_CODE_70);
+		errMsg.setErrorMessage(ErrorCodes.ERROR_MESSAGE_70);
+		errMsg.setErrorDetail(reason);
+		errMsg.setVendorCode("Incomplete transaction [id:" + id + "]");
+		return errMsg;
+	}
+
+	/**
+	 * Returns the number of incomplete transactions reported. Reports that
+	 * failed to be processed or published are not counted.
+	 * @return long
+	 */
+	public static long getReportedCount() {
+		return reportedCount.get();
+	}
+}
@@ -37,6 +37,7 @@ import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.messaging.ComplexMessageProcessor;
 import com.oncecorp.visa3d.mpi.messaging.DomToMsgConverter;
+import com.oncecorp.visa3d.mpi.messaging.LatencyMonitor;
 import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
@@ -140,6 +141,7 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
 
 		//Decode & decompress PARes XML String
 		//byte[] decoded = Base64Codec.decode(authMsg);
+		long start = System.nanoTime();
 		byte[] decoded = Base64.decode(authMsg);
 		if (decoded == null) {
 			this.logger.error("Base64 Decoding error.");
@@ -151,9 +153,11 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
 			this.logger.error("Decompression error.");
 			throw new MessagingException("Decompression error.");
 		}
+		LatencyMonitor.record(LatencyMonitor.STAGE_PARES_DECODING, PAResMessage.MSG_TYPE, start);
 
 		//Convert it to PARes document
 		Document authMsgDom = null;
+		start = System.nanoTime();
 		try {
 			authMsgDom = XMLUtil.createDocument(decompressedStr, false);
 		} catch (Exception e) {
@@ -162,6 +166,7 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
 				e);
 			throw new MessagingException("PARes XML String parsing error.");
 		}
+		LatencyMonitor.record(LatencyMonitor.STAGE_PARES_PARSING, PAResMessage.MSG_TYPE, start);
 
 		//Convert document to message
 		PAResMessage paresMsg = null;
@@ -171,7 +176,9 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
 			 * It's possible that we receive a ErrorMessage that wrapped in PaymentAuthMsg element.
 			 * So handle this situation here.
 			 */
+			start = System.nanoTime();
 			Message received = (new DomToMsgConverter()).convert(authMsgDom);
+			LatencyMonitor.record(LatencyMonitor.STAGE_PARES_CONVERSION, received.getType(), start);
 
 			if (received instanceof PAResMessage)
 				paresMsg = (PAResMessage) received;
@@ -228,7 +235,9 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
             logger.debug("Signature pre-checking. PARes: " + decompressedStr);
             logger.debug("Checking XML Signature with keystore: " + keyStorePath + " and key: " + storePass );
 
+            start = System.nanoTime();
             signatureResult = SecurityManager.getInstance().verifySignature(authMsgDom, keyStorePath, storePass.toCharArray());
+            LatencyMonitor.record(LatencyMonitor.STAGE_SIGNATURE_VERIFICATION, PAResMessage.MSG_TYPE, start);
         }
         catch (ConfigurationException e) {
             logger.fatal("Unable to load Signing keystore configuration information. Unable to authenticate payment requests");
@@ -544,7 +553,7 @@ public class PaymentAuthReqProcessor implements ComplexMessageProcessor {
 	private PaymentCacheObject retrieveCachedItem(String id)
 		throws MessagingException {
 		//Retrieve cached item from cache manager
-		Object item = (new PaymentMessageCacheManager()).getCachedItem(id);
+		Object item = PaymentCacheManagerGenerator.getCacheManager().getCachedItem(id);
 
 		if (item == null) {
 			logger.error("No cached item found for ID: " + id);
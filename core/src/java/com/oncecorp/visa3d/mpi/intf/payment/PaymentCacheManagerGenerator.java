@@ -0,0 +1,95 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.MessageCacheManager;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Factory class providing the MessageCacheManager used to hold VEReq/PAReq
+ * messages between the PaymentVerifReq and the PaymentAuthReq. The
+ * implementation class is read from the TransactionCacheManager
+ * configuration item and instantiated once. When that item is missing or
+ * invalid, the ConcurrentPaymentMessageCacheManager is used.
+ *
+ * @version $Revision: 1 $
+ */
+public class PaymentCacheManagerGenerator {
+
+	/**
+	 * Default cache manager implementation
+	 */
+	public static final String DEFAULT_CACHE_MANAGER =
+		ConcurrentPaymentMessageCacheManager.class.getName();
+
+	/**
+	 * Local log4j logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(PaymentCacheManagerGenerator.class.getName());
+
+	/**
+	 * Shared cache manager instance
+	 */
+	private static MessageCacheManager cacheManager = null;
+
+	/**
+	 * Return the configured cache manager
+	 *
+	 * @return The MessageCacheManager instance
+	 */
+	public static synchronized MessageCacheManager getCacheManager() {
+		if (cacheManager == null) {
+			String clzName = null;
+			try {
+				clzName =
+					(String) Config.getConfigReference().getConfigData(
+						MPIConfigDefinition.CACHE_MANAGER);
+			} catch (Exception e) {
+				logger.error("Failed to retrieve TransactionCacheManager from config.", e);
+			}
+
+			if ((clzName == null) || (clzName.trim().length() == 0))
+				clzName = DEFAULT_CACHE_MANAGER;
+
+			try {
+				cacheManager = (MessageCacheManager) Class.forName(clzName.trim()).newInstance();
+			} catch (Exception e) {
+				logger.error(
+					"Unable to instantiate cache manager [" + clzName + "]. Using " + DEFAULT_CACHE_MANAGER,
+					e);
+				cacheManager = new ConcurrentPaymentMessageCacheManager();
+			}
+
+			logger.info("Transaction cache manager: " + cacheManager.getClass().getName());
+		}
+
+		return cacheManager;
+	}
+}
@@ -28,8 +28,10 @@ import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.configuration.MerchantMetaInfo;
 import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
-import com.oncecorp.visa3d.mpi.controller.Communicator;
 import com.oncecorp.visa3d.mpi.controller.CommunicatorException;
+import com.oncecorp.visa3d.mpi.controller.DirectoryFuture;
+import com.oncecorp.visa3d.mpi.controller.DirectoryListener;
+import com.oncecorp.visa3d.mpi.controller.DirectoryRouter;
 import com.oncecorp.visa3d.mpi.controller.ErrorHandlerThreadManager;
 import com.oncecorp.visa3d.mpi.controller.ErrorRequest;
 import com.oncecorp.visa3d.mpi.domain.CardRangeManager;
@@ -43,15 +45,16 @@ import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.VEResToPAReqTransformer;
 import com.oncecorp.visa3d.mpi.domain.payment.VEResToPaymentVerifResTransformer;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
-import com.oncecorp.visa3d.mpi.messaging.ComplexMessageProcessor;
+import com.oncecorp.visa3d.mpi.messaging.AsyncComplexMessageProcessor;
+import com.oncecorp.visa3d.mpi.messaging.LatencyMonitor;
 import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.messaging.MessageContinuation;
 import com.oncecorp.visa3d.mpi.messaging.MessageEngine;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageMetaInfo;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageUID;
 import com.oncecorp.visa3d.mpi.utility.ZLibCompressor;
-import com.oncecorp.visa3d.mpi.utility.XMLUtil;
 
 
 import org.apache.log4j.Logger;
@@ -70,12 +73,15 @@ import com.ibm.xml.dsig.util.Base64;
  * method returns "PaymentVerifResMessage" back to MessageEngine after
  * doing a bunch of computing as supposed. A MessagingException will be
  * thrown in case any invalid field exists or process failed.
+ * The same flow is available through
+ * [AsyncComplexMessageProcessor.processComplex(msg, continuation)], which
+ * does not hold the calling thread while the directory is answering.
  *
  * @version 0.1 Aug 03, 2002
  * @author	Jun Shi
  */
 
-public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
+public class PaymentVerifReqProcessor implements AsyncComplexMessageProcessor {
 	/*
 	 * Changed made by Alan Zhang (Oct 16, 2002):
 	 * 1. Changed naming convention on some variables. No '_' char occurred.
@@ -158,8 +164,13 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 
 		//Verify PAN against cache
 		logger.debug("Verifying PAN in cached card range if range available...");
+		long start = System.nanoTime();
 		boolean isInRange =
 			(new CardRangeManager()).verifyCard(pvreqMsg.getPan());
+		LatencyMonitor.record(
+			LatencyMonitor.STAGE_CARD_RANGE_LOOKUP,
+			pvreqMsg.getType(),
+			start);
 
 		if (!isInRange) {
 			logger.debug(
@@ -169,6 +180,14 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 			logger.debug("Need to send VEReq to confirm card is enrolled");
 		}
 
+		//Answer from a recent VERes for the same card if allowed
+		VEResMessage cachedMsg =
+			EnrollmentCache.getInstance().get(pvreqMsg.getMerchantID(), pvreqMsg.getPan());
+		if (cachedMsg != null) {
+			logger.debug("Card recently found not enrolled. Sending back cached VERes outcome.");
+			return preparePaymentVerifResAsNotEnrolled(pvreqMsg, cachedMsg);
+		}
+
 		// Generate ID for VEReqMessage and used by other Visa Message within the same transaction
 		// String msgID = ID_Generator.getUniqueId();
 		/*
@@ -184,7 +203,108 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 		VEReqMessage vreqMsg = prepareVEReqMessage(pvreqMsg, msgID);
 
 		//Send VEReq message to Visa Directory
+		start = System.nanoTime();
 		Message resMsg = sendToVDir(vreqMsg);
+		LatencyMonitor.record(
+			LatencyMonitor.STAGE_DIRECTORY_EXCHANGE,
+			vreqMsg.getType(),
+			start);
+
+		return processDirectoryResponse(pvreqMsg, msgID, vreqMsg, resMsg);
+	}
+
+	/**
+	 * Implement [AsyncComplexMessageProcessor.processComplex(msg, continuation)].
+	 * The flow is the same as processComplex(msg), but the VEReq is sent
+	 * without holding the calling thread: the VERes is processed on the
+	 * thread which received it, and the final message handed to the
+	 * continuation from there.
+	 *
+	 * @param  PaymentVerifReqMessage
+	 * @param  continuation Receives the PaymentVerifResMessage
+	 */
+	public void processComplex(
+		final Message inMessage,
+		final MessageContinuation continuation)
+		throws MessagingException {
+		// Sanity Check
+		if (!(inMessage instanceof PaymentVerifReqMessage)) {
+			this.logger.error("[.processComplex] incompatible msg passed in");
+			throw new MessagingException("[.processComplex] incompatible msg passed in");
+		}
+		final PaymentVerifReqMessage pvreqMsg = (PaymentVerifReqMessage) inMessage;
+
+		//Verify PAN against cache
+		logger.debug("Verifying PAN in cached card range if range available...");
+		long start = System.nanoTime();
+		boolean isInRange = (new CardRangeManager()).verifyCard(pvreqMsg.getPan());
+		LatencyMonitor.record(
+			LatencyMonitor.STAGE_CARD_RANGE_LOOKUP,
+			pvreqMsg.getType(),
+			start);
+		if (!isInRange) {
+			logger.debug(
+				"Card is not in cached range. Sending back PaymentVerifyRes message with ENROLLED as 'N'.");
+			continuation.resume(preparePaymentVerifResAsCardNotInRange(pvreqMsg));
+			return;
+		}
+		logger.debug("Need to send VEReq to confirm card is enrolled");
+
+		//Answer from a recent VERes for the same card if allowed
+		VEResMessage cachedMsg =
+			EnrollmentCache.getInstance().get(pvreqMsg.getMerchantID(), pvreqMsg.getPan());
+		if (cachedMsg != null) {
+			logger.debug("Card recently found not enrolled. Sending back cached VERes outcome.");
+			continuation.resume(preparePaymentVerifResAsNotEnrolled(pvreqMsg, cachedMsg));
+			return;
+		}
+
+		//Prepare VEReq message
+		final String msgID = inMessage.getId();
+		final VEReqMessage vreqMsg = prepareVEReqMessage(pvreqMsg, msgID);
+		String[] urls = getDirectoryURLs(vreqMsg);
+
+		//Send VEReq message to Visa Directory, the session goes along with it
+		final Object[] session = AuthenticatorSession.instance().capture();
+		final long sent = System.nanoTime();
+		DirectoryRouter.getInstance().sendAsync(vreqMsg, urls).addListener(
+			new DirectoryListener() {
+			public void completed(DirectoryFuture future) {
+				AuthenticatorSession.instance().restore(session);
+				try {
+					Message finalMsg;
+					try {
+						Message resMsg = (Message) future.getResult();
+						if (future.getFailure() != null)
+							throw directoryFailure(vreqMsg, future.getFailure());
+						if (resMsg == null)
+							throw directoryFailure(vreqMsg, null);
+						LatencyMonitor.record(
+							LatencyMonitor.STAGE_DIRECTORY_EXCHANGE,
+							vreqMsg.getType(),
+							sent);
+						finalMsg = processDirectoryResponse(pvreqMsg, msgID, vreqMsg, resMsg);
+					} catch (Exception e) {
+						continuation.fail(e);
+						return;
+					}
+					continuation.resume(finalMsg);
+				} finally {
+					AuthenticatorSession.instance().reset();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Process the response received from the directory for a VEReq
+	 */
+	private Message processDirectoryResponse(
+		PaymentVerifReqMessage pvreqMsg,
+		String msgID,
+		VEReqMessage vreqMsg,
+		Message resMsg)
+		throws MessagingException {
 
 		/** Process response msg recieved from Visa Directory (via Communicator) */
 		if (resMsg instanceof VEResMessage)
@@ -622,12 +742,17 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 				item.setProtocolType(getProtocolType(pvreqMsg.getPan()));
 				item.setMerchantURL(pvreqMsg.getMerchantTermURL());
 
-				(new PaymentMessageCacheManager()).addItem(msgID, item);
+				PaymentCacheManagerGenerator.getCacheManager().addItem(msgID, item);
 
 				// returned PaymmentVerifResMessage
 				return pvresMsg;
-			} else // VEResMessage back, but enrolled is equal to "N" or "U"
+			} else { // VEResMessage back, but enrolled is equal to "N" or "U"
+				EnrollmentCache.getInstance().put(
+					pvreqMsg.getMerchantID(),
+					pvreqMsg.getPan(),
+					vresMsg);
 				return preparePaymentVerifResAsNotEnrolled(pvreqMsg, vresMsg);
+			}
 		}
 	}
 
@@ -780,17 +905,32 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 	}
 
 	private Message sendToVDir(VEReqMessage vreqMsg) throws MessagingException {
+		String[] urls = getDirectoryURLs(vreqMsg);
 
-		String[] urls = null;
+		/**
+		 * send VEReqMessage (msg) to Visa Directory via Communicator and
+		 * get VEResMessage or ErrorMessage (msg) back
+		 */
+		try {
+			// The router tries the healthiest directory first, hedges slow requests
+			// when configured to and fails over to the other directories
+			Message response = DirectoryRouter.getInstance().sendHedged(vreqMsg, urls);
+			if (response != null)
+				return response;
+		} catch (Exception e) {
+			throw directoryFailure(vreqMsg, e);
+		}
+
+		throw directoryFailure(vreqMsg, null);
+	}
+
+	private String[] getDirectoryURLs(VEReqMessage vreqMsg) throws MessagingException {
 		try {
 			// We construct the list of URLS needed according to the card number
 			// VISA: We grab [VisaDirectoryURL.1, VisaDirectoryURL.2, VisaDirectoryURL.3]
 			// MasterCard: We grab [MCardDirectoryURL.1, MCardDirectoryURL.2, MCardDirectoryURL.3]
 			Config cfg = Config.getConfigReference();
-			urls = cfg.getDirectoryURLs(getProtocolType(vreqMsg.getPan()));
-
-			// release referrence
-			cfg = null;
+			return cfg.getDirectoryURLs(getProtocolType(vreqMsg.getPan()));
 		}
 		catch (Exception e) {
 			this.logger.error(
@@ -807,30 +947,25 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 					"Unexpected exception caught during communication to with directory.",
 					e.getMessage());
 		}
+	}
 
-		/**
-		 * send VEReqMessage (msg) to Visa Directory via Communicator and
-		 * get VEResMessage or ErrorMessage (msg) back
-		 */
-		try {
-			for (int i = 0; i < urls.length; i++) {
-				if (! XMLUtil.isNull(urls[i])) {
-					try {
-						return new Communicator().send(vreqMsg, urls[i]);
-					}
-					catch (CommunicatorException ce) {
-						logger.error("Unable to send message to directory: " + urls[i]);
-						logger.error("\tError message is : " + ce.getMessage());
-					}
-				}
-			}
-		} catch (Exception e) {
+	/**
+	 * Map the failure of a VEReq sent to the directories to the exception
+	 * returned to the merchant
+	 * @param vreqMsg The VEReq sent
+	 * @param e The failure, null if no directory is configured
+	 * @return MessagingException
+	 */
+	private MessagingException directoryFailure(VEReqMessage vreqMsg, Exception e) {
+		if (e instanceof CommunicatorException) {
+			logger.error("Unable to send message to any directory: " + e.getMessage());
+		} else if (e != null) {
 			this.logger.error("Error occurred in sentToVDir(): ", e);
 
 			if (e instanceof MessagingException)
-				throw (MessagingException) e;
+				return (MessagingException) e;
 			else
-				throw new MessagingException(
+				return new MessagingException(
 					vreqMsg.getId(),
 					MessageEngine.UNEXPECTED_EXCEPTION_CODE,
 					MessageEngine.GENERIC_ERROR_MESSAGE,
@@ -842,7 +977,7 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 		//
 		// If we get here, that means we were unable to reach any configured directories
 		//
-		throw new MessagingException(
+		return new MessagingException(
 			vreqMsg.getId(),
 			MessageEngine.UNEXPECTED_EXCEPTION_CODE,
 			MessageEngine.GENERIC_ERROR_MESSAGE,
@@ -860,11 +995,6 @@ public class PaymentVerifReqProcessor implements ComplexMessageProcessor {
 		if (pan == null)
 			return null;
 
-		if (pan.startsWith("4"))
-			return MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE;
-		else if (pan.startsWith("5"))
-			return MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE;
-		else
-			return null;
+		return CardRangeManager.getProtocolType(pan);
 	}
 }
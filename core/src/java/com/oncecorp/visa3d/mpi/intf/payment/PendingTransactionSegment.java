@@ -0,0 +1,421 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * One segment of the BoundedPaymentMessageCacheManager. Records are copied
+ * into a fixed number of equally sized slots of a (direct) ByteBuffer; a
+ * record larger than one slot is chained across several. All bookkeeping is
+ * held in primitive arrays indexed by slot number:
+ * <ul>
+ * <li>an open addressing hash index (slot + 1, 0 = empty, -1 = deleted)</li>
+ * <li>the hash, byte length and insertion time of each record, stored
+ * against its head slot</li>
+ * <li>a doubly linked insertion order list of head slots, so the oldest
+ * record can be expired or evicted in constant time</li>
+ * <li>the slot chains and a stack of free slots</li>
+ * </ul>
+ * All methods are synchronized on the segment.
+ *
+ * @version $Revision: 1 $
+ */
+class PendingTransactionSegment {
+
+	private static final int NONE = -1;
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+
+	private final ByteBuffer buffer;
+	private final int slotSize;
+	private final int slotCount;
+
+	// Per slot
+	private final int[] nextSlot;
+	private final int[] freeSlots;
+	private int freeCount;
+
+	// Per head slot
+	private final int[] hashes;
+	private final int[] lengths;
+	private final long[] times;
+	private final int[] older;
+	private final int[] newer;
+	private int oldest = NONE;
+	private int newest = NONE;
+
+	// Hash index
+	private int[] index;
+	private int deletedCount;
+
+	// Statistics
+	private int entryCount;
+	private long evictionCount;
+	private long rejectionCount;
+	private long expirationCount;
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer The backing buffer, at least slotSize * slotCount bytes
+	 * @param slotSize Slot size in bytes
+	 * @param slotCount Number of slots
+	 */
+	PendingTransactionSegment(ByteBuffer buffer, int slotSize, int slotCount) {
+		this.buffer = buffer;
+		this.slotSize = slotSize;
+		this.slotCount = slotCount;
+
+		nextSlot = new int[slotCount];
+		freeSlots = new int[slotCount];
+		for (int i = 0; i < slotCount; i++)
+			freeSlots[i] = slotCount - 1 - i;
+		freeCount = slotCount;
+
+		hashes = new int[slotCount];
+		lengths = new int[slotCount];
+		times = new long[slotCount];
+		older = new int[slotCount];
+		newer = new int[slotCount];
+
+		int capacity = 2;
+		while (capacity < slotCount * 2)
+			capacity <<= 1;
+		index = new int[capacity];
+	}
+
+	/**
+	 * Store a record, replacing any record under the same key. Records older
+	 * than <code>expiryTime</code> are reclaimed first when space is needed;
+	 * after that, the oldest records are evicted if <code>evict</code> is set.
+	 * The records of reclaimed and evicted entries are added to
+	 * <code>dropped</code>. A record that is not admitted leaves the record
+	 * under the same key, if any, in place.
+	 *
+	 * @param hash The key hash
+	 * @param key The encoded key, a prefix of the record
+	 * @param record The encoded record
+	 * @param now The insertion time
+	 * @param expiryTime Records inserted before this time are expired
+	 * @param evict Whether live records may be evicted to make room
+	 * @param dropped Receives the records that were expired or evicted
+	 * @return boolean false if the record was not admitted
+	 */
+	synchronized boolean put(
+		int hash,
+		byte[] key,
+		byte[] record,
+		long now,
+		long expiryTime,
+		boolean evict,
+		List dropped) {
+		int needed = slotsFor(record.length);
+		if (needed > slotCount) {
+			rejectionCount++;
+			return false;
+		}
+
+		int pos = find(hash, key);
+		if (!evict && !fits(needed, pos >= 0 ? index[pos] - 1 : NONE, expiryTime)) {
+			rejectionCount++;
+			return false;
+		}
+		if (pos >= 0)
+			removeAt(pos);
+
+		while (freeCount < needed) {
+			if (oldest == NONE) {
+				rejectionCount++;
+				return false;
+			}
+			if (times[oldest] < expiryTime) {
+				expirationCount++;
+			} else if (evict) {
+				evictionCount++;
+			} else {
+				rejectionCount++;
+				return false;
+			}
+			dropped.add(readRecord(oldest));
+			removeAt(find(hashes[oldest], oldest));
+		}
+
+		// Copy the record into a chain of free slots
+		int head = freeSlots[--freeCount];
+		int slot = head;
+		int offset = 0;
+		while (true) {
+			int count = Math.min(slotSize, record.length - offset);
+			buffer.position(slot * slotSize);
+			buffer.put(record, offset, count);
+			offset += count;
+			if (offset >= record.length) {
+				nextSlot[slot] = NONE;
+				break;
+			}
+			int next = freeSlots[--freeCount];
+			nextSlot[slot] = next;
+			slot = next;
+		}
+
+		hashes[head] = hash;
+		lengths[head] = record.length;
+		times[head] = now;
+
+		// Append to the insertion order list
+		older[head] = newest;
+		newer[head] = NONE;
+		if (newest != NONE)
+			newer[newest] = head;
+		else
+			oldest = head;
+		newest = head;
+
+		// Insert into the index, reusing the first deleted position
+		int mask = index.length - 1;
+		int i = hash & mask;
+		while (index[i] > EMPTY)
+			i = (i + 1) & mask;
+		if (index[i] == DELETED)
+			deletedCount--;
+		index[i] = head + 1;
+		entryCount++;
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the record stored under a key.
+	 *
+	 * @param hash The key hash
+	 * @param key The encoded key
+	 * @return byte[] the record, or null if absent
+	 */
+	synchronized byte[] get(int hash, byte[] key) {
+		int pos = find(hash, key);
+		return pos < 0 ? null : readRecord(index[pos] - 1);
+	}
+
+	/**
+	 * Remove the record stored under a key.
+	 *
+	 * @param hash The key hash
+	 * @param key The encoded key
+	 * @return boolean true if a record was removed
+	 */
+	synchronized boolean remove(int hash, byte[] key) {
+		int pos = find(hash, key);
+		if (pos < 0)
+			return false;
+		removeAt(pos);
+		return true;
+	}
+
+	/**
+	 * Remove all records inserted before a given time.
+	 *
+	 * @param expiryTime The expiry time
+	 * @param expired Receives the expired records
+	 */
+	synchronized void expire(long expiryTime, List expired) {
+		while (oldest != NONE && times[oldest] < expiryTime) {
+			expired.add(readRecord(oldest));
+			removeAt(find(hashes[oldest], oldest));
+			expirationCount++;
+		}
+	}
+
+	/**
+	 * Returns the number of records stored.
+	 * @return int
+	 */
+	synchronized int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Returns the number of bytes held by occupied slots.
+	 * @return long
+	 */
+	synchronized long getUsedBytes() {
+		return (long) (slotCount - freeCount) * slotSize;
+	}
+
+	/**
+	 * Returns the capacity in bytes.
+	 * @return long
+	 */
+	long getCapacityBytes() {
+		return (long) slotCount * slotSize;
+	}
+
+	/**
+	 * Returns the number of records evicted to admit newer ones.
+	 * @return long
+	 */
+	synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of records refused for lack of space.
+	 * @return long
+	 */
+	synchronized long getRejectionCount() {
+		return rejectionCount;
+	}
+
+	/**
+	 * Returns the number of records that expired.
+	 * @return long
+	 */
+	synchronized long getExpirationCount() {
+		return expirationCount;
+	}
+
+	/**
+	 * Whether a record needing <code>needed</code> slots can be admitted
+	 * without evicting live records: counts the free slots, the slots of the
+	 * record it replaces and those of the expired records.
+	 */
+	private boolean fits(int needed, int replaced, long expiryTime) {
+		int available = freeCount;
+		if (replaced != NONE)
+			available += slotsFor(lengths[replaced]);
+		int head = oldest;
+		while (available < needed && head != NONE && times[head] < expiryTime) {
+			if (head != replaced)
+				available += slotsFor(lengths[head]);
+			head = newer[head];
+		}
+		return available >= needed;
+	}
+
+	private int slotsFor(int length) {
+		return length == 0 ? 1 : (length + slotSize - 1) / slotSize;
+	}
+
+	/**
+	 * Index position of the record matching a key, or -1.
+	 */
+	private int find(int hash, byte[] key) {
+		int mask = index.length - 1;
+		int i = hash & mask;
+		while (true) {
+			int value = index[i];
+			if (value == EMPTY)
+				return NONE;
+			if (value != DELETED) {
+				int head = value - 1;
+				if (hashes[head] == hash && keyMatches(head, key))
+					return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * Index position of a given head slot.
+	 */
+	private int find(int hash, int head) {
+		int mask = index.length - 1;
+		int i = hash & mask;
+		while (index[i] != head + 1)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private boolean keyMatches(int head, byte[] key) {
+		if (key.length > lengths[head])
+			return false;
+		int slot = head;
+		int base = head * slotSize;
+		int inSlot = 0;
+		for (int i = 0; i < key.length; i++, inSlot++) {
+			if (inSlot == slotSize) {
+				slot = nextSlot[slot];
+				base = slot * slotSize;
+				inSlot = 0;
+			}
+			if (buffer.get(base + inSlot) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private byte[] readRecord(int head) {
+		byte[] record = new byte[lengths[head]];
+		int slot = head;
+		int offset = 0;
+		while (offset < record.length) {
+			int count = Math.min(slotSize, record.length - offset);
+			buffer.position(slot * slotSize);
+			buffer.get(record, offset, count);
+			offset += count;
+			slot = nextSlot[slot];
+		}
+		return record;
+	}
+
+	private void removeAt(int pos) {
+		int head = index[pos] - 1;
+
+		// Release the slot chain
+		for (int slot = head; slot != NONE; slot = nextSlot[slot])
+			freeSlots[freeCount++] = slot;
+
+		// Unlink from the insertion order list
+		if (older[head] != NONE)
+			newer[older[head]] = newer[head];
+		else
+			oldest = newer[head];
+		if (newer[head] != NONE)
+			older[newer[head]] = older[head];
+		else
+			newest = older[head];
+
+		index[pos] = DELETED;
+		deletedCount++;
+		entryCount--;
+		if (deletedCount > index.length / 4)
+			rehash();
+	}
+
+	private void rehash() {
+		int[] old = index;
+		int mask = old.length - 1;
+		index = new int[old.length];
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] > EMPTY) {
+				int j = hashes[old[i] - 1] & mask;
+				while (index[j] != EMPTY)
+					j = (j + 1) & mask;
+				index[j] = old[i];
+			}
+		}
+		deletedCount = 0;
+	}
+}
@@ -0,0 +1,531 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.intf.payment;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.MessageCacheManager;
+import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransaction;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransactionDAO;
+import com.oncecorp.visa3d.mpi.persistence.PersistentException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Message cache manager for Payment domain backed by a store shared by all
+ * core nodes (PendingTransactionDAO), so that the PaymentAuthReq of a
+ * transaction can be processed by any node, not only by the one which
+ * handled its PaymentVerifReq.
+ * <ul>
+ * <li>Write-behind on verify: added items go to a local near-cache and are
+ * written to the shared store in batches by a background thread, so the
+ * PaymentVerifRes is not delayed by the database. The write delay must stay
+ * well below the cardholder's round trip to the ACS.</li>
+ * <li>Single fetch on auth: an item missing from the near-cache is read
+ * once from the shared store and kept in the near-cache; concurrent
+ * lookups of the same id wait for that read instead of issuing their own.</li>
+ * <li>Expired transactions are claimed by deleting their row, so exactly one
+ * node reports each of them with an ERROR_CODE_70 ErrorMessage.</li>
+ * </ul>
+ * Items are stored with CompactPaymentCacheCodec, the PAN encrypted.
+ *
+ * @version $Revision: 1 $
+ */
+public class SharedPaymentMessageCacheManager implements MessageCacheManager {
+
+	/**
+	 * Local log4j Logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(SharedPaymentMessageCacheManager.class.getName());
+
+	/**
+	 * Default item expiry interval: 5 mins
+	 */
+	private static final long DEFAULT_INTERVAL = 300000;
+
+	/**
+	 * Default write-behind delay (in millis)
+	 */
+	private static final long DEFAULT_WRITE_DELAY = 50;
+
+	/**
+	 * Period between two expiry sweeps of the shared store (in millis)
+	 */
+	private static final long SWEEP_PERIOD = 5000;
+
+	/**
+	 * Near-cache entry
+	 */
+	private static class NearEntry {
+		private Object item;
+		private long time;
+
+		private NearEntry(Object item, long time) {
+			this.item = item;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * In-flight read of the shared store
+	 */
+	private static class Fetch {
+		private Object item;
+		private boolean done;
+	}
+
+	/**
+	 * Shared store access
+	 */
+	private PendingTransactionDAO dao = new PendingTransactionDAO();
+
+	/**
+	 * Near-cache, key: id, value: NearEntry
+	 */
+	private HashMap nearCache = new HashMap();
+
+	/**
+	 * Reads in progress, key: id, value: Fetch
+	 */
+	private HashMap fetches = new HashMap();
+
+	/**
+	 * Items to write, key: id, value: PendingTransaction. Guarded by writeLock.
+	 */
+	private LinkedHashMap pendingWrites = new LinkedHashMap();
+
+	/**
+	 * Ids to delete. Guarded by writeLock.
+	 */
+	private List pendingDeletes = new ArrayList();
+
+	/**
+	 * Write-behind lock
+	 */
+	private Object writeLock = new Object();
+
+	/**
+	 * Item expiry interval
+	 */
+	private long interval;
+
+	/**
+	 * Write-behind delay
+	 */
+	private long writeDelay;
+
+	/**
+	 * Write-behind thread
+	 */
+	private Thread writer;
+
+	/**
+	 * Stop flag of the write-behind thread
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Number of items read from the shared store
+	 */
+	private long remoteHitCount;
+
+	/**
+	 * Number of lookups missing from both the near-cache and the store
+	 */
+	private long missCount;
+
+	/**
+	 * Constructor. Starts the write-behind thread.
+	 */
+	public SharedPaymentMessageCacheManager() {
+		interval = DEFAULT_INTERVAL;
+		writeDelay = DEFAULT_WRITE_DELAY;
+		try {
+			Config config = Config.getConfigReference();
+			interval =
+				Long.parseLong(
+					(String) config.getConfigData(
+						MPIConfigDefinition.CACHE_EXPIRY_INTERVAL))
+					* 60000;
+			writeDelay =
+				Long.parseLong(
+					(String) config.getConfigData(
+						MPIConfigDefinition.TRANSACTION_STORE_WRITE_DELAY));
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve shared transaction store configuration. Defaults used for missing items.",
+				e);
+		}
+
+		writer = new Thread("PaymentTransactionStoreWriter") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		logger.info(
+			"Shared transaction store started. Write-behind delay (in millis second): "
+				+ writeDelay
+				+ ", expiry interval (in millis second): "
+				+ interval);
+	}
+
+	/**
+	 * Get cached item by its identity, reading it from the shared store if
+	 * it is not in the near-cache.
+	 *
+	 * @param id The item identity
+	 */
+	public Object getCachedItem(String id) {
+		if (id == null)
+			return null;
+
+		Fetch fetch;
+		boolean owner = false;
+		synchronized (nearCache) {
+			NearEntry entry = (NearEntry) nearCache.get(id);
+			if (entry != null)
+				return entry.item;
+
+			fetch = (Fetch) fetches.get(id);
+			if (fetch == null) {
+				fetch = new Fetch();
+				fetches.put(id, fetch);
+				owner = true;
+			}
+		}
+
+		if (!owner) {
+			// Another thread is reading this item
+			synchronized (fetch) {
+				while (!fetch.done) {
+					try {
+						fetch.wait();
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+				return fetch.item;
+			}
+		}
+
+		Object item = null;
+		try {
+			PendingTransaction tx = (PendingTransaction) dao.retrieve(id);
+			if (tx != null)
+				item = CompactPaymentCacheCodec.decode(tx.getData());
+		} catch (Exception e) {
+			logger.error("Failed to read item " + id + " from shared store.", e);
+		}
+
+		synchronized (nearCache) {
+			fetches.remove(id);
+			if (item != null) {
+				nearCache.put(id, new NearEntry(item, System.currentTimeMillis()));
+				remoteHitCount++;
+			} else {
+				missCount++;
+			}
+		}
+		synchronized (fetch) {
+			fetch.item = item;
+			fetch.done = true;
+			fetch.notifyAll();
+		}
+
+		logger.debug("Item " + id + (item == null ? " not found" : " read") + " from shared store.");
+		return item;
+	}
+
+	/**
+	 * Add new item. The item is available from this node immediately and
+	 * from the other nodes once written by the write-behind thread.
+	 *
+	 * @param id The item identity
+	 * @param item The item to be added, must be a PaymentCacheObject
+	 */
+	public void addItem(String id, Object item) throws MessagingException {
+		if (id == null) {
+			logger.error("Unable to cache item without identity.");
+			throw new MessagingException("Unable to cache item without identity.");
+		}
+		if (!(item instanceof PaymentCacheObject)) {
+			logger.error("Unable to cache item of type " + item);
+			throw new MessagingException("Only PaymentCacheObject can be cached.");
+		}
+
+		byte[] record;
+		try {
+			record = CompactPaymentCacheCodec.encode(id, (PaymentCacheObject) item, true);
+		} catch (IOException e) {
+			logger.error("Failed to encode item " + id, e);
+			throw new MessagingException("Failed to encode item " + id);
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized (nearCache) {
+			nearCache.put(id, new NearEntry(item, now));
+		}
+		synchronized (writeLock) {
+			pendingWrites.put(id, new PendingTransaction(id, now, record));
+			writeLock.notifyAll();
+		}
+		logger.debug("Item " + id + " added.");
+	}
+
+	/**
+	 * Remove cached item by its identity, from this node and from the
+	 * shared store.
+	 *
+	 * @param id The item identity
+	 */
+	public void removeItem(String id) {
+		if (id == null)
+			return;
+
+		synchronized (nearCache) {
+			nearCache.remove(id);
+		}
+		synchronized (writeLock) {
+			if (pendingWrites.remove(id) == null) {
+				pendingDeletes.add(id);
+				writeLock.notifyAll();
+			}
+		}
+		logger.debug("Item removed from cache: " + id);
+	}
+
+	/**
+	 * Stop the write-behind thread after a last flush.
+	 */
+	public void shutdown() {
+		stopped = true;
+		synchronized (writeLock) {
+			writeLock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while stopping shared transaction store.");
+		}
+	}
+
+	/**
+	 * Write pending items and deletions to the shared store now.
+	 */
+	public void flush() {
+		List writes;
+		List deletes;
+		synchronized (writeLock) {
+			writes = new ArrayList(pendingWrites.values());
+			deletes = pendingDeletes;
+			pendingWrites.clear();
+			pendingDeletes = new ArrayList();
+		}
+
+		if (!writes.isEmpty()) {
+			try {
+				dao.create(writes);
+			} catch (PersistentException e) {
+				logger.error(
+					"Failed to write " + writes.size() + " item(s) to shared store. Retrying later.",
+					e);
+				requeue(writes);
+			}
+		}
+
+		for (int i = 0; i < deletes.size(); i++) {
+			String id = (String) deletes.get(i);
+			try {
+				dao.delete(id);
+			} catch (PersistentException e) {
+				logger.error("Failed to delete item " + id + " from shared store.", e);
+			}
+		}
+	}
+
+	/**
+	 * Put back items which could not be written, unless they were removed
+	 * or replaced meanwhile.
+	 */
+	private void requeue(List writes) {
+		synchronized (writeLock) {
+			for (int i = 0; i < writes.size(); i++) {
+				PendingTransaction tx = (PendingTransaction) writes.get(i);
+				boolean local;
+				synchronized (nearCache) {
+					local = nearCache.containsKey(tx.getId());
+				}
+				if (local && !pendingWrites.containsKey(tx.getId()))
+					pendingWrites.put(tx.getId(), tx);
+			}
+		}
+	}
+
+	/**
+	 * Write-behind thread body
+	 */
+	private void writeLoop() {
+		long lastSweep = System.currentTimeMillis();
+		while (true) {
+			synchronized (writeLock) {
+				long now = System.currentTimeMillis();
+				long wait = SWEEP_PERIOD - (now - lastSweep);
+				if (!stopped
+					&& wait > 0
+					&& pendingWrites.isEmpty()
+					&& pendingDeletes.isEmpty()) {
+					try {
+						writeLock.wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+
+			// Let further items accumulate into the same batch
+			if (!stopped && writeDelay > 0) {
+				try {
+					Thread.sleep(writeDelay);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			try {
+				flush();
+				if (stopped)
+					return;
+
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_PERIOD) {
+					sweep(now);
+					lastSweep = now;
+				}
+			} catch (RuntimeException e) {
+				logger.error("Shared transaction store writer failure.", e);
+			}
+		}
+	}
+
+	/**
+	 * Drop expired near-cache entries and report the expired transactions
+	 * of the shared store claimed by this node.
+	 *
+	 * @param now The current time
+	 */
+	private void sweep(long now) {
+		long expiryTime = now - interval;
+		synchronized (nearCache) {
+			Iterator it = nearCache.values().iterator();
+			while (it.hasNext()) {
+				if (((NearEntry) it.next()).time < expiryTime)
+					it.remove();
+			}
+		}
+
+		List expired;
+		try {
+			expired = dao.retrieveCreatedBefore(expiryTime);
+		} catch (PersistentException e) {
+			logger.error("Failed to retrieve expired items from shared store.", e);
+			return;
+		}
+
+		for (int i = 0; i < expired.size(); i++) {
+			PendingTransaction tx = (PendingTransaction) expired.get(i);
+			try {
+				if (!dao.claim(tx.getId()))
+					continue;
+				logger.debug("Expired item " + tx.getId() + " removed.");
+				IncompleteTransactionPublisher.publish(
+					tx.getId(),
+					CompactPaymentCacheCodec.decode(tx.getData()),
+					"Expired VEReq & PAReq removed without corresponding PARes message.");
+			} catch (Exception e) {
+				logger.error("Failed to expire item " + tx.getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of items in the near-cache.
+	 * @return int
+	 */
+	public int getNearCacheCount() {
+		synchronized (nearCache) {
+			return nearCache.size();
+		}
+	}
+
+	/**
+	 * Returns the number of items waiting to be written.
+	 * @return int
+	 */
+	public int getPendingWriteCount() {
+		synchronized (writeLock) {
+			return pendingWrites.size();
+		}
+	}
+
+	/**
+	 * Returns the number of items read from the shared store.
+	 * @return long
+	 */
+	public long getRemoteHitCount() {
+		synchronized (nearCache) {
+			return remoteHitCount;
+		}
+	}
+
+	/**
+	 * Returns the number of lookups that found no item.
+	 * @return long
+	 */
+	public long getMissCount() {
+		synchronized (nearCache) {
+			return missCount;
+		}
+	}
+
+	/**
+	 * Returns the interval.
+	 * @return long
+	 */
+	public long getInterval() {
+		return interval;
+	}
+}
@@ -26,8 +26,8 @@ package com.oncecorp.visa3d.mpi.intf.payment.html;
 
 import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentAuthReqMessage;
+import com.oncecorp.visa3d.mpi.intf.payment.PaymentCacheManagerGenerator;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentCacheObject;
-import com.oncecorp.visa3d.mpi.intf.payment.PaymentMessageCacheManager;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentVerifReqMessage;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
@@ -95,7 +95,7 @@ public class HTMLAuthReqMessage extends HTMLMessage implements HTMLFieldDefiniti
             authReq.setPaymentAuthMsg(getPaRes());
 
             // Retrieve cached item from cache manager
-            Object item = (new PaymentMessageCacheManager()).getCachedItem(authReq.getId());
+            Object item = PaymentCacheManagerGenerator.getCacheManager().getCachedItem(authReq.getId());
             if (item == null) {
                 logger.error("No cached item found for ID: " + authReq.getId());
                 throw new MessagingException(
@@ -25,8 +25,8 @@
 package com.oncecorp.visa3d.mpi.intf.payment.html;
 
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentAuthResMessage;
+import com.oncecorp.visa3d.mpi.intf.payment.PaymentCacheManagerGenerator;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentCacheObject;
-import com.oncecorp.visa3d.mpi.intf.payment.PaymentMessageCacheManager;
 import com.oncecorp.visa3d.mpi.intf.payment.UniqueWindowIDGenerator;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
@@ -322,7 +322,7 @@ public class HTMLAuthResMessage extends HTMLMessage implements HTMLFieldDefiniti
          */
 
         // Retrieve cached item from cache manager
-        Object item = (new PaymentMessageCacheManager()).getCachedItem(authRes.getId());
+        Object item = PaymentCacheManagerGenerator.getCacheManager().getCachedItem(authRes.getId());
         String pan;
         if (item == null) {
             pan = "";
@@ -400,14 +400,14 @@ public class DomToMsgConverter {
 	/**
 	 * This method performs the actual conversion from DOM to the Java instance.
 	 *
-	 * @param doc			The XML document we are converting from
+	 * @param source		The XML content we are converting from
 	 * @param msgId			The messageID of this request
 	 * @param msgType		The message type associated with this conversion
 	 * @param msgVersion	The version that we must used, if supported
 	 * @return Message		Return the appropriate Java instance message
 	 * @throws MessagingException
 	 */
-	private Message makeConversion(Document doc, String msgId, String msgType, String msgVersion)
+	protected Message makeConversion(Object source, String msgId, String msgType, String msgVersion)
 		throws MessagingException {
 		// Check support for specific message type/version
 		MessageUID msgUID = new MessageUID(msgType, msgVersion);
@@ -478,7 +478,7 @@ public class DomToMsgConverter {
 				logger.debug("Entry[" + i + "]: ");
 
 				//Get argument value
-				Object value = getValue(doc, paths[i], types[i]);
+				Object value = getBoundValue(source, paths[i], types[i]);
 				logger.debug("  value: " + value);
 
 				// First fetch the proper method from the cache area
@@ -572,6 +572,18 @@ public class DomToMsgConverter {
 		return setterMethod;
 	}
 
+	/**
+	 * Get the value bound to a message attribute from the content being converted
+	 *
+	 * @param source The content passed to makeConversion(), a Document for this class
+	 * @param xpath The XPath to retrieve element value or nodelist
+	 * @param type The binding type
+	 * @return The attribute value.
+	 */
+	protected Object getBoundValue(Object source, String xpath, String type) throws Exception {
+		return getValue((Document) source, xpath, type);
+	}
+
 	/**
 	 * Convenient method to get setter attribute value
 	 *
@@ -756,46 +768,67 @@ public class DomToMsgConverter {
 			//Get extension element
 			Element extElement = (Element) nl.item(i);
 
-			//Prepare Extension object
-			Extension ext = new Extension();
-
-			//id attribute missing
-			if (extElement.getAttributeNode(THREED_MSG_ID) == null) {
-				logger.error("Extension missing id attribute.");
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_3,
-					ErrorCodes.ERROR_MESSAGE_3,
-					"Extension.id",
-					"Extension missing id attribute.",
-					"Extension missing id attribute.");
-			}
-            // Set the extension ID
-			ext.setExtID(extElement.getAttribute(THREED_MSG_ID));
-
-			// critical attribute missing
-			if (extElement.getAttributeNode(EXTENSION_CRITICAL) == null) {
-                // Correction for BugID:648
-                // From page 88 of VISA spec: a missing critical attribute is equivalent to
-                // false critical extension. However a critical extension with no value should
-				// no be OK
-                ext.setCritical("false");
-			}
-            else {
-                // Critical attribute is specified so we use that value
-                ext.setCritical(extElement.getAttribute(EXTENSION_CRITICAL));
-            }
-			// Set attribute values
-			ext.setExtValue(XMLUtil.getValueByXPath(extElement, "text()"));
-
 			// Set extension object in container
-			value[i] = ext;
+			value[i] =
+				createExtension(
+					(extElement.getAttributeNode(THREED_MSG_ID) == null)
+						? null
+						: extElement.getAttribute(THREED_MSG_ID),
+					(extElement.getAttributeNode(EXTENSION_CRITICAL) == null)
+						? null
+						: extElement.getAttribute(EXTENSION_CRITICAL),
+					XMLUtil.getValueByXPath(extElement, "text()"));
 		}
 
 		//return result
 		return value;
 	}
 
+	/**
+	 * Build an Extension from the values found in an Extension element
+	 *
+	 * @param id The id attribute value, null if the attribute is missing
+	 * @param critical The critical attribute value, null if the attribute is missing
+	 * @param extValue The element text
+	 * @return The Extension object.
+	 */
+	protected Extension createExtension(String id, String critical, String extValue)
+		throws MessagingException {
+		//Prepare Extension object
+		Extension ext = new Extension();
+
+		//id attribute missing
+		if (id == null) {
+			logger.error("Extension missing id attribute.");
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_3,
+				ErrorCodes.ERROR_MESSAGE_3,
+				"Extension.id",
+				"Extension missing id attribute.",
+				"Extension missing id attribute.");
+		}
+		// Set the extension ID
+		ext.setExtID(id);
+
+		// critical attribute missing
+		if (critical == null) {
+			// Correction for BugID:648
+			// From page 88 of VISA spec: a missing critical attribute is equivalent to
+			// false critical extension. However a critical extension with no value should
+			// no be OK
+			ext.setCritical("false");
+		}
+		else {
+			// Critical attribute is specified so we use that value
+			ext.setCritical(critical);
+		}
+		// Set attribute values
+		ext.setExtValue(extValue);
+
+		return ext;
+	}
+
 	/**
 	 * Convenient method to get attr type attribute value
 	 *
@@ -917,108 +950,124 @@ public class DomToMsgConverter {
 
 		for (int i = 0; i < crs.length; i++) {
 			Element crElement = (Element) nl.item(i);
-			CardRange cr = new CardRange();
 
-			String begin = XMLUtil.getValueByXPath(crElement, "begin/text()");
-			String end = XMLUtil.getValueByXPath(crElement, "end/text()");
-			String action = XMLUtil.getValueByXPath(crElement, "action/text()");
+			crs[i] =
+				createCardRange(
+					i,
+					XMLUtil.getValueByXPath(crElement, "begin/text()"),
+					XMLUtil.getValueByXPath(crElement, "end/text()"),
+					XMLUtil.getValueByXPath(crElement, "action/text()"));
+		}
 
-			// Validate the size of the begin card number provided
-			if ((begin == null) || (begin.length() > 19) || (begin.length() < 13)) {
-				logger.error("CR.begin is invalid. Value: " + begin);
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.begin",
-					"Invalid number size.",
-					"Invalid number size.");
-			}
+		return crs;
+	}
 
-			// Validate the size of the end card number provided
-			if ((end == null) || (end.length() > 19) || (end.length() < 13)) {
-				logger.error("CR.begin is invalid. Value: " + end);
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.end",
-					"Invalid number size.",
-					"Invalid number size.");
-			}
+	/**
+	 * Build a CardRange from the values found in a CR element
+	 *
+	 * @param i The CR element index, for logging
+	 * @param begin The begin element text
+	 * @param end The end element text
+	 * @param action The action element text
+	 * @return The CardRange object
+	 */
+	protected CardRange createCardRange(int i, String begin, String end, String action)
+		throws MessagingException {
+		CardRange cr = new CardRange();
 
-			// Validate to ensure the begin and end card number are of the same length
-			if (begin.length() != end.length()) {
-				logger.error("Card range not of same size. Begin size: " + begin.length() + " End size: " + end.length());
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.begin, CR.end",
-					"Begin card not same length as End card",
-					"Begin card not same length as End card.");
-			}
+		// Validate the size of the begin card number provided
+		if ((begin == null) || (begin.length() > 19) || (begin.length() < 13)) {
+			logger.error("CR.begin is invalid. Value: " + begin);
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.begin",
+				"Invalid number size.",
+				"Invalid number size.");
+		}
 
-			// Validate the action associate with the card range provided
-			if ((action == null) || !(action.equalsIgnoreCase("A") || action.equalsIgnoreCase("D"))) {
-				logger.error("CR.action is invalid. Value: " + action);
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.action",
-					"Invalid action.",
-					"Invalid action.");
-			}
+		// Validate the size of the end card number provided
+		if ((end == null) || (end.length() > 19) || (end.length() < 13)) {
+			logger.error("CR.begin is invalid. Value: " + end);
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.end",
+				"Invalid number size.",
+				"Invalid number size.");
+		}
 
-			try {
-				cr.setBegin(Long.valueOf(begin));
-			}
-			catch (NumberFormatException nfe) {
-				logger.error("CR.begin is invalid. Value: " + begin);
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.begin",
-					"Invalid number format.",
-					"Invalid number format.");
-			}
+		// Validate to ensure the begin and end card number are of the same length
+		if (begin.length() != end.length()) {
+			logger.error("Card range not of same size. Begin size: " + begin.length() + " End size: " + end.length());
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.begin, CR.end",
+				"Begin card not same length as End card",
+				"Begin card not same length as End card.");
+		}
 
-			try {
-				cr.setEnd(Long.valueOf(end));
-			}
-			catch (NumberFormatException nfe) {
-				logger.error("CR.end is invalid. Value: " + end);
-				throw new MessagingException(
-					"UNKNOWN",
-					ErrorCodes.ERROR_CODE_5,
-					ErrorCodes.ERROR_MESSAGE_5,
-					"CR.end",
-					"Invalid number format.",
-					"Invalid number format.");
+		// Validate the action associate with the card range provided
+		if ((action == null) || !(action.equalsIgnoreCase("A") || action.equalsIgnoreCase("D"))) {
+			logger.error("CR.action is invalid. Value: " + action);
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.action",
+				"Invalid action.",
+				"Invalid action.");
+		}
 
-			}
+		try {
+			cr.setBegin(Long.valueOf(begin));
+		}
+		catch (NumberFormatException nfe) {
+			logger.error("CR.begin is invalid. Value: " + begin);
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.begin",
+				"Invalid number format.",
+				"Invalid number format.");
+		}
 
-			cr.setAction(action);
-
-			logger.debug(
-				"      CR "
-					+ i
-					+ ":\n"
-					+ "        begin: "
-					+ begin
-					+ "\n"
-					+ "        end: "
-					+ end
-					+ "\n"
-					+ "        action: "
-					+ action);
-
-			crs[i] = cr;
+		try {
+			cr.setEnd(Long.valueOf(end));
 		}
+		catch (NumberFormatException nfe) {
+			logger.error("CR.end is invalid. Value: " + end);
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"CR.end",
+				"Invalid number format.",
+				"Invalid number format.");
 
-		return crs;
+		}
+
+		cr.setAction(action);
+
+		logger.debug(
+			"      CR "
+				+ i
+				+ ":\n"
+				+ "        begin: "
+				+ begin
+				+ "\n"
+				+ "        end: "
+				+ end
+				+ "\n"
+				+ "        action: "
+				+ action);
+
+		return cr;
 	}
 
 	/**
@@ -31,7 +31,9 @@ import com.oncecorp.visa3d.mpi.messaging.meta.ExtensionMetaInfo;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageMetaInfo;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageUID;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import org.apache.log4j.Logger;
@@ -93,16 +95,28 @@ public class Extension implements Serializable {
 	}
 	
 	public String toString() {
-		StringBuffer sb = new StringBuffer();
-		sb.append("<Extension id=\"");
-		sb.append(XMLUtil.filterSpecialChars(getExtID()));
-		sb.append("\" critical=\"");
-		sb.append(XMLUtil.filterSpecialChars(getCritical()));
-		sb.append("\">");
-		sb.append(XMLUtil.filterSpecialChars(getExtValue()));
-		sb.append("</Extension>");
-		
-		return sb.toString();
+		try {
+			XMLWriter out = new XMLWriter(128);
+			writeXML(out);
+			return out.toString();
+		} catch (IOException e) {
+			// A buffering writer never fails
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the Extension element as UTF-8 encoded XML.
+	 * @param out The writer receiving the element
+	 */
+	public void writeXML(XMLWriter out) throws IOException {
+		out.markup("<Extension id=\"");
+		out.text(getExtID());
+		out.markup("\" critical=\"");
+		out.text(getCritical());
+		out.markup("\">");
+		out.text(getExtValue());
+		out.markup("</Extension>");
 	}
 
 	/**
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.messaging;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.monitoring.LatencyMonitorMBean;
+import com.oncecorp.visa3d.mpi.utility.LatencyHistogram;
+import com.oncecorp.visa3d.mpi.utility.Utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latency histograms of the stages of the authentication pipeline, per
+ * message type and protocol.
+ * <p>
+ * A stage records its latency with record(stage, msgType, start), where
+ * start is the System.nanoTime() at which the stage began. Recording only
+ * takes a lock the first time a stage and message type are seen, and once
+ * per snapshot interval to close the interval of every histogram.
+ * Percentiles are then available both for the last completed interval and
+ * since startup or the last flush.
+ * Latencies are recorded in micros, so that stages well under a
+ * millisecond, such as parsing or card range lookups, are told apart.
+ *
+ * @version $Revision: 1 $
+ */
+public class LatencyMonitor implements LatencyMonitorMBean {
+
+	/**
+	 * Stages recorded by the pipeline
+	 */
+	public static final String STAGE_PROCESS = "Process";
+	public static final String STAGE_PROCESS_COMPLEX = "ProcessComplex";
+	public static final String STAGE_CARD_RANGE_LOOKUP = "CardRangeLookup";
+	public static final String STAGE_DIRECTORY_EXCHANGE = "DirectoryExchange";
+	public static final String STAGE_DIRECTORY_ROUND_TRIP = "DirectoryRoundTrip";
+	public static final String STAGE_RESPONSE_CONVERSION = "ResponseConversion";
+	public static final String STAGE_PARES_DECODING = "PAResDecoding";
+	public static final String STAGE_PARES_PARSING = "PAResParsing";
+	public static final String STAGE_PARES_CONVERSION = "PAResConversion";
+	public static final String STAGE_SIGNATURE_VERIFICATION = "SignatureVerification";
+	public static final String STAGE_PUBLISHING = "Publishing";
+
+	/**
+	 * Default snapshot interval (in secs)
+	 */
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
+
+	/**
+	 * Local logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(LatencyMonitor.class.getName());
+
+	/**
+	 * Synchronized token
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Stage / message type / histograms indexed by protocol column. Replaced,
+	 * never modified, when a histogram is added so it can be read without
+	 * locking.
+	 */
+	private static volatile Map histograms = new HashMap();
+
+	/**
+	 * Snapshot interval (in millis), -1 until read from the configuration
+	 */
+	private static volatile long snapshotInterval = -1;
+
+	/**
+	 * Time the next snapshot interval is closed
+	 */
+	private static volatile long nextSnapshotTime;
+
+	/**
+	 * Start and end of the last completed snapshot interval
+	 */
+	private static long previousSnapshotTime = System.currentTimeMillis();
+	private static long lastSnapshotTime = previousSnapshotTime;
+
+	/**
+	 * Last flush time
+	 */
+	private static long lastFlushTime = previousSnapshotTime;
+
+	/**
+	 * Records the latency of a stage for the current protocol.
+	 * @param stage The stage
+	 * @param msgType The type of the message processed
+	 * @param start The System.nanoTime() at which the stage began
+	 */
+	public static void record(String stage, String msgType, long start) {
+		long elapsed = (System.nanoTime() - start) / 1000;
+		long now = System.currentTimeMillis();
+		int column =
+			PerformanceMonitor.getColumn(
+				Utils.toProtocolByte(
+					AuthenticatorSession.instance().getProtocol()));
+
+		getHistograms(stage, (msgType == null) ? "" : msgType)[column].record(elapsed);
+
+		if (now >= nextSnapshotTime)
+			snapshot(now);
+	}
+
+	/**
+	 * Returns the histograms of a stage and message type, creating them
+	 * the first time.
+	 * @return The histograms indexed by protocol column
+	 */
+	private static LatencyHistogram[] getHistograms(String stage, String msgType) {
+		Map types = (Map) histograms.get(stage);
+		LatencyHistogram[] result =
+			(types == null) ? null : (LatencyHistogram[]) types.get(msgType);
+		if (result != null)
+			return result;
+
+		synchronized (lock) {
+			types = (Map) histograms.get(stage);
+			result = (types == null) ? null : (LatencyHistogram[]) types.get(msgType);
+			if (result == null) {
+				result = new LatencyHistogram[PerformanceMonitor.COLUMNS];
+				for (int i = 0; i < result.length; i++)
+					result[i] = new LatencyHistogram();
+
+				Map newTypes = (types == null) ? new HashMap() : new HashMap(types);
+				newTypes.put(msgType, result);
+				Map newHistograms = new HashMap(histograms);
+				newHistograms.put(stage, newTypes);
+				histograms = newHistograms;
+				logger.debug("New latency histogram created: " + stage + " " + msgType);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Closes the snapshot interval of every histogram if it is due.
+	 * @param now The current time
+	 */
+	private static void snapshot(long now) {
+		synchronized (lock) {
+			if (now < nextSnapshotTime)
+				return;
+
+			Iterator types = histograms.values().iterator();
+			while (types.hasNext()) {
+				Iterator it = ((Map) types.next()).values().iterator();
+				while (it.hasNext()) {
+					LatencyHistogram[] columns = (LatencyHistogram[]) it.next();
+					for (int i = 0; i < columns.length; i++)
+						columns[i].rotate();
+				}
+			}
+
+			previousSnapshotTime = lastSnapshotTime;
+			lastSnapshotTime = now;
+			nextSnapshotTime = now + getSnapshotIntervalMillis();
+		}
+	}
+
+	/**
+	 * Returns the snapshot interval, read from the configuration on first use.
+	 * @return long millis
+	 */
+	private static long getSnapshotIntervalMillis() {
+		long interval = snapshotInterval;
+		if (interval >= 0)
+			return interval;
+
+		interval = DEFAULT_SNAPSHOT_INTERVAL;
+		try {
+			interval =
+				Long.parseLong(
+					(String) Config.getConfigReference().getConfigData(
+						MPIConfigDefinition.LATENCY_SNAPSHOT_INTERVAL));
+			if (interval <= 0)
+				interval = DEFAULT_SNAPSHOT_INTERVAL;
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve latency monitor configuration. Defaults used for missing items.",
+				e);
+		}
+		snapshotInterval = interval * 1000;
+		return snapshotInterval;
+	}
+
+	/**
+	 * Builds the result of a histogram column
+	 */
+	private static LatencyStatisticResult toResult(
+		String stage,
+		String msgType,
+		int column,
+		long[] counts,
+		long max,
+		long start,
+		long end) {
+		LatencyStatisticResult result = new LatencyStatisticResult();
+		result.setStage(stage);
+		result.setMsgType(msgType);
+		result.setProtocol(PerformanceMonitor.COLUMN_KEYS[column]);
+		result.setCount(LatencyHistogram.getTotalCount(counts));
+		result.setP50(LatencyHistogram.getValueAtPercentile(counts, 50, max));
+		result.setP90(LatencyHistogram.getValueAtPercentile(counts, 90, max));
+		result.setP99(LatencyHistogram.getValueAtPercentile(counts, 99, max));
+		result.setP999(LatencyHistogram.getValueAtPercentile(counts, 99.9, max));
+		result.setMax(max);
+		result.setPeriodStart(start);
+		result.setPeriodEnd(end);
+		return result;
+	}
+
+	/**
+	 * Builds the statistic map of every histogram.
+	 * @param interval Whether the last completed interval is reported,
+	 * rather than the counts since the last flush
+	 */
+	private static Map getStatistic(boolean interval) {
+		long now = System.currentTimeMillis();
+		if (interval && now >= nextSnapshotTime)
+			snapshot(now);
+
+		long start;
+		long end;
+		synchronized (lock) {
+			start = interval ? previousSnapshotTime : lastFlushTime;
+			end = interval ? lastSnapshotTime : now;
+		}
+
+		Map map = new TreeMap();
+		Iterator stages = histograms.entrySet().iterator();
+		while (stages.hasNext()) {
+			Map.Entry stage = (Map.Entry) stages.next();
+			Iterator it = ((Map) stage.getValue()).entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry entry = (Map.Entry) it.next();
+				String stageName = (String) stage.getKey();
+				String msgType = (String) entry.getKey();
+				LatencyHistogram[] columns = (LatencyHistogram[]) entry.getValue();
+
+				// The ALL column merges the histograms of every protocol
+				Map results = new TreeMap();
+				long[] all = new long[LatencyHistogram.BUCKET_COUNT];
+				long allMax = 0;
+				for (int i = 0; i < columns.length; i++) {
+					long[] counts = interval ? columns[i].getIntervalCounts() : columns[i].getCounts();
+					long max = interval ? columns[i].getIntervalMax() : columns[i].getMax();
+					for (int k = 0; k < all.length; k++)
+						all[k] += counts[k];
+					allMax = Math.max(allMax, max);
+
+					if (i != PerformanceMonitor.ALL_COLUMN) {
+						results.put(
+							PerformanceMonitor.COLUMN_KEYS[i],
+							toResult(stageName, msgType, i, counts, max, start, end));
+					}
+				}
+				results.put(
+					PerformanceMonitor.COLUMN_KEYS[PerformanceMonitor.ALL_COLUMN],
+					toResult(stageName, msgType, PerformanceMonitor.ALL_COLUMN, all, allMax, start, end));
+
+				map.put(Utils.getMessageMappingKey(stageName, msgType), results);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the latency statistic of the last completed snapshot interval.
+	 * @return The map contains LatencyStatisticResult objects per protocol
+	 */
+	public Map optLatencyStatistic() {
+		return getStatistic(true);
+	}
+
+	/**
+	 * Returns the latency statistic since startup or the last flush.
+	 * @return The map contains LatencyStatisticResult objects per protocol
+	 */
+	public Map optCumulativeLatencyStatistic() {
+		return getStatistic(false);
+	}
+
+	/**
+	 * Flush every latency histogram
+	 */
+	public void optFlush() {
+		synchronized (lock) {
+			Iterator types = histograms.values().iterator();
+			while (types.hasNext()) {
+				Iterator it = ((Map) types.next()).values().iterator();
+				while (it.hasNext()) {
+					LatencyHistogram[] columns = (LatencyHistogram[]) it.next();
+					for (int i = 0; i < columns.length; i++)
+						columns[i].reset();
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			lastFlushTime = now;
+			previousSnapshotTime = now;
+			lastSnapshotTime = now;
+			nextSnapshotTime = now + getSnapshotIntervalMillis();
+		}
+	}
+
+	/**
+	 * Returns the snapshot interval.
+	 * @return long secs
+	 */
+	public long getSnapshotInterval() {
+		return getSnapshotIntervalMillis() / 1000;
+	}
+
+	/**
+	 * Sets the snapshot interval. Ignored unless positive.
+	 * @param interval The interval in secs
+	 */
+	public void setSnapshotInterval(long interval) {
+		if (interval <= 0)
+			return;
+
+		synchronized (lock) {
+			snapshotInterval = interval * 1000;
+			nextSnapshotTime = lastSnapshotTime + snapshotInterval;
+		}
+	}
+
+	/**
+	 * Returns the time the last snapshot interval was closed.
+	 * @return long millis
+	 */
+	public long getLastSnapshotTime() {
+		synchronized (lock) {
+			return lastSnapshotTime;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.messaging;
+
+import java.io.Serializable;
+
+/**
+ * Latency percentiles of one processing stage, for one message type and
+ * protocol, over a period of time
+ *
+ * @version $Revision: 1 $
+ */
+public class LatencyStatisticResult implements Serializable, Comparable {
+	private String stage;
+	private String msgType;
+	private String protocol;
+	private long count;
+	private long p50;
+	private long p90;
+	private long p99;
+	private long p999;
+	private long max;
+	private long periodStart;
+	private long periodEnd;
+
+	public LatencyStatisticResult() {
+	}
+
+	public int compareTo(Object o) {
+		LatencyStatisticResult result = (LatencyStatisticResult) o;
+		int compareResult = this.stage.compareTo(result.getStage());
+		if (compareResult != 0)
+			return compareResult;
+		compareResult = this.msgType.compareTo(result.getMsgType());
+		if (compareResult != 0)
+			return compareResult;
+		return this.protocol.compareTo(result.getProtocol());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof LatencyStatisticResult))
+			return false;
+		LatencyStatisticResult result = (LatencyStatisticResult) anObject;
+
+		return this.stage.equals(result.getStage())
+			&& this.msgType.equals(result.getMsgType())
+			&& this.protocol.equals(result.getProtocol())
+			&& (this.count == result.getCount())
+			&& (this.p50 == result.getP50())
+			&& (this.p90 == result.getP90())
+			&& (this.p99 == result.getP99())
+			&& (this.p999 == result.getP999())
+			&& (this.max == result.getMax())
+			&& (this.periodStart == result.getPeriodStart())
+			&& (this.periodEnd == result.getPeriodEnd());
+	}
+
+	public int hashCode() {
+		return (stage + msgType + protocol).hashCode();
+	}
+
+	/**
+	 * Returns the stage.
+	 * @return String
+	 */
+	public String getStage() {
+		return stage;
+	}
+
+	/**
+	 * Returns the message type.
+	 * @return String
+	 */
+	public String getMsgType() {
+		return msgType;
+	}
+
+	/**
+	 * Returns the protocol.
+	 * @return String
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns the number of recorded latencies.
+	 * @return long
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the median latency.
+	 * @return long micros
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+	/**
+	 * Returns the 90th percentile latency.
+	 * @return long micros
+	 */
+	public long getP90() {
+		return p90;
+	}
+
+	/**
+	 * Returns the 99th percentile latency.
+	 * @return long micros
+	 */
+	public long getP99() {
+		return p99;
+	}
+
+	/**
+	 * Returns the 99.9th percentile latency.
+	 * @return long micros
+	 */
+	public long getP999() {
+		return p999;
+	}
+
+	/**
+	 * Returns the largest latency.
+	 * @return long micros
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the start of the period covered.
+	 * @return long millis
+	 */
+	public long getPeriodStart() {
+		return periodStart;
+	}
+
+	/**
+	 * Returns the end of the period covered.
+	 * @return long millis
+	 */
+	public long getPeriodEnd() {
+		return periodEnd;
+	}
+
+	/**
+	 * Sets the stage.
+	 * @param stage The stage to set
+	 */
+	public void setStage(String stage) {
+		this.stage = stage;
+	}
+
+	/**
+	 * Sets the message type.
+	 * @param msgType The msgType to set
+	 */
+	public void setMsgType(String msgType) {
+		this.msgType = msgType;
+	}
+
+	/**
+	 * Sets the protocol.
+	 * @param protocol The protocol to set
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Sets the count.
+	 * @param count The count to set
+	 */
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	/**
+	 * Sets the median latency.
+	 * @param p50 The p50 to set
+	 */
+	public void setP50(long p50) {
+		this.p50 = p50;
+	}
+
+	/**
+	 * Sets the 90th percentile latency.
+	 * @param p90 The p90 to set
+	 */
+	public void setP90(long p90) {
+		this.p90 = p90;
+	}
+
+	/**
+	 * Sets the 99th percentile latency.
+	 * @param p99 The p99 to set
+	 */
+	public void setP99(long p99) {
+		this.p99 = p99;
+	}
+
+	/**
+	 * Sets the 99.9th percentile latency.
+	 * @param p999 The p999 to set
+	 */
+	public void setP999(long p999) {
+		this.p999 = p999;
+	}
+
+	/**
+	 * Sets the largest latency.
+	 * @param max The max to set
+	 */
+	public void setMax(long max) {
+		this.max = max;
+	}
+
+	/**
+	 * Sets the start of the period covered.
+	 * @param periodStart The periodStart to set
+	 */
+	public void setPeriodStart(long periodStart) {
+		this.periodStart = periodStart;
+	}
+
+	/**
+	 * Sets the end of the period covered.
+	 * @param periodEnd The periodEnd to set
+	 */
+	public void setPeriodEnd(long periodEnd) {
+		this.periodEnd = periodEnd;
+	}
+
+	/**
+	 * Civilized version of the toString conversion method.
+	 */
+	public String toString() {
+		return "[LatencyStatisticResult:"
+			+ stage + "/" + msgType + "/" + protocol
+			+ " count=" + count
+			+ " p50=" + p50
+			+ " p90=" + p90
+			+ " p99=" + p99
+			+ " p999=" + p999
+			+ " max=" + max
+			+ "]";
+	}
+}
@@ -25,6 +25,7 @@
 package com.oncecorp.visa3d.mpi.messaging;
 
 import com.oncecorp.visa3d.mpi.utility.XMLSerializable;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
 /**
  * Description: This super class define an abstract method, which has 
@@ -80,5 +81,20 @@ public abstract class Message implements XMLSerializable {
       return true;     
     }
 
+	/**
+	 * Default XMLSerializable.writeXML() implementation writing the
+	 * toString() representation. Messages sent on the wire override it to
+	 * write their fields directly.
+	 * @param out The writer receiving the XML
+	 */
+	public void writeXML(XMLWriter out) throws Exception {
+		String xml = toString();
+		if (xml == null)
+			throw new MessagingException(
+				"Failed to convert " + getType() + " message to XML.");
+
+		out.markup(xml);
+	}
+
 }
 
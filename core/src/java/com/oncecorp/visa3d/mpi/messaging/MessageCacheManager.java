@@ -48,4 +48,11 @@ public interface MessageCacheManager {
 	 */
 	public void addItem(String id, Object item) throws MessagingException;
 
+	/**
+	 * Implement this method to remove an item from cache
+	 * 
+	 * @param id The item identity
+	 */
+	public void removeItem(String id);
+
 }
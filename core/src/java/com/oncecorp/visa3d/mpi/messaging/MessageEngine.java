@@ -41,9 +41,10 @@ import org.apache.log4j.Logger;
  * As a facade object, it receive the generic message from other MPI
  * component and return a processed message back.
  * 
- * There is 1 public methods can be used by other MPI component:
+ * There are 2 public methods can be used by other MPI component:
  * 
  * - public static Message process (Message msg)
+ * - public static void process (Message msg, MessageContinuation continuation)
  * 
  * On the other hand, MessageEngine is responsible for catching all messaging
  * component exceptions during processing and return an MPIErrorMessage
@@ -85,8 +86,64 @@ public class MessageEngine {
 	 * @return msg - Message (processed finalMsg) 
 	 */
 	public static Message process(Message msg) throws MessagingException {
-		MessageProcessor processor = null;
+		MessageProcessor processor = getProcessor(msg);
+		Message newMsg = processSimple(msg, processor);
 
+		// keep processing
+		if (processor instanceof ComplexMessageProcessor) {
+			// This guy is a complex processor so we must do additional processing
+			ComplexMessageProcessor cProcessor =
+				(ComplexMessageProcessor) processor;
+			long start = System.nanoTime();
+			newMsg = cProcessor.processComplex(newMsg);
+			LatencyMonitor.record(LatencyMonitor.STAGE_PROCESS_COMPLEX, msg.getType(), start);
+		}
+
+		// do logging
+		logger.debug("process(" + msg.getClass().getName() + ") completed !!");
+
+		// return to caller
+		return newMsg;
+	}
+
+	/**
+	 * Process a message like process(Message), without holding the calling
+	 * thread when its processor is an AsyncComplexMessageProcessor. The
+	 * final message, or the failure, is handed to the continuation, possibly
+	 * from another thread.
+	 * @param msg - Message
+	 * @param continuation - receives the processed finalMsg
+	 */
+	public static void process(Message msg, MessageContinuation continuation) {
+		Message newMsg;
+		try {
+			MessageProcessor processor = getProcessor(msg);
+			newMsg = processSimple(msg, processor);
+
+			if (processor instanceof AsyncComplexMessageProcessor) {
+				// The processor resumes the continuation itself
+				((AsyncComplexMessageProcessor) processor).processComplex(newMsg, continuation);
+				logger.debug("process(" + msg.getClass().getName() + ") suspended !!");
+				return;
+			}
+			if (processor instanceof ComplexMessageProcessor) {
+				long start = System.nanoTime();
+				newMsg = ((ComplexMessageProcessor) processor).processComplex(newMsg);
+				LatencyMonitor.record(LatencyMonitor.STAGE_PROCESS_COMPLEX, msg.getType(), start);
+			}
+		} catch (Exception e) {
+			continuation.fail(e);
+			return;
+		}
+
+		logger.debug("process(" + msg.getClass().getName() + ") completed !!");
+		continuation.resume(newMsg);
+	}
+
+	/**
+	 * Validate a message and locate its processor.
+	 */
+	private static MessageProcessor getProcessor(Message msg) throws MessagingException {
 		// Check if message is valid. If not then a MessagingException will be thrown.
 		if (msg.validate()) {
 			logger.debug("Message is valid: " + msg.getClass().getName());
@@ -96,10 +153,18 @@ public class MessageEngine {
 		MessageUID uid = new MessageUID(msg.getType(), msg.getVersion());
 
 		// instantiate a specific processor class
-		processor = (MessageProcessor) MessageMetaInfo.getProcessor(uid);
+		return (MessageProcessor) MessageMetaInfo.getProcessor(uid);
+	}
 
+	/**
+	 * Apply the simple processing of a message, then count and publish it.
+	 */
+	private static Message processSimple(Message msg, MessageProcessor processor)
+		throws MessagingException {
 		// processing this message 
+		long start = System.nanoTime();
 		Message newMsg = processor.process(msg);
+		LatencyMonitor.record(LatencyMonitor.STAGE_PROCESS, msg.getType(), start);
 
 		if (!(msg instanceof CRReqMessage) && !(msg instanceof CRResMessage)) {
 			// count & publish this message
@@ -118,19 +183,6 @@ public class MessageEngine {
 					"Current transaction abandoned as publishing error occurred.");
 			}
 		}
-
-		// keep processing
-		if (processor instanceof ComplexMessageProcessor) {
-			// This guy is a complex processor so we must do additional processing
-			ComplexMessageProcessor cProcessor =
-				(ComplexMessageProcessor) processor;
-			newMsg = cProcessor.processComplex(newMsg);
-		}
-
-		// do logging
-		logger.debug("process(" + msg.getClass().getName() + ") completed !!");
-
-		// return to caller
 		return newMsg;
 	}
 }
@@ -28,11 +28,19 @@ import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
+import com.oncecorp.visa3d.mpi.controller.CardRangeMonitor;
+import com.oncecorp.visa3d.mpi.controller.DirectoryClient;
+import com.oncecorp.visa3d.mpi.controller.DirectoryRouter;
+import com.oncecorp.visa3d.mpi.controller.ErrorDispatcher;
+import com.oncecorp.visa3d.mpi.controller.ErrorHandlerThreadManager;
+import com.oncecorp.visa3d.mpi.controller.RetryPolicy;
 import com.oncecorp.visa3d.mpi.domain.payment.CRReqMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.CRResMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.PAResMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
 import com.oncecorp.visa3d.mpi.domain.profile.IPResMessage;
+import com.oncecorp.visa3d.mpi.intf.payment.BoundedPaymentMessageCacheManager;
+import com.oncecorp.visa3d.mpi.intf.payment.EnrollmentCache;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentAuthResMessage;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentVerifResMessage;
 import com.oncecorp.visa3d.mpi.intf.profile.ProfileAuthResMessage;
@@ -40,12 +48,18 @@ import com.oncecorp.visa3d.mpi.intf.profile.ProfileVerifResMessage;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageUID;
 import com.oncecorp.visa3d.mpi.monitoring.PerformanceMonitorMBean;
+import com.oncecorp.visa3d.mpi.publishing.AsyncPublisher;
+import com.oncecorp.visa3d.mpi.publishing.PublishSpool;
+import com.oncecorp.visa3d.mpi.publishing.PublishingManager;
+import com.oncecorp.visa3d.mpi.utility.StripedCounter;
 import com.oncecorp.visa3d.mpi.utility.Utils;
+import com.oncecorp.visa3d.mpi.utility.XMLUtil;
 
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -129,39 +143,93 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	private static PerformanceMonitor performanceMonitor;
 
 	/**
-	 * TreeMap contains MessageUID/Individual message counter
+	 * Protocol columns of each counter slot. Messages of any other protocol
+	 * are only counted in the ALL column.
 	 */
-	private static Map msgTypeCounters;
+	static final int VISA_COLUMN = 0;
+	static final int MASTER_COLUMN = 1;
+	static final int ALL_COLUMN = 2;
+	static final int COLUMNS = 3;
 
 	/**
-	 * TreeMap contains StatusCategoryID/counter
+	 * Protocol keys of the statistic maps, indexed by column
 	 */
-	private  static Map msgStatusCounters;
+	static final String[] COLUMN_KEYS =
+		new String[] {
+			"" + Utils.VISA_SUPPORT,
+			"" + Utils.MASTER_SUPPORT,
+			"" + Utils.ALL_SUPPORT };
 
 	/**
-	 * TreeMap contains MerchantID/counter
+	 * Index of the total counter in typeCounters
 	 */
-	private static Map msgMerchantIDCounters;
+	private static final int TOTAL = 0;
 
 	/**
-	 * Total processed message counter
+	 * Cells increased for a message of unknown type
 	 */
-	private static long totalCounter;
+	private static final int[] TOTAL_ONLY = new int[] { TOTAL };
 
 	/**
-	 * Peak TPS(Transaction per second)
+	 * Total counter followed by COLUMNS counters per message type
+	 */
+	private static StripedCounter typeCounters;
+
+	/**
+	 * Message type / version / cells to increase per protocol column
+	 */
+	private static Map typeSlots;
+
+	/**
+	 * Mapping keys of the message types, indexed by slot
+	 */
+	private static String[] typeKeys;
+
+	/**
+	 * COLUMNS counters per status category
+	 */
+	private static StripedCounter statusCounters;
+
+	/**
+	 * Status / message type / cells to increase per protocol column
+	 */
+	private static Map statusSlots;
+
+	/**
+	 * Mapping keys of the status categories, indexed by slot
+	 */
+	private static String[] statusKeys;
+
+	/**
+	 * COLUMNS counters per merchant ID. Grows as new merchants are counted.
 	 */
-	private static float peakTPS;
+	private static StripedCounter merchantCounters;
 
 	/**
-	 * Average TPS
+	 * MerchantID / cells to increase per protocol column. Replaced, never
+	 * modified, when a merchant is added so it can be read without locking.
 	 */
-	private static float averageTPS;
+	private static volatile Map merchantSlots;
+
+	/**
+	 * Merchant IDs indexed by slot, replaced along with merchantSlots
+	 */
+	private static volatile String[] merchantKeys;
+
+	/**
+	 * Time of the last counted message
+	 */
+	private static volatile long lastCountTime;
+
+	/**
+	 * Peak TPS(Transaction per second)
+	 */
+	private static volatile float peakTPS;
 
 	/**
 	 * Sampling time (in secs)
 	 */
-	private static long samplingTime;
+	private static volatile long samplingTime;
 
 	/**
 	 * Counting startup time
@@ -171,22 +239,17 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	/**
 	 * Peak time
 	 */
-	private static long peakTime;
+	private static volatile long peakTime;
 
 	/**
 	 * Last flush time
 	 */
-	private static long lastFlushTime;
+	private static volatile long lastFlushTime;
 
 	/**
 	 * Last flush counter
 	 */
-	private static long lastFlushCounter;
-
-	// zero counter backup
-	private static Map zeroTypeCounter;
-	private static Map zeroStatusCounter;
-	private static Map zeroMerchantCounter;
+	private static volatile long lastFlushCounter;
 
 	/**
 	 * Constructor
@@ -201,11 +264,9 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 				(HashMap) (new MessagingConfigAccessor()).getConfigData();
 
 			// Initialize counters per message type
-			msgTypeCounters = Collections.synchronizedMap( new TreeMap() );
-            zeroTypeCounter = Collections.synchronizedMap(new TreeMap() );
+			typeSlots = new HashMap();
+			List keys = new ArrayList();
 			Iterator iterator = meta.keySet().iterator();
-			int i = 0;
-            String key;
 			while (iterator.hasNext()) {
 				MessageUID uid = (MessageUID) iterator.next();
 				logger.debug("Meta UID: " + uid.toString());
@@ -217,31 +278,43 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 				 */
 				if (!uid.getName().equals(CRReqMessage.MSG_TYPE)
 					&& !uid.getName().equals(CRResMessage.MSG_TYPE)) {
-					// Create counter for this UID
-                    key = Utils.getMessageMappingKey(
-                            uid.getName(), uid.getVersion() );
-					msgTypeCounters.put(key,  getZeroProtocolCounter() );
-                    zeroTypeCounter.put(key,  getZeroProtocolCounter() );
+					// Create counter slot for this UID
+					putSlot(
+						typeSlots,
+						uid.getName(),
+						uid.getVersion(),
+						resolveCells(1 + keys.size() * COLUMNS, true));
+					keys.add(
+						Utils.getMessageMappingKey(
+							uid.getName(),
+							uid.getVersion()));
 				}
 			}
+			typeKeys = (String[]) keys.toArray(new String[keys.size()]);
+			typeCounters = new StripedCounter(1 + typeKeys.length * COLUMNS);
 
 
 			// Initialize counters per status
-			msgStatusCounters = Collections.synchronizedMap( new TreeMap() );
-            zeroStatusCounter = Collections.synchronizedMap( new TreeMap() );
+			statusSlots = new HashMap();
+			statusKeys = new String[STATUS_CATEGORY.length];
 			for (int k = 0; k < STATUS_CATEGORY.length; k++) {
-                key = Utils.getMessageMappingKey(
-                        STATUS_CATEGORY[k][0],
+				putSlot(
+					statusSlots,
+					STATUS_CATEGORY[k][0],
+					STATUS_CATEGORY[k][1],
+					resolveCells(k * COLUMNS, false));
+				statusKeys[k] =
+					Utils.getMessageMappingKey(
+						STATUS_CATEGORY[k][0],
 						STATUS_CATEGORY[k][1]);
-
-				msgStatusCounters.put( key, getZeroProtocolCounter());
-                zeroStatusCounter.put( key, getZeroProtocolCounter());
 			}
+			statusCounters = new StripedCounter(statusKeys.length * COLUMNS);
 
 
 			// Initialize counters per merchant ID
-			msgMerchantIDCounters = Collections.synchronizedMap( new TreeMap() );
-            zeroMerchantCounter = Collections.synchronizedMap( new TreeMap() );
+			merchantSlots = new HashMap();
+			merchantKeys = new String[0];
+			merchantCounters = new StripedCounter(0);
 			Iterator merchantList = null;
 			try {
 				merchantList =
@@ -255,11 +328,8 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 					"Failed to retrieve merchant list from config.",
 					e);
 			}
-			String temp = null;
-			while (merchantList.hasNext()) {
-				temp = (String) merchantList.next();
-				msgMerchantIDCounters.put(temp, getZeroProtocolCounter());
-                zeroMerchantCounter.put(temp, getZeroProtocolCounter());
+			while (merchantList != null && merchantList.hasNext()) {
+				getMerchantCells((String) merchantList.next());
 			}
 
 			//Set startup, lastFlush time and peakTime
@@ -323,102 +393,206 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	 * @param merID The merchantID
 	 */
 	public void count(Message msg, String merID) {
-		synchronized (token) {
-			Map counter = null;
-
-			// Increase counter per message type first
-			// Create UID
-            String key = Utils.getMessageMappingKey( msg.getType(), msg.getVersion() );
-            String protocol = "" + Utils.toProtocolByte(
-                    AuthenticatorSession.instance().getProtocol() );
-
-			// Get counter by UID
-			counter = (Map) getMsgTypeCounters().get(key);
-
-            increaseMapItemValue( counter, protocol );
-            increaseMapItemValue( counter, ""+Utils.ALL_SUPPORT );
-
-			logger.debug("Counter per type increased: " + key );
-
-			// Increase counter per status
-			// Categorize message
-			StatusCategoryID scid = categorize(msg);
-			if (scid != null) {
-                key = Utils.getMessageMappingKey( scid.getStatus(),
-                        scid.getMsgType() );
-				counter = (Map) getMsgStatusCounters().get(key);
-                increaseMapItemValue( counter, protocol );
-                increaseMapItemValue( counter, ""+Utils.ALL_SUPPORT );
-				logger.debug(
-					"Counter per status increased: " + scid.toString());
-			} else {
-				logger.debug("Message is not belong to status category.");
-			}
+		int column =
+			getColumn(
+				Utils.toProtocolByte(
+					AuthenticatorSession.instance().getProtocol()));
+
+		// Increase total counter and counter per message type
+		int[][] cells = (int[][]) getSlot(typeSlots, msg.getType(), msg.getVersion());
+		typeCounters.increment((cells == null) ? TOTAL_ONLY : cells[column]);
+
+		// Increase counter per status
+		String status = categorize(msg);
+		if (status != null) {
+			cells = (int[][]) getSlot(statusSlots, status, msg.getType());
+			if (cells != null)
+				statusCounters.increment(cells[column]);
+		}
+
+		// Increase counter per merchantID, creating it if necessary
+		merchantCounters.increment(getMerchantCells(merID)[column]);
+
+		if (logger.isDebugEnabled())
+			logger.debug(
+				"Message counted: "
+					+ msg.getType()
+					+ ", status: "
+					+ status
+					+ ", merchant: "
+					+ merID);
+
+		long current = System.currentTimeMillis();
+		lastCountTime = current;
+
+		// Flush peak TPS if necessary. Only one message per sampling
+		// period gets here, so the lock is rarely taken.
+		long period = (current - getPeakTime()) / 1000;
+		if (period > 0 && period >= getSamplingTime()) {
+			synchronized (token) {
+				period = (current - getPeakTime()) / 1000;
+				if (period > 0 && period >= getSamplingTime()) {
+					float newPeakTPS = (float) getTotalCounter() / period;
+
+					if (newPeakTPS > getPeakTPS()) {
+						setPeakTPS(newPeakTPS);
+						logger.debug("New peak TPS:" + getPeakTPS());
+					}
 
-			// Increase counter per merchantID
-			// Check counter existence
-			if (getMsgMerchantIDCounters().get(merID) == null) {
-				// Counter not exist, create one for this merchant ID
-				msgMerchantIDCounters.put(merID, getZeroProtocolCounter());
-				zeroMerchantCounter.put(merID, getZeroProtocolCounter());
-				logger.debug("New counter created for merchant: " + merID);
+					setPeakTime(current);
+				}
 			}
-			// Counter exist, increase counter
-			counter = (Map) getMsgMerchantIDCounters().get(merID);
-            increaseMapItemValue( counter, protocol );
-            increaseMapItemValue( counter, ""+Utils.ALL_SUPPORT );
-			logger.debug("Counter increaed for merchant: " + merID);
+		}
+	}
 
-			// Increase total counter
-			setTotalCounter(getTotalCounter() + 1);
-			logger.debug("New total count: " + getTotalCounter());
+	/**
+	 * Returns the protocol column of a protocol byte
+	 * @param protocol The protocol byte
+	 * @return int
+	 */
+	static int getColumn(byte protocol) {
+		switch (protocol) {
+			case Utils.VISA_SUPPORT :
+				return VISA_COLUMN;
+			case Utils.MASTER_SUPPORT :
+				return MASTER_COLUMN;
+			default :
+				return ALL_COLUMN;
+		}
+	}
 
-			long current = Calendar.getInstance().getTime().getTime();
+	/**
+	 * Resolves, for each protocol column, the counter cells to increase for
+	 * the slot starting at the given counter index.
+	 * @param base Index of the slot's first counter
+	 * @param total Whether the total counter is increased as well
+	 * @return The cells indexed by protocol column
+	 */
+	private static int[][] resolveCells(int base, boolean total) {
+		int[][] cells = new int[COLUMNS][];
+		for (int column = 0; column < COLUMNS; column++) {
+			List list = new ArrayList();
+			if (total)
+				list.add(new Integer(TOTAL));
+			if (column != ALL_COLUMN)
+				list.add(new Integer(base + column));
+			list.add(new Integer(base + ALL_COLUMN));
+
+			cells[column] = new int[list.size()];
+			for (int k = 0; k < cells[column].length; k++)
+				cells[column][k] = ((Integer) list.get(k)).intValue();
+		}
+		return cells;
+	}
 
-			// Recalculate average TPS
-			long period = (current - getLastFlushTime()) / 1000;
-			logger.debug("Average period: " + period);
-			if (period != 0) {
-				setAverageTPS((float) getTotalCounter() / period);
-				logger.debug("New average TPS: " + getAverageTPS());
-			}
+	/**
+	 * Stores a slot in a two level lookup map
+	 */
+	private static void putSlot(Map slots, String first, String second, Object slot) {
+		first = (first == null) ? "" : first.trim();
+		second = (second == null) ? "" : second.trim();
+
+		Map inner = (Map) slots.get(first);
+		if (inner == null) {
+			inner = new HashMap();
+			slots.put(first, inner);
+		}
+		inner.put(second, slot);
+	}
 
-			// Flush peak TPS if necessary
-			period = (current - getPeakTime()) / 1000;
-			logger.debug("Peak period: " + period);
-			if (period >= getSamplingTime()) {
-				float newPeakTPS = (float) getTotalCounter() / period;
+	/**
+	 * Retrieves a slot from a two level lookup map, without building the
+	 * combined mapping key.
+	 * @return The slot or null if not found
+	 */
+	private static Object getSlot(Map slots, String first, String second) {
+		if (first == null)
+			return null;
+		if (second == null)
+			second = "";
+
+		Map inner = (Map) slots.get(first);
+		if (inner == null)
+			inner = (Map) slots.get(first.trim());
+		if (inner == null)
+			return null;
+
+		Object slot = inner.get(second);
+		return (slot != null) ? slot : inner.get(second.trim());
+	}
 
-				if (newPeakTPS > getPeakTPS()) {
-					setPeakTPS(newPeakTPS);
-					logger.debug("New peak TPS:" + getPeakTPS());
-				}
+	/**
+	 * Returns the cells of a merchant ID, interning it to a new counter slot
+	 * the first time it is seen.
+	 * @param merID The merchant ID
+	 * @return The cells indexed by protocol column
+	 */
+	private static int[][] getMerchantCells(String merID) {
+		String key = (merID == null) ? "" : merID;
+		int[][] cells = (int[][]) merchantSlots.get(key);
+		if (cells != null)
+			return cells;
+
+		synchronized (token) {
+			cells = (int[][]) merchantSlots.get(key);
+			if (cells == null) {
+				String[] keys = merchantKeys;
+				cells = resolveCells(keys.length * COLUMNS, false);
+				merchantCounters.ensureCapacity((keys.length + 1) * COLUMNS);
+
+				String[] newKeys = new String[keys.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, keys.length);
+				newKeys[keys.length] = key;
+				Map newSlots = new HashMap(merchantSlots);
+				newSlots.put(key, cells);
+
+				merchantKeys = newKeys;
+				merchantSlots = newSlots;
+				logger.debug("New counter created for merchant: " + key);
+			}
+		}
+		return cells;
+	}
 
-				//setLastFlushCounter(getTotalCounter());
-				setPeakTime(current);
+	/**
+	 * Builds a statistic map from a counter snapshot.
+	 * @param keys The slot keys
+	 * @param values The counter values
+	 * @param offset Index of the first slot's first counter
+	 * @return The map of slot key / protocol counters
+	 */
+	private static Map toStatisticMap(String[] keys, long[] values, int offset) {
+		Map map = new TreeMap();
+		for (int i = 0; i < keys.length; i++) {
+			int base = offset + i * COLUMNS;
+			Map counters = new TreeMap();
+			for (int column = 0; column < COLUMNS; column++) {
+				counters.put(
+					COLUMN_KEYS[column],
+					new Long((base + column < values.length) ? values[base + column] : 0));
 			}
+			map.put(keys[i], counters);
 		}
+		return map;
 	}
 
 	/**
 	 * Analyze message to sort out status category
 	 * @param msg The message
-	 * @return The StatusCategory. Return Null if the message is not belong to any category
+	 * @return The status of the category. Return Null if the message is not belong to any category
 	 */
-	private StatusCategoryID categorize(Message msg) {
+	private String categorize(Message msg) {
 		String status = null;
 		if (msg instanceof PaymentAuthResMessage) {
 			status = ((PaymentAuthResMessage) msg).getStatus();
 			if (status.equalsIgnoreCase("Y") || status.equalsIgnoreCase("A")) {
-				return new StatusCategoryID(AUTHENTICATED, msg.getType());
+				return AUTHENTICATED;
 			} else {
 				if (status.equalsIgnoreCase("N")) {
-					return new StatusCategoryID(
-						NOT_AUTHENTICATED,
-						msg.getType());
+					return NOT_AUTHENTICATED;
 				} else {
 					if (status.equalsIgnoreCase("U")) {
-						return new StatusCategoryID(UNKNOWN, msg.getType());
+						return UNKNOWN;
 					} else {
 						return null;
 					}
@@ -428,15 +602,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 			if (msg instanceof PaymentVerifResMessage) {
 				status = ((PaymentVerifResMessage) msg).getEnrolled();
 				if (status.equalsIgnoreCase("Y")) {
-					return new StatusCategoryID(ENROLLED, msg.getType());
+					return ENROLLED;
 				} else {
 					if (status.equalsIgnoreCase("N")) {
-						return new StatusCategoryID(
-							NOT_ENROLLED,
-							msg.getType());
+						return NOT_ENROLLED;
 					} else {
 						if (status.equalsIgnoreCase("U")) {
-							return new StatusCategoryID(UNKNOWN, msg.getType());
+							return UNKNOWN;
 						} else {
 							return null;
 						}
@@ -447,19 +619,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 					status = ((PAResMessage) msg).getTxStatus();
 					if (status.equalsIgnoreCase("Y")
 						|| status.equalsIgnoreCase("A")) {
-						return new StatusCategoryID(
-							AUTHENTICATED,
-							msg.getType());
+						return AUTHENTICATED;
 					} else {
 						if (status.equalsIgnoreCase("N")) {
-							return new StatusCategoryID(
-								NOT_AUTHENTICATED,
-								msg.getType());
+							return NOT_AUTHENTICATED;
 						} else {
 							if (status.equalsIgnoreCase("U")) {
-								return new StatusCategoryID(
-									UNKNOWN,
-									msg.getType());
+								return UNKNOWN;
 							} else {
 								return null;
 							}
@@ -469,19 +635,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 					if (msg instanceof VEResMessage) {
 						status = ((VEResMessage) msg).getEnrolled();
 						if (status.equalsIgnoreCase("Y")) {
-							return new StatusCategoryID(
-								ENROLLED,
-								msg.getType());
+							return ENROLLED;
 						} else {
 							if (status.equalsIgnoreCase("N")) {
-								return new StatusCategoryID(
-									NOT_ENROLLED,
-									msg.getType());
+								return NOT_ENROLLED;
 							} else {
 								if (status.equalsIgnoreCase("U")) {
-									return new StatusCategoryID(
-										UNKNOWN,
-										msg.getType());
+									return UNKNOWN;
 								} else {
 									return null;
 								}
@@ -491,19 +651,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 						if (msg instanceof ProfileAuthResMessage) {
 							status = ((ProfileAuthResMessage) msg).getStatus();
 							if (status.equalsIgnoreCase("Y")) {
-								return new StatusCategoryID(
-									AUTHENTICATED,
-									msg.getType());
+								return AUTHENTICATED;
 							} else {
 								if (status.equalsIgnoreCase("N")) {
-									return new StatusCategoryID(
-										NOT_AUTHENTICATED,
-										msg.getType());
+									return NOT_AUTHENTICATED;
 								} else {
 									if (status.equalsIgnoreCase("U")) {
-										return new StatusCategoryID(
-											UNKNOWN,
-											msg.getType());
+										return UNKNOWN;
 									} else {
 										return null;
 									}
@@ -515,19 +669,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 									((ProfileVerifResMessage) msg)
 										.getEnrolled();
 								if (status.equalsIgnoreCase("Y")) {
-									return new StatusCategoryID(
-										ENROLLED,
-										msg.getType());
+									return ENROLLED;
 								} else {
 									if (status.equalsIgnoreCase("N")) {
-										return new StatusCategoryID(
-											NOT_ENROLLED,
-											msg.getType());
+										return NOT_ENROLLED;
 									} else {
 										if (status.equalsIgnoreCase("U")) {
-											return new StatusCategoryID(
-												UNKNOWN,
-												msg.getType());
+											return UNKNOWN;
 										} else {
 											return null;
 										}
@@ -537,19 +685,13 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 								if (msg instanceof IPResMessage) {
 									status = ((IPResMessage) msg).getTxStatus();
 									if (status.equalsIgnoreCase("Y")) {
-										return new StatusCategoryID(
-											AUTHENTICATED,
-											msg.getType());
+										return AUTHENTICATED;
 									} else {
 										if (status.equalsIgnoreCase("N")) {
-											return new StatusCategoryID(
-												NOT_AUTHENTICATED,
-												msg.getType());
+											return NOT_AUTHENTICATED;
 										} else {
 											if (status.equalsIgnoreCase("U")) {
-												return new StatusCategoryID(
-													UNKNOWN,
-													msg.getType());
+												return UNKNOWN;
 											} else {
 												return null;
 											}
@@ -597,9 +739,7 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	public void optFlush() {
 		synchronized (token) {
 			setLastFlushCounter(getTotalCounter());
-			setTotalCounter(0);
 			setPeakTPS(0);
-			setAverageTPS(0);
 			setPeakTime(Calendar.getInstance().getTime().getTime());
 			setLastFlushTime(Calendar.getInstance().getTime().getTime());
 
@@ -607,43 +747,28 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 			 * [Alan's Note - Jan 24, 2003]
 			 * Flush statistic counters as well.
 			 */
-			setMsgTypeCounters( initZeroCounter(zeroTypeCounter) );
-			setMsgStatusCounters( initZeroCounter(zeroStatusCounter) );
-			setMsgMerchantIDCounters( initZeroCounter(zeroMerchantCounter) );
+			typeCounters.reset();
+			statusCounters.reset();
+			merchantCounters.reset();
 		}
 	}
 
-    /**
-     * Make zero counter
-     * @param map
-     * @return
-     */
-    public static Map initZeroCounter( Map map )
-    {
-        Map newmap = Collections.synchronizedMap( new TreeMap() );
-
-        for ( Iterator lt = map.keySet().iterator(); lt.hasNext(); )
-        {
-            newmap.put( lt.next(), getZeroProtocolCounter() );
-        }
-
-        return newmap;
-    }
-
 	/**
-	 * Returns the averageTPS.
-	 * @return long
+	 * Returns the averageTPS, computed from the total counter and the time
+	 * of the last counted message.
+	 * @return float
 	 */
 	public float getAverageTPS() {
-		return averageTPS;
+		long period = (lastCountTime - getLastFlushTime()) / 1000;
+		return (period > 0) ? (float) getTotalCounter() / period : 0;
 	}
 
 	/**
-	 * Returns the counters.
+	 * Returns a snapshot of the counters per message type.
 	 * @return TreeMap
 	 */
 	public static Map getMsgTypeCounters() {
-		return PerformanceMonitor.msgTypeCounters;
+		return toStatisticMap(typeKeys, typeCounters.snapshot(), 1);
 	}
 
 	/**
@@ -667,23 +792,7 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	 * @return long
 	 */
 	public long getTotalCounter() {
-		return totalCounter;
-	}
-
-	/**
-	 * Sets the averageTPS.
-	 * @param averageTPS The averageTPS to set
-	 */
-	public static void setAverageTPS(float averageTPS) {
-		PerformanceMonitor.averageTPS = averageTPS;
-	}
-
-	/**
-	 * Sets the counters.
-	 * @param counters The counters to set
-	 */
-	public static void setMsgTypeCounters( Map counters ) {
-		PerformanceMonitor.msgTypeCounters = counters;
+		return typeCounters.get(TOTAL);
 	}
 
 	/**
@@ -702,14 +811,6 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 		PerformanceMonitor.samplingTime = samplingTime;
 	}
 
-	/**
-	 * Sets the totalCounter.
-	 * @param totalCounter The totalCounter to set
-	 */
-	public static void setTotalCounter(long totalCounter) {
-		PerformanceMonitor.totalCounter = totalCounter;
-	}
-
 	/**
 	 * Returns the lastFlushTime.
 	 * @return long
@@ -759,77 +860,373 @@ public class PerformanceMonitor implements PerformanceMonitorMBean {
 	}
 
 	/**
-	 * Returns the msgStatusCounters.
-	 * @return TreeMap
+	 * Returns the transaction store capacity.
+	 * @return long
 	 */
-	public static Map getMsgStatusCounters() {
-		return PerformanceMonitor.msgStatusCounters;
+	public long getTransactionStoreCapacity() {
+		return BoundedPaymentMessageCacheManager.getCapacityBytes();
 	}
 
 	/**
-	 * Returns the msgMerchantIDCounters.
-	 * @return TreeMap
+	 * Returns the transaction store used bytes.
+	 * @return long
 	 */
-	public static Map getMsgMerchantIDCounters() {
-		return PerformanceMonitor.msgMerchantIDCounters;
+	public long getTransactionStoreUsedBytes() {
+		return BoundedPaymentMessageCacheManager.getUsedBytes();
 	}
 
 	/**
-	 * Returns the lastFlushTime.
+	 * Returns the transaction store item count.
+	 * @return int
+	 */
+	public int getTransactionStoreItemCount() {
+		return BoundedPaymentMessageCacheManager.getItemCount();
+	}
+
+	/**
+	 * Returns the transaction store eviction count.
 	 * @return long
 	 */
-	public long getLastFlushTime() {
-		return lastFlushTime;
+	public long getTransactionStoreEvictionCount() {
+		return BoundedPaymentMessageCacheManager.getEvictionCount();
 	}
 
 	/**
-	 * Sets the lastFlushTime.
-	 * @param lastFlushTime The lastFlushTime to set
+	 * Returns the transaction store rejection count.
+	 * @return long
 	 */
-	public static void setLastFlushTime(long lastFlushTime) {
-		PerformanceMonitor.lastFlushTime = lastFlushTime;
+	public long getTransactionStoreRejectionCount() {
+		return BoundedPaymentMessageCacheManager.getRejectionCount();
 	}
 
 	/**
-	 * Sets the msgStatusCounters.
-	 * @param msgStatusCounters The msgStatusCounters to set
+	 * Returns the transaction store expiration count.
+	 * @return long
 	 */
-	public static void setMsgStatusCounters(  Map msgStatusCounters ) {
-		PerformanceMonitor.msgStatusCounters = msgStatusCounters;
+	public long getTransactionStoreExpirationCount() {
+		return BoundedPaymentMessageCacheManager.getExpirationCount();
 	}
 
 	/**
-	 * Sets the msgMerchantIDCounters.
-	 * @param msgMerchantIDCounters The msgMerchantIDCounters to set
+	 * Returns the XML parser pool hit count.
+	 * @return long
 	 */
-	public static void setMsgMerchantIDCounters( Map msgMerchantIDCounters ) {
-		PerformanceMonitor.msgMerchantIDCounters = msgMerchantIDCounters;
+	public long getXmlParserPoolHitCount() {
+		return XMLUtil.getParserPoolHitCount();
 	}
 
-    /**
-     * Increase the mapping item integer value
-     */
-    public static void increaseMapItemValue( Map props, String key )
-    {
-        if ( props == null || key == null )
-            return;
-
-        Long value = (Long)props.get( key );
-        if ( value != null )
-            props.put( key, new Long( value.longValue() + 1 ) );
-    }
+	/**
+	 * Returns the XML parser pool miss count.
+	 * @return long
+	 */
+	public long getXmlParserPoolMissCount() {
+		return XMLUtil.getParserPoolMissCount();
+	}
 
-    /**
-     *
-     * @return - counters mapping divided by protocol
-     */
-    public static Map getZeroProtocolCounter()
-    {
-        Map counters = Collections.synchronizedMap( new TreeMap() );
+	/**
+	 * Returns statistic result per XPath expression
+	 * @return The map contains XPathStatisticResult objects
+	 */
+	public Map optXPathStatistic() {
+		return XMLUtil.getXPathStatistics();
+	}
+
+	/**
+	 * Returns the XPath cache hit count.
+	 * @return long
+	 */
+	public long getXPathCacheHitCount() {
+		return XMLUtil.getXPathCacheHitCount();
+	}
+
+	/**
+	 * Returns the XPath cache miss count.
+	 * @return long
+	 */
+	public long getXPathCacheMissCount() {
+		return XMLUtil.getXPathCacheMissCount();
+	}
+
+	/**
+	 * Returns statistic result per directory server endpoint
+	 * @return The map contains EndpointStatisticResult objects
+	 */
+	public Map optDirectoryEndpointStatistic() {
+		return DirectoryClient.getInstance().getStatistics();
+	}
+
+	/**
+	 * Returns routing statistic result per directory URL
+	 * @return The map contains DirectoryRouteStatisticResult objects
+	 */
+	public Map optDirectoryRouteStatistic() {
+		return DirectoryRouter.getInstance().getStatistics();
+	}
+
+	/**
+	 * Returns the number of VEReq hedged to a secondary directory.
+	 * @return long
+	 */
+	public long getDirectoryHedgeIssuedCount() {
+		return DirectoryRouter.getInstance().getHedgeIssuedCount();
+	}
+
+	/**
+	 * Returns the number of VEReq answered first by the secondary directory.
+	 * @return long
+	 */
+	public long getDirectoryHedgeWonCount() {
+		return DirectoryRouter.getInstance().getHedgeWonCount();
+	}
+
+	/**
+	 * Returns the number of VEReq hedges not sent because of the rate cap.
+	 * @return long
+	 */
+	public long getDirectoryHedgeSuppressedCount() {
+		return DirectoryRouter.getInstance().getHedgeSuppressedCount();
+	}
+
+	/**
+	 * Returns the current VEReq hedge delay in millis.
+	 * @return long
+	 */
+	public long getDirectoryHedgeDelay() {
+		return DirectoryRouter.getInstance().getHedgeDelay();
+	}
+
+	/**
+	 * Returns the retry statistic per retry policy.
+	 * @return The map contains RetryStatisticResult objects
+	 */
+	public Map optRetryStatistic() {
+		return RetryPolicy.getStatistics();
+	}
+
+	/**
+	 * Returns the card range refresh statistic per protocol.
+	 * @return The map contains CardRangeStatisticResult objects
+	 */
+	public Map optCardRangeStatistic() {
+		return CardRangeMonitor.getStatistics();
+	}
+
+	/**
+	 * Returns the error dispatch queue depth.
+	 * @return int
+	 */
+	public int getErrorDispatchQueueDepth() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getQueueDepth();
+	}
+
+	/**
+	 * Returns the dispatched error notification count.
+	 * @return long
+	 */
+	public long getErrorDispatchSentCount() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getSentCount();
+	}
+
+	/**
+	 * Returns the abandoned error notification count.
+	 * @return long
+	 */
+	public long getErrorDispatchFailedCount() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getFailedCount();
+	}
+
+	/**
+	 * Returns the error dispatch batch count.
+	 * @return long
+	 */
+	public long getErrorDispatchBatchCount() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getBatchCount();
+	}
+
+	/**
+	 * Returns the error dispatch queue drop count.
+	 * @return long
+	 */
+	public long getErrorDispatchDroppedCount() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getDroppedCount();
+	}
 
-        counters.put( ""+ Utils.VISA_SUPPORT, new Long(0) );
-        counters.put( ""+ Utils.MASTER_SUPPORT, new Long(0) );
-        counters.put( ""+ Utils.ALL_SUPPORT, new Long(0) );
+	/**
+	 * Returns the coalesced error notification count.
+	 * @return long
+	 */
+	public long getErrorDispatchCoalescedCount() {
+		ErrorDispatcher dispatcher = ErrorHandlerThreadManager.getDispatcher();
+		return (dispatcher == null) ? 0 : dispatcher.getCoalescedCount();
+	}
+
+	/**
+	 * Returns the asynchronous publishing queue depth.
+	 * @return int
+	 */
+	public int getPublishQueueDepth() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getQueueDepth();
+	}
+
+	/**
+	 * Returns the asynchronous publishing queue lag.
+	 * @return long
+	 */
+	public long getPublishQueueLag() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getLag();
+	}
+
+	/**
+	 * Returns the asynchronously published message count.
+	 * @return long
+	 */
+	public long getPublishedCount() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getPublishedCount();
+	}
+
+	/**
+	 * Returns the asynchronous publishing transaction count.
+	 * @return long
+	 */
+	public long getPublishBatchCount() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getBatchCount();
+	}
+
+	/**
+	 * Returns the publishing queue rejection count.
+	 * @return long
+	 */
+	public long getPublishRejectedCount() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getRejectedCount();
+	}
+
+	/**
+	 * Returns the publishing queue overflow count.
+	 * @return long
+	 */
+	public long getPublishOverflowCount() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getOverflowCount();
+	}
+
+	/**
+	 * Returns the asynchronous publishing failure count.
+	 * @return long
+	 */
+	public long getPublishFailedCount() {
+		AsyncPublisher publisher = PublishingManager.getAsyncPublisher();
+		return (publisher == null) ? 0 : publisher.getFailedCount();
+	}
+
+	/**
+	 * Returns the publishing spool depth.
+	 * @return long
+	 */
+	public long getPublishSpoolDepth() {
+		PublishSpool spool = PublishingManager.getSpool();
+		return (spool == null) ? 0 : spool.getDepth();
+	}
+
+	/**
+	 * Returns the publishing spool size.
+	 * @return long
+	 */
+	public long getPublishSpoolSize() {
+		PublishSpool spool = PublishingManager.getSpool();
+		return (spool == null) ? 0 : spool.getSize();
+	}
+
+	/**
+	 * Returns the publishing spool replay count.
+	 * @return long
+	 */
+	public long getPublishSpoolReplayedCount() {
+		PublishSpool spool = PublishingManager.getSpool();
+		return (spool == null) ? 0 : spool.getReplayedCount();
+	}
+
+	/**
+	 * Returns the publishing spool drop count.
+	 * @return long
+	 */
+	public long getPublishSpoolDroppedCount() {
+		PublishSpool spool = PublishingManager.getSpool();
+		return (spool == null) ? 0 : spool.getDroppedCount();
+	}
+
+	/**
+	 * Returns the enrollment cache hit count.
+	 * @return long
+	 */
+	public long getEnrollmentCacheHitCount() {
+		return EnrollmentCache.getInstance().getHitCount();
+	}
+
+	/**
+	 * Returns the enrollment cache miss count.
+	 * @return long
+	 */
+	public long getEnrollmentCacheMissCount() {
+		return EnrollmentCache.getInstance().getMissCount();
+	}
+
+	/**
+	 * Returns the enrollment cache hit ratio.
+	 * @return int
+	 */
+	public int getEnrollmentCacheHitRatio() {
+		return EnrollmentCache.getInstance().getHitRatio();
+	}
+
+	/**
+	 * Returns the enrollment cache size.
+	 * @return int
+	 */
+	public int getEnrollmentCacheSize() {
+		return EnrollmentCache.getInstance().getSize();
+	}
+
+	/**
+	 * Returns a snapshot of the counters per status.
+	 * @return TreeMap
+	 */
+	public static Map getMsgStatusCounters() {
+		return toStatisticMap(statusKeys, statusCounters.snapshot(), 0);
+	}
+
+	/**
+	 * Returns a snapshot of the counters per merchantID.
+	 * @return TreeMap
+	 */
+	public static Map getMsgMerchantIDCounters() {
+		String[] keys = merchantKeys;
+		return toStatisticMap(keys, merchantCounters.snapshot(), 0);
+	}
+
+	/**
+	 * Returns the lastFlushTime.
+	 * @return long
+	 */
+	public long getLastFlushTime() {
+		return lastFlushTime;
+	}
+
+	/**
+	 * Sets the lastFlushTime.
+	 * @param lastFlushTime The lastFlushTime to set
+	 */
+	public static void setLastFlushTime(long lastFlushTime) {
+		PerformanceMonitor.lastFlushTime = lastFlushTime;
+	}
 
-        return counters;
-    }}
+}
@@ -0,0 +1,823 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.domain.CardRange;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.meta.BindingMetaInfo;
+import com.oncecorp.visa3d.mpi.messaging.meta.MessageMetaInfo;
+import com.oncecorp.visa3d.mpi.messaging.meta.MessageUID;
+import com.oncecorp.visa3d.mpi.utility.ValidityErrorHandler;
+import com.oncecorp.visa3d.mpi.utility.XMLParserPool;
+import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+
+/**
+ * Streaming XML to Message converter. Instead of building a DOM and querying
+ * it with XPath, the XML string or stream is read once with a SAX parser; the
+ * values addressed by the message bindings are collected on the fly and then
+ * set on the message exactly as DomToMsgConverter does, with the same error
+ * codes.
+ * <p>
+ * Streaming is enabled per message type through the StreamingDecoderMessages
+ * configuration entry, which is empty by default: a deployment opts in by
+ * listing message types, e.g. "VERes, PaymentAuthReq". Messages of any other
+ * type, and messages whose bindings need the document itself (signature and
+ * profile bindings), are handed over to DomToMsgConverter.
+ *
+ * @version $Revision: 1 $
+ */
+public class StreamingMsgConverter extends DomToMsgConverter {
+
+	/**
+	 * Local Log4J logger
+	 */
+	protected static Logger logger =
+		MPILogger.getLogger(StreamingMsgConverter.class.getName());
+
+	/**
+	 * Message types streamed by default, loaded from configuration
+	 */
+	private static Set configuredTypes;
+
+	/**
+	 * Factory used to create pooled readers
+	 */
+	private static final SAXParserFactory readerFactory =
+		SAXParserFactory.newInstance();
+
+	/**
+	 * Handler installed on idle readers so they do not retain any content
+	 */
+	private static final ContentCollector IDLE_COLLECTOR = new ContentCollector(Collections.EMPTY_SET);
+
+	/**
+	 * Pool of SAX readers
+	 */
+	private static final XMLParserPool readerPool =
+		new XMLParserPool("SAXReader", XMLParserPool.DEFAULT_MAX_IDLE) {
+			protected Object newParser() throws Exception {
+				XMLReader reader;
+				synchronized (readerFactory) {
+					reader = readerFactory.newSAXParser().getXMLReader();
+				}
+				reader.setErrorHandler(new ValidityErrorHandler());
+				return reader;
+			}
+			protected void reset(Object parser) throws Exception {
+				install((XMLReader) parser, IDLE_COLLECTOR);
+			}
+		};
+
+	/**
+	 * SAX property used to receive comment events
+	 */
+	private static final String LEXICAL_HANDLER_PROPERTY =
+		"http://xml.org/sax/properties/lexical-handler";
+
+	/**
+	 * Message types streamed by this converter
+	 */
+	private Set streamedTypes;
+
+	/**
+	 * Constructor using the configured message types
+	 */
+	public StreamingMsgConverter() {
+		this.streamedTypes = getConfiguredTypes();
+	}
+
+	/**
+	 * Constructor using the given message types
+	 * @param messageTypes Collection of message type names to stream
+	 */
+	public StreamingMsgConverter(Collection messageTypes) {
+		this.streamedTypes = new HashSet(messageTypes);
+	}
+
+	/**
+	 * Convert an XML string to MPI message.
+	 */
+	public Message convert(String xmlStr) throws Exception {
+		//Sanity check: reported the same way as a missing document
+		if ((xmlStr == null) || (xmlStr.length() == 0))
+			return convert((Document) null);
+
+		ContentCollector content = new ContentCollector(streamedTypes);
+		XMLReader reader = (XMLReader) readerPool.borrow();
+		try {
+			install(reader, content);
+			reader.parse(new InputSource(new StringReader(xmlStr)));
+		}
+		catch (SAXException se) {
+			if (!content.fallback)
+				throw se;
+		}
+		finally {
+			readerPool.release(reader);
+		}
+
+		if (content.fallback) {
+			logger.debug("Message type " + content.msgType + " not streamed.");
+			return convert(XMLUtil.createDocument(xmlStr));
+		}
+
+		return convert(content, xmlStr);
+	}
+
+	/**
+	 * Convert an XML stream to MPI message, reading the stream once as it
+	 * arrives. The beginning of the document is kept only until its message
+	 * type and version show that it can be streamed; otherwise the document
+	 * is parsed into DOM as with convert(String). The stream is not closed.
+	 * @param in The XML stream
+	 * @param encoding The stream encoding, null to use the XML declaration
+	 */
+	public Message convert(InputStream in, String encoding) throws Exception {
+		RecordingInputStream source = new RecordingInputStream(in, encoding);
+		ContentCollector content = new ContentCollector(streamedTypes);
+		content.owner = this;
+		content.source = source;
+		XMLReader reader = (XMLReader) readerPool.borrow();
+		try {
+			install(reader, content);
+			InputSource input = new InputSource(source);
+			if (encoding != null)
+				input.setEncoding(encoding);
+			reader.parse(input);
+		}
+		catch (SAXException se) {
+			if (!content.fallback)
+				throw se;
+		}
+		finally {
+			readerPool.release(reader);
+		}
+
+		if (content.fallback) {
+			logger.debug("Message type " + content.msgType + " not streamed.");
+			return convert(source.createDocument());
+		}
+
+		return convert(content, source);
+	}
+
+	/**
+	 * Called when the version of a streamed message has been read: stop
+	 * recording the stream if the message bindings can be served from it,
+	 * fall back to DOM otherwise.
+	 */
+	private void versionRead(ContentCollector content) throws SAXException {
+		MessageUID msgUID = new MessageUID(content.msgType, content.msgVersion);
+		if (MessageMetaInfo.isVersionSupported(msgUID)
+			&& !isStreamable(MessageMetaInfo.getBindingInfo(msgUID), content.recordDepth)) {
+			content.fallback = true;
+			throw new SAXException("Message " + msgUID + " bindings not streamable.");
+		}
+		content.source.stopRecording();
+	}
+
+	/**
+	 * Parse the source of a message into DOM
+	 * @param source XML string or RecordingInputStream
+	 */
+	private static Document createDocument(Object source) throws Exception {
+		if (source instanceof RecordingInputStream)
+			return ((RecordingInputStream) source).createDocument();
+		return XMLUtil.createDocument((String) source);
+	}
+
+	/**
+	 * Check the message header collected from the stream and convert the
+	 * message. Checks are done in the same order as DomToMsgConverter.
+	 * @param source XML string or RecordingInputStream, parsed when the
+	 * message has to be converted through DOM
+	 */
+	private Message convert(ContentCollector content, Object source) throws Exception {
+		String msgId = null;
+		String msgType = null;
+		String msgVersion = null;
+
+		String name = content.rootName;
+		logger.debug("Message root element: " + name);
+
+		if (name.equalsIgnoreCase(THREED_SECURE)) {
+			if (!content.hasMessage) {
+				logger.error("Message element missing.");
+				throw new MessagingException(
+					"UNKNOWN",
+					ErrorCodes.ERROR_CODE_3,
+					ErrorCodes.ERROR_MESSAGE_3,
+					"Message",
+					"Message element missing.",
+					"Message element missing..");
+			}
+
+			if (content.msgId == null) {
+				//id attribute missing
+				logger.error("Message missing id attribute.");
+				throw new MessagingException(
+					"UNKNOWN",
+					ErrorCodes.ERROR_CODE_3,
+					ErrorCodes.ERROR_MESSAGE_3,
+					"Message.id",
+					"Message missing id attribute.",
+					"Message missing id attribute.");
+			}
+
+			msgId = content.msgId;
+			if (msgId.length() == 0) {
+				//no value
+				throw new MessagingException(
+					"UNKNOWN",
+					ErrorCodes.ERROR_CODE_5,
+					ErrorCodes.ERROR_MESSAGE_5,
+					"Message.id",
+					"Message has id attribute with no value.",
+					"Message has id attribute with no value.");
+			}
+
+			//Check first child of Message element
+			if (content.msgType == null) {
+				logger.error("The first element under Message is not defined message element.");
+				throw new MessagingException(
+					msgId,
+					ErrorCodes.ERROR_CODE_3,
+					ErrorCodes.ERROR_MESSAGE_3,
+					"Message element",
+					"Message element missign.",
+					"Message element missing.");
+			}
+			if (!MSG_ELEMENTS.contains(content.msgType)) {
+				logger.error("The first element under Message is not defined message element.");
+				throw new MessagingException(
+					msgId,
+					ErrorCodes.ERROR_CODE_2,
+					ErrorCodes.ERROR_MESSAGE_2,
+					content.msgType,
+					"No defined message element found.",
+					"No defined message element found.");
+			}
+		}
+		else if (name.equalsIgnoreCase(MPI_INTERFACE)) {
+			if (content.msgType == null) {
+				logger.error("Element missed.");
+				throw new MessagingException(
+					msgId,
+					ErrorCodes.ERROR_CODE_3,
+					ErrorCodes.ERROR_MESSAGE_3,
+					"Element missed. Message id: " + msgId + ", type: " + msgType + ": version: " + msgVersion,
+					"Element missed",
+					null);
+			}
+
+			msgId = (content.msgId == null) ? "" : content.msgId;
+			if (msgId.length() == 0) {
+				//no value
+				throw new MessagingException(
+					"UNKNOWN",
+					ErrorCodes.ERROR_CODE_5,
+					ErrorCodes.ERROR_MESSAGE_5,
+					"id",
+					"MPI_Interface message has id attribute with no value.",
+					"MPI_Interface message has id attribute with no value.");
+			}
+		}
+		else {
+			logger.error("Root element of message is not recognized.");
+			throw new MessagingException(
+				"UNKNOWN",
+				ErrorCodes.ERROR_CODE_1,
+				ErrorCodes.ERROR_MESSAGE_1,
+				name,
+				"Root element:" + name + "is not recognized.",
+				"Root element:" + name + "is not recognized.");
+		}
+
+		//Get message type & version
+		msgType = content.msgType;
+		msgVersion = content.msgVersion;
+		if (msgVersion == null) {
+			logger.error("Message missing version element.");
+			throw new MessagingException(
+				msgId,
+				ErrorCodes.ERROR_CODE_3,
+				ErrorCodes.ERROR_MESSAGE_3,
+				"version",
+				"version element missing.",
+				"version element missing.");
+		}
+		if (msgVersion.length() == 0) {
+			//no value
+			throw new MessagingException(
+				msgId,
+				ErrorCodes.ERROR_CODE_5,
+				ErrorCodes.ERROR_MESSAGE_5,
+				"version",
+				"version element has no value.",
+				"version element has no value.");
+		}
+
+		//Logging
+		logger.debug("Message ID: " + msgId);
+		logger.debug("Message Type: " + msgType);
+		logger.debug("Message Version: " + msgVersion);
+
+		//Bindings that cannot be served from the stream need the DOM
+		MessageUID msgUID = new MessageUID(msgType, msgVersion);
+		if (MessageMetaInfo.isVersionSupported(msgUID)
+			&& !isStreamable(MessageMetaInfo.getBindingInfo(msgUID), content.recordDepth)) {
+			logger.debug("Message " + msgUID + " bindings not streamable.");
+			return convert(createDocument(source));
+		}
+
+		return makeConversion(content, msgId, msgType, msgVersion);
+	}
+
+	/**
+	 * Check whether every binding can be served from the collected content.
+	 * Simple and attribute bindings always can; element bindings only when
+	 * they address direct children of the message element.
+	 */
+	private boolean isStreamable(BindingMetaInfo binding, int recordDepth) {
+		if ((binding == null) || (binding.getPaths() == null) || (binding.getTypes() == null))
+			return true;
+
+		String[] paths = binding.getPaths();
+		String[] types = binding.getTypes();
+		for (int i = 0; i < types.length; i++) {
+			if (types[i].equalsIgnoreCase(BINDING_TYPE_SIMPLE)
+				|| types[i].equalsIgnoreCase(BINDING_TYPE_ATTRVALUE))
+				continue;
+
+			if (!(types[i].equalsIgnoreCase(BINDING_TYPE_COMPLEX)
+				|| types[i].equalsIgnoreCase(BINDING_TYPE_EXTENSION)
+				|| types[i].equalsIgnoreCase(BINDING_TYPE_CR)))
+				return false;
+
+			if (new StringTokenizer(paths[i], "/").countTokens() != recordDepth)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the value bound to a message attribute from the collected content
+	 */
+	protected Object getBoundValue(Object source, String xpath, String type) throws Exception {
+		ContentCollector content = (ContentCollector) source;
+
+		if (type.equalsIgnoreCase(BINDING_TYPE_SIMPLE)) {
+			return content.texts.get(xpath);
+		}
+		else if (type.equalsIgnoreCase(BINDING_TYPE_ATTRVALUE)) {
+			return content.attributes.get(xpath);
+		}
+
+		ArrayList records = (ArrayList) content.records.get(xpath);
+		if (type.equalsIgnoreCase(BINDING_TYPE_COMPLEX)) {
+			if (records == null)
+				return null;
+
+			String[] value = new String[records.size()];
+			for (int i = 0; i < value.length; i++)
+				value[i] = ((Record) records.get(i)).text;
+			return value;
+		}
+		else if (type.equalsIgnoreCase(BINDING_TYPE_EXTENSION)) {
+			if (records == null)
+				return null;
+
+			Extension[] value = new Extension[records.size()];
+			logger.debug("    Extension no.: " + value.length);
+			for (int i = 0; i < value.length; i++) {
+				Record record = (Record) records.get(i);
+				value[i] =
+					createExtension(
+						(String) record.attributes.get(THREED_MSG_ID),
+						(String) record.attributes.get(EXTENSION_CRITICAL),
+						record.text);
+			}
+			return value;
+		}
+		else if (type.equalsIgnoreCase(BINDING_TYPE_CR)) {
+			if (records == null)
+				return null;
+
+			CardRange[] crs = new CardRange[records.size()];
+			logger.debug("    Number of Card Ranges: " + crs.length);
+			for (int i = 0; i < crs.length; i++) {
+				Record record = (Record) records.get(i);
+				crs[i] =
+					createCardRange(
+						i,
+						record.getChildText("begin"),
+						record.getChildText("end"),
+						record.getChildText("action"));
+			}
+			return crs;
+		}
+		else {
+			logger.error("Unknown binding type.");
+			throw new MessagingException("Unknown binding type.");
+		}
+	}
+
+	/**
+	 * Returns the configured streamed message types.
+	 * @return Set
+	 */
+	private static synchronized Set getConfiguredTypes() {
+		if (configuredTypes != null)
+			return configuredTypes;
+
+		Set types = new HashSet();
+		try {
+			String list =
+				(String) Config.getConfigReference().getConfigData(
+					MPIConfigDefinition.STREAMING_DECODER_MESSAGES);
+			if (list != null) {
+				StringTokenizer st = new StringTokenizer(list, ", ");
+				while (st.hasMoreTokens())
+					types.add(st.nextToken());
+			}
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve streaming decoder configuration. All messages use DOM conversion.",
+				e);
+		}
+
+		logger.info("Message types decoded by streaming: " + types);
+		configuredTypes = Collections.unmodifiableSet(types);
+		return configuredTypes;
+	}
+
+	/**
+	 * Install a content collector on a reader
+	 */
+	private static void install(XMLReader reader, ContentCollector collector) {
+		reader.setContentHandler(collector);
+		try {
+			reader.setProperty(LEXICAL_HANDLER_PROPERTY, collector);
+		} catch (SAXException e) {
+			// Comments are then not reported; they only matter when they split a text value
+		}
+	}
+
+	/**
+	 * Stream keeping a copy of the bytes read until told to stop, so that a
+	 * document that turns out not to be streamable can be parsed again.
+	 * Closing it does not close the underlying stream.
+	 */
+	private static class RecordingInputStream extends FilterInputStream {
+		private ByteArrayOutputStream recorded = new ByteArrayOutputStream(4096);
+		private String encoding;
+
+		private RecordingInputStream(InputStream in, String encoding) {
+			super(in);
+			this.encoding = encoding;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if ((b != -1) && (recorded != null))
+				recorded.write(b);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if ((n > 0) && (recorded != null))
+				recorded.write(b, off, n);
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			byte[] buf = new byte[(int) Math.min(n, 4096)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+				if (r == -1)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public void close() {
+		}
+
+		private void stopRecording() {
+			recorded = null;
+		}
+
+		/**
+		 * Parse the recorded bytes followed by the rest of the stream into DOM
+		 */
+		private Document createDocument() throws Exception {
+			if (recorded == null)
+				throw new IllegalStateException("Stream no longer recorded.");
+			InputSource input =
+				new InputSource(
+					new SequenceInputStream(
+						new ByteArrayInputStream(recorded.toByteArray()),
+						in));
+			if (encoding != null)
+				input.setEncoding(encoding);
+			return XMLUtil.createDocument(input);
+		}
+	}
+
+	/**
+	 * Content of an element addressed by an element binding
+	 */
+	private static class Record {
+		private HashMap attributes = new HashMap();
+		private String text;
+		private HashMap childTexts;
+
+		private String getChildText(String name) {
+			return (childTexts == null) ? null : (String) childTexts.get(name);
+		}
+	}
+
+	/**
+	 * SAX handler collecting the message header and the values addressed by
+	 * the bindings. Values are keyed by the binding path they answer:
+	 * <ul>
+	 * <li>/a/b/text(): first text of a b element, contiguous text coalesced</li>
+	 * <li>/a/b/@c: first c attribute of a b element</li>
+	 * <li>/a/b: every b element one level below the message type element</li>
+	 * </ul>
+	 * A step in a default namespace is recorded with a leading '{' so it never
+	 * matches an unprefixed binding step, as with XPath.
+	 */
+	private static class ContentCollector extends DefaultHandler implements LexicalHandler {
+		private Set streamedTypes;
+
+		private HashMap texts = new HashMap();
+		private HashMap attributes = new HashMap();
+		private HashMap records = new HashMap();
+
+		private String rootName;
+		private boolean threeDSecure;
+		private boolean hasMessage;
+		private String msgId;
+		private String msgType;
+		private String msgVersion;
+		private boolean fallback;
+
+		private int recordDepth;
+		private int typeDepth;
+		private boolean inMessage;
+		private boolean inType;
+		private boolean inVersion;
+		private Record record;
+
+		private StringBuffer path = new StringBuffer();
+		private int depth;
+		private int[] pathLengths = new int[16];
+		private String[] steps = new String[16];
+		private boolean[] namespaced = new boolean[16];
+		private StringBuffer text = new StringBuffer();
+
+		/**
+		 * Converter notified when the message version is read, and the
+		 * stream it reads; both null when converting a string
+		 */
+		private StreamingMsgConverter owner;
+		private RecordingInputStream source;
+
+		private ContentCollector(Set streamedTypes) {
+			this.streamedTypes = streamedTypes;
+		}
+
+		public void startElement(String uri, String localName, String qName, Attributes attrs)
+			throws SAXException {
+			flushText();
+
+			if (depth + 1 == steps.length)
+				grow();
+
+			//Unprefixed names in a default namespace never match a binding step
+			boolean ns = (depth > 0) && namespaced[depth];
+			String xmlns = attrs.getValue("xmlns");
+			if (xmlns != null)
+				ns = (xmlns.length() > 0);
+			String step = (ns && (qName.indexOf(':') < 0)) ? "{" + qName : qName;
+
+			depth++;
+			pathLengths[depth] = path.length();
+			steps[depth] = step;
+			namespaced[depth] = ns;
+			path.append('/').append(step);
+
+			String elementPath = path.toString();
+			for (int i = 0; i < attrs.getLength(); i++) {
+				String attrName = attrs.getQName(i);
+				if (attrName.equals("xmlns") || attrName.startsWith("xmlns:"))
+					continue;
+				String key = elementPath + "/@" + attrName;
+				if (!attributes.containsKey(key))
+					attributes.put(key, attrs.getValue(i));
+			}
+
+			if (depth == 1) {
+				rootName = qName;
+				threeDSecure = qName.equalsIgnoreCase(THREED_SECURE);
+				typeDepth = threeDSecure ? 3 : 2;
+				recordDepth = typeDepth + 1;
+			}
+			else if ((depth == 2) && threeDSecure) {
+				if (!hasMessage && step.equals("Message")) {
+					hasMessage = true;
+					inMessage = true;
+					msgId = attrs.getValue(THREED_MSG_ID);
+				}
+			}
+			else if ((depth == typeDepth) && (msgType == null) && (!threeDSecure || inMessage)) {
+				msgType = qName;
+				inType = true;
+				if (!threeDSecure)
+					msgId = attrs.getValue(MPI_MSG_ID);
+
+				if (!streamedTypes.contains(msgType)) {
+					fallback = true;
+					throw new SAXException("Message type not streamed: " + msgType);
+				}
+			}
+			else if ((depth == typeDepth + 1) && inType && step.equals("version")) {
+				inVersion = true;
+			}
+
+			if (depth == recordDepth) {
+				record = new Record();
+				for (int i = 0; i < attrs.getLength(); i++)
+					record.attributes.put(attrs.getQName(i), attrs.getValue(i));
+
+				ArrayList list = (ArrayList) records.get(elementPath);
+				if (list == null) {
+					list = new ArrayList();
+					records.put(elementPath, list);
+				}
+				list.add(record);
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+			throws SAXException {
+			flushText();
+
+			if (depth == recordDepth)
+				record = null;
+			if (depth == typeDepth)
+				inType = false;
+			if (depth == typeDepth + 1)
+				inVersion = false;
+			if (depth == 2)
+				inMessage = false;
+
+			path.setLength(pathLengths[depth]);
+			depth--;
+		}
+
+		public void characters(char[] ch, int start, int length) {
+			text.append(ch, start, length);
+		}
+
+		public void ignorableWhitespace(char[] ch, int start, int length) {
+			text.append(ch, start, length);
+		}
+
+		public void processingInstruction(String target, String data)
+			throws SAXException {
+			flushText();
+		}
+
+		public void comment(char[] ch, int start, int length) throws SAXException {
+			flushText();
+		}
+
+		public void startDTD(String name, String publicId, String systemId) {
+		}
+
+		public void endDTD() {
+		}
+
+		public void startEntity(String name) {
+		}
+
+		public void endEntity(String name) {
+		}
+
+		public void startCDATA() {
+		}
+
+		public void endCDATA() {
+		}
+
+		/**
+		 * Assign the text read since the last markup to the current element
+		 */
+		private void flushText() throws SAXException {
+			if ((text.length() == 0) || (depth == 0))
+				return;
+
+			String value = text.toString();
+			text.setLength(0);
+
+			String key = path.toString() + "/text()";
+			if (!texts.containsKey(key))
+				texts.put(key, value);
+
+			if (inVersion && (depth == typeDepth + 1) && (msgVersion == null)) {
+				msgVersion = value;
+				if (owner != null)
+					owner.versionRead(this);
+			}
+
+			if (record != null) {
+				if (depth == recordDepth) {
+					if (record.text == null)
+						record.text = value;
+				}
+				else if (depth == recordDepth + 1) {
+					if (record.childTexts == null)
+						record.childTexts = new HashMap();
+					if (!record.childTexts.containsKey(steps[depth]))
+						record.childTexts.put(steps[depth], value);
+				}
+			}
+		}
+
+		private void grow() {
+			int size = steps.length * 2;
+
+			int[] newLengths = new int[size];
+			System.arraycopy(pathLengths, 0, newLengths, 0, pathLengths.length);
+			pathLengths = newLengths;
+
+			String[] newSteps = new String[size];
+			System.arraycopy(steps, 0, newSteps, 0, steps.length);
+			steps = newSteps;
+
+			boolean[] newNamespaced = new boolean[size];
+			System.arraycopy(namespaced, 0, newNamespaced, 0, namespaced.length);
+			namespaced = newNamespaced;
+		}
+	}
+
+}
@@ -27,10 +27,16 @@ package com.oncecorp.visa3d.mpi.messaging.meta;
 import com.oncecorp.visa3d.mpi.configuration.ConfigAccessor;
 import com.oncecorp.visa3d.mpi.configuration.ConfigAccessorGenerator;
 import com.oncecorp.visa3d.mpi.configuration.ConfigAccessorType;
+import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -48,6 +54,12 @@ import org.apache.log4j.Logger;
  * So to retrieve the proper MessageMetaInfo, the client must construct the proper
  * MessageUID object and use it as a key into the overall mapping structure
  *
+ * Processor and transformer classes are resolved once, when the meta info is
+ * loaded. Stateless ones (no instance fields besides loggers and final fields)
+ * are instantiated once and shared; the others are instantiated per call from
+ * their resolved class. An unresolvable processor class is a fatal
+ * configuration error, see <code>init</code>.
+ *
  * @author mdufort
  */
 public class MessageMetaInfo {
@@ -59,8 +71,32 @@ public class MessageMetaInfo {
 	private BindingMetaInfo bindings;       // List of bindings for DOM to Message conversion
 	private ExtensionMetaInfo extensions;   // List of supported extensions sorted by id
 	private HashMap transformers;           // List of supported transformers sorted by supported
+	private Prototype processorPrototype;   // Resolved processor
+	private Map transformerPrototypes;      // Resolved transformers sorted by supported
+
+	private static volatile HashMap allMetaInfo = null;
+
+	/**
+	 * Processor classes that could not be resolved at load time
+	 */
+	private static ArrayList unresolvedProcessors = new ArrayList();
+
+	/**
+	 * Resolved processor or transformer class
+	 */
+	private static class Prototype {
+		private Class clz;
+		private Object shared;
 
-	private static HashMap allMetaInfo = null;
+		private Prototype(Class clz) throws InstantiationException, IllegalAccessException {
+			this.clz = clz;
+			this.shared = isStateless(clz) ? clz.newInstance() : null;
+		}
+
+		private Object getInstance() throws InstantiationException, IllegalAccessException {
+			return (shared != null) ? shared : clz.newInstance();
+		}
+	}
 
 	/**
 	 * Local Log4J logger
@@ -197,31 +233,17 @@ public class MessageMetaInfo {
 		return allMetaInfo.containsKey(msgUID);
 	}
 
-	/**
-	 * Retrieve the processor for a specific MessageUID
-	 */
-	private static String getProcessorClz(MessageUID forUID) {
-		checkMetaInfoLoaded();
-
-		MessageMetaInfo mInfo = (MessageMetaInfo) allMetaInfo.get(forUID);
-		if (mInfo != null) {
-			return mInfo.getProcessor();
-		}
-		return null;
-	}
     /**
 	 * Return an instance of the processor object
 	 * @param uid		UID of message to which we must fetch the transformer
 	 */
 	public static Object getProcessor(MessageUID uid) {
+		checkMetaInfoLoaded();
+
 		try {
-			String clz = getProcessorClz(uid);
-			if (clz == null) return null;
-			return Class.forName(clz).newInstance();
-		}
-		catch (ClassNotFoundException e1) {
-			logger.fatal("Unable to instantiate the processor class for " + uid);
-			return null;
+			MessageMetaInfo mInfo = (MessageMetaInfo) allMetaInfo.get(uid);
+			if ((mInfo == null) || (mInfo.processorPrototype == null)) return null;
+			return mInfo.processorPrototype.getInstance();
 		}
 		catch (InstantiationException e2) {
 			logger.fatal("Unable to instantiate the processor class for " + uid);
@@ -232,18 +254,6 @@ public class MessageMetaInfo {
 			return null;
 		}
 	}
-	private static String getTransformerClz(MessageUID forUID, String toType, String toVersion) {
-		checkMetaInfoLoaded();
-
-		MessageMetaInfo mInfo = (MessageMetaInfo) allMetaInfo.get(forUID);
-		if (mInfo != null) {
-			MessageUID transformUID = new MessageUID(toType, toVersion);
-			Object clz = mInfo.getTransformers().get(transformUID);
-			if (clz != null) return (String) clz;
-		}
-		return null;
-	}
-
     /**
 	 * Return an instance of the transformer object
 	 * @param uid		UID of message to which we must fetch the transformer
@@ -251,14 +261,15 @@ public class MessageMetaInfo {
 	 * @param toVersion	Version of message we are transforming to
 	 */
 	public static Object getTransformer(MessageUID uid, String toType, String toVersion) {
+		checkMetaInfoLoaded();
+
 		try {
-			String clz = getTransformerClz(uid, toType, toVersion);
-			if (clz == null) return null;
-			return Class.forName(clz).newInstance();
-		}
-		catch (ClassNotFoundException e) {
-			logger.fatal("Unable to instantiate the transformer class for " + uid);
-			return null;
+			MessageMetaInfo mInfo = (MessageMetaInfo) allMetaInfo.get(uid);
+			if (mInfo == null) return null;
+			Prototype prototype =
+				(Prototype) mInfo.transformerPrototypes.get(new MessageUID(toType, toVersion));
+			if (prototype == null) return null;
+			return prototype.getInstance();
 		}
 		catch (InstantiationException e) {
 			logger.fatal("Unable to instantiate the transformer class for " + uid);
@@ -295,14 +306,109 @@ public class MessageMetaInfo {
 	}
 
 
+	/**
+	 * Load the meta info and check that every processor class could be
+	 * resolved. Should be called at startup.
+	 *
+	 * @throws ConfigurationException if a processor class is unresolvable
+	 */
+	public static void init() throws ConfigurationException {
+		checkMetaInfoLoaded();
+
+		if (!unresolvedProcessors.isEmpty()) {
+			throw new ConfigurationException(
+				"Unresolvable message processor(s): " + unresolvedProcessors);
+		}
+	}
+
 	/**
 	 * Method checkMetaInfoLoaded.
 	 */
 	private final static void checkMetaInfoLoaded() {
+		if (allMetaInfo == null) {
+			loadMetaInfo();
+		}
+	}
+
+	/**
+	 * Load the meta info and resolve its processors and transformers.
+	 */
+	private static synchronized void loadMetaInfo() {
 		if (allMetaInfo == null) {
 			ConfigAccessor cfgAcc = ConfigAccessorGenerator.getAccessor(ConfigAccessorType.ACCESSOR_TYPE_MESSAGING);
-			allMetaInfo = (HashMap) cfgAcc.getConfigData();
+			HashMap metaInfo = (HashMap) cfgAcc.getConfigData();
+			resolvePrototypes(metaInfo);
+			allMetaInfo = metaInfo;
+		}
+	}
+
+	/**
+	 * Resolve the processor and transformer classes of all message meta info.
+	 * A meta info object is shared by all the versions of a message, so it is
+	 * only resolved once.
+	 *
+	 * @param metaInfo The loaded meta info
+	 */
+	private static void resolvePrototypes(HashMap metaInfo) {
+		Iterator it = metaInfo.values().iterator();
+		while (it.hasNext()) {
+			MessageMetaInfo mInfo = (MessageMetaInfo) it.next();
+			if (mInfo.transformerPrototypes != null) continue;
+
+			String clz = mInfo.getProcessor();
+			if ((clz != null) && (clz.length() != 0)) {
+				try {
+					mInfo.processorPrototype = new Prototype(Class.forName(clz));
+				}
+				catch (Throwable t) {
+					logger.fatal("Unable to resolve the processor class " + clz + " for " + mInfo.getName(), t);
+					unresolvedProcessors.add(clz);
+				}
+			}
+
+			HashMap transformerPrototypes = new HashMap();
+			if (mInfo.getTransformers() != null) {
+				Iterator entries = mInfo.getTransformers().entrySet().iterator();
+				while (entries.hasNext()) {
+					Map.Entry entry = (Map.Entry) entries.next();
+					String transformerClz = (String) entry.getValue();
+					try {
+						transformerPrototypes.put(
+							entry.getKey(),
+							new Prototype(Class.forName(transformerClz)));
+					}
+					catch (Throwable t) {
+						// Transformers of optional components may be absent
+						logger.warn(
+							"Transformer " + transformerClz + " for " + mInfo.getName()
+								+ " to " + entry.getKey() + " not available: " + t);
+					}
+				}
+			}
+			mInfo.transformerPrototypes = Collections.unmodifiableMap(transformerPrototypes);
+		}
+	}
+
+	/**
+	 * Whether instances of a class hold no per call state, i.e. have no
+	 * instance field other than loggers and final fields.
+	 *
+	 * @param clz The class
+	 * @return boolean
+	 */
+	private static boolean isStateless(Class clz) {
+		for (Class c = clz; c != null && c != Object.class; c = c.getSuperclass()) {
+			Field[] fields = c.getDeclaredFields();
+			for (int i = 0; i < fields.length; i++) {
+				int modifiers = fields[i].getModifiers();
+				if (Modifier.isStatic(modifiers)
+					|| Modifier.isFinal(modifiers)
+					|| Logger.class.isAssignableFrom(fields[i].getType()))
+					continue;
+				return false;
+			}
 		}
+		return true;
 	}
 
 	/**
@@ -62,5 +62,28 @@ public interface ConfiguratorMBean {
 	 */
 	public String saveLog4jConfigData(Properties props);
 
+	/**
+	 * Refresh card ranges now, whether they expired or not
+	 * @param protocol The protocol, empty for all protocols
+	 */
+	public String refreshCardRanges(String protocol);
+
+	/**
+	 * Remove all entries of the not enrolled VERes cache, to be used
+	 * when cards are known to have enrolled
+	 */
+	public String flushEnrollmentCache();
+
+	/**
+	 * Load the card scheme routing rules in use
+	 */
+	public String loadCardSchemeRouting();
+
+	/**
+	 * Replace the card scheme routing rules, without restarting
+	 * @param rules The rules, as prefix[-prefix]=protocol separated by ';'
+	 */
+	public String saveCardSchemeRouting(String rules);
+
 
 }
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.monitoring;
+
+import java.util.Map;
+
+/**
+ * Latency percentiles of the authentication pipeline stages
+ *
+ * @version $Revision: 1 $
+ */
+public interface LatencyMonitorMBean {
+
+	/**
+	 * Returns the latency statistic of the last completed snapshot interval.
+	 * @return The map of the results, key is the stage___type,
+	 * values are the LatencyStatisticResult for different protocol.
+	 */
+	public Map optLatencyStatistic();
+
+	/**
+	 * Returns the latency statistic since startup or the last flush.
+	 * @return The map of the results, key is the stage___type,
+	 * values are the LatencyStatisticResult for different protocol.
+	 */
+	public Map optCumulativeLatencyStatistic();
+
+	/**
+	 * Flush every latency histogram
+	 */
+	public void optFlush();
+
+	/**
+	 * Returns the snapshot interval.
+	 * @return long secs
+	 */
+	public long getSnapshotInterval();
+
+	/**
+	 * Sets the snapshot interval.
+	 * @param interval The interval in secs
+	 */
+	public void setSnapshotInterval(long interval);
+
+	/**
+	 * Returns the time the last snapshot interval was closed.
+	 * @return long millis
+	 */
+	public long getLastSnapshotTime();
+}
@@ -114,5 +114,266 @@ public interface PerformanceMonitorMBean {
 	 */
 	public long getLastFlushCounter();
 
+	/**
+	 * Returns the capacity of the bounded transaction store.
+	 * @return long bytes, 0 if the store is not in use
+	 */
+	public long getTransactionStoreCapacity();
+
+	/**
+	 * Returns the bytes held by pending transactions in the bounded store.
+	 * @return long
+	 */
+	public long getTransactionStoreUsedBytes();
+
+	/**
+	 * Returns the number of pending transactions in the bounded store.
+	 * @return int
+	 */
+	public int getTransactionStoreItemCount();
+
+	/**
+	 * Returns the number of pending transactions evicted from the bounded
+	 * store to admit newer ones.
+	 * @return long
+	 */
+	public long getTransactionStoreEvictionCount();
+
+	/**
+	 * Returns the number of transactions rejected by the bounded store.
+	 * @return long
+	 */
+	public long getTransactionStoreRejectionCount();
+
+	/**
+	 * Returns the number of pending transactions expired from the bounded
+	 * store.
+	 * @return long
+	 */
+	public long getTransactionStoreExpirationCount();
+
+	/**
+	 * Returns the number of XML parser borrows served from the parser pools.
+	 * @return long
+	 */
+	public long getXmlParserPoolHitCount();
+
+	/**
+	 * Returns the number of XML parser borrows that had to create a parser.
+	 * @return long
+	 */
+	public long getXmlParserPoolMissCount();
+
+	/**
+	 * Returns the statistic per XPath expression.
+	 * @return The map of the counters, key is the expression, values are
+	 * XPathStatisticResult objects.
+	 */
+	public Map optXPathStatistic();
+
+	/**
+	 * Returns the number of XPath lookups served by a compiled expression.
+	 * @return long
+	 */
+	public long getXPathCacheHitCount();
+
+	/**
+	 * Returns the number of XPath lookups that had to compile the expression.
+	 * @return long
+	 */
+	public long getXPathCacheMissCount();
+
+	/**
+	 * Returns the connection statistic per directory server endpoint.
+	 * @return The map of the counters, key is the endpoint, values are
+	 * EndpointStatisticResult objects.
+	 */
+	public Map optDirectoryEndpointStatistic();
+
+	/**
+	 * Returns the routing statistic and circuit breaker state per directory URL.
+	 * @return The map of the counters, key is the URL, values are
+	 * DirectoryRouteStatisticResult objects.
+	 */
+	public Map optDirectoryRouteStatistic();
+
+	/**
+	 * Returns the number of VEReq hedged to a secondary directory.
+	 * @return long
+	 */
+	public long getDirectoryHedgeIssuedCount();
+
+	/**
+	 * Returns the number of VEReq answered first by the secondary directory.
+	 * @return long
+	 */
+	public long getDirectoryHedgeWonCount();
+
+	/**
+	 * Returns the number of VEReq hedges not sent because of the rate cap.
+	 * @return long
+	 */
+	public long getDirectoryHedgeSuppressedCount();
+
+	/**
+	 * Returns the current VEReq hedge delay in millis, -1 until enough requests were measured.
+	 * @return long
+	 */
+	public long getDirectoryHedgeDelay();
+
+	/**
+	 * Returns the retry statistic per retry policy.
+	 * @return The map of the counters, key is the policy name, values are
+	 * RetryStatisticResult objects.
+	 */
+	public Map optRetryStatistic();
+
+	/**
+	 * Returns the card range refresh statistic per protocol: requests,
+	 * failures, last duration, range count and age of the last success.
+	 * @return The map of the counters, key is the protocol, values are
+	 * CardRangeStatisticResult objects.
+	 */
+	public Map optCardRangeStatistic();
+
+	/**
+	 * Returns the number of error notifications waiting to be sent in
+	 * Delay dispatch mode, retries included.
+	 * @return int, 0 in Direct dispatch mode
+	 */
+	public int getErrorDispatchQueueDepth();
+
+	/**
+	 * Returns the number of error notifications sent in Delay dispatch mode.
+	 * @return long
+	 */
+	public long getErrorDispatchSentCount();
+
+	/**
+	 * Returns the number of error notifications abandoned after their last
+	 * retry in Delay dispatch mode.
+	 * @return long
+	 */
+	public long getErrorDispatchFailedCount();
+
+	/**
+	 * Returns the number of batches of error notifications sent in a row
+	 * to the same URL.
+	 * @return long
+	 */
+	public long getErrorDispatchBatchCount();
+
+	/**
+	 * Returns the number of error notifications dropped on a full queue.
+	 * @return long
+	 */
+	public long getErrorDispatchDroppedCount();
+
+	/**
+	 * Returns the number of error notifications coalesced with a queued
+	 * notification for the same message.
+	 * @return long
+	 */
+	public long getErrorDispatchCoalescedCount();
+
+	/**
+	 * Returns the number of messages waiting in the asynchronous JMS
+	 * publishing queue.
+	 * @return int, 0 when publishing synchronously
+	 */
+	public int getPublishQueueDepth();
+
+	/**
+	 * Returns how long the oldest message of the asynchronous JMS
+	 * publishing queue has been waiting.
+	 * @return long millis
+	 */
+	public long getPublishQueueLag();
+
+	/**
+	 * Returns the number of messages published asynchronously.
+	 * @return long
+	 */
+	public long getPublishedCount();
+
+	/**
+	 * Returns the number of JMS transactions committed by the asynchronous
+	 * publisher.
+	 * @return long
+	 */
+	public long getPublishBatchCount();
+
+	/**
+	 * Returns the number of messages rejected because the publishing queue
+	 * was full.
+	 * @return long
+	 */
+	public long getPublishRejectedCount();
+
+	/**
+	 * Returns the number of messages spooled because the publishing queue
+	 * was full.
+	 * @return long
+	 */
+	public long getPublishOverflowCount();
+
+	/**
+	 * Returns the number of messages the asynchronous publisher failed to
+	 * publish.
+	 * @return long
+	 */
+	public long getPublishFailedCount();
+
+	/**
+	 * Returns the number of messages waiting in the publishing spool.
+	 * @return long, 0 when the spool is not configured
+	 */
+	public long getPublishSpoolDepth();
+
+	/**
+	 * Returns the size of the publishing spool on disk.
+	 * @return long bytes
+	 */
+	public long getPublishSpoolSize();
+
+	/**
+	 * Returns the number of messages replayed from the publishing spool.
+	 * @return long
+	 */
+	public long getPublishSpoolReplayedCount();
+
+	/**
+	 * Returns the number of messages the publishing spool could not take.
+	 * @return long
+	 */
+	public long getPublishSpoolDroppedCount();
+
+	/**
+	 * Returns the number of PaymentVerifReq answered from a recent not
+	 * enrolled VERes for the same card.
+	 * @return long
+	 */
+	public long getEnrollmentCacheHitCount();
+
+	/**
+	 * Returns the number of enrollment cache lookups which found no valid
+	 * entry.
+	 * @return long
+	 */
+	public long getEnrollmentCacheMissCount();
+
+	/**
+	 * Returns the percentage of enrollment cache lookups answered from the
+	 * cache.
+	 * @return int
+	 */
+	public int getEnrollmentCacheHitRatio();
+
+	/**
+	 * Returns the number of entries in the enrollment cache.
+	 * @return int
+	 */
+	public int getEnrollmentCacheSize();
+
 
 }
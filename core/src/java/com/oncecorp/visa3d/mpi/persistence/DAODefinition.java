@@ -67,6 +67,16 @@ public interface DAODefinition {
 	public final static String MERCHANT_DAO_DB_SCHEMA 		= "merchant.dao.db.schema";
 	public final static String MERCHANT_DAO_DB_TABLE 		= "merchant.dao.db.table";
 
+	/**
+	 * Pending transaction DAO config data keys
+	 */
+	public final static String TRANSACTION_DAO_JDBC_DRIVER 	= "transaction.dao.jdbc.driver";
+	public final static String TRANSACTION_DAO_DB_URL 		= "transaction.dao.db.url";
+	public final static String TRANSACTION_DAO_DB_USERNAME 	= "transaction.dao.db.username";
+	public final static String TRANSACTION_DAO_DB_PASSWORD 	= "transaction.dao.db.password";
+	public final static String TRANSACTION_DAO_DB_SCHEMA 	= "transaction.dao.db.schema";
+	public final static String TRANSACTION_DAO_DB_TABLE 	= "transaction.dao.db.table";
+
 	/**
 	 * Config data query
 	 */
@@ -146,4 +156,24 @@ public interface DAODefinition {
 	public final static String MERCHANT_DELETE_ONE_STMT2 = 
 		" WHERE MERCHANT_ID=?";
 
+	/**
+	 * Pending transaction data query
+	 */
+	public final static String TRANSACTION_CREATE_STMT1 =
+		"INSERT INTO ";
+	public final static String TRANSACTION_CREATE_STMT2 =
+		" (TRANSACTION_ID, CREATION_TIME, DATA) VALUES (?, ?, ?)";
+
+	public final static String TRANSACTION_RETRIEVE_STMT1 =
+		"SELECT TRANSACTION_ID, CREATION_TIME, DATA FROM ";
+	public final static String TRANSACTION_RETRIEVE_SINGLE_STMT2 =
+		" WHERE TRANSACTION_ID=?";
+	public final static String TRANSACTION_RETRIEVE_EXPIRED_STMT2 =
+		" WHERE CREATION_TIME<?";
+
+	public final static String TRANSACTION_DELETE_STMT1 =
+		"DELETE FROM ";
+	public final static String TRANSACTION_DELETE_STMT2 =
+		" WHERE TRANSACTION_ID=?";
+
 }
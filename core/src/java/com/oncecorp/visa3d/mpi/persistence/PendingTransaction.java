@@ -0,0 +1,75 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.persistence;
+
+/**
+ * A pending VEReq/PAReq transaction as kept in the shared transaction
+ * store: its id, creation time and encoded content.
+ *
+ * @version $Revision: 1 $
+ */
+public class PendingTransaction {
+
+	private String id;
+	private long creationTime;
+	private byte[] data;
+
+	/**
+	 * Constructor
+	 *
+	 * @param id The transaction id
+	 * @param creationTime The creation time (in millis)
+	 * @param data The encoded transaction
+	 */
+	public PendingTransaction(String id, long creationTime, byte[] data) {
+		this.id = id;
+		this.creationTime = creationTime;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the id.
+	 * @return String
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the creationTime.
+	 * @return long
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * Returns the data.
+	 * @return byte[]
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.persistence;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DAO implementation class for the shared pending transaction store. The
+ * table holds one row per pending VEReq/PAReq transaction:
+ * <ul>
+ * <li>TRANSACTION_ID: the message id, up to 30 characters</li>
+ * <li>CREATION_TIME: the creation time in millis</li>
+ * <li>DATA: the encoded transaction (binary), PAN encrypted</li>
+ * </ul>
+ * The MySQL and Oracle DDL is in core/src/ddl. The index on CREATION_TIME
+ * serves the scans for expired transactions.
+ *
+ * @version $Revision: 1 $
+ */
+public class PendingTransactionDAO implements SimpleDAO {
+
+	protected Logger logger =
+		MPILogger.getLogger(PendingTransactionDAO.class.getName());
+
+	private static String jdbcDriver;
+	private static String dbUrl;
+	private static String dbUsername;
+	private static String dbPassword;
+	private static String dbSchema;
+	private static String dbTable;
+
+	/**
+	 * Store pending transactions. Existing rows with the same ids are
+	 * replaced.
+	 *
+	 * @param obj A PendingTransaction or a Collection of PendingTransaction,
+	 * written as one batch
+	 */
+	public void create(Object obj) throws PersistentException {
+		Collection data;
+		if (obj instanceof Collection) {
+			data = (Collection) obj;
+		} else {
+			data = new ArrayList(1);
+			data.add(obj);
+		}
+		if (data.isEmpty())
+			return;
+
+		Connection conn = null;
+		try {
+			// get JDBC connection
+			conn = getConnection();
+			conn.setAutoCommit(false);
+
+			// prepare SQL statements
+			PreparedStatement delete =
+				conn.prepareStatement(
+					DAODefinition.TRANSACTION_DELETE_STMT1
+						+ getTableName()
+						+ DAODefinition.TRANSACTION_DELETE_STMT2);
+			PreparedStatement insert =
+				conn.prepareStatement(
+					DAODefinition.TRANSACTION_CREATE_STMT1
+						+ getTableName()
+						+ DAODefinition.TRANSACTION_CREATE_STMT2);
+
+			Iterator it = data.iterator();
+			while (it.hasNext()) {
+				PendingTransaction tx = (PendingTransaction) it.next();
+				delete.setString(1, tx.getId());
+				delete.addBatch();
+
+				insert.setString(1, tx.getId());
+				insert.setLong(2, tx.getCreationTime());
+				insert.setBytes(3, tx.getData());
+				insert.addBatch();
+			}
+			delete.executeBatch();
+			insert.executeBatch();
+			conn.commit();
+
+			// Clean up
+			delete.close();
+			insert.close();
+			logger.debug(data.size() + " pending transaction(s) stored.");
+		}
+		catch (ClassCastException cce) {
+			logger.error("The PendingTransactionDAO can only handle PendingTransaction objects.");
+			throw new PersistentException(cce.getMessage());
+		}
+		catch (SQLException sqle) {
+			logger.error("Failed to insert pending transactions", sqle);
+			rollback(conn);
+			throw new PersistentException(sqle.getMessage());
+		}
+		finally {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Retrieve a pending transaction
+	 *
+	 * @param obj The transaction id in a String format
+	 * @return The PendingTransaction, or null if not found
+	 */
+	public Object retrieve(Object obj) throws PersistentException {
+		Connection conn = null;
+		try {
+			// Get JDBC connection
+			conn = getConnection();
+
+			PreparedStatement stmt =
+				conn.prepareStatement(
+					DAODefinition.TRANSACTION_RETRIEVE_STMT1
+						+ getTableName()
+						+ DAODefinition.TRANSACTION_RETRIEVE_SINGLE_STMT2);
+			stmt.setString(1, (String) obj);
+
+			ResultSet rs = stmt.executeQuery();
+			PendingTransaction tx = null;
+			if (rs.next())
+				tx = toPendingTransaction(rs);
+
+			// Clean up
+			rs.close();
+			stmt.close();
+			return tx;
+		}
+		catch (ClassCastException cce) {
+			logger.error("Argument type casting error. The type of argument s/b java.lang.String.");
+			throw new PersistentException(cce.getMessage());
+		}
+		catch (SQLException sqle) {
+			logger.error("Failed to retrieve pending transaction " + obj, sqle);
+			throw new PersistentException(sqle.getMessage());
+		}
+		finally {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Retrieve pending transactions created before a given time.
+	 *
+	 * @param time The time (in millis)
+	 * @return The list of PendingTransaction
+	 */
+	public List retrieveCreatedBefore(long time) throws PersistentException {
+		Connection conn = null;
+		try {
+			// Get JDBC connection
+			conn = getConnection();
+
+			PreparedStatement stmt =
+				conn.prepareStatement(
+					DAODefinition.TRANSACTION_RETRIEVE_STMT1
+						+ getTableName()
+						+ DAODefinition.TRANSACTION_RETRIEVE_EXPIRED_STMT2);
+			stmt.setLong(1, time);
+
+			ResultSet rs = stmt.executeQuery();
+			List data = new ArrayList();
+			while (rs.next())
+				data.add(toPendingTransaction(rs));
+
+			// Clean up
+			rs.close();
+			stmt.close();
+			return data;
+		}
+		catch (SQLException sqle) {
+			logger.error("Failed to retrieve expired pending transactions", sqle);
+			throw new PersistentException(sqle.getMessage());
+		}
+		finally {
+			close(conn);
+		}
+	}
+
+	/**
+	 * Updating is not supported: use create to replace a transaction.
+	 */
+	public void update(Object obj) throws PersistentException {
+		throw new PersistentException("Pending transactions cannot be updated.");
+	}
+
+	/**
+	 * Delete a pending transaction
+	 *
+	 * @param obj The transaction id in a String format
+	 */
+	public void delete(Object obj) throws PersistentException {
+		try {
+			claim((String) obj);
+		}
+		catch (ClassCastException cce) {
+			logger.error("Argument type casting error. The type of argument s/b java.lang.String.");
+			throw new PersistentException(cce.getMessage());
+		}
+	}
+
+	/**
+	 * Delete a pending transaction. When several nodes delete the same
+	 * transaction, only one of them is told it succeeded.
+	 *
+	 * @param id The transaction id
+	 * @return boolean true if the row was deleted by this call
+	 */
+	public boolean claim(String id) throws PersistentException {
+		Connection conn = null;
+		try {
+			// Get JDBC connection
+			conn = getConnection();
+
+			PreparedStatement stmt =
+				conn.prepareStatement(
+					DAODefinition.TRANSACTION_DELETE_STMT1
+						+ getTableName()
+						+ DAODefinition.TRANSACTION_DELETE_STMT2);
+			stmt.setString(1, id);
+			int count = stmt.executeUpdate();
+
+			// Clean up
+			stmt.close();
+			return count > 0;
+		}
+		catch (SQLException sqle) {
+			logger.error("Failed to delete pending transaction " + id, sqle);
+			throw new PersistentException(sqle.getMessage());
+		}
+		finally {
+			close(conn);
+		}
+	}
+
+	private PendingTransaction toPendingTransaction(ResultSet rs)
+		throws SQLException {
+		return new PendingTransaction(
+			rs.getString("TRANSACTION_ID"),
+			rs.getLong("CREATION_TIME"),
+			rs.getBytes("DATA"));
+	}
+
+	private String getTableName() {
+		return (getDbSchema() == null || getDbSchema().length() == 0)
+			? getDbTable()
+			: getDbSchema() + "." + getDbTable();
+	}
+
+	private void rollback(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				logger.error("Failed to rollback JDBC connection.", e);
+			}
+		}
+	}
+
+	private void close(Connection conn) {
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				logger.error("Failed to close JDBC connection.", e);
+			}
+		}
+	}
+
+	private Connection getConnection() throws PersistentException {
+		String jdbcDriver = "";
+		try {
+			jdbcDriver = getJdbcDriver();
+			Class.forName(jdbcDriver);
+		} catch (java.lang.ClassNotFoundException e) {
+			logger.error("JDBC Driver Class Not Found. " + jdbcDriver, e);
+			throw new PersistentException(e.getMessage());
+		} catch (Exception e) {
+			logger.error("getConnection exception.", e);
+			throw new PersistentException(e.getMessage());
+		}
+
+		try {
+			return DriverManager.getConnection(
+				getDbUrl(),
+				getDbUsername(),
+				getDbPassword());
+		} catch (SQLException ex) {
+			logger.error(
+				"Failed to initialize JDBC connection to "
+					+ getDbUrl()
+					+ " by account "
+					+ getDbUsername(),
+				ex);
+			throw new PersistentException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the dbPassword.
+	 * @return String
+	 */
+	public static String getDbPassword() {
+		return dbPassword;
+	}
+
+	/**
+	 * Returns the dbSchema.
+	 * @return String
+	 */
+	public static String getDbSchema() {
+		return dbSchema;
+	}
+
+	/**
+	 * Returns the dbTable.
+	 * @return String
+	 */
+	public static String getDbTable() {
+		return dbTable;
+	}
+
+	/**
+	 * Returns the dbUrl.
+	 * @return String
+	 */
+	public static String getDbUrl() {
+		return dbUrl;
+	}
+
+	/**
+	 * Returns the dbUsername.
+	 * @return String
+	 */
+	public static String getDbUsername() {
+		return dbUsername;
+	}
+
+	/**
+	 * Returns the jdbcDriver.
+	 * @return String
+	 */
+	public static String getJdbcDriver() {
+		return jdbcDriver;
+	}
+
+	/**
+	 * Sets the dbPassword.
+	 * @param dbPassword The dbPassword to set
+	 */
+	public static void setDbPassword(String dbPassword) {
+		PendingTransactionDAO.dbPassword = dbPassword;
+	}
+
+	/**
+	 * Sets the dbSchema.
+	 * @param dbSchema The dbSchema to set
+	 */
+	public static void setDbSchema(String dbSchema) {
+		PendingTransactionDAO.dbSchema = dbSchema;
+	}
+
+	/**
+	 * Sets the dbTable.
+	 * @param dbTable The dbTable to set
+	 */
+	public static void setDbTable(String dbTable) {
+		PendingTransactionDAO.dbTable = dbTable;
+	}
+
+	/**
+	 * Sets the dbUrl.
+	 * @param dbUrl The dbUrl to set
+	 */
+	public static void setDbUrl(String dbUrl) {
+		PendingTransactionDAO.dbUrl = dbUrl;
+	}
+
+	/**
+	 * Sets the dbUsername.
+	 * @param dbUsername The dbUsername to set
+	 */
+	public static void setDbUsername(String dbUsername) {
+		PendingTransactionDAO.dbUsername = dbUsername;
+	}
+
+	/**
+	 * Sets the jdbcDriver.
+	 * @param jdbcDriver The jdbcDriver to set
+	 */
+	public static void setJdbcDriver(String jdbcDriver) {
+		PendingTransactionDAO.jdbcDriver = jdbcDriver;
+	}
+}
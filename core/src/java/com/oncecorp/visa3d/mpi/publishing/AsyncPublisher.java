@@ -0,0 +1,448 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.publishing;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Asynchronous publishing pipeline of the PublishingManager. Messages are
+ * put in a bounded in-memory queue by the request threads and published by
+ * a small pool of publisher threads. Each publisher thread owns a long-lived
+ * transacted TopicSession and TopicPublisher (sessions do not support
+ * concurrent use) and sends whatever is queued, up to <code>batchSize</code>
+ * messages, in a single transaction.
+ * <p>
+ * When the queue is full, the configured policy applies:
+ * <ul>
+ * <li><b>Block</b>: the request thread waits until there is room.</li>
+ * <li><b>Spool</b>: the message is handed to PublishingManager.spool().</li>
+ * <li><b>Fail</b>: a PublishException is thrown to the request thread.</li>
+ * </ul>
+ * A batch that cannot be published, even after one retry on a fresh session,
+ * is handed to PublishingManager.spool() as well; the Core Server is only
+ * stopped if the spool cannot take it.
+ * <p>
+ * With a single publisher thread, messages are published in the order they
+ * were queued. With two or more, batches are committed independently and
+ * audit messages may reach the topic out of order; subscribers relying on
+ * order must then sort on the message timestamp. Spooled messages are
+ * replayed in order either way.
+ *
+ * @version $Revision: 1 $
+ */
+public class AsyncPublisher {
+
+	/** Full queue policy: wait for room */
+	public static final String POLICY_BLOCK = "Block";
+
+	/** Full queue policy: hand the message to the spool */
+	public static final String POLICY_SPOOL = "Spool";
+
+	/** Full queue policy: reject the message */
+	public static final String POLICY_FAIL = "Fail";
+
+	/** Default queue capacity, in messages */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Default number of publisher threads, the only value preserving order */
+	public static final int DEFAULT_THREADS = 1;
+
+	/** Default maximum number of messages per transaction */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/** Time given to the publisher threads to drain the queue on shutdown */
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
+	private static Logger logger =
+		MPILogger.getLogger(AsyncPublisher.class.getName());
+
+	private PublishingManager manager;
+	private int capacity;
+	private int batchSize;
+	private String policy;
+
+	private LinkedList queue = new LinkedList();
+	private boolean running = true;
+	private Thread[] workers;
+
+	private long publishedCount;
+	private long batchCount;
+	private long rejectedCount;
+	private long overflowCount;
+	private long failedCount;
+
+	/**
+	 * Creates the pipeline and starts its publisher threads.
+	 * @param manager The manager providing connection, topic and spool
+	 * @param capacity The queue capacity, in messages
+	 * @param threads The number of publisher threads
+	 * @param batchSize The maximum number of messages per transaction
+	 * @param policy The full queue policy: Block, Spool or Fail
+	 */
+	public AsyncPublisher(
+		PublishingManager manager,
+		int capacity,
+		int threads,
+		int batchSize,
+		String policy) {
+		this.manager = manager;
+		this.capacity = Math.max(1, capacity);
+		this.batchSize = Math.max(1, batchSize);
+		if (POLICY_SPOOL.equalsIgnoreCase(policy))
+			this.policy = POLICY_SPOOL;
+		else if (POLICY_FAIL.equalsIgnoreCase(policy))
+			this.policy = POLICY_FAIL;
+		else
+			this.policy = POLICY_BLOCK;
+
+		workers = new Thread[Math.max(1, threads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("JMSPublisher-" + i) {
+				public void run() {
+					work();
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		logger.info(
+			"Asynchronous JMS publishing started: queue capacity "
+				+ this.capacity
+				+ ", "
+				+ workers.length
+				+ " publisher threads, batch size "
+				+ this.batchSize
+				+ ", full queue policy: "
+				+ this.policy);
+	}
+
+	/**
+	 * Queues a message for publishing, applying the full queue policy if
+	 * needed.
+	 * @param request The message to be published
+	 */
+	public void publish(PublishRequest request) throws PublishException {
+		synchronized (queue) {
+			while (running
+				&& (queue.size() >= capacity)
+				&& (policy == POLICY_BLOCK)) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					throw new PublishException("Interrupted while waiting for the publishing queue.");
+				}
+			}
+
+			if (!running)
+				throw new PublishException("Asynchronous publishing is shut down.");
+
+			if (queue.size() < capacity) {
+				queue.addLast(request);
+				queue.notifyAll();
+				return;
+			}
+
+			if (policy == POLICY_FAIL) {
+				rejectedCount++;
+				throw new PublishException("Publishing queue is full.");
+			}
+
+			overflowCount++;
+		}
+
+		// Spool outside of the queue lock
+		spool(request);
+	}
+
+	/**
+	 * Stops accepting messages and waits for the publisher threads to
+	 * publish what is still queued. Messages still queued after the
+	 * shutdown timeout are handed to the spool.
+	 */
+	public void shutdown() {
+		shutdown(SHUTDOWN_TIMEOUT);
+	}
+
+	/**
+	 * Stops accepting messages, waiting up to the given time for the
+	 * publisher threads to drain the queue, then spools what is left.
+	 * @param timeout The time given to the publisher threads, in millis
+	 */
+	void shutdown(long timeout) {
+		synchronized (queue) {
+			running = false;
+			queue.notifyAll();
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		for (int i = 0; i < workers.length; i++) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+
+			try {
+				workers[i].join(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		ArrayList left;
+		synchronized (queue) {
+			left = new ArrayList(queue);
+			queue.clear();
+		}
+		if (!left.isEmpty()) {
+			logger.warn(
+				left.size() + " messages still queued after publishing shutdown, spooling them.");
+			spoolAll(left);
+		}
+
+		logger.info("Asynchronous JMS publishing stopped.");
+	}
+
+	/**
+	 * Publisher thread main loop.
+	 */
+	private void work() {
+		TopicSession session = null;
+		TopicPublisher publisher = null;
+		ArrayList batch = new ArrayList(batchSize);
+
+		while (take(batch)) {
+			try {
+				if (session == null) {
+					session = createSession();
+					publisher = session.createPublisher(PublishingManager.getTopic());
+				}
+				send(session, publisher, batch);
+			} catch (Exception e) {
+				// The session may have outlived its connection: retry once on a new one
+				logger.warn("Publishing batch failed, retrying on a new session.", e);
+				close(session);
+				session = null;
+				try {
+					session = createSession();
+					publisher = session.createPublisher(PublishingManager.getTopic());
+					send(session, publisher, batch);
+				} catch (Exception retryExcep) {
+					logger.error(
+						"Failed to publish batch of " + batch.size() + " messages.",
+						retryExcep);
+					close(session);
+					session = null;
+					failed(batch);
+				}
+			}
+			batch.clear();
+		}
+
+		close(session);
+	}
+
+	/**
+	 * Waits for queued messages and moves up to batchSize of them to the
+	 * batch.
+	 * @return false once the pipeline is shut down and the queue is empty
+	 */
+	private boolean take(ArrayList batch) {
+		synchronized (queue) {
+			while (running && queue.isEmpty()) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					// Check running state again
+				}
+			}
+
+			if (queue.isEmpty())
+				return false;
+
+			while (!queue.isEmpty() && (batch.size() < batchSize))
+				batch.add(queue.removeFirst());
+
+			// Make room for blocked request threads
+			queue.notifyAll();
+			return true;
+		}
+	}
+
+	private void send(TopicSession session, TopicPublisher publisher, ArrayList batch)
+		throws JMSException, PublishException {
+		for (int i = 0; i < batch.size(); i++) {
+			PublishRequest request = (PublishRequest) batch.get(i);
+			publisher.publish(createMessage(session, request));
+		}
+		session.commit();
+
+		synchronized (this) {
+			publishedCount += batch.size();
+			batchCount++;
+		}
+		logger.debug("Published batch of " + batch.size() + " messages.");
+	}
+
+	private void failed(ArrayList batch) {
+		synchronized (this) {
+			failedCount += batch.size();
+		}
+		spoolAll(batch);
+	}
+
+	/**
+	 * Hands unpublished messages to the spool, reporting the failure if
+	 * the spool refuses any of them.
+	 */
+	private void spoolAll(ArrayList requests) {
+		boolean lost = false;
+		for (int i = 0; i < requests.size(); i++) {
+			if (!spool((PublishRequest) requests.get(i)))
+				lost = true;
+		}
+
+		if (lost)
+			publishingFailed();
+	}
+
+	/**
+	 * Opens a transacted session for a publisher thread.
+	 */
+	TopicSession createSession() throws JMSException, PublishException {
+		return manager.createTransactedSession();
+	}
+
+	/**
+	 * Builds the JMS message for a queued message.
+	 */
+	Message createMessage(TopicSession session, PublishRequest request)
+		throws JMSException, PublishException {
+		return manager.createTextMessage(session, request);
+	}
+
+	/**
+	 * Hands a message that cannot be published or queued to the spool.
+	 * @return false if the message is dropped
+	 */
+	boolean spool(PublishRequest request) {
+		return manager.spool(request);
+	}
+
+	/**
+	 * Reports messages that could neither be published nor spooled.
+	 */
+	void publishingFailed() {
+		manager.publishingFailed();
+	}
+
+	private void close(TopicSession session) {
+		if (session == null)
+			return;
+
+		try {
+			// Uncommitted messages are rolled back by close()
+			session.close();
+		} catch (JMSException e) {
+			logger.error("Failed to close topic session.", e);
+		}
+	}
+
+	/**
+	 * Returns the number of queued messages.
+	 * @return int
+	 */
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Returns the time the oldest queued message has been waiting.
+	 * @return long millis, 0 if the queue is empty
+	 */
+	public long getLag() {
+		synchronized (queue) {
+			if (queue.isEmpty())
+				return 0;
+
+			PublishRequest oldest = (PublishRequest) queue.getFirst();
+			return System.currentTimeMillis() - oldest.getEnqueueTime();
+		}
+	}
+
+	/**
+	 * Returns the number of messages published.
+	 * @return long
+	 */
+	public synchronized long getPublishedCount() {
+		return publishedCount;
+	}
+
+	/**
+	 * Returns the number of transactions committed.
+	 * @return long
+	 */
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Returns the number of messages rejected on a full queue.
+	 * @return long
+	 */
+	public long getRejectedCount() {
+		synchronized (queue) {
+			return rejectedCount;
+		}
+	}
+
+	/**
+	 * Returns the number of messages spooled on a full queue.
+	 * @return long
+	 */
+	public long getOverflowCount() {
+		synchronized (queue) {
+			return overflowCount;
+		}
+	}
+
+	/**
+	 * Returns the number of messages in batches that failed to publish.
+	 * @return long
+	 */
+	public synchronized long getFailedCount() {
+		return failedCount;
+	}
+}
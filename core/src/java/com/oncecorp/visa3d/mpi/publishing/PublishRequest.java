@@ -0,0 +1,185 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.publishing;
+
+import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
+import com.oncecorp.visa3d.mpi.messaging.Message;
+import com.oncecorp.visa3d.mpi.utility.Utils;
+
+/**
+ * Snapshot of a message waiting to be published. Everything the JMS message
+ * is built from is captured on the request thread, including the merchant ID
+ * and protocol of the current AuthenticatorSession, so the message can be
+ * published later from any thread.
+ *
+ * @version $Revision: 1 $
+ */
+public class PublishRequest {
+
+	private String id;
+	private String type;
+	private String version;
+	private String merchantID;
+	private String protocol;
+	private String body;
+	private String encryptionIV;
+	private long enqueueTime;
+
+	/**
+	 * Captures the message in the context of the current request thread.
+	 * @param msg The message to be published
+	 */
+	public PublishRequest(Message msg) {
+		this(
+			msg.getId(),
+			msg.getType(),
+			msg.getVersion(),
+			AuthenticatorSession.instance().getMerchantID(),
+			"" + Utils.toProtocolByte(AuthenticatorSession.instance().getProtocol()),
+			msg.toString());
+	}
+
+	/**
+	 * Creates a request from already captured values.
+	 */
+	public PublishRequest(
+		String id,
+		String type,
+		String version,
+		String merchantID,
+		String protocol,
+		String body) {
+		this(
+			id,
+			type,
+			version,
+			merchantID,
+			protocol,
+			body,
+			System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a request from already captured values.
+	 */
+	public PublishRequest(
+		String id,
+		String type,
+		String version,
+		String merchantID,
+		String protocol,
+		String body,
+		long enqueueTime) {
+		this(id, type, version, merchantID, protocol, body, null, enqueueTime);
+	}
+
+	/**
+	 * Creates a request from already captured values, such as a request
+	 * read back from the publishing spool. With an initialization vector,
+	 * the body is already encrypted.
+	 */
+	public PublishRequest(
+		String id,
+		String type,
+		String version,
+		String merchantID,
+		String protocol,
+		String body,
+		String encryptionIV,
+		long enqueueTime) {
+		this.id = id;
+		this.type = type;
+		this.version = version;
+		this.merchantID = merchantID;
+		this.protocol = protocol;
+		this.body = body;
+		this.encryptionIV = encryptionIV;
+		this.enqueueTime = enqueueTime;
+	}
+
+	/**
+	 * Returns the message id.
+	 * @return String
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the message type.
+	 * @return String
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the message version.
+	 * @return String
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the merchant ID of the transaction.
+	 * @return String
+	 */
+	public String getMerchantID() {
+		return merchantID;
+	}
+
+	/**
+	 * Returns the payment protocol of the transaction.
+	 * @return String
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns the XML message body, encrypted if there is an
+	 * initialization vector.
+	 * @return String
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Returns the initialization vector of the encrypted body.
+	 * @return String, null if the body is not encrypted
+	 */
+	public String getEncryptionIV() {
+		return encryptionIV;
+	}
+
+	/**
+	 * Returns the time the request was created, in millis.
+	 * @return long
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+}
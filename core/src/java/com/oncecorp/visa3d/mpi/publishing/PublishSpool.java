@@ -0,0 +1,783 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.publishing;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Store-and-forward spool of the PublishingManager. Messages that cannot be
+ * published because the JMS provider is unavailable are appended to a
+ * journal on local disk and replayed, in order, once the provider is back.
+ * <p>
+ * The journal is a directory of append-only segment files
+ * (<code>spool-&lt;sequence&gt;.log</code>). Each record holds its length,
+ * a CRC32 and the captured PublishRequest. When the JMS encryption mode is
+ * on, the message body is encrypted with the JMS Triple-DES key before the
+ * record is built, so card data never reaches the disk in clear; the
+ * encrypted body and its initialization vector are published as is on
+ * replay. Appends are written straight to
+ * the current segment and forced to disk in batches every
+ * <code>syncInterval</code> millis, so a crash loses at most that window.
+ * A new segment is started once the current one reaches
+ * <code>segmentSize</code>, and appends are refused once the journal
+ * reaches <code>maxSize</code>.
+ * <p>
+ * A replay thread publishes the spooled records in transacted batches. After
+ * each commit, the position of the first unpublished record is saved in
+ * <code>spool.ack</code>, and segments fully behind it are deleted. A crash
+ * between a commit and the saving of the position replays that batch again,
+ * so delivery is at least once. On startup, the records past the saved
+ * position are counted and a torn record at the end of the last segment is
+ * truncated.
+ *
+ * @version $Revision: 1 $
+ */
+public class PublishSpool {
+
+	/** Default segment size, in bytes */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/** Default journal size limit, in bytes */
+	public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+
+	/** Default interval between two forces to disk, in millis */
+	public static final long DEFAULT_SYNC_INTERVAL = 200;
+
+	/** Default interval between two replay attempts, in millis */
+	public static final long DEFAULT_REPLAY_INTERVAL = 5000;
+
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String ACK_FILE = "spool.ack";
+
+	/** Record header: payload length and CRC32 */
+	private static final int HEADER_SIZE = 8;
+
+	private static final int REPLAY_BATCH_SIZE = 50;
+	private static final long SHUTDOWN_TIMEOUT = 10000;
+
+	private static Logger logger =
+		MPILogger.getLogger(PublishSpool.class.getName());
+
+	private PublishingManager manager;
+	private File directory;
+	private long segmentSize;
+	private long maxSize;
+	private long syncInterval;
+	private long replayInterval;
+
+	/** Sequence numbers (Long) of the segments on disk, oldest first */
+	private LinkedList segments = new LinkedList();
+
+	private RandomAccessFile writer;
+	private long writeSeq;
+	private long writeOffset;
+	private boolean dirty;
+
+	/** Position of the first record not published yet */
+	private RandomAccessFile ackFile;
+	private long readSeq;
+	private long readOffset;
+
+	private long depth;
+	private long diskSize;
+	private long appendedCount;
+	private long replayedCount;
+	private long droppedCount;
+
+	private boolean running;
+	private long nextReplay;
+	private Thread syncThread;
+	private Thread replayThread;
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed.
+	 * Call start() to begin syncing and replaying.
+	 *
+	 * @param manager The manager providing the JMS sessions for replay
+	 * @param directory The journal directory
+	 * @param segmentSize The segment size, in bytes
+	 * @param maxSize The journal size limit, in bytes
+	 * @param syncInterval The interval between two forces to disk, in millis
+	 * @param replayInterval The interval between two replay attempts, in millis
+	 */
+	public PublishSpool(
+		PublishingManager manager,
+		File directory,
+		long segmentSize,
+		long maxSize,
+		long syncInterval,
+		long replayInterval)
+		throws IOException {
+		this.manager = manager;
+		this.directory = directory;
+		this.segmentSize = Math.max(HEADER_SIZE, segmentSize);
+		this.maxSize = maxSize;
+		this.syncInterval = Math.max(1, syncInterval);
+		this.replayInterval = Math.max(1, replayInterval);
+		open();
+	}
+
+	private synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create spool directory " + directory);
+
+		// Find segments
+		ArrayList found = new ArrayList();
+		String[] names = directory.list();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].startsWith(SEGMENT_PREFIX)
+				&& names[i].endsWith(SEGMENT_SUFFIX)) {
+				try {
+					found.add(
+						new Long(
+							names[i].substring(
+								SEGMENT_PREFIX.length(),
+								names[i].length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					logger.warn("Unexpected file in spool directory: " + names[i]);
+				}
+			}
+		}
+		Collections.sort(found);
+
+		// Read acknowledged position
+		ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+		if (ackFile.length() >= 16) {
+			readSeq = ackFile.readLong();
+			readOffset = ackFile.readLong();
+		}
+
+		// Drop segments already published
+		for (Iterator it = found.iterator(); it.hasNext();) {
+			long seq = ((Long) it.next()).longValue();
+			if (seq < readSeq) {
+				segmentFile(seq).delete();
+			} else {
+				segments.addLast(new Long(seq));
+				diskSize += segmentFile(seq).length();
+			}
+		}
+
+		if (segments.isEmpty()) {
+			readSeq = Math.max(readSeq, 1);
+			readOffset = 0;
+			segments.addLast(new Long(readSeq));
+		} else if (readSeq < firstSeq()) {
+			readSeq = firstSeq();
+			readOffset = 0;
+		}
+
+		// Count unpublished records, truncating a torn record at the end
+		for (Iterator it = segments.iterator(); it.hasNext();) {
+			long seq = ((Long) it.next()).longValue();
+			File file = segmentFile(seq);
+			RandomAccessFile in = new RandomAccessFile(file, "rw");
+			try {
+				long start = (seq == readSeq) ? readOffset : 0;
+				long[] end = new long[1];
+				depth += read(in, start, in.length(), null, Integer.MAX_VALUE, end);
+				if (end[0] < in.length()) {
+					if (it.hasNext()) {
+						logger.error(
+							"Corrupted spool segment "
+								+ file
+								+ ", records after offset "
+								+ end[0]
+								+ " are skipped.");
+					} else {
+						logger.warn(
+							"Truncating incomplete record at the end of spool segment "
+								+ file
+								+ ", offset "
+								+ end[0]);
+						diskSize -= in.length() - end[0];
+						in.setLength(end[0]);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		writeSeq = ((Long) segments.getLast()).longValue();
+		writer = new RandomAccessFile(segmentFile(writeSeq), "rw");
+		writeOffset = writer.length();
+		writer.seek(writeOffset);
+		writeAck();
+
+		logger.info(
+			"Publishing spool opened in "
+				+ directory
+				+ ": "
+				+ depth
+				+ " messages pending in "
+				+ segments.size()
+				+ " segments, "
+				+ diskSize
+				+ " bytes.");
+	}
+
+	/**
+	 * Starts the threads forcing the journal to disk and replaying it.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+
+		running = true;
+		syncThread = new Thread("JMSSpoolSync") {
+			public void run() {
+				syncLoop();
+			}
+		};
+		syncThread.setDaemon(true);
+		syncThread.start();
+
+		replayThread = new Thread("JMSSpoolReplay") {
+			public void run() {
+				replayLoop();
+			}
+		};
+		replayThread.setDaemon(true);
+		replayThread.start();
+	}
+
+	/**
+	 * Stops replaying, forces the journal to disk and closes it.
+	 */
+	public void close() {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		Thread[] threads = new Thread[] { replayThread, syncThread };
+		for (int i = 0; i < threads.length; i++) {
+			long remaining = deadline - System.currentTimeMillis();
+			if ((threads[i] == null) || (remaining <= 0))
+				continue;
+
+			try {
+				threads[i].join(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		synchronized (this) {
+			try {
+				if (writer != null) {
+					writer.getFD().sync();
+					writer.close();
+				}
+				ackFile.close();
+			} catch (IOException e) {
+				logger.error("Failed to close publishing spool.", e);
+			}
+			writer = null;
+		}
+		logger.info("Publishing spool closed, " + depth + " messages pending.");
+	}
+
+	/**
+	 * Appends a message to the journal, encrypting its body first if the
+	 * JMS encryption mode is on.
+	 *
+	 * @param request The message to be published later
+	 * @return false if the journal is full, closed or cannot be written
+	 */
+	public boolean append(PublishRequest request) {
+		// Encrypt and encode outside of the journal lock
+		byte[] record;
+		try {
+			record = encode(PublishingManager.encrypt(request));
+		} catch (PublishException e) {
+			logger.error("Failed to encrypt spool record.", e);
+			record = null;
+		} catch (IOException e) {
+			logger.error("Failed to encode spool record.", e);
+			record = null;
+		}
+		return append(record);
+	}
+
+	private synchronized boolean append(byte[] record) {
+		if ((writer == null) || (record == null)) {
+			droppedCount++;
+			return false;
+		}
+
+		if (diskSize + record.length > maxSize) {
+			droppedCount++;
+			return false;
+		}
+
+		try {
+			if ((writeOffset > 0) && (writeOffset + record.length > segmentSize))
+				roll();
+
+			writer.write(record);
+		} catch (IOException e) {
+			logger.error("Failed to append to publishing spool.", e);
+			droppedCount++;
+			try {
+				// Drop a partially written record
+				writer.setLength(writeOffset);
+				writer.seek(writeOffset);
+			} catch (IOException ioe) {
+				logger.error("Failed to restore publishing spool segment.", ioe);
+			}
+			return false;
+		}
+
+		writeOffset += record.length;
+		diskSize += record.length;
+		appendedCount++;
+		dirty = true;
+		if (++depth == 1)
+			notifyAll();
+
+		return true;
+	}
+
+	/**
+	 * Asks for a replay now, for instance because the JMS connection is
+	 * known to be available again.
+	 */
+	public synchronized void requestReplay() {
+		nextReplay = 0;
+		if (depth > 0)
+			notifyAll();
+	}
+
+	/**
+	 * Forces appended records to disk. The force runs outside of the
+	 * journal lock, so appends do not wait for the disk.
+	 */
+	public void sync() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			if (!dirty || (writer == null))
+				return;
+			channel = writer.getChannel();
+			dirty = false;
+		}
+
+		try {
+			channel.force(true);
+		} catch (ClosedChannelException e) {
+			// Segment rolled or journal closed meanwhile, both force it first
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			throw e;
+		}
+	}
+
+	private void roll() throws IOException {
+		writer.getFD().sync();
+		writer.close();
+		dirty = false;
+
+		writeSeq++;
+		segments.addLast(new Long(writeSeq));
+		writer = new RandomAccessFile(segmentFile(writeSeq), "rw");
+		writeOffset = 0;
+		logger.debug("Publishing spool segment " + writeSeq + " started.");
+	}
+
+	private void syncLoop() {
+		while (true) {
+			synchronized (this) {
+				if (!running)
+					return;
+
+				try {
+					wait(syncInterval);
+				} catch (InterruptedException e) {
+					// Sync now
+				}
+			}
+
+			try {
+				sync();
+			} catch (IOException e) {
+				logger.error("Failed to force publishing spool to disk.", e);
+			}
+		}
+	}
+
+	private void replayLoop() {
+		while (true) {
+			synchronized (this) {
+				while (running) {
+					long now = System.currentTimeMillis();
+					if ((depth > 0) && (now >= nextReplay))
+						break;
+
+					try {
+						wait((depth > 0) ? nextReplay - now : 0);
+					} catch (InterruptedException e) {
+						// Check state again
+					}
+				}
+				if (!running)
+					return;
+			}
+
+			if (!replay()) {
+				synchronized (this) {
+					nextReplay = System.currentTimeMillis() + replayInterval;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes the spooled records in transacted batches.
+	 * @return false if publishing failed
+	 */
+	private boolean replay() {
+		TopicSession session = null;
+		try {
+			session = manager.createTransactedSession();
+			TopicPublisher publisher =
+				session.createPublisher(PublishingManager.getTopic());
+
+			ArrayList batch = new ArrayList(REPLAY_BATCH_SIZE);
+			long[] end = new long[2];
+			while (isRunning() && readBatch(batch, end)) {
+				for (int i = 0; i < batch.size(); i++) {
+					PublishRequest request = (PublishRequest) batch.get(i);
+					publisher.publish(manager.createTextMessage(session, request));
+				}
+				session.commit();
+				acknowledge(end[0], end[1], batch.size());
+				logger.debug("Replayed " + batch.size() + " spooled messages.");
+				batch.clear();
+			}
+			return true;
+		} catch (Exception e) {
+			logger.warn("Replay of the publishing spool failed, retrying later.", e);
+			return false;
+		} finally {
+			if (session != null) {
+				try {
+					// Uncommitted messages are rolled back by close()
+					session.close();
+				} catch (Exception e) {
+					logger.error("Failed to close topic session.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the next records to replay. Only the read position is taken
+	 * under the journal lock: the records before the write offset are
+	 * complete and no longer change, so the segment is read outside of it.
+	 *
+	 * @param batch The list receiving the records
+	 * @param end Receives the segment and offset following the last record
+	 * @return false if there is nothing to replay
+	 */
+	private boolean readBatch(ArrayList batch, long[] end) throws IOException {
+		while (true) {
+			long seq;
+			long offset;
+			long limit;
+			synchronized (this) {
+				if (depth <= 0)
+					return false;
+				seq = readSeq;
+				offset = readOffset;
+				limit = (seq == writeSeq) ? writeOffset : -1;
+			}
+
+			RandomAccessFile in = new RandomAccessFile(segmentFile(seq), "r");
+			long[] position = new long[1];
+			try {
+				if (limit < 0)
+					limit = in.length();
+				read(in, offset, limit, batch, REPLAY_BATCH_SIZE, position);
+			} finally {
+				in.close();
+			}
+
+			if (!batch.isEmpty()) {
+				end[0] = seq;
+				end[1] = position[0];
+				return true;
+			}
+
+			synchronized (this) {
+				if (seq == writeSeq) {
+					logger.error("Publishing spool depth out of sync, reset to 0.");
+					depth = 0;
+					return false;
+				}
+
+				// Segment exhausted, move on to the next one
+				acknowledge(nextSeq(seq), 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Records the position of the first unpublished record and deletes the
+	 * segments behind it.
+	 */
+	private synchronized void acknowledge(long seq, long offset, int count)
+		throws IOException {
+		readSeq = seq;
+		readOffset = offset;
+		depth -= count;
+		replayedCount += count;
+		writeAck();
+
+		while (firstSeq() < readSeq) {
+			File file = segmentFile(firstSeq());
+			diskSize -= file.length();
+			if (!file.delete())
+				logger.error("Failed to delete spool segment " + file);
+			segments.removeFirst();
+		}
+	}
+
+	private void writeAck() throws IOException {
+		ackFile.seek(0);
+		ackFile.writeLong(readSeq);
+		ackFile.writeLong(readOffset);
+		ackFile.getFD().sync();
+	}
+
+	/**
+	 * Reads the valid records of a segment between two offsets.
+	 *
+	 * @param in The segment
+	 * @param offset The offset of the first record
+	 * @param limit The offset not to read beyond
+	 * @param out The list receiving the records, null to only count them
+	 * @param max The maximum number of records to read
+	 * @param end Receives the offset following the last valid record
+	 * @return the number of records read
+	 */
+	private static int read(
+		RandomAccessFile in,
+		long offset,
+		long limit,
+		ArrayList out,
+		int max,
+		long[] end)
+		throws IOException {
+		long pos = offset;
+		int count = 0;
+		CRC32 crc = new CRC32();
+		while ((count < max) && (pos + HEADER_SIZE <= limit)) {
+			in.seek(pos);
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if ((length < 0) || (pos + HEADER_SIZE + length > limit))
+				break;
+
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			crc.reset();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			if (out != null)
+				out.add(decode(payload));
+			pos += HEADER_SIZE + length;
+			count++;
+		}
+		end[0] = pos;
+		return count;
+	}
+
+	private static byte[] encode(PublishRequest request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeLong(request.getEnqueueTime());
+		writeString(out, request.getId());
+		writeString(out, request.getType());
+		writeString(out, request.getVersion());
+		writeString(out, request.getMerchantID());
+		writeString(out, request.getProtocol());
+		writeString(out, request.getBody());
+		writeString(out, request.getEncryptionIV());
+		out.flush();
+
+		byte[] record = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+		writeInt(record, 0, record.length - HEADER_SIZE);
+		writeInt(record, 4, (int) crc.getValue());
+		return record;
+	}
+
+	private static PublishRequest decode(byte[] payload) throws IOException {
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(payload));
+		long enqueueTime = in.readLong();
+		return new PublishRequest(
+			readString(in),
+			readString(in),
+			readString(in),
+			readString(in),
+			readString(in),
+			readString(in),
+			readString(in),
+			enqueueTime);
+	}
+
+	private static void writeInt(byte[] buf, int pos, int value) {
+		buf[pos] = (byte) (value >>> 24);
+		buf[pos + 1] = (byte) (value >>> 16);
+		buf[pos + 2] = (byte) (value >>> 8);
+		buf[pos + 3] = (byte) value;
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+		throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			// Not writeUTF(): message bodies may exceed its 64KB limit
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private File segmentFile(long seq) {
+		String name = Long.toString(seq);
+		StringBuffer sb = new StringBuffer(SEGMENT_PREFIX);
+		for (int i = name.length(); i < 16; i++)
+			sb.append('0');
+		sb.append(name).append(SEGMENT_SUFFIX);
+		return new File(directory, sb.toString());
+	}
+
+	private long firstSeq() {
+		return ((Long) segments.getFirst()).longValue();
+	}
+
+	private long nextSeq(long seq) {
+		for (Iterator it = segments.iterator(); it.hasNext();) {
+			long next = ((Long) it.next()).longValue();
+			if (next > seq)
+				return next;
+		}
+		return writeSeq;
+	}
+
+	private synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of messages waiting in the journal.
+	 * @return long
+	 */
+	public synchronized long getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the size of the journal on disk.
+	 * @return long bytes
+	 */
+	public synchronized long getSize() {
+		return diskSize;
+	}
+
+	/**
+	 * Returns the number of messages appended to the journal.
+	 * @return long
+	 */
+	public synchronized long getAppendedCount() {
+		return appendedCount;
+	}
+
+	/**
+	 * Returns the number of messages published from the journal.
+	 * @return long
+	 */
+	public synchronized long getReplayedCount() {
+		return replayedCount;
+	}
+
+	/**
+	 * Returns the number of messages the journal could not take.
+	 * @return long
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Returns the journal directory.
+	 * @return File
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+}
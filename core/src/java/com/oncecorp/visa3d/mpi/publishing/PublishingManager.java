@@ -27,13 +27,14 @@ package com.oncecorp.visa3d.mpi.publishing;
 import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.ConfigurationException;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
-import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
 import com.oncecorp.visa3d.mpi.controller.ExecutionControl;
 import com.oncecorp.visa3d.mpi.logging.MPILogger;
+import com.oncecorp.visa3d.mpi.messaging.LatencyMonitor;
 import com.oncecorp.visa3d.mpi.messaging.Message;
 import com.oncecorp.visa3d.mpi.security.TripleDESEncrypter;
-import com.oncecorp.visa3d.mpi.utility.Utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Hashtable;
 
 import javax.jms.JMSException;
@@ -57,6 +58,12 @@ import org.apache.log4j.Logger;
  * within the Core Server. If, for any reasons, the Core Server is unable to publish messages,
  * then a potential data loss is possible. In that case, the Core Server is notified by the
  * PublishingManager to stop it's activies and wait until the JMS connection is back online.
+ * <p>
+ * With JMSPublishingMode set to Async, messages are queued and published in batches by
+ * an AsyncPublisher instead of on the request thread. With a JMSSpoolDirectory configured,
+ * messages that cannot be published are kept in a PublishSpool on local disk and replayed
+ * once the JMS provider is back, instead of stopping the Core Server. Spooled messages are
+ * encrypted before they reach the disk whenever JMSEncryptionMode is true.
  *
  * @version $Revision: 27 $
  * @author	Alan Zhang
@@ -111,6 +118,16 @@ public class PublishingManager {
 	static private TopicConnection topicConnection = null;
 	static private Topic topic;
 
+	/**
+	 * Asynchronous publishing pipeline, null when publishing synchronously
+	 */
+	static private AsyncPublisher asyncPublisher;
+
+	/**
+	 * Local spool for messages that cannot be published, null if not configured
+	 */
+	static private PublishSpool spool;
+
 	/**
 	 * Prevent using constructor to create new PublishingManager instance
 	 */
@@ -137,6 +154,8 @@ public class PublishingManager {
 					+ ", Encryption Mode: "
 					+ getEncryptionMode());
 
+			initSpool(cfg);
+
 			// Lookup connection factory and topic
 			InitialContext initialContext = null;
 			String defaultMode =
@@ -169,11 +188,24 @@ public class PublishingManager {
 			 * By caching the connection, the publishing activity will be optimized and speed up
 			 *
 			 */
-			checkTopicConnection();
+			try {
+				checkTopicConnection();
+			} catch (PublishException publishExcep) {
+				// Messages are spooled until the JMS provider is back
+				if (getSpool() == null)
+					throw publishExcep;
+				logger.warn(
+					"Unable to create connection to JMS provider, messages are spooled.",
+					publishExcep);
+			}
 
 			obj = initialContext.lookup(getTopicJndi());
 			setTopic((Topic) PortableRemoteObject.narrow(obj, Topic.class));
 			logger.info("JMS init: Topic found.");
+
+			initAsyncPublisher(cfg);
+			if (getSpool() != null)
+				getSpool().start();
 		} catch (PublishException publishExcep) {
 			logger.error(
 				"Unable to create connection to JMS provider",
@@ -191,6 +223,114 @@ public class PublishingManager {
 		}
 	}
 
+	/**
+	 * Opens the publishing spool if a spool directory is configured.
+	 */
+	private void initSpool(Config cfg) {
+		String directory = null;
+		long segmentSize = PublishSpool.DEFAULT_SEGMENT_SIZE;
+		long maxSize = PublishSpool.DEFAULT_MAX_SIZE;
+		long syncInterval = PublishSpool.DEFAULT_SYNC_INTERVAL;
+		long replayInterval = PublishSpool.DEFAULT_REPLAY_INTERVAL;
+		try {
+			directory =
+				(String) cfg.getConfigData(
+					MPIConfigDefinition.JMS_SPOOL_DIRECTORY);
+			segmentSize =
+				Long.parseLong(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_SPOOL_SEGMENT_SIZE))
+					* 1024;
+			maxSize =
+				Long.parseLong(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_SPOOL_MAX_SIZE))
+					* 1024;
+			syncInterval =
+				Long.parseLong(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_SPOOL_SYNC_INTERVAL));
+			replayInterval =
+				Long.parseLong(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_SPOOL_REPLAY_INTERVAL));
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve JMS spool configuration. Defaults used for missing items.",
+				e);
+		}
+
+		if ((directory == null) || (directory.trim().length() == 0)) {
+			logger.info("No JMS spool directory configured, publishing spool disabled.");
+			return;
+		}
+
+		// A relative directory would depend on the working directory of the server
+		if (!new File(directory.trim()).isAbsolute()) {
+			logger.error(
+				"JMS spool directory must be an absolute path, publishing spool disabled: "
+					+ directory);
+			return;
+		}
+
+		if (!"true".equalsIgnoreCase(getEncryptionMode()))
+			logger.warn(
+				"JMS encryption mode is off, spooled messages are stored in clear in "
+					+ directory);
+
+		try {
+			setSpool(
+				new PublishSpool(
+					this,
+					new File(directory.trim()),
+					segmentSize,
+					maxSize,
+					syncInterval,
+					replayInterval));
+		} catch (IOException ioe) {
+			logger.error("Failed to open publishing spool in " + directory, ioe);
+		}
+	}
+
+	/**
+	 * Starts the asynchronous publishing pipeline if configured.
+	 */
+	private void initAsyncPublisher(Config cfg) {
+		String mode = "Sync";
+		int capacity = AsyncPublisher.DEFAULT_CAPACITY;
+		int threads = AsyncPublisher.DEFAULT_THREADS;
+		int batchSize = AsyncPublisher.DEFAULT_BATCH_SIZE;
+		String policy = AsyncPublisher.POLICY_BLOCK;
+		try {
+			mode =
+				(String) cfg.getConfigData(
+					MPIConfigDefinition.JMS_PUBLISHING_MODE);
+			capacity =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_PUBLISHING_QUEUE_SIZE));
+			threads =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_PUBLISHING_THREADS));
+			batchSize =
+				Integer.parseInt(
+					(String) cfg.getConfigData(
+						MPIConfigDefinition.JMS_PUBLISHING_BATCH_SIZE));
+			policy =
+				(String) cfg.getConfigData(
+					MPIConfigDefinition.JMS_PUBLISHING_FULL_POLICY);
+		} catch (Exception e) {
+			logger.error(
+				"Failed to retrieve JMS publishing configuration. Defaults used for missing items.",
+				e);
+		}
+
+		if ("Async".equalsIgnoreCase(mode))
+			setAsyncPublisher(
+				new AsyncPublisher(this, capacity, threads, batchSize, policy));
+	}
+
 	private void setupContextEnvironment(Config cfg, Hashtable env)
 		throws ConfigurationException {
 		env.put(
@@ -238,6 +378,16 @@ public class PublishingManager {
 			ExecutionControl.getInstance().start();
 		}
 
+		// publishes what is still queued before the JMS references go away
+		if (getAsyncPublisher() != null) {
+			getAsyncPublisher().shutdown();
+			setAsyncPublisher(null);
+		}
+		if (getSpool() != null) {
+			getSpool().close();
+			setSpool(null);
+		}
+
 		// resets cached JMS reference
 		setManager(null);
 		setTopicConnectionFactory(null);
@@ -256,10 +406,38 @@ public class PublishingManager {
 
 	}
 
+	/**
+	 * Called by the AsyncPublisher when messages could neither be published
+	 * nor spooled.
+	 */
+	void publishingFailed() {
+		notifyErrorToAuthenticator();
+	}
+
+	/**
+	 * Takes a message that could not be published, or queued by the
+	 * AsyncPublisher, and appends it to the spool.
+	 *
+	 * @param request The message that was not published
+	 * @return false if there is no spool or it cannot take the message, in
+	 * which case the message is dropped
+	 */
+	boolean spool(PublishRequest request) {
+		if ((getSpool() != null) && getSpool().append(request))
+			return true;
+
+		logger.error(
+			"Message could not be spooled and is dropped: "
+				+ request.getType()
+				+ " "
+				+ request.getId());
+		return false;
+	}
+
 	/**
 	 * Notify Authenticator Servlet to stop processing upcoming requests
 	 */
-	private void notifyErrorToAuthenticator() {
+	private static void notifyErrorToAuthenticator() {
 		ExecutionControl.getInstance().stop(
 			ExecutionControl.STATUS_STOPPED_BY_CORE,
 			ERROR_NOTIFICATION_MSG);
@@ -275,9 +453,36 @@ public class PublishingManager {
 	 */
 	public void publish(Message msg)
 		throws PublishException {
-		try {
-			logger.info("Publishing message: " + msg.getId());
+		long start = System.nanoTime();
+		publishMessage(msg);
+		LatencyMonitor.record(LatencyMonitor.STAGE_PUBLISHING, msg.getType(), start);
+	}
+
+	/**
+	 * Publish message to JMS provider, spool or asynchronous publisher
+	 *
+	 * @param msg The message to be published
+	 */
+	private void publishMessage(Message msg)
+		throws PublishException {
+		logger.info("Publishing message: " + msg.getId());
+
+		PublishRequest request = new PublishRequest(msg);
+
+		// Nothing overtakes spooled messages while they are replayed
+		if ((getSpool() != null)
+			&& (getSpool().getDepth() > 0)
+			&& getSpool().append(request)) {
+			logger.info("Message spooled: " + msg.getId());
+			return;
+		}
 
+		if (getAsyncPublisher() != null) {
+			getAsyncPublisher().publish(request);
+			return;
+		}
+
+		try {
 			/*
 			 * [Martin's Note: Feb 11, 2003 12:48:44 PM]
 			 *
@@ -288,7 +493,15 @@ public class PublishingManager {
 
 			// We need to ensure that we have a live topicConnection. If not then we need to
 			// reestablish that connection
-			checkTopicConnection();
+			try {
+				checkTopicConnection();
+			} catch (PublishException publishExcep) {
+				if ((getSpool() != null) && getSpool().append(request)) {
+					logger.info("Message spooled: " + msg.getId());
+					return;
+				}
+				throw publishExcep;
+			}
 
 			// Create session
 			TopicSession session =
@@ -299,69 +512,122 @@ public class PublishingManager {
 			// Create publisher
 			TopicPublisher publisher = session.createPublisher(getTopic());
 
-			// Prepare text message
-			TextMessage textMsg = session.createTextMessage();
-
-			// Setting Message type header field
-			textMsg.setStringProperty(MSG_PROP_MESSAGE_TYPE, msg.getType());
-
-			// Setting Message version header field
-			textMsg.setStringProperty(MSG_PROP_MESSAGE_VERSION, msg.getVersion());
+			//publishing
+			publisher.publish(createTextMessage(session, request));
+			logger.info("Publishing finished.");
 
-			// Setting Merchant ID header field
-			textMsg.setStringProperty(MSG_PROP_MERCHANT_ID, AuthenticatorSession.instance().getMerchantID());
+		} catch (JMSException jmse) {
+			logger.error("Failed to publish message: " + msg.getId(), jmse);
+			if ((getSpool() != null) && getSpool().append(request)) {
+				logger.info("Message spooled: " + msg.getId());
+				return;
+			}
+			notifyErrorToAuthenticator();
 
-			// Setting Payment protocol header field
-			textMsg.setStringProperty(MSG_PROP_PROTOCOL,
-                    "" + Utils.toProtocolByte(
-                              AuthenticatorSession.instance().getProtocol() ) );
+			throw new PublishException(jmse.getMessage());
+		}
+	}
 
-			// Setting Encryption mode header field
+	/**
+	 * Build the JMS text message, with its header fields, for a message
+	 * to be published. The body is encrypted if required.
+	 *
+	 * @param session The session publishing the message
+	 * @param request The message to be published
+	 */
+	TextMessage createTextMessage(TopicSession session, PublishRequest request)
+		throws JMSException, PublishException {
+		// Prepare text message
+		TextMessage textMsg = session.createTextMessage();
+
+		// Setting Message type header field
+		textMsg.setStringProperty(MSG_PROP_MESSAGE_TYPE, request.getType());
+
+		// Setting Message version header field
+		textMsg.setStringProperty(MSG_PROP_MESSAGE_VERSION, request.getVersion());
+
+		// Setting Merchant ID header field
+		textMsg.setStringProperty(MSG_PROP_MERCHANT_ID, request.getMerchantID());
+
+		// Setting Payment protocol header field
+		textMsg.setStringProperty(MSG_PROP_PROTOCOL, request.getProtocol());
+
+		// Setting Encryption mode header field. A message read back from
+		// the spool stays encrypted even if the mode was changed since.
+		request = encrypt(request);
+		if (request.getEncryptionIV() != null) {
+			textMsg.setStringProperty(MSG_PROP_ENCRYPTION_MODE, "true");
+			textMsg.setText(request.getBody());
+			textMsg.setStringProperty(MSG_PROP_IV, request.getEncryptionIV());
+		} else {
 			textMsg.setStringProperty(MSG_PROP_ENCRYPTION_MODE, getEncryptionMode());
+			textMsg.setText(request.getBody());
+		}
 
-			String msgBody = msg.toString();
-			if (getEncryptionMode().equalsIgnoreCase("true")) {
-				//Do encryption here
-				TripleDESEncrypter encrypter = TripleDESEncrypter.getInstance();
+		return textMsg;
+	}
 
-				String[] result;
-				try {
-					result = encrypter.encrypt(msgBody);
-				} catch (Exception e) {
-					logger.error("Encryption error occurred.", e);
-					notifyErrorToAuthenticator();
+	/**
+	 * Encrypt the body of a message to be published if the encryption mode
+	 * is on and it is not encrypted yet.
+	 *
+	 * @param request The message to be published
+	 * @return the request itself, or a copy holding the encrypted body and
+	 * its initialization vector
+	 */
+	static PublishRequest encrypt(PublishRequest request)
+		throws PublishException {
+		if ((request.getEncryptionIV() != null)
+			|| !"true".equalsIgnoreCase(getEncryptionMode()))
+			return request;
 
-					throw new PublishException(e.getMessage());
-				}
+		//Do encryption here
+		TripleDESEncrypter encrypter = TripleDESEncrypter.getInstance();
 
-				if ((result == null) || (result.length != 2)) {
-					logger.error(
-						"Encryption result is null or with incorrect length.");
-					throw new PublishException("Encryption result is null or with incorrect length.");
-				}
+		String[] result;
+		try {
+			result = encrypter.encrypt(request.getBody());
+		} catch (Exception e) {
+			logger.error("Encryption error occurred.", e);
+			notifyErrorToAuthenticator();
 
-				textMsg.setText(result[0]);
-				textMsg.setStringProperty(MSG_PROP_IV, result[1]);
-			} else {
-				textMsg.setText(msgBody);
-			}
+			throw new PublishException(e.getMessage());
+		}
 
-			//publishing
-			publisher.publish(textMsg);
-			logger.info("Publishing finished.");
+		if ((result == null) || (result.length != 2)) {
+			logger.error(
+				"Encryption result is null or with incorrect length.");
+			throw new PublishException("Encryption result is null or with incorrect length.");
+		}
 
-		} catch (JMSException jmse) {
-			logger.error("Failed to publish message: " + msg.getId(), jmse);
-			notifyErrorToAuthenticator();
+		return new PublishRequest(
+			request.getId(),
+			request.getType(),
+			request.getVersion(),
+			request.getMerchantID(),
+			request.getProtocol(),
+			result[0],
+			result[1],
+			request.getEnqueueTime());
+	}
 
-			throw new PublishException(jmse.getMessage());
-		}
+	/**
+	 * Create a transacted session on the live topic connection, for
+	 * publisher threads that keep their session across messages.
+	 */
+	TopicSession createTransactedSession()
+		throws JMSException, PublishException {
+		checkTopicConnection();
+		// The acknowledge mode is ignored for transacted sessions
+		return getTopicConnection().createTopicSession(
+			true,
+			Session.AUTO_ACKNOWLEDGE);
 	}
 
 	/**
 	 * Check to ensure that the TopicConnection is up and alive.
 	 */
-	private void checkTopicConnection() throws PublishException {
+	private synchronized void checkTopicConnection() throws PublishException {
 		if (topicConnection == null) {
 			try {
 				// Initialize JMS connection
@@ -382,6 +648,9 @@ public class PublishingManager {
 			}
 		}
 
+		// The provider is reachable: replay what was spooled meanwhile
+		if (getSpool() != null)
+			getSpool().requestReplay();
 	}
 
 	/**
@@ -516,4 +785,36 @@ public class PublishingManager {
 		PublishingManager.topicConnection = topicConnection;
 	}
 
+	/**
+	 * Returns the spool.
+	 * @return PublishSpool, null if not configured
+	 */
+	public static PublishSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * Sets the spool.
+	 * @param spool The spool to set
+	 */
+	public static void setSpool(PublishSpool spool) {
+		PublishingManager.spool = spool;
+	}
+
+	/**
+	 * Returns the asyncPublisher.
+	 * @return AsyncPublisher, null when publishing synchronously
+	 */
+	public static AsyncPublisher getAsyncPublisher() {
+		return asyncPublisher;
+	}
+
+	/**
+	 * Sets the asyncPublisher.
+	 * @param asyncPublisher The asyncPublisher to set
+	 */
+	public static void setAsyncPublisher(AsyncPublisher asyncPublisher) {
+		PublishingManager.asyncPublisher = asyncPublisher;
+	}
+
 }
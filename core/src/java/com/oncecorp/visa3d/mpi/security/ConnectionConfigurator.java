@@ -33,8 +33,8 @@ import java.security.Provider;
 
 /**
  * Description: The ConnectionConfiguration class is a convenient class
- * that allows the specification of System.properties information to
- * properly setup the parameters for HTTPS connections.
+ * that registers the HTTPS protocol handler and security provider, and
+ * loads the SSL contexts of the SSLContextRegistry.
  *
  * @version 0.1 July 26, 2002
  * @author	Alan Zhang
@@ -74,36 +74,10 @@ public class ConnectionConfigurator {
 //			System.setProperty("javax.net.debug", "all"); // debug
 
 
-			//Add keystore
-			String ks = (String) config.getConfigData(MPIConfigDefinition.SSL_CLIENT_KEYSTORE);
-			String kspw = (String) config.getConfigData(MPIConfigDefinition.SSL_CLIENT_KEYSTORE_PW);
-			System.setProperty("javax.net.ssl.keyStore", ks);
-			System.setProperty("javax.net.ssl.keyStorePassword", kspw);
-
-			//Add truststore
-  		    String tks = (String) config.getConfigData(MPIConfigDefinition.SSL_TRUSTSTORE);
-		    String tkspw = (String) config.getConfigData(MPIConfigDefinition.SSL_TRUSTSTORE_PW);
-			if ( tks != null && !tks.trim().equals("") )
-			{
-				System.setProperty("javax.net.ssl.trustStore", tks);
-				System.setProperty("javax.net.ssl.trustStorePassword", tkspw);
-			}
-
-		//If provided, add HTTPS Proxy server properties
-			String proxyHost =
-				(String) config.getConfigData(MPIConfigDefinition.HTTPS_PROXY_HOST);
-			String proxyPort =
-				(String) config.getConfigData(MPIConfigDefinition.HTTPS_PROXY_PORT);
-
-			if (proxyHost != null) {
-				logger.debug("Set Https proxy host: " + proxyHost);
-				System.setProperty("https.proxyHost", proxyHost);
-			}
-
-			if (proxyPort != null) {
-				logger.debug("Set Https proxy port: " + proxyPort);
-				System.setProperty("https.proxyPort", proxyPort);
-			}
+			//Load keystores and truststores. They are no longer set as
+			//javax.net.ssl system properties, nor is the https proxy
+			if (!SSLContextRegistry.getInstance().load())
+				return FAIL;
 
 			//Do logging
 			this.logger.info("ConnectionConfigurator setParameters completed.");
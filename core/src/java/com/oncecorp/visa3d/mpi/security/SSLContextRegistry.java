@@ -0,0 +1,460 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.security;
+
+import com.oncecorp.visa3d.mpi.configuration.Config;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the SSL contexts used for the HTTPS connections of the MPI,
+ * replacing the javax.net.ssl system properties. Each context is built once
+ * from its client keystore and truststore, and rebuilt when one of the
+ * files changes.
+ * <p>
+ * The default context uses the SSLClientKeystore and SSLTrustKeystore
+ * configuration items. A protocol or a merchant may use its own client
+ * certificate or trusted directories with the same items suffixed by
+ * <code>:VbV</code>, <code>:SecureCode</code> or
+ * <code>:Merchant:&lt;merchant id&gt;</code>; missing items are taken
+ * from the default context. A merchant context takes precedence over a
+ * protocol one.
+ * <p>
+ * Contexts are looked up without any lock: the map of contexts is
+ * replaced, never modified, and a context is only locked while its
+ * keystore files are checked.
+ *
+ * @version $Revision: 1 $
+ */
+public class SSLContextRegistry {
+	/**
+	 * Key of the default context
+	 */
+	public static final String DEFAULT = "";
+
+	/**
+	 * Keys of the protocol contexts
+	 */
+	public static final String VBV = "VbV";
+	public static final String SECURE_CODE = "SecureCode";
+
+	/**
+	 * Key prefix of the merchant contexts
+	 */
+	public static final String MERCHANT = "Merchant:";
+
+	/**
+	 * Separator between a configuration item and a context key
+	 */
+	public static final String KEY_SEPARATOR = ":";
+
+	/**
+	 * Default configuration values
+	 */
+	public static final String DEFAULT_KEYSTORE_TYPE = "JKS";
+	public static final long DEFAULT_CHECK_INTERVAL = 10000;
+
+	/**
+	 * Local Log4J logger
+	 */
+	private static Logger logger =
+		MPILogger.getLogger(SSLContextRegistry.class.getName());
+
+	/**
+	 * Shared instance built from the MPI configuration
+	 */
+	private static volatile SSLContextRegistry instance;
+
+	private String keyStoreType;
+	private long checkInterval;
+	private String proxyHost;
+	private int proxyPort = 443;
+
+	/**
+	 * Contexts keyed by context key, replaced on registration
+	 */
+	private volatile Map contexts = new HashMap();
+
+	/**
+	 * Constructor. The default context uses the JSSE default key and trust
+	 * managers until registered.
+	 * @param keyStoreType Type of the keystore files
+	 * @param checkInterval Time in millis between two checks of the keystore files, 0 not to check
+	 */
+	public SSLContextRegistry(String keyStoreType, long checkInterval) {
+		this.keyStoreType = keyStoreType;
+		this.checkInterval = checkInterval;
+		register(DEFAULT, null, null, null, null);
+	}
+
+	/**
+	 * Returns the shared registry, creating it from the MPI configuration on first use.
+	 * @return SSLContextRegistry
+	 */
+	public static SSLContextRegistry getInstance() {
+		SSLContextRegistry registry = instance;
+		return (registry != null) ? registry : createInstance();
+	}
+
+	private static synchronized SSLContextRegistry createInstance() {
+		if (instance == null) {
+			String keyStoreType = DEFAULT_KEYSTORE_TYPE;
+			long checkInterval = DEFAULT_CHECK_INTERVAL;
+			SSLContextRegistry registry = null;
+			try {
+				Config cfg = Config.getConfigReference();
+				String value = (String) cfg.getConfigData(MPIConfigDefinition.SSL_KEYSTORE_TYPE);
+				if (value != null && value.trim().length() != 0)
+					keyStoreType = value.trim();
+				value = (String) cfg.getConfigData(MPIConfigDefinition.SSL_KEYSTORE_CHECK_INTERVAL);
+				if (value != null)
+					checkInterval = Long.parseLong(value.trim());
+				registry = new SSLContextRegistry(keyStoreType, checkInterval);
+
+				String keyStore = (String) cfg.getConfigData(MPIConfigDefinition.SSL_CLIENT_KEYSTORE);
+				String keyStorePassword = (String) cfg.getConfigData(MPIConfigDefinition.SSL_CLIENT_KEYSTORE_PW);
+				String trustStore = (String) cfg.getConfigData(MPIConfigDefinition.SSL_TRUSTSTORE);
+				String trustStorePassword = (String) cfg.getConfigData(MPIConfigDefinition.SSL_TRUSTSTORE_PW);
+				registry.register(DEFAULT, keyStore, keyStorePassword, trustStore, trustStorePassword);
+
+				Map keyStores = cfg.getConfigDataWithPrefix(MPIConfigDefinition.SSL_CLIENT_KEYSTORE + KEY_SEPARATOR);
+				Map keyStorePasswords = cfg.getConfigDataWithPrefix(MPIConfigDefinition.SSL_CLIENT_KEYSTORE_PW + KEY_SEPARATOR);
+				Map trustStores = cfg.getConfigDataWithPrefix(MPIConfigDefinition.SSL_TRUSTSTORE + KEY_SEPARATOR);
+				Map trustStorePasswords = cfg.getConfigDataWithPrefix(MPIConfigDefinition.SSL_TRUSTSTORE_PW + KEY_SEPARATOR);
+				Map keys = new HashMap(keyStores);
+				keys.putAll(trustStores);
+				for (Iterator it = keys.keySet().iterator(); it.hasNext();) {
+					String key = (String) it.next();
+					boolean ownKeyStore = keyStores.containsKey(key);
+					boolean ownTrustStore = trustStores.containsKey(key);
+					registry.register(
+						key,
+						ownKeyStore ? (String) keyStores.get(key) : keyStore,
+						ownKeyStore ? (String) keyStorePasswords.get(key) : keyStorePassword,
+						ownTrustStore ? (String) trustStores.get(key) : trustStore,
+						ownTrustStore ? (String) trustStorePasswords.get(key) : trustStorePassword);
+				}
+
+				String host = (String) cfg.getConfigData(MPIConfigDefinition.HTTPS_PROXY_HOST);
+				String port = (String) cfg.getConfigData(MPIConfigDefinition.HTTPS_PROXY_PORT);
+				if (port != null && port.trim().length() != 0)
+					registry.setProxy(host, Integer.parseInt(port.trim()));
+				else
+					registry.setProxy(host, 443);
+			} catch (Exception e) {
+				logger.error(
+					"Failed to retrieve SSL configuration. Defaults used for missing items.",
+					e);
+				if (registry == null)
+					registry = new SSLContextRegistry(keyStoreType, checkInterval);
+			}
+			instance = registry;
+		}
+		return instance;
+	}
+
+	/**
+	 * Replace the shared registry.
+	 * @param registry The new registry, null to rebuild it from the configuration on next use
+	 */
+	public static synchronized void setInstance(SSLContextRegistry registry) {
+		instance = registry;
+	}
+
+	/**
+	 * Register or replace a context. Its keystore files are loaded on first use.
+	 * @param key The context key: DEFAULT, a protocol key or MERCHANT followed by a merchant id
+	 * @param keyStore Client keystore file, null for none
+	 * @param keyStorePassword Client keystore and key password
+	 * @param trustStore Truststore file, null for the JSSE default one
+	 * @param trustStorePassword Truststore password
+	 */
+	public synchronized void register(
+		String key,
+		String keyStore,
+		String keyStorePassword,
+		String trustStore,
+		String trustStorePassword) {
+		Map updated = new HashMap(contexts);
+		updated.put(
+			key,
+			new Entry(
+				key,
+				blankToNull(keyStore),
+				keyStorePassword,
+				blankToNull(trustStore),
+				trustStorePassword));
+		contexts = updated;
+	}
+
+	/**
+	 * Build every registered context, so that configuration errors show up
+	 * at startup.
+	 * @return true if every context could be built
+	 */
+	public boolean load() {
+		boolean loaded = true;
+		for (Iterator it = contexts.values().iterator(); it.hasNext();) {
+			Entry entry = (Entry) it.next();
+			try {
+				entry.getFactory();
+			} catch (IOException ioe) {
+				logger.error("Failed to load SSL context " + describe(entry.key), ioe);
+				loaded = false;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Returns the key of the context to use for a request.
+	 * @param protocol The request protocol, as defined in MPIConfigDefinition, may be null
+	 * @param merchantId The merchant id, may be null
+	 * @return The key of the merchant context if any, or else of the protocol
+	 * context if any, or else DEFAULT
+	 */
+	public String resolve(String protocol, String merchantId) {
+		Map current = contexts;
+		if (merchantId != null && current.containsKey(MERCHANT + merchantId))
+			return MERCHANT + merchantId;
+
+		String key = null;
+		if (MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE.equalsIgnoreCase(protocol))
+			key = VBV;
+		else if (MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE.equalsIgnoreCase(protocol))
+			key = SECURE_CODE;
+		if (key != null && current.containsKey(key))
+			return key;
+
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns a context.
+	 * @param key The context key, unknown keys get the default context
+	 * @return SSLContext
+	 * @exception IOException The keystore files cannot be loaded
+	 */
+	public SSLContext getContext(String key) throws IOException {
+		return getEntry(key).getContext();
+	}
+
+	/**
+	 * Returns the socket factory of a context.
+	 * @param key The context key, unknown keys get the default context
+	 * @return SSLSocketFactory
+	 * @exception IOException The keystore files cannot be loaded
+	 */
+	public SSLSocketFactory getSocketFactory(String key) throws IOException {
+		return getEntry(key).getFactory();
+	}
+
+	/**
+	 * Returns the https proxy host.
+	 * @return String, null for none
+	 */
+	public String getProxyHost() {
+		return proxyHost;
+	}
+
+	/**
+	 * Returns the https proxy port.
+	 * @return int
+	 */
+	public int getProxyPort() {
+		return proxyPort;
+	}
+
+	/**
+	 * Sets the https proxy.
+	 * @param proxyHost The proxy host, null for none
+	 * @param proxyPort The proxy port
+	 */
+	public void setProxy(String proxyHost, int proxyPort) {
+		this.proxyHost = blankToNull(proxyHost);
+		this.proxyPort = proxyPort;
+	}
+
+	private Entry getEntry(String key) {
+		Map current = contexts;
+		Entry entry = (key == null) ? null : (Entry) current.get(key);
+		if (entry == null)
+			entry = (Entry) current.get(DEFAULT);
+		return entry;
+	}
+
+	private static String describe(String key) {
+		return DEFAULT.equals(key) ? "(default)" : key;
+	}
+
+	private static String blankToNull(String value) {
+		return (value == null || value.trim().length() == 0) ? null : value.trim();
+	}
+
+	/**
+	 * A context and the keystore files it was built from
+	 */
+	private class Entry {
+		private String key;
+		private String keyStore;
+		private String keyStorePassword;
+		private String trustStore;
+		private String trustStorePassword;
+
+		private volatile SSLContext context;
+		private volatile SSLSocketFactory factory;
+		private volatile long nextCheck;
+		private long keyStoreModified;
+		private long trustStoreModified;
+
+		Entry(
+			String key,
+			String keyStore,
+			String keyStorePassword,
+			String trustStore,
+			String trustStorePassword) {
+			this.key = key;
+			this.keyStore = keyStore;
+			this.keyStorePassword = keyStorePassword;
+			this.trustStore = trustStore;
+			this.trustStorePassword = trustStorePassword;
+		}
+
+		SSLContext getContext() throws IOException {
+			check();
+			return context;
+		}
+
+		SSLSocketFactory getFactory() throws IOException {
+			check();
+			return factory;
+		}
+
+		/**
+		 * Build the context on first use, and again when a keystore file
+		 * changed. A context that fails to reload is kept.
+		 */
+		private void check() throws IOException {
+			if (context != null
+				&& (checkInterval <= 0 || System.currentTimeMillis() < nextCheck))
+				return;
+
+			synchronized (this) {
+				if (context != null
+					&& (checkInterval <= 0 || System.currentTimeMillis() < nextCheck))
+					return;
+
+				long keyModified = lastModified(keyStore);
+				long trustModified = lastModified(trustStore);
+				nextCheck = System.currentTimeMillis() + checkInterval;
+				if (context != null
+					&& keyModified == keyStoreModified
+					&& trustModified == trustStoreModified)
+					return;
+
+				try {
+					SSLContext built = build();
+					keyStoreModified = keyModified;
+					trustStoreModified = trustModified;
+					factory = built.getSocketFactory();
+					if (context != null)
+						logger.info("SSL context " + describe(key) + " reloaded.");
+					else
+						logger.info("SSL context " + describe(key) + " loaded.");
+					context = built;
+				} catch (Exception e) {
+					if (context == null) {
+						nextCheck = 0;
+						IOException ioe =
+							new IOException(
+								"Failed to load SSL context " + describe(key) + ": " + e.getMessage());
+						ioe.initCause(e);
+						throw ioe;
+					}
+					logger.error(
+						"Failed to reload SSL context " + describe(key) + ". Previous one kept.",
+						e);
+				}
+			}
+		}
+
+		private SSLContext build() throws Exception {
+			KeyManager[] keyManagers = null;
+			if (keyStore != null) {
+				char[] password = (keyStorePassword == null) ? null : keyStorePassword.toCharArray();
+				KeyManagerFactory kmf =
+					KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(loadKeyStore(keyStore, password), password);
+				keyManagers = kmf.getKeyManagers();
+			}
+
+			TrustManager[] trustManagers = null;
+			if (trustStore != null) {
+				char[] password = (trustStorePassword == null) ? null : trustStorePassword.toCharArray();
+				TrustManagerFactory tmf =
+					TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				tmf.init(loadKeyStore(trustStore, password));
+				trustManagers = tmf.getTrustManagers();
+			}
+
+			SSLContext built = SSLContext.getInstance("TLS");
+			built.init(keyManagers, trustManagers, null);
+			return built;
+		}
+
+		private KeyStore loadKeyStore(String file, char[] password) throws Exception {
+			KeyStore ks = KeyStore.getInstance(keyStoreType);
+			InputStream in = new FileInputStream(file);
+			try {
+				ks.load(in, password);
+			} finally {
+				in.close();
+			}
+			return ks;
+		}
+
+		private long lastModified(String file) {
+			return (file == null) ? 0 : new File(file).lastModified();
+		}
+	}
+}
@@ -61,7 +61,7 @@ public class SecurityManager {
 	/**
 	 * Connection initialization flag
 	 */
-	private static boolean isConfigured = false;
+	private static volatile boolean isConfigured = false;
 
 	/**
 	 * Local Log4J logger
@@ -91,18 +91,24 @@ public class SecurityManager {
 	}
 
 	/**
-	 * Initialize Connection protocol handler and security providers
+	 * Initialize Connection protocol handler and security providers.
+	 * Only the first call is synchronized.
 	 */
-	public synchronized boolean initializeConnection() {
-		if (!isConfigured) {
-			//Get configurator
-			ConnectionConfigurator cc = new ConnectionConfigurator();
-			isConfigured = true;
-
-			//initialize connection and forward response.
-			return cc.setConnectionParameters();
-		} else {
+	public boolean initializeConnection() {
+		if (isConfigured)
 			return ConnectionConfigurator.SUCCESS;
+
+		synchronized (this) {
+			if (!isConfigured) {
+				//Get configurator
+				ConnectionConfigurator cc = new ConnectionConfigurator();
+				isConfigured = true;
+
+				//initialize connection and forward response.
+				return cc.setConnectionParameters();
+			} else {
+				return ConnectionConfigurator.SUCCESS;
+			}
 		}
 	}
 
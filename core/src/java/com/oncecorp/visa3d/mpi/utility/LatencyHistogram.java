@@ -0,0 +1,250 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.utility;
+
+/**
+ * Latency histogram with log-linear buckets, in the manner of HDR
+ * histograms: values below SUB_BUCKET_COUNT get a bucket of their own, and
+ * every power of two above is split into SUB_BUCKET_COUNT / 2 buckets, so a
+ * recorded value is never off by more than 1/16th. Bucket counts are held in
+ * a StripedCounter; recording is a bucket computation and one increment.
+ * <p>
+ * Besides the counts since creation (or the last reset), the histogram
+ * keeps the counts of the last completed interval. Intervals are closed by
+ * calling rotate(), so percentiles can reflect recent traffic.
+ *
+ * @version $Revision: 1 $
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Bits of precision kept per power of two
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/**
+	 * Number of values with a bucket of their own
+	 */
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Largest value told apart, larger values are recorded as this one.
+	 * A bit more than an hour when values are micros.
+	 */
+	public static final long MAX_VALUE = (1L << 32) - 1;
+
+	/**
+	 * Stripes of the bucket counts. Kept low as a monitor may hold many
+	 * histograms, each updated by fewer threads than a global counter.
+	 */
+	private static final int STRIPES = 4;
+
+	/**
+	 * Number of buckets
+	 */
+	public static final int BUCKET_COUNT = getBucket(MAX_VALUE) + 1;
+
+	/**
+	 * Bucket counts
+	 */
+	private final StripedCounter counts = new StripedCounter(BUCKET_COUNT, STRIPES);
+
+	/**
+	 * Largest value recorded since the last reset
+	 */
+	private volatile long max;
+
+	/**
+	 * Largest value recorded in the current interval
+	 */
+	private volatile long currentMax;
+
+	/**
+	 * Bucket counts when the current interval started
+	 */
+	private long[] intervalBase = new long[BUCKET_COUNT];
+
+	/**
+	 * Bucket counts of the last completed interval
+	 */
+	private long[] intervalCounts = new long[BUCKET_COUNT];
+
+	/**
+	 * Largest value recorded in the last completed interval
+	 */
+	private long intervalMax;
+
+	/**
+	 * Returns the bucket of a value
+	 * @param value The value, negative values are taken as 0
+	 * @return int
+	 */
+	public static int getBucket(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (value < 0) ? 0 : (int) value;
+		if (value > MAX_VALUE)
+			value = MAX_VALUE;
+
+		// Position of the highest bit set, value >= SUB_BUCKET_COUNT
+		int high = SUB_BUCKET_BITS;
+		while ((value >>> (high + 1)) != 0)
+			high++;
+
+		int shift = high - SUB_BUCKET_BITS + 1;
+		return SUB_BUCKET_COUNT
+			+ (shift - 1) * (SUB_BUCKET_COUNT / 2)
+			+ (int) (value >>> shift)
+			- (SUB_BUCKET_COUNT / 2);
+	}
+
+	/**
+	 * Returns the highest value falling in a bucket
+	 * @param bucket The bucket
+	 * @return long
+	 */
+	public static long getBucketValue(int bucket) {
+		if (bucket < SUB_BUCKET_COUNT)
+			return bucket;
+
+		int shift = (bucket - SUB_BUCKET_COUNT) / (SUB_BUCKET_COUNT / 2) + 1;
+		long sub = (bucket - SUB_BUCKET_COUNT) % (SUB_BUCKET_COUNT / 2) + (SUB_BUCKET_COUNT / 2);
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a value
+	 * @param value The value
+	 */
+	public void record(long value) {
+		counts.increment(getBucket(value));
+
+		if (value > currentMax) {
+			synchronized (this) {
+				if (value > currentMax)
+					currentMax = value;
+				if (value > max)
+					max = value;
+			}
+		}
+	}
+
+	/**
+	 * Closes the current interval, its counts become the last completed
+	 * interval ones.
+	 */
+	public synchronized void rotate() {
+		long[] current = counts.snapshot();
+		long[] interval = new long[current.length];
+		for (int i = 0; i < current.length; i++)
+			interval[i] = current[i] - intervalBase[i];
+
+		intervalBase = current;
+		intervalCounts = interval;
+		intervalMax = currentMax;
+		currentMax = 0;
+	}
+
+	/**
+	 * Sets every count back to zero, including the last completed interval.
+	 */
+	public synchronized void reset() {
+		counts.reset();
+		intervalBase = new long[BUCKET_COUNT];
+		intervalCounts = new long[BUCKET_COUNT];
+		max = 0;
+		currentMax = 0;
+		intervalMax = 0;
+	}
+
+	/**
+	 * Returns the bucket counts since the last reset
+	 * @return long[] indexed by bucket
+	 */
+	public long[] getCounts() {
+		return counts.snapshot();
+	}
+
+	/**
+	 * Returns the largest value recorded since the last reset
+	 * @return long
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the bucket counts of the last completed interval
+	 * @return long[] indexed by bucket
+	 */
+	public synchronized long[] getIntervalCounts() {
+		return (long[]) intervalCounts.clone();
+	}
+
+	/**
+	 * Returns the largest value recorded in the last completed interval
+	 * @return long
+	 */
+	public synchronized long getIntervalMax() {
+		return intervalMax;
+	}
+
+	/**
+	 * Returns the total of bucket counts
+	 * @param counts The bucket counts
+	 * @return long
+	 */
+	public static long getTotalCount(long[] counts) {
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+			total += counts[i];
+		return total;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values fall.
+	 * @param counts The bucket counts
+	 * @param percentile The percentage, from 0 to 100
+	 * @param max The largest value recorded, which bounds the result
+	 * @return long, 0 if nothing was recorded
+	 */
+	public static long getValueAtPercentile(long[] counts, double percentile, long max) {
+		long total = getTotalCount(counts);
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(getBucketValue(i), max);
+		}
+		return max;
+	}
+}
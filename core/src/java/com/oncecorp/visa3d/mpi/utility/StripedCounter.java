@@ -0,0 +1,231 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.utility;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed set of long counters striped across several cells so that threads
+ * updating the same counter do not contend on a single cache line. Each
+ * stripe holds its own copy of every counter; a thread always updates the
+ * stripe picked from its identity hash and readers sum the stripes. Cells
+ * are updated atomically, no lock is taken on the increment path.
+ * <p>
+ * Counters are addressed by a dense index resolved once by the caller, so
+ * the increment path performs no lookup and no allocation. The number of
+ * counters can only grow, through ensureCapacity().
+ *
+ * @version $Revision: 1 $
+ */
+public class StripedCounter {
+
+	/**
+	 * Longs appended to every chunk so that two chunks never share a
+	 * cache line
+	 */
+	private static final int PADDING = 8;
+
+	/**
+	 * Counters per chunk, as a shift and a mask
+	 */
+	private static final int CHUNK_BITS = 6;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * Maximum number of stripes
+	 */
+	private static final int MAX_STRIPES = 64;
+
+	/**
+	 * Single stripe. Its cells are split in fixed size chunks, growing the
+	 * stripe publishes a longer chunk array sharing the existing chunks, so
+	 * an increment racing with ensureCapacity() is never lost.
+	 */
+	private static final class Stripe {
+		private volatile AtomicLongArray[] chunks;
+
+		private Stripe(int size) {
+			chunks = new AtomicLongArray[0];
+			grow(size);
+		}
+
+		private void grow(int size) {
+			int count = (size + CHUNK_MASK) >>> CHUNK_BITS;
+			if (count <= chunks.length)
+				return;
+
+			AtomicLongArray[] grown = new AtomicLongArray[count];
+			System.arraycopy(chunks, 0, grown, 0, chunks.length);
+			for (int i = chunks.length; i < count; i++)
+				grown[i] = new AtomicLongArray(CHUNK_SIZE + PADDING);
+			chunks = grown;
+		}
+
+		private void increment(int index) {
+			chunks[index >>> CHUNK_BITS].incrementAndGet(index & CHUNK_MASK);
+		}
+
+		private long get(int index) {
+			return chunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+		}
+	}
+
+	/**
+	 * Stripes, length is a power of two
+	 */
+	private final Stripe[] stripes;
+
+	/**
+	 * Number of counters
+	 */
+	private volatile int size;
+
+	/**
+	 * Constructor, one stripe per two available processors rounded up to a
+	 * power of two.
+	 * @param size Number of counters
+	 */
+	public StripedCounter(int size) {
+		this(size, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Constructor
+	 * @param size Number of counters
+	 * @param concurrency Expected number of concurrently updating threads
+	 */
+	public StripedCounter(int size, int concurrency) {
+		if (size < 0)
+			throw new IllegalArgumentException("Negative counter size: " + size);
+
+		int count = 1;
+		while (count < concurrency && count < MAX_STRIPES)
+			count <<= 1;
+
+		this.stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe(size);
+		this.size = size;
+	}
+
+	/**
+	 * Returns the stripe owned by the current thread
+	 */
+	private Stripe stripe() {
+		int h = System.identityHashCode(Thread.currentThread());
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return stripes[h & (stripes.length - 1)];
+	}
+
+	/**
+	 * Increments one counter
+	 * @param index The counter index
+	 */
+	public void increment(int index) {
+		stripe().increment(index);
+	}
+
+	/**
+	 * Increments several counters at once, resolving the stripe only once.
+	 * @param indexes The counter indexes
+	 */
+	public void increment(int[] indexes) {
+		Stripe stripe = stripe();
+		for (int i = 0; i < indexes.length; i++)
+			stripe.increment(indexes[i]);
+	}
+
+	/**
+	 * Returns the current value of one counter
+	 * @param index The counter index
+	 * @return long
+	 */
+	public long get(int index) {
+		long sum = 0;
+		for (int i = 0; i < stripes.length; i++)
+			sum += stripes[i].get(index);
+		return sum;
+	}
+
+	/**
+	 * Returns the current value of every counter. Counters are read one by
+	 * one, increments running concurrently may be partly reflected.
+	 * @return long[] indexed like the counters
+	 */
+	public long[] snapshot() {
+		long[] sums = new long[size];
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			for (int k = 0; k < sums.length; k++)
+				sums[k] += stripe.get(k);
+		}
+		return sums;
+	}
+
+	/**
+	 * Sets every counter back to zero. An increment running concurrently is
+	 * kept only if its cell was already cleared.
+	 */
+	public void reset() {
+		for (int i = 0; i < stripes.length; i++) {
+			AtomicLongArray[] chunks = stripes[i].chunks;
+			for (int c = 0; c < chunks.length; c++) {
+				for (int k = 0; k < CHUNK_SIZE; k++)
+					chunks[c].set(k, 0);
+			}
+		}
+	}
+
+	/**
+	 * Grows the number of counters. New counters start at zero.
+	 * @param newSize The minimum number of counters
+	 */
+	public synchronized void ensureCapacity(int newSize) {
+		if (newSize <= size)
+			return;
+
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i].grow(Math.max(newSize, size * 2));
+		size = newSize;
+	}
+
+	/**
+	 * Returns the number of counters
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of stripes
+	 * @return int
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.utility;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timing wheel used to expire time-bound items without having
+ * to scan them. Scheduling and cancelling a timeout are O(1) operations; a
+ * single background thread advances the wheel one tick at a time and hands
+ * every expired timeout to the registered listener.
+ * <p>
+ * The wheel is made of LEVEL_COUNT levels of WHEEL_SIZE buckets each. A
+ * timeout is placed in the lowest level able to hold its remaining delay and
+ * is cascaded down to a finer level whenever the coarser level's cursor
+ * reaches its bucket.
+ * <p>
+ * The buckets are only touched by the wheel thread, under the wheel lock.
+ * Scheduling and cancelling do not take that lock: new timeouts are handed
+ * over through a concurrent queue, and cancelled timeouts are marked and
+ * queued for removal, both queues being drained by the wheel thread on
+ * every tick.
+ *
+ * @version $Revision: 1 $
+ */
+public class TimingWheel implements Runnable {
+
+	/**
+	 * Callback invoked by the wheel thread for each expired timeout.
+	 */
+	public interface TimeoutListener {
+		/**
+		 * @param timeout The timeout that just expired
+		 */
+		public void timeoutExpired(Timeout timeout);
+	}
+
+	/**
+	 * Handle on a scheduled timeout. It is also the list node used by the
+	 * wheel buckets, so cancelling does not need any lookup.
+	 */
+	public static class Timeout {
+		private Object key;
+		private Object attachment;
+		private long deadline;
+		private AtomicInteger state = new AtomicInteger(PENDING);
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Object key, Object attachment, long deadline) {
+			this.key = key;
+			this.attachment = attachment;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Returns the key supplied at scheduling time.
+		 * @return Object
+		 */
+		public Object getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the attachment supplied at scheduling time.
+		 * @return Object
+		 */
+		public Object getAttachment() {
+			return attachment;
+		}
+	}
+
+	/**
+	 * Bits used to index a bucket within a level
+	 */
+	private static final int WHEEL_BITS = 6;
+
+	/**
+	 * Number of buckets per level
+	 */
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+	/**
+	 * Bucket index mask
+	 */
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	/**
+	 * Number of levels. With 64 buckets per level the wheel covers 2^24 ticks.
+	 */
+	private static final int LEVEL_COUNT = 4;
+
+	/**
+	 * Timeout states
+	 */
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * Local log4j logger
+	 */
+	private Logger logger = MPILogger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * Bucket heads: [level][index]. Each head is the sentinel of a circular
+	 * doubly-linked list. Only accessed by the wheel thread.
+	 */
+	private Timeout[][] buckets;
+
+	/**
+	 * Timeouts scheduled since the last tick, waiting to be placed
+	 */
+	private ConcurrentLinkedQueue scheduled = new ConcurrentLinkedQueue();
+
+	/**
+	 * Timeouts cancelled since the last tick, waiting to be unlinked
+	 */
+	private ConcurrentLinkedQueue cancelled = new ConcurrentLinkedQueue();
+
+	/**
+	 * Wheel thread name
+	 */
+	private String name;
+
+	/**
+	 * Tick duration (in millis)
+	 */
+	private long tickDuration;
+
+	/**
+	 * Listener notified of expired timeouts
+	 */
+	private TimeoutListener listener;
+
+	/**
+	 * Wheel origin (in millis)
+	 */
+	private long startTime;
+
+	/**
+	 * Last processed tick. Only accessed by the wheel thread.
+	 */
+	private long currentTick;
+
+	/**
+	 * Number of timeouts currently pending
+	 */
+	private AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Worker thread & stop indicator
+	 */
+	private Thread worker;
+	private volatile boolean stopped;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name The name given to the wheel thread
+	 * @param tickDuration The tick duration (in millis)
+	 * @param listener The listener notified of expired timeouts
+	 */
+	public TimingWheel(String name, long tickDuration, TimeoutListener listener) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+		if (listener == null)
+			throw new IllegalArgumentException("Timeout listener must be supplied.");
+
+		this.name = name;
+		this.tickDuration = tickDuration;
+		this.listener = listener;
+
+		buckets = new Timeout[LEVEL_COUNT][WHEEL_SIZE];
+		for (int level = 0; level < LEVEL_COUNT; level++) {
+			for (int i = 0; i < WHEEL_SIZE; i++) {
+				Timeout head = new Timeout(null, null, 0);
+				head.prev = head;
+				head.next = head;
+				buckets[level][i] = head;
+			}
+		}
+
+		startTime = System.currentTimeMillis();
+		currentTick = 0;
+	}
+
+	/**
+	 * Start the wheel thread. Calling this method on a started wheel has no effect.
+	 */
+	public synchronized void start() {
+		if (worker == null) {
+			stopped = false;
+			worker = new Thread(this, name);
+			worker.setDaemon(true);
+			worker.start();
+			logger.debug("Timing wheel [" + name + "] started. Tick: " + tickDuration + " ms");
+		}
+	}
+
+	/**
+	 * Stop the wheel thread. Pending timeouts are kept but will not expire
+	 * until the wheel is started again.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		worker = null;
+		notifyAll();
+	}
+
+	/**
+	 * Schedule a new timeout.
+	 *
+	 * @param key The key handed back on expiry
+	 * @param attachment Any object handed back on expiry
+	 * @param delay Delay before expiry (in millis)
+	 * @return The timeout handle, to be used for cancellation
+	 */
+	public Timeout schedule(Object key, Object attachment, long delay) {
+		long now = System.currentTimeMillis();
+		long deadline = (now + Math.max(delay, 0) - startTime + tickDuration - 1) / tickDuration;
+
+		Timeout timeout = new Timeout(key, attachment, deadline);
+		pending.incrementAndGet();
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Cancel a timeout. Cancelling an expired or already cancelled timeout has no effect.
+	 *
+	 * @param timeout The timeout to cancel
+	 * @return true if the timeout was pending
+	 */
+	public boolean cancel(Timeout timeout) {
+		if (timeout == null || !timeout.state.compareAndSet(PENDING, CANCELLED))
+			return false;
+
+		pending.decrementAndGet();
+		cancelled.add(timeout);
+		return true;
+	}
+
+	/**
+	 * Returns the number of pending timeouts.
+	 * @return int
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * Returns the tickDuration.
+	 * @return long
+	 */
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Wheel thread main loop.
+	 */
+	public void run() {
+		while (!stopped) {
+			ArrayList expired = new ArrayList();
+
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				long nowTick = (now - startTime) / tickDuration;
+
+				if (nowTick <= currentTick) {
+					// Wait until the next tick is due
+					long wakeUp = startTime + (currentTick + 1) * tickDuration;
+					try {
+						wait(Math.max(wakeUp - now, 1));
+					} catch (InterruptedException ie) {
+						logger.debug("Timing wheel [" + name + "] interrupted.");
+					}
+					continue;
+				}
+
+				// Catch up with all elapsed ticks
+				transfer();
+				while (currentTick < nowTick) {
+					currentTick++;
+					advance(expired);
+				}
+			}
+
+			// Notify outside of the wheel lock so listeners may reschedule
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					listener.timeoutExpired((Timeout) expired.get(i));
+				} catch (Throwable t) {
+					logger.error("Timeout listener failed in timing wheel [" + name + "].", t);
+				}
+			}
+		}
+
+		logger.debug("Timing wheel [" + name + "] stopped.");
+	}
+
+	/**
+	 * Place the newly scheduled timeouts and unlink the cancelled ones.
+	 */
+	private void transfer() {
+		Timeout timeout;
+		while ((timeout = (Timeout) scheduled.poll()) != null) {
+			if (timeout.state.get() != PENDING)
+				continue;
+			if (timeout.deadline <= currentTick)
+				timeout.deadline = currentTick + 1;
+			place(timeout);
+		}
+
+		// A cancelled timeout is not linked if it was cancelled before being placed
+		while ((timeout = (Timeout) cancelled.poll()) != null) {
+			if (timeout.next != null)
+				unlink(timeout);
+		}
+	}
+
+	/**
+	 * Process the current tick: cascade coarser levels whose cursor just
+	 * wrapped and collect the expired timeouts of the finest level.
+	 */
+	private void advance(ArrayList expired) {
+		for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+			long lowMask = (1L << (WHEEL_BITS * level)) - 1;
+			if ((currentTick & lowMask) == 0) {
+				Timeout head = buckets[level][(int) ((currentTick >> (WHEEL_BITS * level)) & WHEEL_MASK)];
+				while (head.next != head) {
+					Timeout timeout = head.next;
+					unlink(timeout);
+					place(timeout);
+				}
+			}
+		}
+
+		Timeout head = buckets[0][(int) (currentTick & WHEEL_MASK)];
+		while (head.next != head) {
+			Timeout timeout = head.next;
+			unlink(timeout);
+			if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+				pending.decrementAndGet();
+				expired.add(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Insert a timeout in the bucket matching its remaining delay.
+	 */
+	private void place(Timeout timeout) {
+		long delta = timeout.deadline - currentTick;
+		int level = 0;
+		while (level < LEVEL_COUNT - 1 && delta >= (1L << (WHEEL_BITS * (level + 1))))
+			level++;
+
+		// Beyond the wheel span: park in the farthest bucket, it will be cascaded again
+		long deadline = timeout.deadline;
+		if (delta >= (1L << (WHEEL_BITS * LEVEL_COUNT)))
+			deadline = currentTick + (1L << (WHEEL_BITS * LEVEL_COUNT)) - 1;
+
+		Timeout head = buckets[level][(int) ((deadline >> (WHEEL_BITS * level)) & WHEEL_MASK)];
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+	}
+
+	/**
+	 * Remove a timeout from its bucket.
+	 */
+	private void unlink(Timeout timeout) {
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+}
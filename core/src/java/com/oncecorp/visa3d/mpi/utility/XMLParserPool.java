@@ -0,0 +1,165 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.utility;
+
+import com.oncecorp.visa3d.mpi.logging.MPILogger;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread-confined pool of pre-configured XML parsers. Each thread keeps up
+ * to <code>maxIdle</code> idle parsers of its own, so borrowing and releasing
+ * a parser never contends with other threads; a parser is reset before it is
+ * handed back to the pool and is never shared while in use.
+ * <p>
+ * Subclasses create a fully configured parser in <code>newParser()</code>
+ * and clear its per-parse state in <code>reset()</code>. Hit and miss
+ * counters tell how often a borrow was served from the pool and can be used
+ * to size it.
+ *
+ * @version $Revision: 1 $
+ */
+public abstract class XMLParserPool {
+
+	/** Default number of idle parsers kept per thread */
+	public static final int DEFAULT_MAX_IDLE = 2;
+
+	private static Logger logger =
+		MPILogger.getLogger(XMLParserPool.class.getName());
+
+	private String name;
+	private int maxIdle;
+	private ThreadLocal idle;
+
+	private long hitCount;
+	private long missCount;
+	private long discardCount;
+
+	/**
+	 * Constructor
+	 * @param name Pool name used in log messages
+	 * @param maxIdle Maximum number of idle parsers kept per thread
+	 */
+	protected XMLParserPool(String name, int maxIdle) {
+		this.name = name;
+		this.maxIdle = maxIdle;
+		this.idle = new ThreadLocal() {
+			protected Object initialValue() {
+				return new ArrayList();
+			}
+		};
+	}
+
+	/**
+	 * Creates a new, fully configured parser.
+	 * @return Object
+	 */
+	protected abstract Object newParser() throws Exception;
+
+	/**
+	 * Clears the per-parse state of a parser before it goes back to the pool.
+	 * @param parser The parser to reset
+	 */
+	protected abstract void reset(Object parser) throws Exception;
+
+	/**
+	 * Takes a parser from the calling thread's pool, creating one if the
+	 * pool is empty. The parser must be given back with <code>release()</code>.
+	 * @return Object
+	 */
+	public Object borrow() throws Exception {
+		ArrayList parsers = (ArrayList) idle.get();
+		if (!parsers.isEmpty()) {
+			synchronized (this) {
+				hitCount++;
+			}
+			return parsers.remove(parsers.size() - 1);
+		}
+
+		synchronized (this) {
+			missCount++;
+		}
+		return newParser();
+	}
+
+	/**
+	 * Resets a parser and returns it to the calling thread's pool. A parser
+	 * that cannot be reset, or that does not fit in the pool, is discarded.
+	 * @param parser The parser obtained from <code>borrow()</code>
+	 */
+	public void release(Object parser) {
+		if (parser == null)
+			return;
+
+		ArrayList parsers = (ArrayList) idle.get();
+		if (parsers.size() < maxIdle) {
+			try {
+				reset(parser);
+				parsers.add(parser);
+				return;
+			} catch (Exception e) {
+				logger.warn("Unable to reset parser from pool " + name, e);
+			}
+		}
+
+		synchronized (this) {
+			discardCount++;
+		}
+	}
+
+	/**
+	 * Returns the pool name.
+	 * @return String
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the number of borrows served by an idle parser.
+	 * @return long
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of borrows that had to create a new parser.
+	 * @return long
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of released parsers that were not kept.
+	 * @return long
+	 */
+	public synchronized long getDiscardCount() {
+		return discardCount;
+	}
+
+}
@@ -43,5 +43,12 @@ public interface XMLSerializable extends Serializable {
 	 */
 	abstract public Document toXML();
 
+	/**
+	 * Writes the object as UTF-8 encoded XML into the given writer. The
+	 * bytes written are the same as the UTF-8 encoding of toString().
+	 * @param out The writer receiving the XML
+	 */
+	abstract public void writeXML(XMLWriter out) throws Exception;
+
 }
 
@@ -28,16 +28,15 @@ import com.ibm.dom.util.XPathCanonicalizer;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
 import org.apache.xerces.parsers.DOMParser;
 import org.apache.xml.serialize.OutputFormat;
 import org.apache.xml.serialize.XMLSerializer;
-import org.apache.xpath.XPathAPI;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -68,6 +67,41 @@ public class XMLUtil {
 	protected static final String SCHEMA_FULL_CHECKING_FEATURE_ID =
 		"http://apache.org/xml/features/validation/schema-full-checking";
 
+	/** Factory looked up once; only used to create pooled builders */
+	private static final DocumentBuilderFactory builderFactory =
+		DocumentBuilderFactory.newInstance();
+
+	/** Compiled XPath expressions used by the XPath lookups */
+	private static final XPathCache xpathCache =
+		new XPathCache(XPathCache.DEFAULT_MAX_SIZE);
+
+	/** Pool of document builders used to create empty documents */
+	private static final XMLParserPool builderPool =
+		new XMLParserPool("DocumentBuilder", XMLParserPool.DEFAULT_MAX_IDLE) {
+			protected Object newParser() throws Exception {
+				synchronized (builderFactory) {
+					return builderFactory.newDocumentBuilder();
+				}
+			}
+			protected void reset(Object parser) {
+				// newDocument() leaves no state behind in the builder
+			}
+		};
+
+	/** Pool of non-validating parsers */
+	private static final XMLParserPool parserPool =
+		new XMLParserPool("DOMParser", XMLParserPool.DEFAULT_MAX_IDLE) {
+			protected Object newParser() throws Exception {
+				DOMParser parser = new DOMParser();
+				parser.setFeature(VALIDATION_FEATURE_ID, false);
+				parser.setErrorHandler(new ValidityErrorHandler());
+				return parser;
+			}
+			protected void reset(Object parser) throws Exception {
+				((DOMParser) parser).reset();
+			}
+		};
+
 	/**
 	 * Create an empty DOM document object. Note: essentially the empty DOM object is not
 	 * a valid object. Append root element before doing any real operation against returned
@@ -76,13 +110,15 @@ public class XMLUtil {
 	 * @return Document object or null
 	 */
 	public static Document createDocument() {
+		DocumentBuilder builder = null;
 		try {
-			DocumentBuilder builder =
-				DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			builder = (DocumentBuilder) builderPool.borrow();
 			Document doc = builder.newDocument();
 			return doc;
-		} catch (ParserConfigurationException e) {
+		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			builderPool.release(builder);
 		}
 		return null;
 	}
@@ -94,27 +130,42 @@ public class XMLUtil {
 	 * @return Document object or null
 	 */
 	public static Document createDocument(String xmlStr) throws Exception {
-		final boolean VALIDATION_OFF = false;
-
 		//Sanity check
 		if ((xmlStr == null) || (xmlStr.length() == 0))
 			return null;
 
-		//Create parser			
-		DOMParser parser = new DOMParser();
-
-		//Switch validation
-		parser.setFeature(VALIDATION_FEATURE_ID, VALIDATION_OFF);
-		parser.setErrorHandler(new ValidityErrorHandler());
+		return parse(parserPool, new InputSource(new StringReader(xmlStr)));
+	}
 
-		//Create underlying stream
-		StringReader sr = new StringReader(xmlStr);
+	/**
+	 * Parse XML input source into Document object WITHOUT valisation
+	 * 
+	 * @param source The XML input source to parse
+	 * @return Document object
+	 */
+	public static Document createDocument(InputSource source) throws Exception {
+		return parse(parserPool, source);
+	}
 
-		//Parsing
-		parser.parse(new InputSource(sr));
+	/**
+	 * Parse XML input with a parser borrowed from the given pool
+	 * 
+	 * @param pool The pool providing the parser
+	 * @param source The XML input to parse
+	 * @return Document object
+	 */
+	private static Document parse(XMLParserPool pool, InputSource source)
+		throws Exception {
+		DOMParser parser = (DOMParser) pool.borrow();
+		try {
+			//Parsing
+			parser.parse(source);
 
-		//return Document
-		return parser.getDocument();
+			//return Document
+			return parser.getDocument();
+		} finally {
+			pool.release(parser);
+		}
 	}
 
 	/**
@@ -172,6 +223,48 @@ public class XMLUtil {
 	}
 	*/
 
+	/**
+	 * Returns the number of parser borrows served from the pools.
+	 * @return long
+	 */
+	public static long getParserPoolHitCount() {
+		return builderPool.getHitCount()
+			+ parserPool.getHitCount();
+	}
+
+	/**
+	 * Returns the number of parser borrows that had to create a new parser.
+	 * @return long
+	 */
+	public static long getParserPoolMissCount() {
+		return builderPool.getMissCount()
+			+ parserPool.getMissCount();
+	}
+
+	/**
+	 * Returns the usage statistics of the cached XPath expressions.
+	 * @return Map of XPathStatisticResult, keyed by expression
+	 */
+	public static Map getXPathStatistics() {
+		return xpathCache.getStatistics();
+	}
+
+	/**
+	 * Returns the number of XPath lookups served by a compiled expression.
+	 * @return long
+	 */
+	public static long getXPathCacheHitCount() {
+		return xpathCache.getHitCount();
+	}
+
+	/**
+	 * Returns the number of XPath lookups that had to compile the expression.
+	 * @return long
+	 */
+	public static long getXPathCacheMissCount() {
+		return xpathCache.getMissCount();
+	}
+
 	/**
 	 * Convert DOM object into a canonicalize XML string 
 	 * 
@@ -270,9 +363,15 @@ public class XMLUtil {
 	 */
 	public static Node getFirstNodeByXPath(Node node, String xpathStr) {
 		try {
-			Node n = XPathAPI.selectSingleNode(node, xpathStr);
-			if (n != null) {
-				return n;
+			XPathCache.Expression expr = xpathCache.get(node, xpathStr);
+			long start = System.nanoTime();
+			try {
+				Node n = expr.eval(node).nodeset().nextNode();
+				if (n != null) {
+					return n;
+				}
+			} finally {
+				expr.evaluated(start);
 			}
 		} catch (TransformerException e) {
 			e.printStackTrace();
@@ -291,8 +390,14 @@ public class XMLUtil {
 	public static NodeList getNodeListByXPath(Node node, String xpathStr) {
 		try {
 			//Use XPath string to select a nodelist
-			NodeList nl = XPathAPI.selectNodeList(node, xpathStr);
-			return nl;
+			XPathCache.Expression expr = xpathCache.get(node, xpathStr);
+			long start = System.nanoTime();
+			try {
+				NodeList nl = expr.eval(node).nodelist();
+				return nl;
+			} finally {
+				expr.evaluated(start);
+			}
 		} catch (TransformerException e) {
 			e.printStackTrace();
 		}
@@ -309,21 +414,27 @@ public class XMLUtil {
 	public static String getValueByXPath(Node node, String xpathStr) {
 		try {
 			//Use XPath string to select a nodelist
-			NodeIterator nl = XPathAPI.selectNodeIterator(node, xpathStr);
-			Node n;
-			if ((n = nl.nextNode()) != null) {
-				if (isTextNode(n)) {
-					// DOM may have more than one node corresponding to a 
-					// single XPath text node.  Coalesce all contiguous text nodes
-					// at this level
-					StringBuffer sb = new StringBuffer(n.getNodeValue());
-					for (Node nn = n.getNextSibling();
-						isTextNode(nn);
-						nn = nn.getNextSibling()) {
-						sb.append(nn.getNodeValue());
+			XPathCache.Expression expr = xpathCache.get(node, xpathStr);
+			long start = System.nanoTime();
+			try {
+				NodeIterator nl = expr.eval(node).nodeset();
+				Node n;
+				if ((n = nl.nextNode()) != null) {
+					if (isTextNode(n)) {
+						// DOM may have more than one node corresponding to a 
+						// single XPath text node.  Coalesce all contiguous text nodes
+						// at this level
+						StringBuffer sb = new StringBuffer(n.getNodeValue());
+						for (Node nn = n.getNextSibling();
+							isTextNode(nn);
+							nn = nn.getNextSibling()) {
+							sb.append(nn.getNodeValue());
+						}
+						return sb.toString();
 					}
-					return sb.toString();
 				}
+			} finally {
+				expr.evaluated(start);
 			}
 		} catch (Exception e) {
 		}
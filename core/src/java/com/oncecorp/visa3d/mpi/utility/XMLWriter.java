@@ -0,0 +1,273 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes XML markup and character data as UTF-8 bytes straight into a
+ * reusable byte buffer. Character data is escaped in place while it is
+ * encoded, so serializing a message produces no intermediate strings.
+ * <p>
+ * A writer either accumulates the whole document in its growable buffer
+ * (the buffer can then be sent with <code>writeTo()</code>) or, when built
+ * around an <code>OutputStream</code>, flushes its fixed size buffer to that
+ * stream whenever it fills up.
+ * <p>
+ * Escaping follows <code>XMLUtil.filterSpecialChars()</code>: only
+ * <code>&lt;</code>, <code>&gt;</code> and <code>&amp;</code> are replaced,
+ * and a null value is written as the text "null", so the bytes produced are
+ * identical to the UTF-8 encoding of the message <code>toString()</code>.
+ * A writer is not thread-safe.
+ *
+ * @version $Revision: 1 $
+ */
+public class XMLWriter {
+
+	/** Default initial buffer capacity in bytes */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Largest buffer kept by the per-thread writer between two messages */
+	public static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private static final byte[] LT = { '&', 'l', 't', ';' };
+	private static final byte[] GT = { '&', 'g', 't', ';' };
+	private static final byte[] AMP = { '&', 'a', 'm', 'p', ';' };
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+	private static ThreadLocal threadWriter = new ThreadLocal();
+
+	private byte[] buf;
+	private int count;
+	private OutputStream out;
+
+	/**
+	 * Creates a writer that accumulates its output in a growable buffer.
+	 */
+	public XMLWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a writer that accumulates its output in a growable buffer.
+	 * @param capacity The initial buffer capacity in bytes
+	 */
+	public XMLWriter(int capacity) {
+		this.buf = new byte[Math.max(capacity, MIN_CAPACITY)];
+	}
+
+	/**
+	 * Creates a writer that flushes its output to the given stream.
+	 * @param out The target stream
+	 */
+	public XMLWriter(OutputStream out) {
+		this(out, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a writer that flushes its output to the given stream.
+	 * @param out The target stream
+	 * @param capacity The buffer capacity in bytes
+	 */
+	public XMLWriter(OutputStream out, int capacity) {
+		this(capacity);
+		this.out = out;
+	}
+
+	/**
+	 * Returns the buffering writer confined to the calling thread, emptied
+	 * and ready for a new document. Buffers that grew beyond
+	 * MAX_RETAINED_CAPACITY for an unusually large message are not kept.
+	 * @return XMLWriter
+	 */
+	public static XMLWriter getThreadWriter() {
+		XMLWriter writer = (XMLWriter) threadWriter.get();
+		if ((writer == null) || (writer.buf.length > MAX_RETAINED_CAPACITY)) {
+			writer = new XMLWriter();
+			threadWriter.set(writer);
+		}
+		writer.reset();
+		return writer;
+	}
+
+	/**
+	 * Writes markup as is, without escaping.
+	 * @param markup The markup to write
+	 */
+	public void markup(String markup) throws IOException {
+		if (markup == null)
+			write(NULL);
+		else
+			write(markup, false);
+	}
+
+	/**
+	 * Writes character data, escaping the XML special characters.
+	 * @param text The character data to write, may be null
+	 */
+	public void text(String text) throws IOException {
+		if (text == null)
+			write(NULL);
+		else
+			write(text, true);
+	}
+
+	/**
+	 * Writes any buffered bytes to the target stream and flushes it. Does
+	 * nothing for a buffering writer.
+	 */
+	public void flush() throws IOException {
+		if (out != null) {
+			drain();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes to the given stream.
+	 * @param target The stream to write to
+	 */
+	public void writeTo(OutputStream target) throws IOException {
+		target.write(buf, 0, count);
+	}
+
+	/**
+	 * Discards the buffered bytes, keeping the buffer for reuse.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Returns the number of bytes currently buffered.
+	 * @return int
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the underlying buffer; only the first size() bytes are valid.
+	 * @return byte[]
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Returns a copy of the buffered bytes.
+	 * @return byte[]
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[count];
+		System.arraycopy(buf, 0, copy, 0, count);
+		return copy;
+	}
+
+	/**
+	 * Returns the buffered bytes decoded as a string.
+	 * @return String
+	 */
+	public String toString() {
+		try {
+			return new String(buf, 0, count, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is supported by every JVM
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private void write(String s, boolean escape) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (escape && (c == '<')) {
+					write(LT);
+				} else if (escape && (c == '>')) {
+					write(GT);
+				} else if (escape && (c == '&')) {
+					write(AMP);
+				} else {
+					ensure(1);
+					buf[count++] = (byte) c;
+				}
+			} else if (c < 0x800) {
+				ensure(2);
+				buf[count++] = (byte) (0xC0 | (c >> 6));
+				buf[count++] = (byte) (0x80 | (c & 0x3F));
+			} else if ((c >= 0xD800) && (c <= 0xDFFF)) {
+				char low = (i + 1 < length) ? s.charAt(i + 1) : 0;
+				if ((c <= 0xDBFF) && (low >= 0xDC00) && (low <= 0xDFFF)) {
+					int cp = 0x10000 + ((c - 0xD800) << 10) + (low - 0xDC00);
+					ensure(4);
+					buf[count++] = (byte) (0xF0 | (cp >> 18));
+					buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[count++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else {
+					// Unpaired surrogate, replaced as String.getBytes() does
+					ensure(1);
+					buf[count++] = (byte) '?';
+				}
+			} else {
+				ensure(3);
+				buf[count++] = (byte) (0xE0 | (c >> 12));
+				buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void ensure(int needed) throws IOException {
+		if (count + needed <= buf.length)
+			return;
+
+		if (out != null) {
+			drain();
+		} else {
+			byte[] grown = new byte[Math.max(buf.length * 2, count + needed)];
+			System.arraycopy(buf, 0, grown, 0, count);
+			buf = grown;
+		}
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
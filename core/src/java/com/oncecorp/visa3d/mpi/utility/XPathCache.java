@@ -0,0 +1,280 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.utility;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xml.utils.PrefixResolverDefault;
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.objects.XObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Bounded cache of compiled XPath expressions. Compiling an expression is
+ * the expensive part of an XPathAPI call; a compiled expression holds no
+ * evaluation state and is executed with a fresh XPathContext each time, so
+ * it can be shared by all threads.
+ * <p>
+ * Namespace prefixes are resolved when an expression is compiled. The
+ * cache is keyed by expression, and each compiled variant remembers the
+ * namespace URIs its prefixes resolved to; a variant is only reused from a
+ * context node resolving them the same way. Expressions without prefixes,
+ * the usual case, have a single variant.
+ * <p>
+ * The least recently used expression is dropped, with its statistics, once
+ * the cache holds <code>maxSize</code> expressions.
+ *
+ * @version $Revision: 1 $
+ */
+public class XPathCache {
+
+	/** Default maximum number of cached expressions */
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	/** Maximum number of variants kept per expression */
+	private static final int MAX_VARIANTS = 4;
+
+	/**
+	 * Compiled expression along with the namespace bindings it was compiled
+	 * with and its usage counters.
+	 */
+	public static class Expression {
+		private String expression;
+		private XPath xpath;
+		private String[] prefixes;
+		private String[] uris;
+
+		private long hitCount;
+		private long evaluationCount;
+		// Nanos, so that evaluations well under a millisecond add up
+		private long evaluationTime;
+
+		private Expression(String expression, XPath xpath, String[] prefixes, String[] uris) {
+			this.expression = expression;
+			this.xpath = xpath;
+			this.prefixes = prefixes;
+			this.uris = uris;
+		}
+
+		/**
+		 * Evaluates the expression against a context node. Namespace
+		 * prefixes are resolved from the context node, as with XPathAPI.
+		 * @param contextNode The node to start searching from
+		 * @return XObject
+		 */
+		public XObject eval(Node contextNode) throws TransformerException {
+			return xpath.execute(
+				new XPathContext(),
+				contextNode,
+				new PrefixResolverDefault(getNamespaceNode(contextNode)));
+		}
+
+		/**
+		 * Records an evaluation of this expression.
+		 * @param startTime System.nanoTime() the evaluation started at
+		 */
+		public synchronized void evaluated(long startTime) {
+			evaluationCount++;
+			evaluationTime += System.nanoTime() - startTime;
+		}
+
+		private boolean matches(Node namespaceNode) {
+			if (prefixes.length == 0)
+				return true;
+
+			PrefixResolverDefault resolver = new PrefixResolverDefault(namespaceNode);
+			for (int i = 0; i < prefixes.length; i++) {
+				String uri = resolver.getNamespaceForPrefix(prefixes[i]);
+				if ((uri == null) ? (uris[i] != null) : !uri.equals(uris[i]))
+					return false;
+			}
+			return true;
+		}
+
+		private synchronized void hit() {
+			hitCount++;
+		}
+
+		private synchronized void addTo(XPathStatisticResult result) {
+			result.setHitCount(result.getHitCount() + hitCount);
+			result.setCompileCount(result.getCompileCount() + 1);
+			result.setEvaluationCount(result.getEvaluationCount() + evaluationCount);
+			result.setEvaluationTime(result.getEvaluationTime() + evaluationTime / 1000);
+		}
+	}
+
+	/**
+	 * Prefix resolver recording the prefixes looked up while compiling
+	 */
+	private static class RecordingPrefixResolver extends PrefixResolverDefault {
+		private ArrayList prefixes = new ArrayList();
+		private ArrayList uris = new ArrayList();
+
+		private RecordingPrefixResolver(Node namespaceNode) {
+			super(namespaceNode);
+		}
+
+		public String getNamespaceForPrefix(String prefix) {
+			String uri = super.getNamespaceForPrefix(prefix);
+			if (!prefixes.contains(prefix)) {
+				prefixes.add(prefix);
+				uris.add(uri);
+			}
+			return uri;
+		}
+	}
+
+	private LinkedHashMap expressions;
+	private long hitCount;
+	private long missCount;
+
+	/**
+	 * Constructor
+	 * @param maxSize Maximum number of cached expressions
+	 */
+	public XPathCache(final int maxSize) {
+		this.expressions = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the compiled expression to evaluate against a context node,
+	 * compiling it if it is not cached yet.
+	 * @param contextNode The node the expression will be evaluated against
+	 * @param xpathStr A valid XPath string
+	 * @return Expression
+	 */
+	public Expression get(Node contextNode, String xpathStr) throws TransformerException {
+		Node namespaceNode = getNamespaceNode(contextNode);
+
+		synchronized (this) {
+			ArrayList variants = (ArrayList) expressions.get(xpathStr);
+			if (variants != null) {
+				for (int i = 0; i < variants.size(); i++) {
+					Expression expression = (Expression) variants.get(i);
+					if (expression.matches(namespaceNode)) {
+						hitCount++;
+						expression.hit();
+						return expression;
+					}
+				}
+			}
+		}
+
+		// Compile outside of the lock; a concurrent compilation of the same
+		// expression only adds a redundant variant
+		RecordingPrefixResolver resolver = new RecordingPrefixResolver(namespaceNode);
+		XPath xpath = new XPath(xpathStr, null, resolver, XPath.SELECT, null);
+		Expression expression =
+			new Expression(
+				xpathStr,
+				xpath,
+				(String[]) resolver.prefixes.toArray(new String[resolver.prefixes.size()]),
+				(String[]) resolver.uris.toArray(new String[resolver.uris.size()]));
+
+		synchronized (this) {
+			missCount++;
+			ArrayList variants = (ArrayList) expressions.get(xpathStr);
+			if (variants == null) {
+				variants = new ArrayList(1);
+				expressions.put(xpathStr, variants);
+			}
+			if (variants.size() == MAX_VARIANTS)
+				variants.remove(0);
+			variants.add(expression);
+		}
+		return expression;
+	}
+
+	/**
+	 * Returns the statistics of the cached expressions.
+	 * @return Map of XPathStatisticResult, keyed by expression
+	 */
+	public Map getStatistics() {
+		ArrayList all = new ArrayList();
+		synchronized (this) {
+			for (Iterator it = expressions.values().iterator(); it.hasNext();)
+				all.addAll((ArrayList) it.next());
+		}
+
+		TreeMap statistics = new TreeMap();
+		for (int i = 0; i < all.size(); i++) {
+			Expression expression = (Expression) all.get(i);
+			XPathStatisticResult result =
+				(XPathStatisticResult) statistics.get(expression.expression);
+			if (result == null) {
+				result = new XPathStatisticResult();
+				result.setExpression(expression.expression);
+				statistics.put(expression.expression, result);
+			}
+			expression.addTo(result);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns the number of lookups served by a compiled expression.
+	 * @return long
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups that had to compile the expression.
+	 * @return long
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of cached expressions.
+	 * @return int
+	 */
+	public synchronized int getSize() {
+		return expressions.size();
+	}
+
+	/**
+	 * Returns the node namespace prefixes are resolved from, as XPathAPI does.
+	 */
+	private static Node getNamespaceNode(Node contextNode) {
+		return (contextNode.getNodeType() == Node.DOCUMENT_NODE)
+			? ((Document) contextNode).getDocumentElement()
+			: contextNode;
+	}
+
+}
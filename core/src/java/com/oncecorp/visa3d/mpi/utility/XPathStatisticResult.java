@@ -0,0 +1,140 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+package com.oncecorp.visa3d.mpi.utility;
+
+import java.io.Serializable;
+
+/**
+ * Usage statistic of one XPath expression used through XMLUtil
+ *
+ * @version $Revision: 1 $
+ */
+public class XPathStatisticResult implements Serializable, Comparable {
+	private String expression;
+	private long hitCount;
+	private long compileCount;
+	private long evaluationCount;
+	private long evaluationTime;
+
+	public int compareTo(Object o) {
+		return this.expression.compareTo(((XPathStatisticResult) o).getExpression());
+	}
+
+	public boolean equals(Object anObject) {
+		if (!(anObject instanceof XPathStatisticResult))
+			return false;
+		XPathStatisticResult result = (XPathStatisticResult) anObject;
+
+		return this.expression.equals(result.getExpression())
+			&& (this.hitCount == result.getHitCount())
+			&& (this.compileCount == result.getCompileCount())
+			&& (this.evaluationCount == result.getEvaluationCount())
+			&& (this.evaluationTime == result.getEvaluationTime());
+	}
+
+	public int hashCode() {
+		return expression.hashCode();
+	}
+
+	/**
+	 * Returns the expression.
+	 * @return String
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the number of lookups served by an already compiled expression.
+	 * @return long
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of times the expression was compiled.
+	 * @return long
+	 */
+	public long getCompileCount() {
+		return compileCount;
+	}
+
+	/**
+	 * Returns the number of evaluations.
+	 * @return long
+	 */
+	public long getEvaluationCount() {
+		return evaluationCount;
+	}
+
+	/**
+	 * Returns the total evaluation time.
+	 * @return long micros
+	 */
+	public long getEvaluationTime() {
+		return evaluationTime;
+	}
+
+	/**
+	 * Sets the expression.
+	 * @param expression The expression to set
+	 */
+	public void setExpression(String expression) {
+		this.expression = expression;
+	}
+
+	/**
+	 * Sets the hit count.
+	 * @param hitCount The hitCount to set
+	 */
+	public void setHitCount(long hitCount) {
+		this.hitCount = hitCount;
+	}
+
+	/**
+	 * Sets the compile count.
+	 * @param compileCount The compileCount to set
+	 */
+	public void setCompileCount(long compileCount) {
+		this.compileCount = compileCount;
+	}
+
+	/**
+	 * Sets the evaluation count.
+	 * @param evaluationCount The evaluationCount to set
+	 */
+	public void setEvaluationCount(long evaluationCount) {
+		this.evaluationCount = evaluationCount;
+	}
+
+	/**
+	 * Sets the total evaluation time.
+	 * @param evaluationTime The evaluationTime to set, in micros
+	 */
+	public void setEvaluationTime(long evaluationTime) {
+		this.evaluationTime = evaluationTime;
+	}
+
+}
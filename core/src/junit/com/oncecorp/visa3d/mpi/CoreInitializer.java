@@ -62,8 +62,10 @@ public class CoreInitializer {
 		coreConfig.put(
 			"Core:mbean=PerformanceMonitor",
 			"com.oncecorp.visa3d.mpi.messaging.PerformanceMonitor");
+		coreConfig.put(
+			"Core:mbean=LatencyMonitor",
+			"com.oncecorp.visa3d.mpi.messaging.LatencyMonitor");
 		coreConfig.put("ErrorDispatchMode", "Direct");
-		coreConfig.put("ErrorThreadSleepInterval", "5000");
 		coreConfig.put(
 			"HttpsProtocolHandler",
 			"com.sun.net.ssl.internal.www.protocol");
@@ -30,16 +30,41 @@ import com.oncecorp.visa3d.mpi.utility.XMLUtil;
 import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
 import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.domain.CardRange;
+import com.oncecorp.visa3d.mpi.domain.payment.CRReqMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.CRResMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
 import com.oncecorp.visa3d.mpi.security.SecurityManager;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.ResourceBundle;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
 import junit.framework.Assert;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -177,6 +202,686 @@ public class ControllerTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Post a series of messages to a local HTTPS stand-in directory and
+	 * check that connections are kept alive, reopened when the server
+	 * closes them and transparently replaced when they went stale in the pool.
+	 */
+	public void testDirectoryClient() throws Exception {
+		String password = "changeit";
+		File store = File.createTempFile("directory", ".keystore");
+		store.delete();
+		String keytool =
+			System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "keytool";
+		Process keygen =
+			Runtime.getRuntime().exec(
+				new String[] {
+					keytool, "-genkey", "-alias", "directory", "-keyalg", "RSA",
+					"-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+					"-keystore", store.getPath(), "-storepass", password,
+					"-keypass", password });
+		Assert.assertEquals(0, keygen.waitFor());
+
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		FileInputStream fis = new FileInputStream(store);
+		keyStore.load(fis, password.toCharArray());
+		fis.close();
+		store.delete();
+
+		KeyManagerFactory kmf =
+			KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password.toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+
+		TrustManagerFactory tmf =
+			TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, tmf.getTrustManagers(), null);
+
+		StandInDirectory directory =
+			new StandInDirectory(
+				serverContext.getServerSocketFactory().createServerSocket(0));
+		new Thread(directory, "StandInDirectory").start();
+		try {
+			DirectoryClient client =
+				new DirectoryClient(
+					clientContext.getSocketFactory(), 5000, 5000, 4, 2, 60000);
+			String url =
+				"https://localhost:" + directory.getPort() + "/cth/md/ONCEmpi";
+			XMLWriter body = new XMLWriter();
+			body.markup("<ThreeDSecure><Message id=\"1\"/></ThreeDSecure>");
+
+			// Keep-alive: one connection for a series of requests
+			for (int i = 0; i < 5; i++)
+				Assert.assertEquals(StandInDirectory.RESPONSE, client.post(url, body));
+			EndpointStatisticResult stat = getStatistic(client);
+			Assert.assertEquals(1, directory.getConnectionCount());
+			Assert.assertEquals(1, stat.getConnectionCount());
+			Assert.assertEquals(5, stat.getRequestCount());
+			Assert.assertEquals(4, stat.getReuseCount());
+			Assert.assertEquals(0, stat.getInFlight());
+			Assert.assertEquals(1, stat.getIdleConnections());
+
+			// Server asks to close: next request opens a new connection
+			directory.setCloseAfterResponse(true);
+			Assert.assertEquals(StandInDirectory.RESPONSE, client.post(url, body));
+			directory.setCloseAfterResponse(false);
+			Assert.assertEquals(StandInDirectory.RESPONSE, client.post(url, body));
+			Assert.assertEquals(2, directory.getConnectionCount());
+
+			// Server silently drops the idle connection: the request is resent
+			directory.dropIdleConnections();
+			Assert.assertEquals(StandInDirectory.RESPONSE, client.post(url, body));
+			stat = getStatistic(client);
+			Assert.assertEquals(3, directory.getConnectionCount());
+			Assert.assertEquals(3, stat.getConnectionCount());
+			Assert.assertEquals(0, stat.getFailureCount());
+			System.out.println(
+				"Directory connections: " + stat.getConnectionCount()
+					+ ", resumed SSL sessions: " + stat.getResumedCount()
+					+ ", requests: " + stat.getRequestCount()
+					+ ", reuse ratio: " + stat.getReuseRatio());
+
+			client.closeIdleConnections();
+			Assert.assertEquals(0, getStatistic(client).getOpenConnections());
+		} finally {
+			directory.close();
+		}
+	}
+
+	private static EndpointStatisticResult getStatistic(DirectoryClient client) {
+		Map stats = client.getStatistics();
+		Assert.assertEquals(1, stats.size());
+		return (EndpointStatisticResult) stats.values().iterator().next();
+	}
+
+	/**
+	 * Check directory routing order and circuit breaker transitions.
+	 */
+	public void testDirectoryRouter() throws Exception {
+		String a = "https://dir-a.example.com/md";
+		String b = "https://dir-b.example.com/md";
+		String c = "https://dir-c.example.com/md";
+		String[] urls = new String[] { a, null, b, c };
+		DirectoryRouter router = new DirectoryRouter(3, 100, 0.5, 60000);
+
+		// Nothing measured yet: configured order
+		assertRoute(new String[] { a, b, c }, router.route(urls));
+
+		// Fastest first, a slow but working directory goes last
+		router.record(a, true, 500);
+		router.record(b, true, 50);
+		router.record(c, true, 100);
+		assertRoute(new String[] { b, c, a }, router.route(urls));
+
+		// Sustained failures open the breaker of b
+		for (int i = 0; i < 3; i++)
+			router.record(b, false, 50);
+		assertRoute(new String[] { c, a }, router.route(urls));
+		DirectoryRouteStatisticResult stat =
+			(DirectoryRouteStatisticResult) router.getStatistics().get(b);
+		Assert.assertEquals("Open", stat.getState());
+		Assert.assertEquals(1, stat.getTripCount());
+		Assert.assertEquals(1, stat.getSkipCount());
+
+		// Half-open: a single probe goes first, then the breaker opens again on failure
+		Thread.sleep(150);
+		assertRoute(new String[] { b, c, a }, router.route(urls));
+		assertRoute(new String[] { c, a }, router.route(urls));
+		router.record(b, false, 50);
+		stat = (DirectoryRouteStatisticResult) router.getStatistics().get(b);
+		Assert.assertEquals("Open", stat.getState());
+		Assert.assertEquals(2, stat.getTripCount());
+
+		// A successful probe closes it
+		Thread.sleep(150);
+		assertRoute(new String[] { b, c, a }, router.route(urls));
+		router.record(b, true, 20);
+		stat = (DirectoryRouteStatisticResult) router.getStatistics().get(b);
+		Assert.assertEquals("Closed", stat.getState());
+		Assert.assertEquals(0, stat.getConsecutiveFailures());
+		Assert.assertEquals(3, router.route(urls).length);
+
+		// Every breaker open: still try them all in configured order
+		for (int i = 0; i < 3; i++) {
+			router.record(a, false, 10);
+			router.record(b, false, 10);
+			router.record(c, false, 10);
+		}
+		assertRoute(new String[] { a, b, c }, router.route(urls));
+	}
+
+	private static void assertRoute(String[] expected, String[] routed) {
+		Assert.assertEquals(Arrays.asList(expected), Arrays.asList(routed));
+	}
+
+	/**
+	 * Hedge a VEReq to a second stand-in directory when the first one is
+	 * slow, and check the hedge rate cap.
+	 */
+	public void testDirectoryHedging() throws Exception {
+		String veres =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure>"
+				+ "<Message id=\"hedge\"><VERes><version>" + VEResMessage.MSG_VERSION
+				+ "</version><CH><enrolled>N</enrolled></CH></VERes></Message></ThreeDSecure>";
+		StandInDirectory dir1 = new StandInDirectory(new ServerSocket(0), veres);
+		StandInDirectory dir2 = new StandInDirectory(new ServerSocket(0), veres);
+		new Thread(dir1, "StandInDirectory1").start();
+		new Thread(dir2, "StandInDirectory2").start();
+		try {
+			String[] urls =
+				new String[] {
+					"http://localhost:" + dir1.getPort() + "/md",
+					"http://localhost:" + dir2.getPort() + "/md" };
+			DirectoryRouter router = new DirectoryRouter(5, 30000, 0.2, 60000);
+			router.setHedgePolicy(true, 90, 50, 100);
+			Message reqMsg =
+				MessageGenerator.create(VEReqMessage.MSG_TYPE, VEReqMessage.MSG_VERSION);
+
+			// Measure both directories until a hedge delay is known
+			for (int i = 0; i < 25; i++)
+				Assert.assertTrue(router.sendHedged(reqMsg, urls) instanceof VEResMessage);
+			Assert.assertEquals(50, router.getHedgeDelay());
+			long issued = router.getHedgeIssuedCount();
+			long won = router.getHedgeWonCount();
+
+			// The first directory in routing order stalls: the hedge answers
+			StandInDirectory primary =
+				router.route(urls)[0].equals(urls[0]) ? dir1 : dir2;
+			primary.setDelay(3000);
+			long start = System.currentTimeMillis();
+			Assert.assertTrue(router.sendHedged(reqMsg, urls) instanceof VEResMessage);
+			Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+			Assert.assertEquals(issued + 1, router.getHedgeIssuedCount());
+			Assert.assertEquals(won + 1, router.getHedgeWonCount());
+
+			// No hedge once the rate cap is reached
+			router.setHedgePolicy(true, 90, 50, 0);
+			dir1.setDelay(300);
+			dir2.setDelay(300);
+			start = System.currentTimeMillis();
+			Assert.assertTrue(router.sendHedged(reqMsg, urls) instanceof VEResMessage);
+			Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+			Assert.assertEquals(issued + 1, router.getHedgeIssuedCount());
+			Assert.assertEquals(1, router.getHedgeSuppressedCount());
+		} finally {
+			dir1.close();
+			dir2.close();
+		}
+	}
+
+	/**
+	 * Stream a multi-megabyte CRRes from a stand-in directory, with a
+	 * content length and chunked, and check the maximum response size.
+	 */
+	public void testLargeCardRangeResponse() throws Exception {
+		int count = 40000;
+		long first = 4000000000000000L;
+		StringBuffer crres = new StringBuffer(count * 100);
+		crres.append(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure>"
+				+ "<Message id=\"crres\"><CRRes><version>" + CRResMessage.MSG_VERSION
+				+ "</version>");
+		for (int i = 0; i < count; i++) {
+			long begin = first + i * 100L;
+			crres.append("<CR><begin>").append(begin);
+			crres.append("</begin><end>").append(begin + 99);
+			crres.append("</end><action>A</action></CR>");
+		}
+		crres.append("<serialNumber>1</serialNumber></CRRes></Message></ThreeDSecure>");
+		Assert.assertTrue(crres.length() > 3 * 1024 * 1024);
+
+		StandInDirectory dir = new StandInDirectory(new ServerSocket(0), crres.toString());
+		new Thread(dir, "StandInDirectory").start();
+		DirectoryClient saved = DirectoryClient.getInstance();
+		DirectoryClient client = new DirectoryClient(null, 10000, 30000, 2, 2, 30000);
+		DirectoryClient.setInstance(client);
+		try {
+			String url = "http://localhost:" + dir.getPort() + "/cr";
+			Message reqMsg =
+				MessageGenerator.create(CRReqMessage.MSG_TYPE, CRReqMessage.MSG_VERSION);
+
+			for (int i = 0; i < 2; i++) {
+				dir.setChunked(i == 1);
+				CRResMessage resMsg = (CRResMessage) new Communicator().send(reqMsg, url);
+				CardRange[] crs = resMsg.getCr();
+				Assert.assertEquals(count, crs.length);
+				Assert.assertEquals(new Long(first), crs[0].getBegin());
+				Assert.assertEquals(new Long(first + (count - 1) * 100L), crs[count - 1].getBegin());
+				Assert.assertEquals("1", resMsg.getSerialNumber());
+			}
+			// Both bodies were read to their end and the connection kept
+			Assert.assertEquals(1, dir.getConnectionCount());
+
+			// Refused by its content length, or while being read when chunked
+			client.setMaxResponseSize(1024 * 1024);
+			for (int i = 0; i < 2; i++) {
+				dir.setChunked(i == 1);
+				try {
+					new Communicator().send(reqMsg, url);
+					Assert.fail("Response over the maximum size accepted");
+				} catch (CommunicatorException expected) {
+				}
+			}
+		} finally {
+			DirectoryClient.setInstance(saved);
+			dir.close();
+		}
+	}
+
+	/**
+	 * Check the backoff, jitter, budget and deadline rules of the retry policy.
+	 */
+	public void testRetryPolicy() throws Exception {
+		// Exponential backoff capped at the maximum delay, no jitter
+		RetryPolicy policy = new RetryPolicy("Test", 3, 100, 350, 0, 0, 0);
+		assertEquals(100, policy.retryDelay(1, 0));
+		assertEquals(200, policy.retryDelay(2, 0));
+		assertEquals(350, policy.retryDelay(3, 0));
+		assertEquals(-1, policy.retryDelay(4, 0));
+		policy.completed(4, false);
+
+		// Full jitter stays within [0, delay]
+		policy = new RetryPolicy("Test", 3, 100, 60000, 100, 0, 0);
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.retryDelay(2, 0);
+			assertTrue(delay >= 0 && delay <= 200);
+		}
+
+		// No retry may start after the deadline
+		policy = new RetryPolicy("Test", 3, 100, 60000, 0, 0, 0);
+		assertEquals(-1, policy.retryDelay(1, System.currentTimeMillis() + 50));
+		assertEquals(100, policy.retryDelay(1, System.currentTimeMillis() + 5000));
+
+		// Retries stop when half of the budget is spent, successes refill it
+		policy = new RetryPolicy("Test", 10, 100, 60000, 0, 4, 0.5);
+		assertEquals(100, policy.retryDelay(1, 0));
+		assertEquals(-1, policy.retryDelay(2, 0));
+		policy.completed(2, false);
+		for (int i = 0; i < 4; i++)
+			policy.completed(1, true);
+		assertEquals(4.0, policy.getTokens(), 0.001);
+		assertEquals(100, policy.retryDelay(1, 0));
+
+		RetryStatisticResult stat = policy.getStatistic();
+		assertEquals("Test", stat.getName());
+		assertEquals(5, stat.getRequestCount());
+		assertEquals(6, stat.getAttemptCount());
+		assertEquals(2, stat.getRetryCount());
+		assertEquals(1, stat.getBudgetRefusedCount());
+		assertEquals(2, stat.getMaxAttempts());
+	}
+
+	/**
+	 * Dispatch error notifications in Delay mode and check that they are
+	 * coalesced, dropped on a full queue, sent to the same URL over one
+	 * connection and retried on failure.
+	 */
+	public void testErrorDispatcher() throws Exception {
+		StandInDirectory dir = new StandInDirectory(new ServerSocket(0));
+		dir.setDelay(300);
+		new Thread(dir, "StandInDirectory").start();
+		DirectoryClient.setInstance(new DirectoryClient(null, 5000, 5000, 4, 2, 60000));
+		RetryPolicy.setInstance(
+			RetryPolicy.ERROR_DISPATCH,
+			new RetryPolicy(RetryPolicy.ERROR_DISPATCH, 1, 50, 50, 0, 0, 0));
+		ErrorDispatcher dispatcher = new ErrorDispatcher(4, 1, 20);
+		try {
+			String url = "http://localhost:" + dir.getPort() + "/md";
+
+			// The only dispatcher thread is busy with the first one...
+			Assert.assertTrue(dispatcher.dispatch(newErrorRequest(url, "1")));
+			Thread.sleep(100);
+			Assert.assertEquals(0, dispatcher.getQueueDepth());
+
+			// ...while the next ones are queued, coalesced or dropped
+			for (int i = 2; i <= 5; i++)
+				Assert.assertTrue(dispatcher.dispatch(newErrorRequest(url, "" + i)));
+			Assert.assertTrue(dispatcher.dispatch(newErrorRequest(url, "2")));
+			Assert.assertTrue(!dispatcher.dispatch(newErrorRequest(url, "6")));
+			Assert.assertEquals(4, dispatcher.getQueueDepth());
+			Assert.assertEquals(1, dispatcher.getCoalescedCount());
+			Assert.assertEquals(1, dispatcher.getDroppedCount());
+
+			long timeout = System.currentTimeMillis() + 10000;
+			while (dispatcher.getSentCount() < 5 && System.currentTimeMillis() < timeout)
+				Thread.sleep(50);
+			Assert.assertEquals(5, dispatcher.getSentCount());
+			Assert.assertEquals(2, dispatcher.getBatchCount());
+			Assert.assertEquals(1, dir.getConnectionCount());
+
+			// Unreachable URL: retried once, then abandoned
+			ServerSocket closed = new ServerSocket(0);
+			String deadUrl = "http://localhost:" + closed.getLocalPort() + "/md";
+			closed.close();
+			Assert.assertTrue(dispatcher.dispatch(newErrorRequest(deadUrl, "7")));
+			timeout = System.currentTimeMillis() + 10000;
+			while (dispatcher.getFailedCount() < 1 && System.currentTimeMillis() < timeout)
+				Thread.sleep(50);
+			Assert.assertEquals(1, dispatcher.getFailedCount());
+			Assert.assertEquals(0, dispatcher.getQueueDepth());
+		} finally {
+			dispatcher.shutdown();
+			RetryPolicy.setInstance(RetryPolicy.ERROR_DISPATCH, null);
+			DirectoryClient.setInstance(null);
+			dir.close();
+		}
+	}
+
+	/**
+	 * Replace an error dispatcher and check that its queue, retries not yet
+	 * due included, is handed over without waiting, and that notifications
+	 * still dispatched to it are forwarded.
+	 */
+	public void testErrorDispatcherHandOver() throws Exception {
+		ErrorDispatcher previous = new ErrorDispatcher(10, 1, 20);
+		ErrorDispatcher next = new ErrorDispatcher(10, 1, 20);
+		try {
+			String url = "http://localhost:1/md";
+			long later = System.currentTimeMillis() + 60000;
+			for (int i = 1; i <= 3; i++) {
+				ErrorRequest retry = newErrorRequest(url, "" + i);
+				retry.setNextAttemptTime(later);
+				Assert.assertTrue(previous.dispatch(retry));
+			}
+			Assert.assertEquals(3, previous.getQueueDepth());
+
+			long start = System.currentTimeMillis();
+			previous.handOver(next);
+			Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+			Assert.assertEquals(0, previous.getQueueDepth());
+			Assert.assertEquals(3, next.getQueueDepth());
+
+			// Forwarded, and coalesced with the handed over one
+			ErrorRequest late = newErrorRequest(url, "4");
+			late.setNextAttemptTime(later);
+			Assert.assertTrue(previous.dispatch(late));
+			Assert.assertTrue(previous.dispatch(newErrorRequest(url, "1")));
+			Assert.assertEquals(4, next.getQueueDepth());
+			Assert.assertEquals(1, next.getCoalescedCount());
+		} finally {
+			next.shutdown();
+		}
+	}
+
+	private static ErrorRequest newErrorRequest(String url, String id)
+		throws Exception {
+		ErrorMessage msg =
+			(ErrorMessage) MessageGenerator.create(
+				ErrorMessage.MSG_TYPE,
+				ErrorMessage.MSG_VERSION);
+		msg.setId(id);
+		msg.setErrorCode("5");
+		msg.setErrorMessage("Test");
+		msg.setErrorDetail("Test");
+
+		ErrorRequest req = new ErrorRequest();
+		req.setToUrl(url);
+		req.setMsg(msg);
+		return req;
+	}
+
+	/**
+	 * Check that card range refreshes are spread around the sleep interval,
+	 * and that on-demand refreshes need a running monitor.
+	 */
+	public void testCardRangeRefreshJitter() {
+		long sleepInterval = CardRangeMonitor.getSleepInterval();
+		long cacheExpiryInterval = CardRangeMonitor.getCacheExpiryInterval();
+		try {
+			CardRangeMonitor monitor = new CardRangeMonitor();
+			CardRangeMonitor.setSleepInterval(1000);
+			Random random = new Random();
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			for (int i = 0; i < 1000; i++) {
+				long delay = monitor.nextDelay(random);
+				min = Math.min(min, delay);
+				max = Math.max(max, delay);
+			}
+			assertTrue("min " + min, min >= 800);
+			assertTrue("max " + max, max <= 1200);
+			assertTrue("spread " + (max - min), max - min > 200);
+
+			assertEquals(0, CardRangeMonitor.requestRefresh(null));
+			CardRangeMonitor.reschedule();
+		} finally {
+			CardRangeMonitor.setSleepInterval(sleepInterval);
+			CardRangeMonitor.setCacheExpiryInterval(cacheExpiryInterval);
+		}
+	}
+
+	/**
+	 * Hold hundreds of VEReq requests in flight against a slow stand-in
+	 * directory with the asynchronous client, and check that they are all
+	 * served concurrently by a fixed number of threads.
+	 */
+	public void testAsyncDirectoryLoad() throws Exception {
+		final int count = 500;
+		long delay = 500;
+		String veres =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure>"
+				+ "<Message id=\"async\"><VERes><version>" + VEResMessage.MSG_VERSION
+				+ "</version><CH><enrolled>N</enrolled></CH></VERes></Message></ThreeDSecure>";
+		StandInDirectory dir = new StandInDirectory(new ServerSocket(0, count), veres);
+		dir.setDelay(delay);
+		new Thread(dir, "StandInDirectory").start();
+		AsyncDirectoryClient client =
+			new AsyncDirectoryClient(null, 10000, 30000, count, count, 60000, 2);
+		AsyncDirectoryClient.setInstance(client);
+		try {
+			String url = "http://localhost:" + dir.getPort() + "/md";
+			Message reqMsg =
+				MessageGenerator.create(VEReqMessage.MSG_TYPE, VEReqMessage.MSG_VERSION);
+			final List responses = new ArrayList();
+			final List threads = new ArrayList();
+			DirectoryListener listener = new DirectoryListener() {
+				public void completed(DirectoryFuture future) {
+					synchronized (responses) {
+						String name = Thread.currentThread().getName();
+						if (!threads.contains(name))
+							threads.add(name);
+						responses.add(
+							(future.getFailure() != null) ? future.getFailure() : future.getResult());
+						responses.notifyAll();
+					}
+				}
+			};
+
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < count; i++)
+				new Communicator().sendAsync(reqMsg, url).addListener(listener);
+			synchronized (responses) {
+				while (responses.size() < count
+					&& System.currentTimeMillis() - start < 30000)
+					responses.wait(1000);
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			System.out.println(
+				count + " VEReq served in " + elapsed + " ms by "
+					+ threads.size() + " callback threads, "
+					+ (count * 1000L / Math.max(1, elapsed)) + " requests/s");
+
+			Assert.assertEquals(count, responses.size());
+			for (int i = 0; i < count; i++)
+				Assert.assertTrue(responses.get(i) instanceof VEResMessage);
+			// Sequentially these requests would have taken count * delay
+			Assert.assertTrue(elapsed < count * delay / 10);
+			Assert.assertTrue(threads.size() <= 2);
+			Assert.assertEquals(count, client.getRequestCount());
+			Assert.assertEquals(0, client.getInFlightCount());
+			Assert.assertEquals(0, client.getFailureCount());
+
+			// Pooled connections are reused by the next requests
+			DirectoryFuture future = new Communicator().sendAsync(reqMsg, url);
+			Assert.assertTrue(future.get(10000) instanceof VEResMessage);
+			Assert.assertEquals(1, client.getReuseCount());
+		} finally {
+			AsyncDirectoryClient.setInstance(null);
+			dir.close();
+		}
+	}
+
+	/**
+	 * Minimal keep-alive HTTP server standing in for a directory server
+	 */
+	private static class StandInDirectory implements Runnable {
+		static final String RESPONSE =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure>"
+				+ "<Message id=\"1\"><VERes><version>1.0.2</version>"
+				+ "<CH><enrolled>Y</enrolled><acctID>NDU2MzIxODg4ODg4ODg4OA==</acctID></CH>"
+				+ "<url>https://acs.example.com/pareq</url>"
+				+ "</VERes></Message></ThreeDSecure>";
+
+		private ServerSocket server;
+		private String response;
+		private List sockets = new ArrayList();
+		private int connectionCount;
+		private boolean closeAfterResponse;
+		private boolean chunked;
+		private long delay;
+
+		StandInDirectory(ServerSocket server) {
+			this(server, RESPONSE);
+		}
+
+		StandInDirectory(ServerSocket server, String response) {
+			this.server = server;
+			this.response = response;
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		synchronized int getConnectionCount() {
+			return connectionCount;
+		}
+
+		synchronized void setCloseAfterResponse(boolean closeAfterResponse) {
+			this.closeAfterResponse = closeAfterResponse;
+		}
+
+		synchronized boolean isCloseAfterResponse() {
+			return closeAfterResponse;
+		}
+
+		synchronized void setChunked(boolean chunked) {
+			this.chunked = chunked;
+		}
+
+		synchronized boolean isChunked() {
+			return chunked;
+		}
+
+		synchronized void setDelay(long delay) {
+			this.delay = delay;
+		}
+
+		synchronized long getDelay() {
+			return delay;
+		}
+
+		synchronized void dropIdleConnections() throws IOException {
+			for (int i = 0; i < sockets.size(); i++)
+				 ((Socket) sockets.get(i)).close();
+			sockets.clear();
+		}
+
+		void close() throws IOException {
+			server.close();
+			dropIdleConnections();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					synchronized (this) {
+						connectionCount++;
+						sockets.add(socket);
+					}
+					new Thread(new Runnable() {
+						public void run() {
+							serve(socket);
+						}
+					}).start();
+				}
+			} catch (IOException closed) {
+			}
+		}
+
+		private void serve(Socket socket) {
+			try {
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				String line;
+				while ((line = readLine(in)) != null) {
+					int length = 0;
+					while ((line = readLine(in)) != null && line.length() > 0) {
+						if (line.toLowerCase().startsWith("content-length:"))
+							length = Integer.parseInt(line.substring(15).trim());
+					}
+					for (int i = 0; i < length; i++)
+						in.read();
+
+					long delay = getDelay();
+					if (delay > 0) {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException ie) {
+						}
+					}
+					boolean close = isCloseAfterResponse();
+					boolean chunked = isChunked();
+					byte[] content = response.getBytes("UTF-8");
+					String head =
+						"HTTP/1.1 200 OK\r\n"
+							+ "Content-Type: application/xml; charset=\"utf-8\"\r\n"
+							+ (chunked
+								? "Transfer-Encoding: chunked\r\n"
+								: "Content-Length: " + content.length + "\r\n")
+							+ (close ? "Connection: close\r\n" : "")
+							+ "\r\n";
+					out.write(head.getBytes("ISO-8859-1"));
+					if (chunked) {
+						for (int off = 0; off < content.length; off += 8192) {
+							int len = Math.min(8192, content.length - off);
+							out.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+							out.write(content, off, len);
+							out.write("\r\n".getBytes("ISO-8859-1"));
+						}
+						out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+					}
+					else
+						out.write(content);
+					out.flush();
+					if (close)
+						break;
+				}
+			} catch (IOException dropped) {
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuffer line = new StringBuffer();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r')
+					line.append((char) c);
+			}
+			return (c == -1 && line.length() == 0) ? null : line.toString();
+		}
+	}
+
 	public static Test suite() {
 
 		JUnitHelper.initFromFile();
@@ -187,6 +892,15 @@ public class ControllerTest extends TestCase {
  		TestSuite suite = new TestSuite("Controller suite");
 		suite.addTest(new ControllerTest("testAuthServlet"));
 		suite.addTest(new ControllerTest("testCommunicator"));
+		suite.addTest(new ControllerTest("testDirectoryClient"));
+		suite.addTest(new ControllerTest("testDirectoryRouter"));
+		suite.addTest(new ControllerTest("testDirectoryHedging"));
+		suite.addTest(new ControllerTest("testLargeCardRangeResponse"));
+		suite.addTest(new ControllerTest("testAsyncDirectoryLoad"));
+		suite.addTest(new ControllerTest("testRetryPolicy"));
+		suite.addTest(new ControllerTest("testErrorDispatcher"));
+		suite.addTest(new ControllerTest("testErrorDispatcherHandOver"));
+		suite.addTest(new ControllerTest("testCardRangeRefreshJitter"));
 		return suite;
 	}
 
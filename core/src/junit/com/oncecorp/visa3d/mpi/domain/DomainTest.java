@@ -41,6 +41,12 @@
 
 package com.oncecorp.visa3d.mpi.domain;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+
 import com.oncecorp.visa3d.mpi.CoreInitializer;
 import com.oncecorp.visa3d.mpi.domain.payment.CRReqMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.CRResMessage;
@@ -337,6 +343,238 @@ public class DomainTest extends TestCase {
 		}
 	}
 
+	/**
+	* Test CardRangeIndex lookups: merged ranges, bounds and card numbers
+	* which are not numbers.
+	*/
+	public void testCardRangeIndex() {
+		CardRangeIndex index =
+			CardRangeIndex.build(
+				new Object[] {
+					new Long(4505100020007000L),
+					new Long(4505100020003000L),
+					new Long(4505100020003500L),
+					new Long(4505100020004001L),
+					new Long(4505100020009000L)},
+				new Object[] {
+					new Long(4505100020007999L),
+					new Long(4505100020003999L),
+					new Long(4505100020004000L),
+					new Long(4505100020004500L),
+					new Long(4505100020008000L)});
+
+		// Overlapping and adjacent ranges merged, empty range dropped
+		assertEquals(2, index.size());
+		assertEquals(4505100020003000L, index.getBegin(0));
+		assertEquals(4505100020004500L, index.getEnd(0));
+		assertEquals(4505100020007000L, index.getBegin(1));
+		assertEquals(4505100020007999L, index.getEnd(1));
+
+		assertTrue(index.contains("4505100020003000"));
+		assertTrue(index.contains("4505100020004000"));
+		assertTrue(index.contains("4505100020004500"));
+		assertTrue(index.contains("4505100020007999"));
+		assertTrue(!index.contains("4505100020002999"));
+		assertTrue(!index.contains("4505100020004501"));
+		assertTrue(!index.contains("4505100020008000"));
+		assertTrue(!index.contains("4505100020009000"));
+		assertTrue(!index.contains("45051000200030x0"));
+		assertTrue(!index.contains("99999999999999999999"));
+		assertTrue(!CardRangeIndex.EMPTY.contains("4505100020003000"));
+	}
+
+	/**
+	* Micro-benchmark of card verification over 50000 ranges, against a
+	* binary search over boxed Long arrays.
+	*/
+	public void testCardRangeIndexBenchmark() {
+		final int NB_RANGES = 50000;
+		final int NB_LOOKUPS = 1000000;
+		final long FIRST = 4000000000000000L;
+
+		Long[] boxedBegins = new Long[NB_RANGES];
+		Long[] boxedEnds = new Long[NB_RANGES];
+		for (int i = 0; i < NB_RANGES; i++) {
+			boxedBegins[i] = new Long(FIRST + i * 10000L);
+			boxedEnds[i] = new Long(FIRST + i * 10000L + 999);
+		}
+		CardRangeIndex index = CardRangeIndex.build(boxedBegins, boxedEnds);
+		assertEquals(NB_RANGES, index.size());
+
+		Random random = new Random(42);
+		String[] cards = new String[1024];
+		for (int i = 0; i < cards.length; i++)
+			cards[i] = String.valueOf(FIRST + (long) (random.nextDouble() * NB_RANGES * 10000L));
+
+		for (int warmup = 0; warmup < 3; warmup++) {
+			int found = 0;
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < NB_LOOKUPS; i++) {
+				if (index.contains(cards[i & 1023]))
+					found++;
+			}
+			long primitive = System.currentTimeMillis() - start;
+
+			int boxedFound = 0;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < NB_LOOKUPS; i++) {
+				Long card = Long.valueOf(cards[i & 1023]);
+				int low = 0;
+				int high = NB_RANGES - 1;
+				while (low <= high) {
+					int mid = (low + high) >>> 1;
+					if (card.compareTo(boxedBegins[mid]) >= 0)
+						low = mid + 1;
+					else
+						high = mid - 1;
+				}
+				if (high >= 0 && card.compareTo(boxedEnds[high]) <= 0)
+					boxedFound++;
+			}
+			long boxed = System.currentTimeMillis() - start;
+
+			assertEquals(boxedFound, found);
+			System.out.println(
+				NB_LOOKUPS + " card verifications over " + NB_RANGES + " ranges - Long[]: "
+					+ boxed + " ms, CardRangeIndex: " + primitive + " ms");
+		}
+	}
+
+	/**
+	* Test saving and restoring card ranges, and the rejection of a corrupted
+	* snapshot.
+	*/
+	public void testCardRangeSnapshot() {
+		String protocol = MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "crs-" + System.currentTimeMillis());
+		CardRangeSnapshot snapshot = new CardRangeSnapshot(dir);
+		try {
+			TreeSet begins = new TreeSet();
+			TreeSet ends = new TreeSet();
+			begins.add(new Long(5405100020003000L));
+			ends.add(new Long(5405100020003999L));
+			begins.add(new Long(5405100020007000L));
+			ends.add(new Long(5405100020007999L));
+			CardRangeManager.setSerialNumber(protocol, "42");
+			CardRangeManager.setBufferedBegins(protocol, begins);
+			CardRangeManager.setBufferedEnds(protocol, ends);
+			assertTrue(snapshot.save(protocol));
+
+			// Restart
+			CardRangeManager.setSerialNumber(protocol, null);
+			CardRangeManager.setBufferedBegins(protocol, null);
+			CardRangeManager.setBufferedEnds(protocol, null);
+			CardRangeManager.setCardRangeLoaded(protocol, false);
+			(new CardRangeManager()).refresh(protocol);
+
+			assertTrue(snapshot.restore(protocol));
+			assertEquals("42", CardRangeManager.getSerialNumber(protocol));
+			assertEquals(begins, CardRangeManager.getBufferedBegins(protocol));
+			assertEquals(ends, CardRangeManager.getBufferedEnds(protocol));
+			assertTrue(CardRangeManager.isCardRangeLoaded(protocol));
+			assertTrue((new CardRangeManager()).verifyCard("5405100020007500"));
+			assertTrue(!(new CardRangeManager()).verifyCard("5405100020005000"));
+
+			// Not restored over card ranges already loaded
+			assertTrue(!snapshot.restore(protocol));
+
+			// Corrupted range
+			File file = snapshot.file(protocol);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(file.length() - 12);
+			raf.write(raf.read() ^ 0xff);
+			raf.close();
+			CardRangeManager.setCardRangeLoaded(protocol, false);
+			assertTrue(!snapshot.restore(protocol));
+			assertTrue(!file.exists());
+
+			// Truncated file
+			assertTrue(snapshot.save(protocol));
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(file.length() - 1);
+			raf.close();
+			assertTrue(!snapshot.restore(protocol));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			snapshot.delete(protocol);
+			dir.delete();
+			CardRangeManager.setSerialNumber(protocol, null);
+			CardRangeManager.setBufferedBegins(protocol, null);
+			CardRangeManager.setBufferedEnds(protocol, null);
+			CardRangeManager.setCardRangeLoaded(protocol, false);
+			(new CardRangeManager()).refresh(protocol);
+		}
+	}
+
+	/**
+	* Test card scheme routing: prefix ranges, most specific rule first,
+	* invalid rules and runtime update.
+	*/
+	public void testBinRouting() {
+		String visa = MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE;
+		String mc = MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE;
+		HashMap targets = new HashMap();
+		targets.put(visa, "visa");
+		targets.put(mc, "mc");
+
+		BinRoutingIndex routing =
+			BinRoutingIndex.build(
+				"4=" + visa + "; 51-55=" + mc + ";2221-2720=" + mc
+					+ "; 5412345=" + visa.toUpperCase(),
+				targets);
+		assertEquals(visa, routing.getProtocol("4505100020003015"));
+		assertEquals(mc, routing.getProtocol("5105100020003015"));
+		assertEquals(mc, routing.getProtocol("5599999999999999"));
+		assertEquals(mc, routing.getProtocol("2221000000000009"));
+		assertEquals(mc, routing.getProtocol("2720999999999999"));
+		assertNull(routing.getProtocol("2220999999999999"));
+		assertNull(routing.getProtocol("2721000000000000"));
+		assertNull(routing.getProtocol("5605100020003015"));
+		assertNull(routing.getProtocol("3705100020003015"));
+		assertNull(routing.getProtocol("4x05100020003015"));
+
+		// Most specific rule wins, the rest of its range is kept
+		assertEquals(visa, routing.getProtocol("5412345000000000"));
+		assertEquals(mc, routing.getProtocol("5412344999999999"));
+		assertEquals(mc, routing.getProtocol("5412346000000000"));
+		assertEquals("visa", routing.getTarget(routing.find("5412345000000000")));
+		assertEquals(5, routing.size());
+
+		String[] invalid =
+			new String[] {
+				"4",
+				"4=Amex SafeKey",
+				"4a=" + visa,
+				"123456789=" + visa,
+				"55-51=" + mc };
+		for (int i = 0; i < invalid.length; i++) {
+			try {
+				BinRoutingIndex.build(invalid[i], targets);
+				fail(invalid[i]);
+			} catch (IllegalArgumentException iae) {
+				// good
+			}
+		}
+
+		try {
+			CardRangeManager.setRouting("4=" + visa + "; 2221-2720=" + mc);
+			assertEquals(mc, CardRangeManager.getProtocolType("2221000000000009"));
+			assertNull(CardRangeManager.getProtocolType("5105100020003015"));
+			assertTrue(!(new CardRangeManager()).verifyCard("5105100020003015"));
+			try {
+				CardRangeManager.setRouting("4=Amex SafeKey");
+				fail();
+			} catch (IllegalArgumentException iae) {
+				// good, routing unchanged
+			}
+			assertEquals(mc, CardRangeManager.getProtocolType("2221000000000009"));
+		} finally {
+			CardRangeManager.setRouting(null);
+		}
+	}
+
 	public static Test suite() {
 		boolean initOK = CoreInitializer.init();
 		if (!initOK) {
@@ -347,6 +585,10 @@ public class DomainTest extends TestCase {
 		TestSuite suite = new TestSuite("Domain suite");
 		suite.addTest(new DomainTest("testCRReq"));
 		suite.addTest(new DomainTest("testCRRes"));
+		suite.addTest(new DomainTest("testCardRangeIndex"));
+		suite.addTest(new DomainTest("testCardRangeIndexBenchmark"));
+		suite.addTest(new DomainTest("testCardRangeSnapshot"));
+		suite.addTest(new DomainTest("testBinRouting"));
 		return suite;
 	}
 
@@ -41,11 +41,29 @@
 
 package com.oncecorp.visa3d.mpi.intf.payment;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
 import com.oncecorp.visa3d.mpi.CoreInitializer;
+import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorCodes;
+import com.oncecorp.visa3d.mpi.domain.payment.ErrorMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.PAReqMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
+import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
+import com.oncecorp.visa3d.mpi.messaging.MessageGenerator;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransaction;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransactionDAO;
+import com.oncecorp.visa3d.mpi.security.TripleDESEncrypter;
+import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -112,6 +130,393 @@ public class PaymentIntfTest extends TestCase {
 		}
 	}
 
+	/**
+	* This test exercises the concurrent cache manager: items added from
+	* several threads must be retrievable, replaceable and removable.
+	*/
+	public void testConcurrentCacheManager() {
+		final ConcurrentPaymentMessageCacheManager cacheManager =
+			new ConcurrentPaymentMessageCacheManager();
+		final int threadCount = 10;
+		final int itemCount = 500;
+		int initialCount = ConcurrentPaymentMessageCacheManager.getItemCount();
+
+		try {
+			Thread[] threads = new Thread[threadCount];
+			for (int i = 0; i < threadCount; i++) {
+				final String prefix = "CID-" + i + "-";
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							for (int j = 0; j < itemCount; j++)
+								cacheManager.addItem(prefix + j, "Item-" + j);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threadCount; i++)
+				threads[i].join();
+
+			assertEquals(
+				initialCount + threadCount * itemCount,
+				ConcurrentPaymentMessageCacheManager.getItemCount());
+			assertEquals("Item-7", cacheManager.getCachedItem("CID-3-7"));
+
+			// Replacing an item keeps a single entry
+			cacheManager.addItem("CID-3-7", "Replaced");
+			assertEquals("Replaced", cacheManager.getCachedItem("CID-3-7"));
+			assertEquals(
+				initialCount + threadCount * itemCount,
+				ConcurrentPaymentMessageCacheManager.getItemCount());
+
+			for (int i = 0; i < threadCount; i++)
+				for (int j = 0; j < itemCount; j++)
+					cacheManager.removeItem("CID-" + i + "-" + j);
+
+			assertNull(cacheManager.getCachedItem("CID-3-7"));
+			assertEquals(initialCount, ConcurrentPaymentMessageCacheManager.getItemCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	* An item left in the concurrent cache past its expiry interval is removed
+	* by the timing wheel and reported as an ERROR_CODE_70 ErrorMessage.
+	*/
+	public void testConcurrentCacheExpiry() {
+		ConcurrentPaymentMessageCacheManager cacheManager =
+			new ConcurrentPaymentMessageCacheManager();
+		long interval = ConcurrentPaymentMessageCacheManager.getInterval();
+		long reported = IncompleteTransactionPublisher.getReportedCount();
+
+		try {
+			PAReqMessage pareq = new PAReqMessage();
+			pareq.setId("EXP-1");
+			pareq.setMerID("merchant-expired");
+
+			PaymentCacheObject item = new PaymentCacheObject();
+			item.setPareqMsg(pareq);
+			item.setProtocolType("3-D Secure");
+
+			ConcurrentPaymentMessageCacheManager.setInterval(100);
+			cacheManager.addItem("EXP-1", item);
+			assertSame(item, cacheManager.getCachedItem("EXP-1"));
+
+			// The wheel ticks every second
+			long deadline = System.currentTimeMillis() + 5000;
+			while (((cacheManager.getCachedItem("EXP-1") != null)
+				|| (IncompleteTransactionPublisher.getReportedCount() == reported))
+				&& (System.currentTimeMillis() < deadline))
+				Thread.sleep(50);
+
+			assertNull(cacheManager.getCachedItem("EXP-1"));
+			assertTrue(IncompleteTransactionPublisher.getReportedCount() > reported);
+
+			ErrorMessage errMsg =
+				IncompleteTransactionPublisher.createErrorMessage("EXP-1", "Test");
+			assertEquals("EXP-1", errMsg.getId());
+			assertEquals(ErrorCodes.ERROR_CODE_70, errMsg.getErrorCode());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			ConcurrentPaymentMessageCacheManager.setInterval(interval);
+			cacheManager.removeItem("EXP-1");
+		}
+	}
+
+	/**
+	* A replacement refused for lack of space leaves the record it was meant
+	* to replace in place; with eviction, older records make room instead.
+	*/
+	public void testPendingTransactionSegment() {
+		PendingTransactionSegment segment =
+			new PendingTransactionSegment(ByteBuffer.allocate(64), 16, 4);
+		byte[] keyA = "A".getBytes();
+		byte[] keyB = "B".getBytes();
+		List dropped = new ArrayList();
+
+		assertTrue(segment.put(1, keyA, segmentRecord("A", 32), 1000, 0, false, dropped));
+		assertTrue(segment.put(2, keyB, segmentRecord("B", 32), 1000, 0, false, dropped));
+
+		// 3 slots needed, only the 2 of the replaced record can be reused
+		assertTrue(!segment.put(1, keyA, segmentRecord("A", 48), 2000, 0, false, dropped));
+		assertEquals(32, segment.get(1, keyA).length);
+		assertEquals(2, segment.getEntryCount());
+		assertEquals(1, segment.getRejectionCount());
+		assertEquals(0, dropped.size());
+
+		// Same size: the replaced record's slots are enough
+		assertTrue(segment.put(1, keyA, segmentRecord("A", 30), 2000, 0, false, dropped));
+		assertEquals(30, segment.get(1, keyA).length);
+
+		// Expired records are reclaimed
+		assertTrue(segment.put(1, keyA, segmentRecord("A", 48), 3000, 1500, false, dropped));
+		assertEquals(48, segment.get(1, keyA).length);
+		assertNull(segment.get(2, keyB));
+		assertEquals(1, dropped.size());
+		assertEquals(1, segment.getExpirationCount());
+
+		// Eviction of live records
+		dropped.clear();
+		assertTrue(segment.put(2, keyB, segmentRecord("B", 32), 4000, 0, true, dropped));
+		assertNull(segment.get(1, keyA));
+		assertEquals(1, dropped.size());
+		assertEquals(1, segment.getEvictionCount());
+	}
+
+	private static byte[] segmentRecord(String key, int length) {
+		byte[] record = new byte[length];
+		System.arraycopy(key.getBytes(), 0, record, 0, key.length());
+		return record;
+	}
+
+	public void testBoundedCacheManager() {
+		BoundedPaymentMessageCacheManager cacheManager =
+			new BoundedPaymentMessageCacheManager();
+		int initialCount = BoundedPaymentMessageCacheManager.getItemCount();
+		long initialBytes = BoundedPaymentMessageCacheManager.getUsedBytes();
+
+		try {
+			VEReqMessage vereq = new VEReqMessage();
+			vereq.setId("BID-1");
+			vereq.setPan("4012001037141112");
+			vereq.setMerID("merchant-1");
+
+			PAReqMessage pareq = new PAReqMessage();
+			pareq.setId("BID-1");
+			pareq.setMerAcqBIN("123456");
+			pareq.setMerID("merchant-1");
+			pareq.setPurXid("MDEyMzQ1Njc4OTAxMjM0NTY3ODk=");
+			pareq.setPurDate("20030221 12:30:00");
+			pareq.setPurAmount("12345");
+			pareq.setPurCurrency("840");
+			pareq.setPurExponent("2");
+
+			// Merchant data larger than one slot is chained across slots
+			StringBuffer merchantData = new StringBuffer();
+			for (int i = 0; i < 300; i++)
+				merchantData.append("MD-" + i + ";");
+
+			PaymentCacheObject item = new PaymentCacheObject();
+			item.setVereqMsg(vereq);
+			item.setPareqMsg(pareq);
+			item.setAcsUrl("https://acs.example.com/pareq");
+			item.setMerchantData(merchantData.toString());
+			item.setProtocolType("3-D Secure");
+			item.setMerchantURL("https://merchant.example.com/term");
+
+			cacheManager.addItem("BID-1", item);
+			assertEquals(initialCount + 1, BoundedPaymentMessageCacheManager.getItemCount());
+			assertTrue(BoundedPaymentMessageCacheManager.getUsedBytes() > initialBytes);
+			assertTrue(
+				BoundedPaymentMessageCacheManager.getUsedBytes()
+					<= BoundedPaymentMessageCacheManager.getCapacityBytes());
+
+			PaymentCacheObject cached =
+				(PaymentCacheObject) cacheManager.getCachedItem("BID-1");
+			assertEquals("BID-1", cached.getVereqMsg().getId());
+			assertEquals("4012001037141112", cached.getVereqMsg().getPan());
+			assertEquals("merchant-1", cached.getVereqMsg().getMerID());
+			assertEquals("123456", cached.getPareqMsg().getMerAcqBIN());
+			assertEquals("MDEyMzQ1Njc4OTAxMjM0NTY3ODk=", cached.getPareqMsg().getPurXid());
+			assertEquals("20030221 12:30:00", cached.getPareqMsg().getPurDate());
+			assertEquals("12345", cached.getPareqMsg().getPurAmount());
+			assertEquals("840", cached.getPareqMsg().getPurCurrency());
+			assertEquals("2", cached.getPareqMsg().getPurExponent());
+			assertEquals("https://acs.example.com/pareq", cached.getAcsUrl());
+			assertEquals(merchantData.toString(), cached.getMerchantData());
+			assertEquals("3-D Secure", cached.getProtocolType());
+			assertEquals("https://merchant.example.com/term", cached.getMerchantURL());
+
+			assertNull(cacheManager.getCachedItem("BID-2"));
+
+			cacheManager.removeItem("BID-1");
+			assertNull(cacheManager.getCachedItem("BID-1"));
+			assertEquals(initialCount, BoundedPaymentMessageCacheManager.getItemCount());
+			assertEquals(initialBytes, BoundedPaymentMessageCacheManager.getUsedBytes());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * Reporting an incomplete transaction primes the session with the
+	 * merchant of that transaction, and leaves the session of the calling
+	 * thread as it found it.
+	 */
+	public void testIncompleteTransactionSession() {
+		AuthenticatorSession session = AuthenticatorSession.instance();
+		try {
+			PAReqMessage pareq = new PAReqMessage();
+			pareq.setId("ITP-1");
+			pareq.setMerID("merchant-dropped");
+
+			PaymentCacheObject item = new PaymentCacheObject();
+			item.setPareqMsg(pareq);
+			item.setProtocolType("3-D Secure");
+
+			session.setMerchantID("merchant-current");
+			session.setDeadline(12345);
+			IncompleteTransactionPublisher.publish("ITP-1", item, "Test");
+
+			assertEquals("merchant-current", session.getMerchantID());
+			assertEquals(12345, session.getDeadline());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			session.reset();
+		}
+	}
+
+	public void testSharedCacheManager() {
+		JUnitHelper.initTransactionStore();
+
+		// Every node loads the same Triple-DES key
+		TripleDESEncrypter.getInstance();
+		SecretKey key = TripleDESEncrypter.getSecretKey();
+
+		// Two core nodes sharing the same store
+		SharedPaymentMessageCacheManager nodeA = new SharedPaymentMessageCacheManager();
+		SharedPaymentMessageCacheManager nodeB = new SharedPaymentMessageCacheManager();
+
+		try {
+			TripleDESEncrypter.setSecretKey(
+				KeyGenerator.getInstance("DESede").generateKey());
+
+			VEReqMessage vereq = new VEReqMessage();
+			vereq.setId("SID-1");
+			vereq.setPan("4012001037141112");
+			vereq.setMerID("merchant-1");
+
+			PAReqMessage pareq = new PAReqMessage();
+			pareq.setId("SID-1");
+			pareq.setMerAcqBIN("123456");
+			pareq.setMerID("merchant-1");
+			pareq.setPurXid("MDEyMzQ1Njc4OTAxMjM0NTY3ODk=");
+			pareq.setPurDate("20030221 12:30:00");
+			pareq.setPurAmount("12345");
+			pareq.setPurCurrency("840");
+			pareq.setPurExponent("2");
+
+			PaymentCacheObject item = new PaymentCacheObject();
+			item.setVereqMsg(vereq);
+			item.setPareqMsg(pareq);
+			item.setAcsUrl("https://acs.example.com/pareq");
+			item.setMerchantData("merchant data");
+			item.setProtocolType("3-D Secure");
+			item.setMerchantURL("https://merchant.example.com/term");
+
+			// Verify on node A: served from its near-cache
+			nodeA.addItem("SID-1", item);
+			assertSame(item, nodeA.getCachedItem("SID-1"));
+
+			// Auth on node B once written behind
+			nodeA.flush();
+			assertEquals(0, nodeA.getPendingWriteCount());
+
+			// The store never holds the PAN in clear
+			PendingTransaction tx =
+				(PendingTransaction) new PendingTransactionDAO().retrieve("SID-1");
+			assertNotNull(tx);
+			assertTrue(new String(tx.getData(), "ISO-8859-1").indexOf("4012001037141112") < 0);
+
+			PaymentCacheObject cached = (PaymentCacheObject) nodeB.getCachedItem("SID-1");
+			assertNotNull(cached);
+			assertEquals("4012001037141112", cached.getVereqMsg().getPan());
+			assertEquals("MDEyMzQ1Njc4OTAxMjM0NTY3ODk=", cached.getPareqMsg().getPurXid());
+			assertEquals("merchant data", cached.getMerchantData());
+
+			// Later lookups on node B do not read the store again
+			assertSame(cached, nodeB.getCachedItem("SID-1"));
+			assertEquals(1, nodeB.getRemoteHitCount());
+
+			// Removal on node B is seen by the other nodes
+			nodeB.removeItem("SID-1");
+			nodeB.flush();
+			SharedPaymentMessageCacheManager nodeC = new SharedPaymentMessageCacheManager();
+			assertNull(nodeC.getCachedItem("SID-1"));
+			assertEquals(1, nodeC.getMissCount());
+			nodeC.shutdown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			nodeA.shutdown();
+			nodeB.shutdown();
+			TripleDESEncrypter.setSecretKey(key);
+		}
+	}
+
+	/**
+	 * Not enrolled VERes are reused for the same card and merchant until
+	 * they expire, other answers and merchants are not cached.
+	 */
+	public void testEnrollmentCache() {
+		try {
+			HashSet merchants = new HashSet();
+			merchants.add("M1");
+			EnrollmentCache cache = new EnrollmentCache(200, 2, merchants);
+
+			VEResMessage notEnrolled = newVERes("N", null);
+			assertTrue(cache.put("M1", "4012001037141112", notEnrolled));
+			assertSame(notEnrolled, cache.get("M1", "4012001037141112"));
+			assertNull(cache.get("M1", "4012001037141113"));
+			assertEquals(1, cache.getHitCount());
+			assertEquals(1, cache.getMissCount());
+			assertEquals(50, cache.getHitRatio());
+
+			// Other merchants, enrolled cards and invalid requests are not cached
+			assertTrue(!cache.put("M2", "4012001037141112", notEnrolled));
+			assertNull(cache.get("M2", "4012001037141112"));
+			assertTrue(!cache.put("M1", "4012001037141113", newVERes("Y", null)));
+			assertTrue(!cache.put("M1", "4012001037141113", newVERes("U", null)));
+			assertTrue(!cache.put("M1", "4012001037141113", newVERes("N", "51")));
+
+			// Least recently used entry goes first
+			cache.put("M1", "4012001037141113", newVERes("N", null));
+			cache.get("M1", "4012001037141112");
+			cache.put("M1", "4012001037141114", newVERes("N", null));
+			assertEquals(2, cache.getSize());
+			assertNotNull(cache.get("M1", "4012001037141112"));
+			assertNull(cache.get("M1", "4012001037141113"));
+
+			// Entries expire
+			Thread.sleep(300);
+			assertNull(cache.get("M1", "4012001037141112"));
+			assertEquals(1, cache.getExpiredCount());
+
+			// Flush
+			assertEquals(1, cache.flush());
+			assertEquals(0, cache.getSize());
+
+			// Disabled without TTL
+			EnrollmentCache disabled = new EnrollmentCache(0, 10, null);
+			assertTrue(!disabled.put("M1", "4012001037141112", notEnrolled));
+			assertTrue(new EnrollmentCache(1000, 10, null).put("M3", "4012001037141112", notEnrolled));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	private VEResMessage newVERes(String enrolled, String iReqCode) throws Exception {
+		VEResMessage msg =
+			(VEResMessage) MessageGenerator.create(
+				VEResMessage.MSG_TYPE,
+				VEResMessage.MSG_VERSION);
+		msg.setEnrolled(enrolled);
+		msg.setIReqCode(iReqCode);
+		return msg;
+	}
+
 	public static Test suite() {
 		boolean initOK = CoreInitializer.init();
 		if (!initOK) {
@@ -123,6 +528,13 @@ public class PaymentIntfTest extends TestCase {
 
 		TestSuite suite = new TestSuite("Intf.Payment suite");
 		suite.addTest(new PaymentIntfTest("testCacheManager"));
+		suite.addTest(new PaymentIntfTest("testConcurrentCacheManager"));
+		suite.addTest(new PaymentIntfTest("testConcurrentCacheExpiry"));
+		suite.addTest(new PaymentIntfTest("testPendingTransactionSegment"));
+		suite.addTest(new PaymentIntfTest("testBoundedCacheManager"));
+		suite.addTest(new PaymentIntfTest("testIncompleteTransactionSession"));
+		suite.addTest(new PaymentIntfTest("testSharedCacheManager"));
+		suite.addTest(new PaymentIntfTest("testEnrollmentCache"));
 		return suite;
 	}
 	
@@ -31,6 +31,7 @@
  *        PaymentAuthReqMessage
  *        PaymentAuthResMessage
  * 		  DomToMsgConverter
+ * 		  StreamingMsgConverter
  * 		  PAResToPaymentAuthResTransformer
  *
  * @version 0.1 Aug 06, 2002
@@ -41,10 +42,13 @@ package com.oncecorp.visa3d.mpi.messaging;
 
 import com.ibm.xml.dsig.util.Base64;
 import com.oncecorp.visa3d.mpi.CoreInitializer;
+import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
+import com.oncecorp.visa3d.mpi.controller.AuthenticatorSession;
 import com.oncecorp.visa3d.mpi.domain.payment.ErrorMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.PAReqMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.PAResMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.PAResToPaymentAuthResTransformer;
+import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
 import com.oncecorp.visa3d.mpi.domain.payment.VEResMessage;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentAuthReqMessage;
 import com.oncecorp.visa3d.mpi.intf.payment.PaymentAuthResMessage;
@@ -52,10 +56,15 @@ import com.oncecorp.visa3d.mpi.intf.payment.PaymentVerifReqMessage;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageMetaInfo;
 import com.oncecorp.visa3d.mpi.messaging.meta.MessageUID;
 import com.oncecorp.visa3d.mpi.utility.XMLUtil;
+import com.oncecorp.visa3d.mpi.utility.XMLWriter;
 import com.oncecorp.visa3d.mpi.utility.ZLibCompressor;
 import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
+import com.oncecorp.visa3d.mpi.utility.Utils;
 
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
 
 import junit.framework.Assert;
@@ -1695,6 +1704,330 @@ public class MessagingTest extends TestCase {
 
 	}
 
+	/**
+	 * Check the processor / transformer registry of MessageMetaInfo and
+	 * compare its dispatch cost with the reflective instantiation it replaces.
+	 */
+	public void testProcessorRegistry() {
+		try {
+			MessageMetaInfo.init();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Unresolvable processor in message definitions");
+		}
+
+		MessageUID veresUID = new MessageUID(VEResMessage.MSG_TYPE, VEResMessage.MSG_VERSION);
+		MessageUID paresUID = new MessageUID(PAResMessage.MSG_TYPE, PAResMessage.MSG_VERSION);
+		MessageUID authReqUID =
+			new MessageUID(PaymentAuthReqMessage.MSG_TYPE, PaymentAuthReqMessage.MSG_VERSION);
+
+		// Stateless processors and transformers are shared
+		Object processor = MessageMetaInfo.getProcessor(veresUID);
+		assertNotNull(processor);
+		assertSame(processor, MessageMetaInfo.getProcessor(veresUID));
+		Object transformer =
+			MessageMetaInfo.getTransformer(
+				paresUID,
+				PaymentAuthResMessage.MSG_TYPE,
+				PaymentAuthResMessage.MSG_VERSION);
+		assertTrue(transformer instanceof PAResToPaymentAuthResTransformer);
+		assertSame(
+			transformer,
+			MessageMetaInfo.getTransformer(
+				paresUID,
+				PaymentAuthResMessage.MSG_TYPE,
+				PaymentAuthResMessage.MSG_VERSION));
+		assertNull(MessageMetaInfo.getTransformer(paresUID, "Unknown", "1.0"));
+
+		// PaymentAuthReqProcessor keeps the cached item between process() and
+		// processComplex(), so each message gets its own instance
+		Object authReqProcessor = MessageMetaInfo.getProcessor(authReqUID);
+		assertNotNull(authReqProcessor);
+		assertTrue(authReqProcessor != MessageMetaInfo.getProcessor(authReqUID));
+
+		// Micro-benchmark: registry dispatch vs reflective instantiation
+		final int NB_DISPATCH = 200000;
+		String clz = processor.getClass().getName();
+		try {
+			for (int warmup = 0; warmup < 2; warmup++) {
+				long start = System.currentTimeMillis();
+				for (int i = 0; i < NB_DISPATCH; i++)
+					Class.forName(clz).newInstance();
+				long reflective = System.currentTimeMillis() - start;
+
+				start = System.currentTimeMillis();
+				for (int i = 0; i < NB_DISPATCH; i++)
+					MessageMetaInfo.getProcessor(veresUID);
+				long registry = System.currentTimeMillis() - start;
+
+				System.out.println(
+					NB_DISPATCH + " processor dispatches - Class.forName().newInstance(): "
+						+ reflective + " ms, registry: " + registry + " ms");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * Run the message corpus of this test, plus malformed variants, through
+	 * DomToMsgConverter and StreamingMsgConverter and check that both give
+	 * the same message or the same error.
+	 */
+	public void testStreamingConverter() {
+		String veresHeader =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure><Message id=\"999\"><VERes>";
+		String crresHeader =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><ThreeDSecure><Message id=\"999\"><CRRes>"
+				+ "<version>1.0.1</version>";
+		String[] corpus =
+			new String[] {
+				pvreqXmlStr,
+				veresXmlStr,
+				pareqXmlStr,
+				paresXmlStr,
+				authReqXmlStr1 + "eJzVWNuyokgW/RXD89hRxU3xUuGpiOQiooKCXNQ3LimggAqI4tdPoudU1enu6qnpt5kII8id" + authReqXmlStr2,
+				authResXmlStr,
+				errorXmlStr,
+				// Extensions, comments splitting text and default namespaces
+				veresHeader
+					+ "<version>1.0.1</version><CH><enrolled>Y<!-- split -->N</enrolled><acctID>12345678</acctID></CH>"
+					+ "<url>http://visa.acs.com</url><protocol>ThreeDSecure</protocol><protocol>SET</protocol>"
+					+ "<Extension id=\"ext1\" critical=\"false\">value</Extension>"
+					+ "<Extension id=\"ext2\">other</Extension>"
+					+ "</VERes></Message></ThreeDSecure>",
+				veresHeader
+					+ "<version>1.0.1</version><CH xmlns=\"urn:ns\"><enrolled>N</enrolled></CH>"
+					+ "<url>http://visa.acs.com</url></VERes></Message></ThreeDSecure>",
+				veresHeader
+					+ "<version>1.0.1</version><CH><enrolled>N</enrolled></CH>"
+					+ "<Extension critical=\"true\">value</Extension></VERes></Message></ThreeDSecure>",
+				// Card ranges
+				crresHeader
+					+ "<CR><begin>4000000000000000</begin><end>4000000000000999</end><action>A</action></CR>"
+					+ "<CR><begin>4111111111111111</begin><end>4111111111111999</end><action>D</action></CR>"
+					+ "<serialNumber>12</serialNumber></CRRes></Message></ThreeDSecure>",
+				crresHeader
+					+ "<CR><begin>400000</begin><end>4000000000000999</end><action>A</action></CR>"
+					+ "</CRRes></Message></ThreeDSecure>",
+				crresHeader
+					+ "<CR><begin>4000000000000000</begin><end>4000000000000999</end><action>X</action></CR>"
+					+ "</CRRes></Message></ThreeDSecure>",
+				// Header errors
+				"<Unknown><Message id=\"1\"/></Unknown>",
+				"<ThreeDSecure><Msg id=\"1\"/></ThreeDSecure>",
+				"<ThreeDSecure><Message><VERes><version>1.0.1</version></VERes></Message></ThreeDSecure>",
+				"<ThreeDSecure><Message id=\"\"><VERes><version>1.0.1</version></VERes></Message></ThreeDSecure>",
+				"<ThreeDSecure><Message id=\"1\"/></ThreeDSecure>",
+				"<ThreeDSecure><Message id=\"1\"><Unknown/></Message></ThreeDSecure>",
+				veresHeader + "<CH><enrolled>N</enrolled></CH></VERes></Message></ThreeDSecure>",
+				veresHeader + "<version></version></VERes></Message></ThreeDSecure>",
+				veresHeader + "<version>9.9.9</version></VERes></Message></ThreeDSecure>",
+				"<MPI_Interface/>",
+				"<MPI_Interface><PaymentVerifReq><version>1.0</version></PaymentVerifReq></MPI_Interface>",
+				"<MPI_Interface><PaymentVerifReq id=\"1\"><version>1.0</version></PaymentVerifReq></MPI_Interface>" };
+
+		DomToMsgConverter domConverter = new DomToMsgConverter();
+		StreamingMsgConverter streamingConverter =
+			new StreamingMsgConverter(
+				Arrays.asList(
+					new String[] {
+						"CRReq",
+						"CRRes",
+						"VEReq",
+						"VERes",
+						"PAReq",
+						"PARes",
+						"Error",
+						"PaymentVerifReq",
+						"PaymentVerifRes",
+						"PaymentAuthReq",
+						"PaymentAuthRes",
+						"MPIError" }));
+
+		for (int i = 0; i < corpus.length; i++) {
+			String expected;
+			try {
+				expected = domConverter.convert(XMLUtil.createDocument(corpus[i], false)).toString();
+			} catch (MessagingException me) {
+				expected = describe(me);
+			} catch (Exception e) {
+				expected = e.getClass().getName();
+			}
+
+			String actual;
+			try {
+				actual = streamingConverter.convert(corpus[i]).toString();
+			} catch (MessagingException me) {
+				actual = describe(me);
+			} catch (Exception e) {
+				actual = e.getClass().getName();
+			}
+
+			assertEquals("Corpus entry " + i, expected, actual);
+		}
+	}
+
+	/**
+	 * Compare the bytes allocated to serialize VEReq and PAReq messages
+	 * through toString() and getBytes("UTF-8"), as the Communicator used
+	 * to, with writing them into a reused XMLWriter. Both must produce
+	 * the same bytes.
+	 */
+	public void testSerializationBenchmark() {
+		Message[] messages = new Message[2];
+		try {
+			VEReqMessage vereq = new VEReqMessage();
+			vereq.setId(ID_Generator.getUniqueId());
+			vereq.setPan("4510100020003000");
+			vereq.setAcqBIN("123456");
+			vereq.setMerID("123456789012345");
+			vereq.setPassword("password");
+			vereq.setAccept("text/html & application/xml");
+			vereq.setUserAgent("Mozilla/4.0 (compatible; <caf\u00e9> \u20ac\ud834\udd1e)");
+			messages[0] = vereq;
+
+			messages[1] = new DomToMsgConverter().convert(XMLUtil.createDocument(pareqXmlStr, false));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+
+		int iterations = 2000;
+		XMLWriter writer = new XMLWriter();
+		for (int i = 0; i < messages.length; i++) {
+			try {
+				byte[] expected = messages[i].toString().getBytes("UTF-8");
+				writer.reset();
+				messages[i].writeXML(writer);
+				assertTrue(
+					messages[i].getType() + " bytes differ",
+					Arrays.equals(expected, writer.toByteArray()));
+
+				// Warm up both paths before measuring
+				for (int j = 0; j < iterations; j++) {
+					messages[i].toString().getBytes("UTF-8");
+					writer.reset();
+					messages[i].writeXML(writer);
+				}
+
+				long start = allocatedBytes();
+				for (int j = 0; j < iterations; j++)
+					messages[i].toString().getBytes("UTF-8");
+				long stringBytes = allocatedBytes() - start;
+
+				start = allocatedBytes();
+				for (int j = 0; j < iterations; j++) {
+					writer.reset();
+					messages[i].writeXML(writer);
+				}
+				long writerBytes = allocatedBytes() - start;
+
+				if (start < 0) {
+					System.out.println("Allocation counter not available, " + messages[i].getType() + " not measured.");
+				} else {
+					System.out.println(
+						messages[i].getType()
+							+ " ("
+							+ expected.length
+							+ " bytes): toString() allocates "
+							+ (stringBytes / iterations)
+							+ " bytes/message, writeXML() allocates "
+							+ (writerBytes / iterations)
+							+ " bytes/message");
+					assertTrue(writerBytes < stringBytes);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail();
+			}
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, as reported
+	 * by the com.sun.management.ThreadMXBean of the running JVM, or -1 when
+	 * that counter is not available.
+	 * @return long
+	 */
+	private static long allocatedBytes() {
+		try {
+			Object bean =
+				Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean", new Class[0])
+					.invoke(null, new Object[0]);
+			Object threadId =
+				Thread.class.getMethod("getId", new Class[0]).invoke(Thread.currentThread(), new Object[0]);
+			Method getAllocated =
+				Class.forName("com.sun.management.ThreadMXBean").getMethod(
+					"getThreadAllocatedBytes",
+					new Class[] { Long.TYPE });
+			return ((Long) getAllocated.invoke(bean, new Object[] { threadId })).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Test the latency monitor: latencies are reported per stage, message
+	 * type and protocol, since the last flush and for the last interval.
+	 */
+	public void testLatencyMonitor() {
+		LatencyMonitor monitor = new LatencyMonitor();
+		monitor.optFlush();
+		AuthenticatorSession.instance().setProtocol(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE);
+		try {
+			long now = System.nanoTime();
+			for (int i = 0; i < 10; i++)
+				LatencyMonitor.record("TestStage", VEReqMessage.MSG_TYPE, now - 20000000L);
+			LatencyMonitor.record("TestStage", VEReqMessage.MSG_TYPE, now - 200000000L);
+
+			String key = Utils.getMessageMappingKey("TestStage", VEReqMessage.MSG_TYPE);
+			Map results = (Map) monitor.optCumulativeLatencyStatistic().get(key);
+			assertNotNull(results);
+			LatencyStatisticResult visa = (LatencyStatisticResult) results.get("" + Utils.VISA_SUPPORT);
+			LatencyStatisticResult master = (LatencyStatisticResult) results.get("" + Utils.MASTER_SUPPORT);
+			LatencyStatisticResult all = (LatencyStatisticResult) results.get("" + Utils.ALL_SUPPORT);
+			assertEquals(11, visa.getCount());
+			assertEquals(0, master.getCount());
+			assertEquals(11, all.getCount());
+			assertTrue(visa.getP50() >= 20000 && visa.getP50() < 200000);
+			assertTrue(visa.getMax() >= 200000);
+			assertEquals(visa.getMax(), all.getMax());
+			assertTrue(visa.getP999() <= visa.getMax());
+
+			// Closing the interval reports the same latencies
+			monitor.setSnapshotInterval(1);
+			Thread.sleep(1100);
+			results = (Map) monitor.optLatencyStatistic().get(key);
+			all = (LatencyStatisticResult) results.get("" + Utils.ALL_SUPPORT);
+			assertEquals(11, all.getCount());
+			assertTrue(all.getPeriodEnd() > all.getPeriodStart());
+
+			monitor.optFlush();
+			results = (Map) monitor.optCumulativeLatencyStatistic().get(key);
+			assertEquals(0, ((LatencyStatisticResult) results.get("" + Utils.ALL_SUPPORT)).getCount());
+		} catch (InterruptedException e) {
+			fail();
+		} finally {
+			monitor.setSnapshotInterval(LatencyMonitor.DEFAULT_SNAPSHOT_INTERVAL);
+			AuthenticatorSession.instance().reset();
+		}
+	}
+
+	private static String describe(MessagingException me) {
+		return "MessagingException[id="
+			+ me.getId()
+			+ ", code="
+			+ me.getErrorCode()
+			+ ", detail="
+			+ me.getErrorDetail()
+			+ ", vendorCode="
+			+ me.getVendorCode()
+			+ "]";
+	}
+
 	public static Test suite() {
 
 		JUnitHelper.initFromFile();
@@ -1714,6 +2047,10 @@ public class MessagingTest extends TestCase {
 		suite.addTest(new MessagingTest("testPAResToPaymentAuthResTransformer"));
 		suite.addTest(new MessagingTest("testIDGenerator"));
 		suite.addTest(new MessagingTest("testMessageProtocol"));
+		suite.addTest(new MessagingTest("testProcessorRegistry"));
+		suite.addTest(new MessagingTest("testStreamingConverter"));
+		suite.addTest(new MessagingTest("testSerializationBenchmark"));
+		suite.addTest(new MessagingTest("testLatencyMonitor"));
 		return suite;
 	}
 
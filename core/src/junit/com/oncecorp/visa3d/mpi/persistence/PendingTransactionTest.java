@@ -0,0 +1,113 @@
+/**
+ * Copyright 2003, 2004  ONCE Corporation
+ *
+ * LICENSE:
+ * This file is part of BuilditMPI. It may be redistributed and/or modified
+ * under the terms of the Common Public License, version 1.0.
+ * You should have received a copy of the Common Public License along with this
+ * software. See LICENSE.txt for details. Otherwise, you may find it online at:
+ *   http://www.oncecorp.com/CPL10/ or http://opensource.org/licenses/cpl.php
+ *
+ * DISCLAIMER OF WARRANTIES AND LIABILITY:
+ * THE SOFTWARE IS PROVIDED "AS IS".  THE AUTHOR MAKES NO REPRESENTATIONS OR
+ * WARRANTIES, EITHER EXPRESS OR IMPLIED.  TO THE EXTENT NOT PROHIBITED BY LAW,
+ * IN NO EVENT WILL THE AUTHOR BE LIABLE FOR ANY DAMAGES, INCLUDING WITHOUT
+ * LIMITATION, LOST REVENUE, PROFITS OR DATA, OR FOR SPECIAL, INDIRECT,
+ * CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER CAUSED AND REGARDLESS
+ * OF THE THEORY OF LIABILITY, ARISING OUT OF OR RELATED TO ANY FURNISHING,
+ * PRACTICING, MODIFYING OR ANY USE OF THE SOFTWARE, EVEN IF THE AUTHOR HAVE
+ * BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ * -----------------------------------------------------
+ * $Id$
+ */
+
+package com.oncecorp.visa3d.mpi.persistence;
+
+import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test Case object to validate the pending transaction DAO against an
+ * embedded database
+ *
+ * @version $Revision: 1 $
+ */
+public class PendingTransactionTest extends TestCase {
+
+	private PendingTransactionDAO dao = null;
+
+	public PendingTransactionTest(String aTestName) {
+		super(aTestName);
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		JUnitHelper.initTransactionStore();
+		dao = new PendingTransactionDAO();
+	}
+
+	public void testCreateRetrieve() {
+		try {
+			List batch = new ArrayList();
+			batch.add(new PendingTransaction("PT-1", 1000, new byte[] { 1, 2, 3 }));
+			batch.add(new PendingTransaction("PT-2", 2000, new byte[] { 4, 5 }));
+			dao.create(batch);
+
+			PendingTransaction tx = (PendingTransaction) dao.retrieve("PT-1");
+			assertNotNull(tx);
+			assertEquals(1000, tx.getCreationTime());
+			assertEquals(3, tx.getData().length);
+			assertEquals(3, tx.getData()[2]);
+
+			// Creating an existing transaction replaces it
+			dao.create(new PendingTransaction("PT-1", 3000, new byte[] { 9 }));
+			tx = (PendingTransaction) dao.retrieve("PT-1");
+			assertEquals(3000, tx.getCreationTime());
+			assertEquals(1, tx.getData().length);
+
+			assertNull(dao.retrieve("PT-3"));
+
+			dao.delete("PT-1");
+			dao.delete("PT-2");
+			assertNull(dao.retrieve("PT-1"));
+		}
+		catch (PersistentException pExcep) {
+			fail("Unable to store pending transactions: " + pExcep.getMessage());
+		}
+	}
+
+	public void testExpiryClaim() {
+		try {
+			dao.create(new PendingTransaction("PT-OLD", 1000, new byte[] { 1 }));
+			dao.create(new PendingTransaction("PT-NEW", 5000, new byte[] { 2 }));
+
+			List expired = dao.retrieveCreatedBefore(2000);
+			assertEquals(1, expired.size());
+			assertEquals("PT-OLD", ((PendingTransaction) expired.get(0)).getId());
+
+			// Only the first claim succeeds
+			assertTrue(dao.claim("PT-OLD"));
+			assertTrue(!dao.claim("PT-OLD"));
+
+			dao.delete("PT-NEW");
+		}
+		catch (PersistentException pExcep) {
+			fail("Unable to expire pending transactions: " + pExcep.getMessage());
+		}
+	}
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("Pending transaction DAO suite");
+		suite.addTest(new PendingTransactionTest("testCreateRetrieve"));
+		suite.addTest(new PendingTransactionTest("testExpiryClaim"));
+		return suite;
+	}
+}
@@ -27,8 +27,26 @@ package com.oncecorp.visa3d.mpi.publishing;
 import com.oncecorp.visa3d.mpi.domain.payment.VEReqMessage;
 import com.oncecorp.visa3d.mpi.messaging.ID_Generator;
 import com.oncecorp.visa3d.mpi.messaging.MessagingException;
+import com.oncecorp.visa3d.mpi.security.TripleDESEncrypter;
 import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+
 import junit.framework.TestCase;
 
 /**
@@ -86,4 +104,418 @@ public class PublishingManagerTest extends TestCase {
 
 	}
 
+	/**
+	 * Fill a publishing spool up to its size limit across several segments,
+	 * then reopen it with a torn record at its end and check that the
+	 * pending messages are still all there.
+	 */
+	public void testSpool() {
+		File dir =
+			new File(
+				System.getProperty("java.io.tmpdir"),
+				"PublishSpoolTest" + System.currentTimeMillis());
+		StringBuffer body = new StringBuffer();
+		for (int i = 0; i < 300; i++)
+			body.append((char) ('a' + i % 26));
+
+		try {
+			PublishSpool spool = new PublishSpool(null, dir, 1024, 4096, 100, 1000);
+			int appended = 0;
+			while ((appended < 100)
+				&& spool.append(
+					new PublishRequest(
+						"id" + appended,
+						"VEReq",
+						"1.0.2",
+						"merchant",
+						"1",
+						body.toString()))) {
+				appended++;
+			}
+
+			assertTrue(appended > 2);
+			assertTrue(appended < 100);
+			assertEquals(appended, spool.getDepth());
+			assertEquals(1, spool.getDroppedCount());
+			assertTrue(spool.getSize() <= 4096);
+			spool.close();
+			assertTrue(dir.list().length > 2);
+
+			// Simulate a crash in the middle of an append
+			String[] names = dir.list();
+			Arrays.sort(names);
+			RandomAccessFile last =
+				new RandomAccessFile(new File(dir, names[names.length - 2]), "rw");
+			last.seek(last.length());
+			last.write(new byte[] { 0, 0, 1, 0, 1 });
+			last.close();
+
+			spool = new PublishSpool(null, dir, 1024, 4096, 100, 1000);
+			assertEquals(appended, spool.getDepth());
+			spool.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			String[] names = dir.list();
+			for (int i = 0; (names != null) && (i < names.length); i++)
+				new File(dir, names[i]).delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * With the encryption mode on, spooled records hold the encrypted body
+	 * and its initialization vector, never the card number in clear.
+	 */
+	public void testSpoolEncryption() {
+		File dir =
+			new File(
+				System.getProperty("java.io.tmpdir"),
+				"PublishSpoolTest" + System.currentTimeMillis());
+		String mode = PublishingManager.getEncryptionMode();
+		TripleDESEncrypter encrypter = TripleDESEncrypter.getInstance();
+		SecretKey key = TripleDESEncrypter.getSecretKey();
+		String pan = "4510100020003000";
+		String body = "<Message><VEReq><pan>" + pan + "</pan></VEReq></Message>";
+
+		try {
+			TripleDESEncrypter.setSecretKey(
+				KeyGenerator.getInstance("DESede").generateKey());
+			PublishingManager.setEncryptionMode("true");
+
+			PublishRequest request =
+				new PublishRequest("id", "VEReq", "1.0.2", "merchant", "1", body);
+			PublishRequest encrypted = PublishingManager.encrypt(request);
+			assertNotNull(encrypted.getEncryptionIV());
+			assertTrue(encrypted.getBody().indexOf(pan) < 0);
+			assertEquals(
+				body,
+				encrypter.decrypt(encrypted.getBody(), encrypted.getEncryptionIV()));
+			assertSame(encrypted, PublishingManager.encrypt(encrypted));
+
+			PublishSpool spool = new PublishSpool(null, dir, 1024, 4096, 100, 1000);
+			assertTrue(spool.append(request));
+			spool.close();
+
+			String[] names = dir.list();
+			for (int i = 0; i < names.length; i++) {
+				RandomAccessFile in = new RandomAccessFile(new File(dir, names[i]), "r");
+				byte[] content = new byte[(int) in.length()];
+				in.readFully(content);
+				in.close();
+				assertTrue(new String(content, "ISO-8859-1").indexOf(pan) < 0);
+			}
+
+			spool = new PublishSpool(null, dir, 1024, 4096, 100, 1000);
+			assertEquals(1, spool.getDepth());
+			spool.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			PublishingManager.setEncryptionMode(mode);
+			TripleDESEncrypter.setSecretKey(key);
+			String[] names = dir.list();
+			for (int i = 0; (names != null) && (i < names.length); i++)
+				new File(dir, names[i]).delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * With the Block policy, a request thread finding the queue full waits
+	 * until the publisher thread makes room.
+	 */
+	public void testAsyncBlockPolicy() {
+		final StubPublisher async =
+			new StubPublisher(1, AsyncPublisher.POLICY_BLOCK, 0, false);
+		try {
+			fillQueue(async);
+			Thread blocked = new Thread() {
+				public void run() {
+					try {
+						async.publish(request("3"));
+					} catch (PublishException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			blocked.start();
+			blocked.join(200);
+			assertTrue(blocked.isAlive());
+
+			async.open();
+			blocked.join(5000);
+			assertTrue(!blocked.isAlive());
+			async.shutdown();
+			assertEquals("123", async.getPublished());
+			assertEquals(0, async.getOverflowCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			async.open();
+		}
+	}
+
+	/**
+	 * With the Spool policy, a message finding the queue full goes to the
+	 * spool and the request thread carries on.
+	 */
+	public void testAsyncSpoolPolicy() {
+		StubPublisher async =
+			new StubPublisher(1, AsyncPublisher.POLICY_SPOOL, 0, false);
+		try {
+			fillQueue(async);
+			async.publish(request("3"));
+			assertEquals("3", async.getSpooled());
+			assertEquals(1, async.getOverflowCount());
+
+			async.open();
+			async.shutdown();
+			assertEquals("12", async.getPublished());
+			assertEquals(0, async.getFailedCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			async.open();
+		}
+	}
+
+	/**
+	 * With the Fail policy, a message finding the queue full is rejected.
+	 */
+	public void testAsyncFailPolicy() {
+		StubPublisher async =
+			new StubPublisher(1, AsyncPublisher.POLICY_FAIL, 0, false);
+		try {
+			fillQueue(async);
+			try {
+				async.publish(request("3"));
+				fail();
+			} catch (PublishException e) {
+				// Expected
+			}
+			assertEquals(1, async.getRejectedCount());
+
+			async.open();
+			async.shutdown();
+			assertEquals("12", async.getPublished());
+			assertEquals("", async.getSpooled());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			async.open();
+		}
+	}
+
+	/**
+	 * A batch whose commit fails is published again on a fresh session.
+	 */
+	public void testAsyncBatchRetry() {
+		StubPublisher async =
+			new StubPublisher(10, AsyncPublisher.POLICY_BLOCK, 1, false);
+		async.open();
+		try {
+			async.publish(request("1"));
+			async.shutdown();
+			assertEquals(2, async.getSessions());
+			assertEquals("1", async.getPublished());
+			assertEquals(1, async.getBatchCount());
+			assertEquals(0, async.getFailedCount());
+			assertEquals("", async.getSpooled());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * A batch that also fails on the fresh session goes to the spool, and
+	 * the failure is reported when the spool cannot take it.
+	 */
+	public void testAsyncBatchFailure() {
+		StubPublisher async =
+			new StubPublisher(10, AsyncPublisher.POLICY_BLOCK, 2, true);
+		async.open();
+		try {
+			async.publish(request("1"));
+			async.shutdown();
+			assertEquals(2, async.getSessions());
+			assertEquals("", async.getPublished());
+			assertEquals(1, async.getFailedCount());
+			assertEquals("1", async.getSpooled());
+			assertTrue(async.isReported());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * Messages still queued when the shutdown timeout elapses are spooled,
+	 * and the failure is reported for those the spool refuses.
+	 */
+	public void testAsyncShutdownSpool() {
+		StubPublisher async =
+			new StubPublisher(10, AsyncPublisher.POLICY_BLOCK, 0, false);
+		try {
+			fillQueue(async);
+			async.publish(request("3"));
+			async.shutdown(100);
+			assertEquals(0, async.getQueueDepth());
+			assertEquals("23", async.getSpooled());
+			assertTrue(!async.isReported());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			async.open();
+		}
+
+		async = new StubPublisher(10, AsyncPublisher.POLICY_BLOCK, 0, true);
+		try {
+			fillQueue(async);
+			async.shutdown(100);
+			assertEquals("2", async.getSpooled());
+			assertTrue(async.isReported());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		} finally {
+			async.open();
+		}
+	}
+
+	/**
+	 * Leaves message 1 held by the publisher thread and message 2 in the
+	 * queue, which is then full for a capacity of 1.
+	 */
+	private void fillQueue(StubPublisher async)
+		throws PublishException, InterruptedException {
+		async.publish(request("1"));
+		async.awaitSession();
+		async.publish(request("2"));
+		assertEquals(1, async.getQueueDepth());
+	}
+
+	private static PublishRequest request(String id) {
+		return new PublishRequest(id, "VEReq", "1.0.2", "merchant", "1", "<Message/>");
+	}
+
+	/**
+	 * AsyncPublisher over stub JMS sessions, with a single publisher thread.
+	 * Sessions are only handed out once open() is called, and the first
+	 * failCommits commits throw.
+	 */
+	private static class StubPublisher extends AsyncPublisher {
+		private int failCommits;
+		private boolean spoolFull;
+		private boolean open;
+		private boolean reported;
+		private int sessions;
+		private StringBuffer published = new StringBuffer();
+		private StringBuffer spooled = new StringBuffer();
+
+		StubPublisher(int capacity, String policy, int failCommits, boolean spoolFull) {
+			super(null, capacity, 1, 10, policy);
+			this.failCommits = failCommits;
+			this.spoolFull = spoolFull;
+		}
+
+		TopicSession createSession() throws JMSException {
+			synchronized (this) {
+				sessions++;
+				notifyAll();
+				while (!open) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new JMSException("Interrupted");
+					}
+				}
+			}
+			return (TopicSession) Proxy.newProxyInstance(
+				TopicSession.class.getClassLoader(),
+				new Class[] { TopicSession.class },
+				new StubSession());
+		}
+
+		Message createMessage(TopicSession session, PublishRequest request) {
+			((StubSession) Proxy.getInvocationHandler(session)).pending.append(
+				request.getId());
+			return null;
+		}
+
+		synchronized boolean spool(PublishRequest request) {
+			spooled.append(request.getId());
+			return !spoolFull;
+		}
+
+		synchronized void publishingFailed() {
+			reported = true;
+		}
+
+		synchronized void commit(StringBuffer pending) throws JMSException {
+			String batch = pending.toString();
+			pending.setLength(0);
+			if (failCommits > 0) {
+				failCommits--;
+				throw new JMSException("Commit failed");
+			}
+			published.append(batch);
+		}
+
+		synchronized void open() {
+			open = true;
+			notifyAll();
+		}
+
+		synchronized void awaitSession() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((sessions == 0) && (System.currentTimeMillis() < deadline))
+				wait(100);
+			assertEquals(1, sessions);
+		}
+
+		synchronized int getSessions() {
+			return sessions;
+		}
+
+		synchronized String getPublished() {
+			return published.toString();
+		}
+
+		synchronized String getSpooled() {
+			return spooled.toString();
+		}
+
+		synchronized boolean isReported() {
+			return reported;
+		}
+
+		/**
+		 * Session and publisher of one publisher thread: the messages are
+		 * only published on commit.
+		 */
+		private class StubSession implements InvocationHandler {
+			private StringBuffer pending = new StringBuffer();
+
+			public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+				if (method.getName().equals("createPublisher"))
+					return Proxy.newProxyInstance(
+						TopicPublisher.class.getClassLoader(),
+						new Class[] { TopicPublisher.class },
+						this);
+				if (method.getName().equals("commit"))
+					commit(pending);
+				return null;
+			}
+		}
+	}
+
 }
@@ -30,8 +30,12 @@ import com.oncecorp.visa3d.mpi.configuration.Config;
 import com.oncecorp.visa3d.mpi.configuration.MPIConfigDefinition;
 import com.oncecorp.visa3d.mpi.utility.JUnitHelper;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ResourceBundle;
 
+import javax.net.ssl.SSLSocketFactory;
+
 import junit.framework.Assert;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -188,6 +192,85 @@ public class SecurityTest extends TestCase {
 		   }
 	}
 
+	/**
+	 * Test SSLContextRegistry lookup order and keystore reload
+	 */
+	public void testSSLContextRegistry() throws Exception {
+		String password = "changeit";
+		File protocolStore = createKeyStore("protocol", password);
+		File merchantStore = createKeyStore("merchant", password);
+		try {
+			SSLContextRegistry registry = new SSLContextRegistry("JKS", 50);
+			registry.register(
+				SSLContextRegistry.VBV,
+				protocolStore.getPath(), password,
+				protocolStore.getPath(), password);
+			registry.register(
+				SSLContextRegistry.MERCHANT + "m1",
+				merchantStore.getPath(), password,
+				null, null);
+
+			// Merchant first, then protocol, then default
+			Assert.assertEquals(
+				SSLContextRegistry.MERCHANT + "m1",
+				registry.resolve(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE, "m1"));
+			Assert.assertEquals(
+				SSLContextRegistry.VBV,
+				registry.resolve(MPIConfigDefinition.PROTOCOL_VISA_3D_SECURE, "m2"));
+			Assert.assertEquals(
+				SSLContextRegistry.DEFAULT,
+				registry.resolve(MPIConfigDefinition.PROTOCOL_MASTERCARD_SECURE_CODE, null));
+			Assert.assertTrue(registry.load());
+
+			// Built once, rebuilt when the keystore changes
+			SSLSocketFactory factory = registry.getSocketFactory(SSLContextRegistry.VBV);
+			Assert.assertSame(factory, registry.getSocketFactory(SSLContextRegistry.VBV));
+			Assert.assertTrue(factory != registry.getSocketFactory(SSLContextRegistry.DEFAULT));
+			Assert.assertSame(
+				registry.getSocketFactory(SSLContextRegistry.DEFAULT),
+				registry.getSocketFactory("unknown"));
+			protocolStore.setLastModified(protocolStore.lastModified() + 2000);
+			Thread.sleep(100);
+			Assert.assertTrue(factory != registry.getSocketFactory(SSLContextRegistry.VBV));
+
+			// A context that fails to reload is kept, a missing one fails
+			factory = registry.getSocketFactory(SSLContextRegistry.VBV);
+			protocolStore.delete();
+			Thread.sleep(100);
+			Assert.assertSame(factory, registry.getSocketFactory(SSLContextRegistry.VBV));
+			registry.register(
+				SSLContextRegistry.SECURE_CODE,
+				protocolStore.getPath(), password,
+				null, null);
+			Assert.assertTrue(!registry.load());
+			try {
+				registry.getSocketFactory(SSLContextRegistry.SECURE_CODE);
+				fail();
+			} catch (IOException expected) {
+			}
+		} finally {
+			protocolStore.delete();
+			merchantStore.delete();
+		}
+	}
+
+	private static File createKeyStore(String alias, String password) throws Exception {
+		File store = File.createTempFile(alias, ".keystore");
+		store.delete();
+		String keytool =
+			System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "keytool";
+		Process keygen =
+			Runtime.getRuntime().exec(
+				new String[] {
+					keytool, "-genkey", "-alias", alias, "-keyalg", "RSA",
+					"-dname", "CN=" + alias, "-validity", "1", "-storetype", "JKS",
+					"-keystore", store.getPath(), "-storepass", password,
+					"-keypass", password });
+		Assert.assertEquals(0, keygen.waitFor());
+		return store;
+	}
+
 	public static Test suite() {
 
 		JUnitHelper.initFromFile();
@@ -201,6 +284,7 @@ public class SecurityTest extends TestCase {
 		TestSuite suite = new TestSuite("Security suite");
 		suite.addTest(new SecurityTest("testXMLSignature"));
         suite.addTest(new SecurityTest("testMPIEncrypter"));
+		suite.addTest(new SecurityTest("testSSLContextRegistry"));
 
 		return suite;
 	}
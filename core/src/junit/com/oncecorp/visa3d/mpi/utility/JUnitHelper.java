@@ -25,11 +25,18 @@
 package com.oncecorp.visa3d.mpi.utility;
 
 import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Properties;
 
 import com.oncecorp.visa3d.mpi.persistence.ConfigDAO;
 import com.oncecorp.visa3d.mpi.persistence.Log4jDAO;
 import com.oncecorp.visa3d.mpi.persistence.MerchantDAO;
+import com.oncecorp.visa3d.mpi.persistence.PendingTransactionDAO;
+
+import junit.framework.Assert;
 
 /**
  * Helper class for Junit test case
@@ -96,6 +103,59 @@ public class JUnitHelper
 
 	}
 
+	/**
+	 * Setup the shared pending transaction store and create its table if
+	 * needed. Unless overridden in UnitTest.properties, an in-memory HSQLDB
+	 * database is used (hsqldb.jar must be in the junit lib directory).
+	 * The calling test fails if the JDBC driver is not available.
+	 */
+	public static void initTransactionStore()
+	{
+		Properties props = getPropertiesFromFile("UnitTest.properties");
+		PendingTransactionDAO.setJdbcDriver( props.getProperty("TransactionJdbcDriver", "org.hsqldb.jdbcDriver") );
+		PendingTransactionDAO.setDbUrl( props.getProperty("TransactionDbUrl", "jdbc:hsqldb:mem:mpicore") );
+		PendingTransactionDAO.setDbUsername( props.getProperty("TransactionDbUsername", "sa") );
+		PendingTransactionDAO.setDbPassword( props.getProperty("TransactionDbPassword", "") );
+		PendingTransactionDAO.setDbSchema( props.getProperty("TransactionDbSchema", "") );
+		PendingTransactionDAO.setDbTable( props.getProperty("TransactionDbTable", "PENDING_TRANSACTION") );
+
+		try {
+			Class.forName( PendingTransactionDAO.getJdbcDriver() );
+		} catch ( ClassNotFoundException e )
+		{
+			Assert.fail("JDBC driver " + PendingTransactionDAO.getJdbcDriver()
+				+ " not found. Add its jar to the junit lib directory or set"
+				+ " TransactionJdbcDriver in UnitTest.properties.");
+		}
+
+		Connection conn = null;
+		try {
+			conn = DriverManager.getConnection(
+				PendingTransactionDAO.getDbUrl(),
+				PendingTransactionDAO.getDbUsername(),
+				PendingTransactionDAO.getDbPassword() );
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate(
+				"CREATE TABLE " + PendingTransactionDAO.getDbTable()
+					+ " (TRANSACTION_ID VARCHAR(30) NOT NULL PRIMARY KEY,"
+					+ " CREATION_TIME BIGINT NOT NULL,"
+					+ " DATA LONGVARBINARY)" );
+			stmt.close();
+		} catch ( Exception e )
+		{
+			// Table already created by a previous test
+			System.out.println("Pending transaction table not created: " + e.getMessage());
+		} finally {
+			if ( conn != null ) {
+				try {
+					conn.close();
+				} catch ( SQLException e ) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
 	public static void initFromFile()
 	{
 		Properties props = getPropertiesFromFile("UnitTest.properties");
@@ -441,6 +441,201 @@ public class UtilityTest extends TestCase {
 	 */
 	public void testBase64toBinary() {
 	}
+
+	/**
+	 * Test the timing wheel: scheduled timeouts expire once, cancelled
+	 * ones never do.
+	 */
+	public void testTimingWheel() {
+		final ArrayList expired = new ArrayList();
+		TimingWheel wheel =
+			new TimingWheel("UtilityTest", 10, new TimingWheel.TimeoutListener() {
+				public void timeoutExpired(TimingWheel.Timeout timeout) {
+					synchronized (expired) {
+						expired.add(timeout.getKey());
+					}
+				}
+			});
+		wheel.start();
+
+		try {
+			for (int i = 0; i < 100; i++)
+				wheel.schedule("Key-" + i, null, 50 + i * 10);
+			TimingWheel.Timeout cancelled = wheel.schedule("Cancelled", null, 100);
+			assertTrue(wheel.cancel(cancelled));
+			assertTrue(!wheel.cancel(cancelled));
+
+			Thread.sleep(2000);
+
+			synchronized (expired) {
+				assertEquals(100, expired.size());
+				assertEquals("Key-0", expired.get(0));
+				assertEquals("Key-99", expired.get(99));
+				assertTrue(!expired.contains("Cancelled"));
+			}
+			assertEquals(0, wheel.getPendingCount());
+		} catch (InterruptedException ie) {
+			fail();
+		} finally {
+			wheel.stop();
+		}
+	}
+
+	/**
+	 * Test the XPath cache: an expression is compiled once and its
+	 * evaluations are counted.
+	 */
+	public void testXPathCache() {
+		try {
+			Document doc = XMLUtil.createDocument("<A><B>1</B><B>2</B></A>");
+			String expr = "/A/B[2]/text()";
+			long misses = XMLUtil.getXPathCacheMissCount();
+
+			assertEquals("2", XMLUtil.getValueByXPath(doc, expr));
+			assertEquals("2", XMLUtil.getValueByXPath(doc, expr));
+			assertEquals(2, XMLUtil.getNodeListByXPath(doc, "/A/B").getLength());
+			assertNull(XMLUtil.getFirstNodeByXPath(doc, "/A/C"));
+
+			assertTrue(XMLUtil.getXPathCacheMissCount() - misses <= 3);
+			XPathStatisticResult result =
+				(XPathStatisticResult) XMLUtil.getXPathStatistics().get(expr);
+			assertNotNull(result);
+			assertEquals(1, result.getCompileCount());
+			assertTrue(result.getHitCount() >= 1);
+			assertTrue(result.getEvaluationCount() >= 2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * Test the XML parser pools: parsers are reused by the same thread and
+	 * parse results are not affected by previous parses.
+	 */
+	public void testParserPool() {
+		try {
+			long hits = XMLUtil.getParserPoolHitCount();
+			long misses = XMLUtil.getParserPoolMissCount();
+
+			Document first = XMLUtil.createDocument("<A><B>1</B></A>");
+			try {
+				XMLUtil.createDocument("<A><B>");
+				fail("Malformed document parsed");
+			} catch (Exception expected) {
+			}
+			Document second = XMLUtil.createDocument("<C/>");
+
+			assertTrue(first != second);
+			assertEquals("A", first.getDocumentElement().getNodeName());
+			assertEquals("C", second.getDocumentElement().getNodeName());
+			assertEquals(0, second.getDocumentElement().getChildNodes().getLength());
+			assertNotNull(XMLUtil.createDocument());
+			assertNotNull(XMLUtil.createDocument());
+
+			assertTrue(XMLUtil.getParserPoolMissCount() - misses <= 2);
+			assertTrue(XMLUtil.getParserPoolHitCount() - hits >= 3);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	/**
+	 * Test the striped counters: concurrent increments are all accounted
+	 * for, growing keeps existing values and reset clears every counter.
+	 */
+	public void testStripedCounter() {
+		final StripedCounter counter = new StripedCounter(3, 8);
+		final int[] cells = new int[] { 0, 2 };
+		final int loops = 100000;
+		assertTrue(counter.getStripeCount() >= 8);
+
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int k = 0; k < loops; k++) {
+						counter.increment(cells);
+						counter.increment(1);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+		} catch (InterruptedException e) {
+			fail();
+		}
+
+		long expected = (long) threads.length * loops;
+		assertEquals(expected, counter.get(0));
+		assertEquals(expected, counter.get(1));
+		assertEquals(expected, counter.get(2));
+
+		counter.ensureCapacity(40);
+		assertEquals(40, counter.size());
+		counter.increment(39);
+		long[] values = counter.snapshot();
+		assertEquals(40, values.length);
+		assertEquals(expected, values[2]);
+		assertEquals(1, values[39]);
+
+		counter.reset();
+		values = counter.snapshot();
+		for (int i = 0; i < values.length; i++)
+			assertEquals(0, values[i]);
+	}
+
+	/**
+	 * Test the latency histogram: buckets are contiguous and precise to
+	 * 1/16th, percentiles and intervals are computed from the counts.
+	 */
+	public void testLatencyHistogram() {
+		int previous = 0;
+		for (long v = 0; v <= LatencyHistogram.MAX_VALUE; v += 1 + v / 64) {
+			int bucket = LatencyHistogram.getBucket(v);
+			assertTrue(bucket == previous || bucket == previous + 1);
+			long high = LatencyHistogram.getBucketValue(bucket);
+			assertTrue(high >= v);
+			assertTrue(high - v <= v / 16);
+			previous = bucket;
+		}
+		assertEquals(
+			LatencyHistogram.BUCKET_COUNT - 1,
+			LatencyHistogram.getBucket(LatencyHistogram.MAX_VALUE + 1000));
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long v = 1; v <= 1000; v++)
+			histogram.record(v);
+		long[] counts = histogram.getCounts();
+		assertEquals(1000, LatencyHistogram.getTotalCount(counts));
+		assertEquals(1000, histogram.getMax());
+		long p50 = LatencyHistogram.getValueAtPercentile(counts, 50, histogram.getMax());
+		long p99 = LatencyHistogram.getValueAtPercentile(counts, 99, histogram.getMax());
+		assertTrue(p50 >= 500 && p50 <= 500 + 500 / 16);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, LatencyHistogram.getValueAtPercentile(counts, 100, histogram.getMax()));
+
+		// Only the values recorded since the previous rotation are reported
+		histogram.rotate();
+		histogram.record(7);
+		histogram.record(9);
+		histogram.rotate();
+		long[] interval = histogram.getIntervalCounts();
+		assertEquals(2, LatencyHistogram.getTotalCount(interval));
+		assertEquals(9, histogram.getIntervalMax());
+		assertEquals(7, LatencyHistogram.getValueAtPercentile(interval, 50, 9));
+		assertEquals(1002, LatencyHistogram.getTotalCount(histogram.getCounts()));
+
+		histogram.reset();
+		assertEquals(0, LatencyHistogram.getTotalCount(histogram.getCounts()));
+		assertEquals(0, LatencyHistogram.getTotalCount(histogram.getIntervalCounts()));
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, LatencyHistogram.getValueAtPercentile(histogram.getCounts(), 99, 0));
+	}
 	
 	
 	/**
@@ -464,6 +659,11 @@ public class UtilityTest extends TestCase {
 		suite.addTest(new UtilityTest("testBase64toBinary"));
 		suite.addTest(new UtilityTest("testCardValidation"));
 		suite.addTest(new UtilityTest("testURLValidator"));
+		suite.addTest(new UtilityTest("testTimingWheel"));
+		suite.addTest(new UtilityTest("testParserPool"));
+		suite.addTest(new UtilityTest("testXPathCache"));
+		suite.addTest(new UtilityTest("testStripedCounter"));
+		suite.addTest(new UtilityTest("testLatencyHistogram"));
 
 		// suite.addTest(new UtilityTest("testXMLUtil"));
 